@@ -33,6 +33,16 @@ import java.util.Comparator;
  * other enhancements.
  */
 public class AlphanumComparator implements Comparator {
+    
+    /** The value of getSortKey() when a String has no sort key. */
+    public static final long NO_SORT_KEY = -1;
+    
+    /** The maximum number of letters before the number in a sort key. */
+    private static final int KEY_PREFIX_LENGTH = 4;
+    /** The maximum number of digits in a sort key. */
+    private static final int KEY_DIGITS_LENGTH = 5;
+    /** The maximum number of letters after the number in a sort key. */
+    private static final int KEY_SUFFIX_LENGTH = 2;
 
     /**
      * {@inheritDoc}
@@ -40,9 +50,23 @@ public class AlphanumComparator implements Comparator {
     @Override
     public int compare(final Object o1, final Object o2) {
         // Get the Strings by calling toString() on the passed in objects.
-        final String s1 = o1.toString();
-        final String s2 = o2.toString();
-        
+        return compareStrings(o1.toString(), o2.toString());
+    }
+    
+    /**
+     * Compare two Strings using the alphanum algorithm. The Strings are split
+     * in to chunks of digits and non-digits. Chunks of digits are compared
+     * numerically and other chunks are compared as Strings.
+     * 
+     * The chunks are found by walking through both Strings in place, so
+     * nothing is allocated.
+     * 
+     * @param s1 The first String.
+     * @param s2 The second String.
+     * @return A negative number if s1 comes first, a positive number if s2
+     * comes first or 0 if they are equal.
+     */
+    public static int compareStrings(final String s1, final String s2) {
         int thisMarker = 0;
         int thatMarker = 0;
         // Cache their lengths to avoid looking this up later.
@@ -51,75 +75,178 @@ public class AlphanumComparator implements Comparator {
 
         // Keep looping until the end of either String is reached.
         while(thisMarker < s1Length && thatMarker < s2Length) {
-            final String thisChunk = getChunk(s1, thisMarker);
-            thisMarker += thisChunk.length();
-
-            final String thatChunk = getChunk(s2, thatMarker);
-            thatMarker += thatChunk.length();
-
-            // If both chunks contain numeric characters, sort them numerically.
-            int result;
-            if(Character.isDigit(thisChunk.charAt(0)) &&
-                    Character.isDigit(thatChunk.charAt(0))) {
-                // Simple chunk comparison by length.
-                final int thisChunkLength = thisChunk.length();
-                result = thisChunkLength - thatChunk.length();
-                // If equal, the first different number counts.
-                if(result == 0) {
-                    for(int i = 0; i < thisChunkLength; i++) {
-                        result = thisChunk.charAt(i) - thatChunk.charAt(i);
-                        if(result != 0) return result;
-                    }
-                }
-            } else {
-                result = thisChunk.compareTo(thatChunk);
+            final boolean thisDigit =
+                    Character.isDigit(s1.charAt(thisMarker));
+            final boolean thatDigit =
+                    Character.isDigit(s2.charAt(thatMarker));
+            final int thisChunkEnd = getChunkEnd(s1, thisMarker, thisDigit);
+            final int thatChunkEnd = getChunkEnd(s2, thatMarker, thatDigit);
+            final int thisChunkLength = thisChunkEnd - thisMarker;
+            final int thatChunkLength = thatChunkEnd - thatMarker;
+            
+            // If both chunks contain numeric characters, sort them
+            // numerically. Otherwise, compare them like String.compareTo().
+            // Either way, the first different character counts. Numeric
+            // chunks compare their lengths first.
+            if(thisDigit && thatDigit && thisChunkLength != thatChunkLength) {
+                return thisChunkLength - thatChunkLength;
             }
-
-            if(result != 0) return result;
+            
+            final int len = Math.min(thisChunkLength, thatChunkLength);
+            for(int i = 0; i < len; i++) {
+                final int result = s1.charAt(thisMarker + i) -
+                        s2.charAt(thatMarker + i);
+                if(result != 0) return result;
+            }
+            
+            if(thisChunkLength != thatChunkLength) {
+                return thisChunkLength - thatChunkLength;
+            }
+            
+            thisMarker = thisChunkEnd;
+            thatMarker = thatChunkEnd;
         }
 
         return s1Length - s2Length;
     }
     
     /**
-     * Split the String in to chunks of digits and non-digits.
+     * Get a sort key for a String. Comparing the sort keys of two Strings as
+     * longs gives the same order as compareStrings() does, so the key can be
+     * worked out once and kept to make later comparisons cheap.
+     * 
+     * Only Strings which look like bus service names have a sort key. That is
+     * up to 4 upper case letters, optionally followed by up to 5 digits and
+     * up to 2 more upper case letters, for example "N26", "X25" or "100A".
+     * For other Strings, NO_SORT_KEY is returned and they should be compared
+     * with compareStrings(). See compareWithKeys().
      * 
-     * @param s The String to get the chunk from.
-     * @param marker The index of the String to start looking at.
-     * @return A chunk of digits or non-digits.
+     * @param s The String to get the sort key for.
+     * @return The sort key, or NO_SORT_KEY if the String does not have one.
      */
-    private static String getChunk(final String s, int marker) {
-        if(s == null) throw new IllegalArgumentException("String is null.");
+    public static long getSortKey(final String s) {
+        final int len = s.length();
+        if(len == 0) return NO_SORT_KEY;
         
-        // Cache the character array to avoid repeated calls to String.charAt()
-        final char[] chars = s.toCharArray();
-        final int len = chars.length;
-        if(marker < 0 || marker > (len - 1))
-            throw new IllegalArgumentException("marker is invalid.");
+        int i = 0;
+        long prefix = 0;
+        while(i < len && isKeyLetter(s.charAt(i))) {
+            if(i == KEY_PREFIX_LENGTH) return NO_SORT_KEY;
+            prefix = (prefix << 5) | (s.charAt(i) - 'A' + 1);
+            i++;
+        }
         
-        final StringBuilder chunk = new StringBuilder();
-        // The first character will always appear in the chunk.
-        chunk.append(chars[marker]);
-        marker++;
+        // Pad the prefix so that shorter prefixes sort first.
+        prefix <<= 5 * (KEY_PREFIX_LENGTH - i);
+        
+        final int digitsStart = i;
+        long number = 0;
+        while(i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            if(i - digitsStart == KEY_DIGITS_LENGTH) return NO_SORT_KEY;
+            number = number * 10 + (s.charAt(i) - '0');
+            i++;
+        }
         
-        if(Character.isDigit(chars[marker - 1])) {
-            // If first character is a digit, keep appending characters until we
-            // encounter a non-digit.
-            while(marker < len) {
-                if(!Character.isDigit(chars[marker])) break;
-                chunk.append(chars[marker]);
-                marker++;
+        final int digits = i - digitsStart;
+        long suffix = 0;
+        int suffixLength = 0;
+        if(digits > 0) {
+            while(i < len && isKeyLetter(s.charAt(i))) {
+                if(suffixLength == KEY_SUFFIX_LENGTH) return NO_SORT_KEY;
+                suffix = (suffix << 5) | (s.charAt(i) - 'A' + 1);
+                suffixLength++;
+                i++;
             }
-        } else {
-            // If first character is a non-digit, keep appending character until
-            // we encounter a digit.
-            while(marker < len) {
-                if(Character.isDigit(chars[marker])) break;
-                chunk.append(chars[marker]);
-                marker++;
+            
+            suffix <<= 5 * (KEY_SUFFIX_LENGTH - suffixLength);
+        }
+        
+        if(i != len) return NO_SORT_KEY;
+        
+        // The layout, from the most significant bits, is the prefix (20 bits),
+        // the number of digits (3 bits), the number (17 bits) then the suffix
+        // (10 bits). Numbers with more digits sort last, as in
+        // compareStrings().
+        return (((((prefix << 3) | digits) << 17) | number) << 10) | suffix;
+    }
+    
+    /**
+     * Compare two Strings using their sort keys from getSortKey(). If both
+     * have a sort key, this is a primitive comparison. Otherwise, the Strings
+     * are compared with compareStrings().
+     * 
+     * @param s1 The first String.
+     * @param key1 The sort key of the first String.
+     * @param s2 The second String.
+     * @param key2 The sort key of the second String.
+     * @return A negative number if s1 comes first, a positive number if s2
+     * comes first or 0 if they are equal.
+     */
+    public static int compareWithKeys(final String s1, final long key1,
+            final String s2, final long key2) {
+        if(key1 != NO_SORT_KEY && key2 != NO_SORT_KEY) {
+            return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+        }
+        
+        return compareStrings(s1, s2);
+    }
+    
+    /**
+     * Sort an array of Strings in to alphanum order. The sort key of each
+     * String is only worked out once. This uses an insertion sort, so it is
+     * meant for short arrays such as lists of bus services.
+     * 
+     * @param strings The Strings to sort. This array is sorted in place.
+     */
+    public static void sort(final String[] strings) {
+        final int count = strings.length;
+        final long[] keys = new long[count];
+        
+        for(int i = 0; i < count; i++) {
+            final String s = strings[i];
+            final long key = getSortKey(s);
+            int j = i;
+            
+            while(j > 0 && compareWithKeys(strings[j - 1], keys[j - 1], s,
+                    key) > 0) {
+                strings[j] = strings[j - 1];
+                keys[j] = keys[j - 1];
+                j--;
             }
+            
+            strings[j] = s;
+            keys[j] = key;
+        }
+    }
+    
+    /**
+     * Find the end of the chunk starting at marker. A chunk is a run of
+     * digits or a run of non-digits.
+     * 
+     * @param s The String to find the chunk in.
+     * @param marker The index of the start of the chunk.
+     * @param digit true if the chunk is digits, false if not.
+     * @return The index after the last character of the chunk.
+     */
+    private static int getChunkEnd(final String s, int marker,
+            final boolean digit) {
+        final int len = s.length();
+        marker++;
+        
+        while(marker < len && Character.isDigit(s.charAt(marker)) == digit) {
+            marker++;
         }
         
-        return chunk.toString();
+        return marker;
+    }
+    
+    /**
+     * Is a character allowed in the letters of a sort key?
+     * 
+     * @param c The character.
+     * @return true if it is an upper case letter from A to Z, false if not.
+     */
+    private static boolean isKeyLetter(final char c) {
+        return c >= 'A' && c <= 'Z';
     }
 }
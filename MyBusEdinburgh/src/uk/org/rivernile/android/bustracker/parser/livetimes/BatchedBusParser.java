@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.android.bustracker.parser.livetimes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A BatchedBusParser wraps another BusParser which can only deal with a
+ * limited number of stop codes per request. Any number of stop codes may be
+ * given to this parser. They are split in to chunks which the wrapped parser
+ * can deal with, the chunks are requested concurrently and the results are
+ * merged back together.
+ * 
+ * If any of the chunks fail, the whole request fails with the error of the
+ * first chunk that failed, as it would if the request had been made in one go.
+ * 
+ * @author Niall Scott
+ */
+public class BatchedBusParser implements BusParser {
+    
+    /** The maximum number of chunks that are requested at the same time. */
+    public static final int MAX_CONCURRENT_REQUESTS = 3;
+    
+    private static ExecutorService executor;
+    
+    private final BusParser parser;
+    private final int maxStopCodes;
+    
+    /**
+     * Create a new BatchedBusParser.
+     * 
+     * @param parser The parser which makes the requests for each chunk.
+     * @param maxStopCodes The maximum number of stop codes the parser can deal
+     * with in a single request.
+     */
+    public BatchedBusParser(final BusParser parser, final int maxStopCodes) {
+        if(parser == null)
+            throw new IllegalArgumentException("The parser must not be null.");
+        
+        if(maxStopCodes < 1)
+            throw new IllegalArgumentException("The maximum number of stop " +
+                    "codes must be greater than 0.");
+        
+        this.parser = parser;
+        this.maxStopCodes = maxStopCodes;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HashMap<String, BusStop> getBusStopData(final String[] stopCodes,
+            final int numDepartures) throws BusParserException {
+        if(stopCodes == null || stopCodes.length == 0) return null;
+        
+        final ArrayList<String[]> chunks = getChunks(stopCodes);
+        final int len = chunks.size();
+        
+        if(len == 0) {
+            // There were no valid stop codes.
+            return null;
+        } else if(len == 1) {
+            // No need to go through the executor if there's only one chunk.
+            return parser.getBusStopData(chunks.get(0), numDepartures);
+        }
+        
+        final ExecutorService exec = getExecutor();
+        final ArrayList<Future<HashMap<String, BusStop>>> futures =
+                new ArrayList<Future<HashMap<String, BusStop>>>(len - 1);
+        
+        // The first chunk is done on this thread, so submit the rest.
+        for(int i = 1; i < len; i++) {
+            final String[] chunk = chunks.get(i);
+            futures.add(exec.submit(new Callable<HashMap<String, BusStop>>() {
+                @Override
+                public HashMap<String, BusStop> call()
+                        throws BusParserException {
+                    return parser.getBusStopData(chunk, numDepartures);
+                }
+            }));
+        }
+        
+        final HashMap<String, BusStop> result =
+                new HashMap<String, BusStop>();
+        
+        try {
+            putAll(result, parser.getBusStopData(chunks.get(0),
+                    numDepartures));
+            
+            for(Future<HashMap<String, BusStop>> future : futures) {
+                putAll(result, future.get());
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusParserException(ERROR_NOCONNECTION);
+        } catch(ExecutionException e) {
+            final Throwable cause = e.getCause();
+            
+            if(cause instanceof BusParserException) {
+                throw (BusParserException)cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new BusParserException(ERROR_UNKNOWN);
+            }
+        } finally {
+            // If there was an error, there's no point continuing with the
+            // other chunks.
+            for(Future<HashMap<String, BusStop>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Split the stop codes in to chunks of no more than maxStopCodes. Duplicate
+     * stop codes are removed.
+     * 
+     * @param stopCodes The stop codes to split.
+     * @return A list of chunks of stop codes.
+     */
+    private ArrayList<String[]> getChunks(final String[] stopCodes) {
+        final LinkedHashSet<String> unique = new LinkedHashSet<String>();
+        for(String stopCode : stopCodes) {
+            if(stopCode != null && stopCode.length() > 0) {
+                unique.add(stopCode);
+            }
+        }
+        
+        final ArrayList<String[]> chunks = new ArrayList<String[]>();
+        final int total = unique.size();
+        String[] chunk = null;
+        int i = 0;
+        
+        for(String stopCode : unique) {
+            final int pos = i % maxStopCodes;
+            if(pos == 0) {
+                chunk = new String[Math.min(maxStopCodes, total - i)];
+                chunks.add(chunk);
+            }
+            
+            chunk[pos] = stopCode;
+            i++;
+        }
+        
+        return chunks;
+    }
+    
+    /**
+     * Put all of the mappings from a chunk result in to the merged result.
+     * 
+     * @param result The merged result.
+     * @param chunkResult The result from a single chunk. May be null.
+     */
+    private static void putAll(final HashMap<String, BusStop> result,
+            final HashMap<String, BusStop> chunkResult) {
+        if(chunkResult != null) {
+            result.putAll(chunkResult);
+        }
+    }
+    
+    /**
+     * Get the executor that chunks are requested on. This is shared between all
+     * instances so that the number of concurrent requests is bounded across
+     * the application. Its threads time out when they are not being used.
+     * 
+     * @return The executor that chunks are requested on.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            // When all threads are busy, the chunk is requested on the
+            // submitting thread instead of being queued.
+            executor = new ThreadPoolExecutor(0, MAX_CONCURRENT_REQUESTS, 30,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                private int count = 0;
+                
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "BatchedBusParser #" +
+                            ++count);
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        
+        return executor;
+    }
+}
@@ -25,6 +25,7 @@
 
 package uk.org.rivernile.android.bustracker.parser.livetimes;
 
+import com.davekoelle.alphanum.AlphanumComparator;
 import java.util.ArrayList;
 
 /**
@@ -40,6 +41,7 @@ public class BusService {
     
     private final String serviceName;
     private final String route;
+    private final long sortKey;
     private final ArrayList<Bus> buses;
     
     /**
@@ -55,6 +57,7 @@ public class BusService {
         
         this.serviceName = serviceName;
         this.route = route;
+        sortKey = AlphanumComparator.getSortKey(serviceName);
         
         buses = new ArrayList<Bus>();
     }
@@ -68,6 +71,16 @@ public class BusService {
         return serviceName;
     }
     
+    /**
+     * Get the alphanum sort key of the service name. See
+     * AlphanumComparator.getSortKey().
+     * 
+     * @return The sort key of the service name.
+     */
+    public long getSortKey() {
+        return sortKey;
+    }
+    
     /**
      * Get the String which describes the route that this bus service takes. Can
      * be null.
@@ -100,6 +113,25 @@ public class BusService {
         return (ArrayList<Bus>)buses.clone();
     }
     
+    /**
+     * Get the number of buses in this bus service.
+     * 
+     * @return The number of buses.
+     */
+    public int getBusCount() {
+        return buses.size();
+    }
+    
+    /**
+     * Get a bus without copying the list of buses.
+     * 
+     * @param index The index of the bus.
+     * @return The bus at that index.
+     */
+    public Bus getBus(final int index) {
+        return buses.get(index);
+    }
+    
     /**
      * Get the first bus in the array.
      * 
@@ -28,6 +28,8 @@ package uk.org.rivernile.android.bustracker.parser.livetimes;
 import com.davekoelle.alphanum.AlphanumComparator;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * A bus stop is a collection of bus services, in the context of this class.
@@ -36,9 +38,23 @@ import java.util.Collections;
  */
 public class BusStop {
     
+    /**
+     * Sorts services by name, using the sort keys worked out when the
+     * services were created.
+     */
+    private static final Comparator<BusService> SERVICE_NAME_COMPARATOR =
+            new Comparator<BusService>() {
+        @Override
+        public int compare(final BusService a, final BusService b) {
+            return AlphanumComparator.compareWithKeys(a.getServiceName(),
+                    a.getSortKey(), b.getServiceName(), b.getSortKey());
+        }
+    };
+    
     private final String stopCode;
     private final String stopName;
     private final ArrayList<BusService> busServices;
+    private boolean sorted = true;
     
     /**
      * Create a new BusStop. This is an immutable class.
@@ -89,15 +105,37 @@ public class BusStop {
             throw new IllegalArgumentException("The bus service must not be " +
                     "null.");
         
-        busServices.add(busService);
+        synchronized(this) {
+            busServices.add(busService);
+            sorted = false;
+        }
     }
     
     /**
-     * Get the ArrayList of all bus services for this bus stop.
+     * Get the ArrayList of all bus services for this bus stop. This is
+     * synchronized as BusStops may be shared between threads by
+     * CachingBusParser.
+     * 
      * @return The ArrayList of all bus services for this bus stop.
      */
-    public ArrayList<BusService> getBusServices() {
-        Collections.sort(busServices, new AlphanumComparator());
-        return (ArrayList<BusService>)busServices.clone();
+    public synchronized ArrayList<BusService> getBusServices() {
+        return new ArrayList<BusService>(getSortedBusServices());
+    }
+    
+    /**
+     * Get the bus services for this bus stop, sorted by name, without copying
+     * them. The lock on this BusStop must be held while the List is used, and
+     * the List must not be changed.
+     * 
+     * @return The bus services for this bus stop.
+     */
+    protected List<BusService> getSortedBusServices() {
+        // Only sort again if services have been added since the last sort.
+        if(!sorted) {
+            Collections.sort(busServices, SERVICE_NAME_COMPARATOR);
+            sorted = true;
+        }
+        
+        return busServices;
     }
 }
\ No newline at end of file
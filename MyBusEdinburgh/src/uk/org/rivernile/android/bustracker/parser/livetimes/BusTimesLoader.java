@@ -28,6 +28,7 @@ package uk.org.rivernile.android.bustracker.parser.livetimes;
 import android.content.Context;
 import android.os.SystemClock;
 import java.util.HashMap;
+import uk.org.rivernile.android.utils.Metrics;
 import uk.org.rivernile.android.utils.SimpleResultLoader;
 
 /**
@@ -41,6 +42,10 @@ import uk.org.rivernile.android.utils.SimpleResultLoader;
  */
 public class BusTimesLoader extends SimpleResultLoader<BusTimesResult> {
     
+    private static final String SECTION_LOAD = "BusTimesLoader.load";
+    private static final String COUNTER_STOPS = "BusTimesLoader.stops";
+    private static final String COUNTER_ERROR_PREFIX = "BusTimesLoader.error.";
+    
     private final BusParser parser;
     private final String[] stopCodes;
     private final int numberOfDepartures;
@@ -82,6 +87,8 @@ public class BusTimesLoader extends SimpleResultLoader<BusTimesResult> {
     public BusTimesResult loadInBackground() {
         HashMap<String, BusStop> res = null;
         byte error = -1;
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_LOAD);
 
         try {
             // Get the bus times from the supplied parser.
@@ -89,8 +96,13 @@ public class BusTimesLoader extends SimpleResultLoader<BusTimesResult> {
         } catch(BusParserException e) {
             // If an error occurrs, get it from the exception.
             error = e.getCode();
+        } finally {
+            metrics.endSection(SECTION_LOAD, start);
         }
         
+        metrics.add(COUNTER_STOPS, stopCodes.length);
+        if(error >= 0) metrics.increment(COUNTER_ERROR_PREFIX + error);
+        
         // If there's an error, give the result an error code, otherwise give
         // it the result HashMap.
         if(error < 0) {
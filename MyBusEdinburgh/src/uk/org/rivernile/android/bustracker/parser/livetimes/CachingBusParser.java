@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.android.bustracker.parser.livetimes;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A CachingBusParser sits in front of another BusParser and holds on to the
+ * BusStops it returns for a short time. It is intended to be shared across the
+ * whole process, so that when the same stop is being loaded from a number of
+ * places at once (for example, a time alert is running while the user is
+ * looking at the same stop) only one request is made.
+ * 
+ * - Results are cached per stop code and number of departures.
+ * - A BusStop which was loaded less than maxAge milliseconds ago is returned
+ *   from the cache.
+ * - When a stop is already being loaded by another thread, the request waits
+ *   for that load to finish rather than making its own.
+ * - Errors are never cached.
+ * - getRefreshingParser() gives a BusParser which ignores cached results, for
+ *   when the user has explicitly asked for new data.
+ * 
+ * As cached BusStops are shared between callers, they must not be modified.
+ * 
+ * @author Niall Scott
+ */
+public class CachingBusParser implements BusParser {
+    
+    /**
+     * The default time, in milliseconds, that a result is considered fresh
+     * for.
+     */
+    public static final long DEFAULT_MAX_AGE = 20000;
+    
+    private final BusParser parser;
+    private final long maxAge;
+    private final HashMap<String, CacheEntry> cache =
+            new HashMap<String, CacheEntry>();
+    private final HashMap<String, InFlight> inFlight =
+            new HashMap<String, InFlight>();
+    
+    private int hits = 0;
+    private int misses = 0;
+    private int coalesced = 0;
+    
+    private final BusParser refreshingParser = new BusParser() {
+        @Override
+        public HashMap<String, BusStop> getBusStopData(
+                final String[] stopCodes, final int numDepartures)
+                throws BusParserException {
+            // A negative age means nothing in the cache is fresh enough.
+            return CachingBusParser.this.getBusStopData(stopCodes,
+                    numDepartures, -1);
+        }
+    };
+    
+    /**
+     * Create a new CachingBusParser.
+     * 
+     * @param parser The parser which loads the data when it is not cached.
+     * @param maxAge The time, in milliseconds, that a result is considered
+     * fresh for.
+     */
+    public CachingBusParser(final BusParser parser, final long maxAge) {
+        if(parser == null)
+            throw new IllegalArgumentException("The parser must not be null.");
+        
+        if(maxAge < 0)
+            throw new IllegalArgumentException("The max age must not be " +
+                    "negative.");
+        
+        this.parser = parser;
+        this.maxAge = maxAge;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HashMap<String, BusStop> getBusStopData(final String[] stopCodes,
+            final int numDepartures) throws BusParserException {
+        return getBusStopData(stopCodes, numDepartures, maxAge);
+    }
+    
+    /**
+     * Get a BusParser which always loads stops from the wrapped parser rather
+     * than returning cached results. This should be used when the user has
+     * asked for a refresh. What it loads is still cached for other callers,
+     * and a stop which is already being loaded is waited on rather than being
+     * requested again.
+     * 
+     * @return A BusParser which ignores cached results.
+     */
+    public BusParser getRefreshingParser() {
+        return refreshingParser;
+    }
+    
+    /**
+     * Get bus stop data, using cached results which are no older than
+     * maxAge.
+     * 
+     * @param stopCodes The stop codes to load.
+     * @param numDepartures The number of departures to load for each service.
+     * @param maxAge The time, in milliseconds, that a cached result is
+     * considered fresh for. If negative, cached results are not used.
+     * @return A mapping of stop code -> BusStop.
+     * @throws BusParserException When the wrapped parser fails.
+     */
+    private HashMap<String, BusStop> getBusStopData(final String[] stopCodes,
+            final int numDepartures, final long maxAge)
+            throws BusParserException {
+        if(stopCodes == null || stopCodes.length == 0) return null;
+        
+        final HashMap<String, BusStop> result = new HashMap<String, BusStop>();
+        final LinkedHashSet<String> unique = new LinkedHashSet<String>();
+        for(String stopCode : stopCodes) {
+            unique.add(stopCode);
+        }
+        
+        // The loads this thread is responsible for, and the loads of other
+        // threads that this thread is waiting on.
+        final ArrayList<String> toLoad = new ArrayList<String>();
+        final HashMap<String, InFlight> owned = new HashMap<String, InFlight>();
+        final HashMap<String, InFlight> waiting =
+                new HashMap<String, InFlight>();
+        
+        synchronized(this) {
+            final long now = SystemClock.elapsedRealtime();
+            
+            for(String stopCode : unique) {
+                final String key = getKey(stopCode, numDepartures);
+                final CacheEntry entry = cache.get(key);
+                
+                if(entry != null && now - entry.time <= maxAge) {
+                    result.put(stopCode, entry.busStop);
+                    hits++;
+                    continue;
+                }
+                
+                InFlight flight = inFlight.get(key);
+                if(flight != null) {
+                    waiting.put(stopCode, flight);
+                    coalesced++;
+                } else {
+                    flight = new InFlight();
+                    inFlight.put(key, flight);
+                    owned.put(stopCode, flight);
+                    toLoad.add(stopCode);
+                    misses++;
+                }
+            }
+        }
+        
+        if(!toLoad.isEmpty()) {
+            result.putAll(load(toLoad, numDepartures, owned));
+        }
+        
+        for(String stopCode : waiting.keySet()) {
+            final BusStop busStop = waiting.get(stopCode).await();
+            if(busStop != null) {
+                result.put(stopCode, busStop);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get the number of stops that have been returned from the cache.
+     * 
+     * @return The number of cache hits.
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+    
+    /**
+     * Get the number of stops that had to be loaded from the wrapped parser.
+     * 
+     * @return The number of cache misses.
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Get the number of stops that were not in the cache but were already
+     * being loaded by another thread, so no further request was made for them.
+     * 
+     * @return The number of coalesced requests.
+     */
+    public synchronized int getCoalesced() {
+        return coalesced;
+    }
+    
+    /**
+     * Set the hit, miss and coalesced counts back to 0. The cache itself is
+     * kept.
+     */
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        coalesced = 0;
+    }
+    
+    /**
+     * Remove everything from the cache. Loads which are already in progress
+     * still return their result to the threads waiting on them, but it is not
+     * cached. This should be called when the data source changes, such as when
+     * the web service is pointed at a different server.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        inFlight.clear();
+    }
+    
+    /**
+     * Load stops from the wrapped parser, caching the result and passing it on
+     * to any threads which are waiting on the loads.
+     * 
+     * @param toLoad The stop codes to load.
+     * @param numDepartures The number of departures to load for each service.
+     * @param owned A mapping of stop code -> InFlight for the loads this
+     * thread is responsible for.
+     * @return The result of the load.
+     * @throws BusParserException When the wrapped parser fails.
+     */
+    private HashMap<String, BusStop> load(final ArrayList<String> toLoad,
+            final int numDepartures, final HashMap<String, InFlight> owned)
+            throws BusParserException {
+        HashMap<String, BusStop> data = null;
+        byte error = ERROR_UNKNOWN;
+        
+        try {
+            data = parser.getBusStopData(
+                    toLoad.toArray(new String[toLoad.size()]), numDepartures);
+            error = -1;
+        } catch(BusParserException e) {
+            error = e.getCode() >= 0 ? e.getCode() : ERROR_UNKNOWN;
+            throw e;
+        } finally {
+            synchronized(this) {
+                final long now = SystemClock.elapsedRealtime();
+                if(error < 0) {
+                    removeExpired(now);
+                }
+                
+                for(String stopCode : toLoad) {
+                    final String key = getKey(stopCode, numDepartures);
+                    // The cache may have been cleared since the load started,
+                    // in which case the result belongs to the old data source.
+                    if(inFlight.get(key) != owned.get(stopCode)) {
+                        continue;
+                    }
+                    
+                    final BusStop busStop = data != null ?
+                            data.get(stopCode) : null;
+                    
+                    if(busStop != null) {
+                        cache.put(key, new CacheEntry(busStop, now));
+                    }
+                    
+                    inFlight.remove(key);
+                }
+            }
+            
+            // Wake up anything waiting on these loads.
+            for(String stopCode : toLoad) {
+                if(error < 0) {
+                    owned.get(stopCode).setResult(data != null ?
+                            data.get(stopCode) : null);
+                } else {
+                    owned.get(stopCode).setError(error);
+                }
+            }
+        }
+        
+        return data != null ? data : new HashMap<String, BusStop>();
+    }
+    
+    /**
+     * Remove entries from the cache which are no longer fresh. The caller must
+     * hold the lock on this object.
+     * 
+     * @param now The current time, from SystemClock.elapsedRealtime().
+     */
+    private void removeExpired(final long now) {
+        final Iterator<CacheEntry> it = cache.values().iterator();
+        while(it.hasNext()) {
+            if(now - it.next().time > maxAge) {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Get the key used for the cache.
+     * 
+     * @param stopCode The stop code.
+     * @param numDepartures The number of departures.
+     * @return The key used for the cache.
+     */
+    private static String getKey(final String stopCode,
+            final int numDepartures) {
+        return stopCode + '/' + numDepartures;
+    }
+    
+    /**
+     * A BusStop held in the cache, along with the time it was loaded at.
+     */
+    private static class CacheEntry {
+        
+        private final BusStop busStop;
+        private final long time;
+        
+        /**
+         * Create a new CacheEntry.
+         * 
+         * @param busStop The BusStop.
+         * @param time The time it was loaded at, from
+         * SystemClock.elapsedRealtime().
+         */
+        public CacheEntry(final BusStop busStop, final long time) {
+            this.busStop = busStop;
+            this.time = time;
+        }
+    }
+    
+    /**
+     * A load of a single stop which is in progress. Other threads which want
+     * the same stop wait on this until the load has finished.
+     */
+    private static class InFlight {
+        
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private BusStop busStop;
+        private byte error = -1;
+        
+        /**
+         * Set the result of the load and wake up waiting threads.
+         * 
+         * @param busStop The BusStop that was loaded. May be null if there
+         * was no data for the stop.
+         */
+        public void setResult(final BusStop busStop) {
+            this.busStop = busStop;
+            latch.countDown();
+        }
+        
+        /**
+         * Set the error the load failed with and wake up waiting threads.
+         * 
+         * @param error The error code.
+         */
+        public void setError(final byte error) {
+            this.error = error;
+            latch.countDown();
+        }
+        
+        /**
+         * Wait for the load to finish.
+         * 
+         * @return The BusStop that was loaded, or null if there was no data.
+         * @throws BusParserException When the load failed, or the thread was
+         * interrupted while waiting.
+         */
+        public BusStop await() throws BusParserException {
+            try {
+                latch.await();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BusParserException(ERROR_NOCONNECTION);
+            }
+            
+            if(error >= 0) {
+                throw new BusParserException(error);
+            }
+            
+            return busStop;
+        }
+    }
+}
@@ -0,0 +1,797 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.android.utils;
+
+import android.os.SystemClock;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HttpTransport is the single place where the application makes HTTP
+ * requests. All requests made through it share the same behaviour;
+ * 
+ * - Connections are not disconnected after use so that HttpURLConnection can
+ *   keep them alive and reuse them for the next request to the same host.
+ * - gzip is negotiated and the response is decompressed.
+ * - Connect and read timeouts are enforced.
+ * - Proxies are told not to serve cached responses. Where the endpoint allows
+ *   it, the request is instead made conditional on the ETag or Last-Modified
+ *   time of the previous response so that an unchanged response costs no
+ *   payload.
+ * - Timings are kept per endpoint. See getStats().
+ * 
+ * Get an instance of this class from the getInstance() method.
+ * 
+ * @author Niall Scott
+ */
+public final class HttpTransport {
+    
+    /** The time, in milliseconds, to wait for a connection to be made. */
+    public static final int CONNECT_TIMEOUT = 15000;
+    /** The time, in milliseconds, to wait for data to be read. */
+    public static final int READ_TIMEOUT = 20000;
+    
+    private static final int BUFFER_SIZE = 8192;
+    private static final String CHARSET = "UTF-8";
+    
+    private static HttpTransport instance;
+    
+    private final HashMap<String, CachedResponse> cache =
+            new HashMap<String, CachedResponse>();
+    private int cacheGeneration = 0;
+    private final HashMap<String, EndpointStats> stats =
+            new HashMap<String, EndpointStats>();
+    
+    /**
+     * Create a new HttpTransport. Use getInstance() instead.
+     */
+    private HttpTransport() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Get the instance of the HttpTransport. This class uses the singleton
+     * design pattern, meaning that no more than 1 instance of this class will
+     * exist.
+     * 
+     * @return The singleton instance of this class.
+     */
+    public static synchronized HttpTransport getInstance() {
+        if(instance == null) instance = new HttpTransport();
+        return instance;
+    }
+    
+    /**
+     * Open a GET request to the given URL. The caller is responsible for
+     * calling close() on the returned Response, even if the stream is not read,
+     * otherwise the connection will not be returned for reuse.
+     * 
+     * @param endpoint The name of the endpoint. This is used to key the timing
+     * stats.
+     * @param url The URL to request.
+     * @return A Response, with the stream ready to be read.
+     * @throws HostMismatchException When the host that responded differs from
+     * the host that was requested, for example when a captive portal is
+     * intercepting requests.
+     * @throws IOException When there was a problem connecting or when the
+     * server responded with an error status.
+     */
+    public Response open(final String endpoint, final String url)
+            throws IOException {
+        return open(endpoint, url, null, -1, null);
+    }
+    
+    /**
+     * Open a GET request for the part of a resource starting at offset. This
+     * is used to resume downloads. The response is not compressed, so that
+     * offsets refer to the bytes of the resource itself.
+     * 
+     * If the server supports the range, getStatus() on the returned Response
+     * is HTTP 206 (Partial Content). If not, or if ifRange is given and no
+     * longer matches the resource, the whole resource is returned with HTTP
+     * 200 and the caller must start again from the beginning.
+     * 
+     * @param endpoint The name of the endpoint. This is used to key the timing
+     * stats.
+     * @param url The URL to request.
+     * @param offset The offset to start from, in bytes.
+     * @param ifRange The ETag or Last-Modified value of the resource when the
+     * earlier part of it was downloaded, or null if not known.
+     * @return A Response, with the stream ready to be read.
+     * @throws HttpStatusException When the server responded with an error
+     * status. When the offset is beyond the end of the resource, the status is
+     * HTTP 416.
+     * @throws IOException When there was a problem connecting.
+     */
+    public Response openRange(final String endpoint, final String url,
+            final long offset, final String ifRange) throws IOException {
+        return open(endpoint, url, null, offset, ifRange);
+    }
+    
+    /**
+     * Get the body of the response to a GET request to the given URL as a
+     * String.
+     * 
+     * If conditional is true, the request is made conditional on the ETag and
+     * Last-Modified headers of the last successful response from this
+     * endpoint, and if the server reports that nothing has changed the
+     * previous body is returned without it being downloaded again. As the last
+     * response is remembered per endpoint, conditional should only be used for
+     * endpoints where the response does not depend on the query string, and
+     * for responses which are small.
+     * 
+     * @param endpoint The name of the endpoint. This is used to key the timing
+     * stats and, if conditional is true, the remembered response.
+     * @param url The URL to request.
+     * @param conditional true if the request should be made conditional on the
+     * previous response from this endpoint.
+     * @return The body of the response.
+     * @throws HostMismatchException When the host that responded differs from
+     * the host that was requested.
+     * @throws IOException When there was a problem connecting, reading or when
+     * the server responded with an error status.
+     */
+    public String getString(final String endpoint, final String url,
+            final boolean conditional) throws IOException {
+        final CachedResponse cached;
+        final int generation;
+        synchronized(cache) {
+            cached = conditional ? cache.get(endpoint) : null;
+            generation = cacheGeneration;
+        }
+        
+        final Response response = open(endpoint, url, cached, -1, null);
+        try {
+            if(response.isNotModified()) {
+                // Validators are only sent when there's a cached response.
+                return cached.body;
+            }
+            
+            final String body = response.readString();
+            
+            if(conditional && (response.etag != null ||
+                    response.lastModified != null)) {
+                synchronized(cache) {
+                    // Don't remember a response which was requested before
+                    // clearValidators() was called.
+                    if(generation == cacheGeneration) {
+                        cache.put(endpoint, new CachedResponse(response.etag,
+                                response.lastModified, body));
+                    }
+                }
+            }
+            
+            return body;
+        } finally {
+            response.close();
+        }
+    }
+    
+    /**
+     * Get a copy of the timing stats for each endpoint that has been used
+     * since the process started, or since resetStats() was last called.
+     * 
+     * @return A mapping of endpoint name -> EndpointStats.
+     */
+    public HashMap<String, EndpointStats> getStats() {
+        final HashMap<String, EndpointStats> result =
+                new HashMap<String, EndpointStats>();
+        
+        synchronized(stats) {
+            for(String endpoint : stats.keySet()) {
+                result.put(endpoint, new EndpointStats(stats.get(endpoint)));
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Forget the timing stats for all endpoints. Remembered responses are
+     * kept.
+     */
+    public void resetStats() {
+        synchronized(stats) {
+            stats.clear();
+        }
+    }
+    
+    /**
+     * Forget the remembered responses for all endpoints, so the next
+     * conditional request to each endpoint is made unconditionally. This
+     * should be called when the endpoints are pointed at a different server,
+     * as its validators will not match those of the previous server.
+     */
+    public void clearValidators() {
+        synchronized(cache) {
+            cache.clear();
+            cacheGeneration++;
+        }
+    }
+    
+    /**
+     * Open a GET request to the given URL, optionally making it conditional on
+     * a previous response.
+     * 
+     * @param endpoint The name of the endpoint.
+     * @param url The URL to request.
+     * @param cached The previous response to make the request conditional on,
+     * or null if the request should not be conditional.
+     * @param rangeStart The offset to request the resource from, or a
+     * negative number to request the whole resource.
+     * @param ifRange The validator to send with a range request. May be null.
+     * @return A Response, with the stream ready to be read.
+     * @throws IOException When there was a problem connecting or when the
+     * server responded with an error status.
+     */
+    private Response open(final String endpoint, final String url,
+            final CachedResponse cached, final long rangeStart,
+            final String ifRange) throws IOException {
+        final long startTime = SystemClock.elapsedRealtime();
+        final URL u = new URL(url);
+        final HttpURLConnection conn = (HttpURLConnection)u.openConnection();
+        
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if(rangeStart >= 0) {
+                // Byte ranges must refer to the resource itself, not a
+                // compressed version of it.
+                conn.setRequestProperty("Accept-Encoding", "identity");
+                conn.setRequestProperty("Range", "bytes=" + rangeStart + '-');
+                if(ifRange != null) {
+                    conn.setRequestProperty("If-Range", ifRange);
+                }
+            } else {
+                // Setting this ourselves means the response is never
+                // decompressed transparently, so it's dealt with the same on
+                // all API levels.
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            // Make sure proxies go back to the server, rather than using a
+            // random query argument to defeat their caching.
+            conn.setRequestProperty("Cache-Control", "no-cache");
+            conn.setRequestProperty("Pragma", "no-cache");
+            
+            if(cached != null) {
+                if(cached.etag != null) {
+                    conn.setRequestProperty("If-None-Match", cached.etag);
+                }
+                
+                if(cached.lastModified != null) {
+                    conn.setRequestProperty("If-Modified-Since",
+                            cached.lastModified);
+                }
+            }
+            
+            final int status = conn.getResponseCode();
+            
+            // Check to see if the URL we connected to was what we expected.
+            if(!u.getHost().equals(conn.getURL().getHost())) {
+                discardErrorStream(conn);
+                throw new HostMismatchException(u.getHost(),
+                        conn.getURL().getHost());
+            }
+            
+            if(status == HttpURLConnection.HTTP_NOT_MODIFIED &&
+                    cached != null) {
+                return new Response(this, endpoint, conn, status, null,
+                        startTime, true);
+            } else if(status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                discardErrorStream(conn);
+                throw new HttpStatusException(status);
+            }
+            
+            final CountingInputStream counter = new CountingInputStream(
+                    conn.getInputStream());
+            final InputStream in;
+            if("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                in = new BufferedInputStream(new GZIPInputStream(counter),
+                        BUFFER_SIZE);
+            } else {
+                in = new BufferedInputStream(counter, BUFFER_SIZE);
+            }
+            
+            return new Response(this, endpoint, conn, status, in, startTime,
+                    false, counter);
+        } catch(IOException e) {
+            record(endpoint, startTime, 0, false, false);
+            throw e;
+        }
+    }
+    
+    /**
+     * Read and close the error stream of a connection. This allows the
+     * connection to be reused.
+     * 
+     * @param conn The connection.
+     */
+    private static void discardErrorStream(final HttpURLConnection conn) {
+        final InputStream err = conn.getErrorStream();
+        if(err == null) return;
+        
+        try {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            while(err.read(buf) != -1) {
+                // Discard.
+            }
+        } catch(IOException e) {
+            // Nothing to do here.
+        } finally {
+            try {
+                err.close();
+            } catch(IOException e) {
+                // Nothing to do here.
+            }
+        }
+    }
+    
+    /**
+     * Record the outcome of a request against its endpoint.
+     * 
+     * @param endpoint The name of the endpoint.
+     * @param startTime The time the request was started at, from
+     * SystemClock.elapsedRealtime().
+     * @param bytes The number of bytes transferred over the network.
+     * @param success true if the request was successful.
+     * @param notModified true if the server reported that the content had not
+     * been modified.
+     */
+    private void record(final String endpoint, final long startTime,
+            final long bytes, final boolean success,
+            final boolean notModified) {
+        final long time = SystemClock.elapsedRealtime() - startTime;
+        
+        synchronized(stats) {
+            EndpointStats s = stats.get(endpoint);
+            if(s == null) {
+                s = new EndpointStats();
+                stats.put(endpoint, s);
+            }
+            
+            s.requests++;
+            if(!success) s.failures++;
+            if(notModified) s.notModified++;
+            s.totalTime += time;
+            if(time > s.maxTime) s.maxTime = time;
+            s.bytes += bytes;
+        }
+    }
+    
+    /**
+     * A Response is returned from HttpTransport.open(). It holds the stream of
+     * the response body. close() must be called when it is finished with.
+     */
+    public static final class Response {
+        
+        private final HttpTransport transport;
+        private final String endpoint;
+        private final InputStream in;
+        private final CountingInputStream counter;
+        private final long startTime;
+        private final boolean notModified;
+        private final String etag;
+        private final String lastModified;
+        private final int contentLength;
+        private final int status;
+        private boolean closed = false;
+        private boolean failed = false;
+        
+        /**
+         * Create a new Response.
+         * 
+         * @param transport The HttpTransport that created this Response.
+         * @param endpoint The name of the endpoint.
+         * @param conn The connection.
+         * @param status The HTTP status code of the response.
+         * @param in The stream of the response body. May be null when
+         * notModified is true.
+         * @param startTime The time the request was started at.
+         * @param notModified true if the server reported that the content had
+         * not been modified.
+         */
+        private Response(final HttpTransport transport, final String endpoint,
+                final HttpURLConnection conn, final int status,
+                final InputStream in, final long startTime,
+                final boolean notModified) {
+            this(transport, endpoint, conn, status, in, startTime, notModified,
+                    null);
+        }
+        
+        /**
+         * Create a new Response.
+         * 
+         * @param transport The HttpTransport that created this Response.
+         * @param endpoint The name of the endpoint.
+         * @param conn The connection.
+         * @param status The HTTP status code of the response.
+         * @param in The stream of the response body. May be null when
+         * notModified is true.
+         * @param startTime The time the request was started at.
+         * @param notModified true if the server reported that the content had
+         * not been modified.
+         * @param counter The stream which counts the bytes read from the
+         * network. May be null.
+         */
+        private Response(final HttpTransport transport, final String endpoint,
+                final HttpURLConnection conn, final int status,
+                final InputStream in, final long startTime,
+                final boolean notModified, final CountingInputStream counter) {
+            this.transport = transport;
+            this.endpoint = endpoint;
+            this.status = status;
+            this.in = in;
+            this.counter = counter;
+            this.startTime = startTime;
+            this.notModified = notModified;
+            
+            etag = conn.getHeaderField("ETag");
+            lastModified = conn.getHeaderField("Last-Modified");
+            // When gzipped, this is the compressed length.
+            contentLength = conn.getContentLength();
+        }
+        
+        /**
+         * Get the stream of the response body. This is buffered and
+         * decompressed.
+         * 
+         * @return The stream of the response body, or null if isNotModified()
+         * returns true.
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+        
+        /**
+         * Get the length of the content as reported by the server. When the
+         * response is compressed this is the compressed length.
+         * 
+         * @return The length of the content, or -1 if it is not known.
+         */
+        public int getContentLength() {
+            return contentLength;
+        }
+        
+        /**
+         * Get the HTTP status code of the response.
+         * 
+         * @return The HTTP status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+        
+        /**
+         * Get a value which identifies this version of the resource, suitable
+         * for sending as If-Range when resuming a download. This is the ETag
+         * if the server gave a strong one, otherwise the Last-Modified time.
+         * 
+         * @return The validator, or null if the server gave neither.
+         */
+        public String getRangeValidator() {
+            if(etag != null && !etag.startsWith("W/")) return etag;
+            
+            return lastModified;
+        }
+        
+        /**
+         * Get whether the server reported that the content had not been
+         * modified since the previous response.
+         * 
+         * @return true if the content had not been modified, false if not.
+         */
+        public boolean isNotModified() {
+            return notModified;
+        }
+        
+        /**
+         * Read the whole response body in to a String.
+         * 
+         * @return The response body.
+         * @throws IOException When there was a problem reading the body.
+         */
+        public String readString() throws IOException {
+            if(in == null) return null;
+            
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    contentLength > 0 ? contentLength : BUFFER_SIZE);
+            final byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            
+            try {
+                while((len = in.read(buf)) != -1) {
+                    out.write(buf, 0, len);
+                }
+            } catch(IOException e) {
+                failed = true;
+                throw e;
+            }
+            
+            return out.toString(CHARSET);
+        }
+        
+        /**
+         * Mark this Response as having failed. This only affects the stats
+         * recorded for the endpoint.
+         */
+        public void setFailed() {
+            failed = true;
+        }
+        
+        /**
+         * Close this Response. The connection is not disconnected so that it
+         * may be reused.
+         */
+        public void close() {
+            if(closed) return;
+            closed = true;
+            
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    // Nothing to do here.
+                }
+            }
+            
+            transport.record(endpoint, startTime,
+                    counter != null ? counter.count : 0, !failed,
+                    notModified);
+        }
+    }
+    
+    /**
+     * This class holds the timing stats for a single endpoint.
+     */
+    public static final class EndpointStats {
+        
+        private int requests;
+        private int failures;
+        private int notModified;
+        private long totalTime;
+        private long maxTime;
+        private long bytes;
+        
+        /**
+         * Create a new, empty, EndpointStats.
+         */
+        private EndpointStats() {
+            // Nothing to do here.
+        }
+        
+        /**
+         * Create a copy of an EndpointStats.
+         * 
+         * @param other The EndpointStats to copy.
+         */
+        private EndpointStats(final EndpointStats other) {
+            requests = other.requests;
+            failures = other.failures;
+            notModified = other.notModified;
+            totalTime = other.totalTime;
+            maxTime = other.maxTime;
+            bytes = other.bytes;
+        }
+        
+        /**
+         * Get the number of requests made to the endpoint.
+         * 
+         * @return The number of requests made to the endpoint.
+         */
+        public int getRequests() {
+            return requests;
+        }
+        
+        /**
+         * Get the number of requests to the endpoint that failed.
+         * 
+         * @return The number of requests to the endpoint that failed.
+         */
+        public int getFailures() {
+            return failures;
+        }
+        
+        /**
+         * Get the number of conditional requests where the server reported
+         * that the content had not been modified.
+         * 
+         * @return The number of not modified responses.
+         */
+        public int getNotModified() {
+            return notModified;
+        }
+        
+        /**
+         * Get the total time, in milliseconds, spent on requests to the
+         * endpoint, from opening the connection to closing the Response.
+         * 
+         * @return The total time spent on requests to the endpoint.
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+        
+        /**
+         * Get the longest time, in milliseconds, spent on a single request to
+         * the endpoint.
+         * 
+         * @return The longest time spent on a single request.
+         */
+        public long getMaxTime() {
+            return maxTime;
+        }
+        
+        /**
+         * Get the mean time, in milliseconds, spent on a request to the
+         * endpoint.
+         * 
+         * @return The mean time spent on a request, or 0 if no requests have
+         * been made.
+         */
+        public long getMeanTime() {
+            return requests > 0 ? totalTime / requests : 0;
+        }
+        
+        /**
+         * Get the number of bytes received over the network from the
+         * endpoint. When responses are compressed this is the compressed size.
+         * 
+         * @return The number of bytes received from the endpoint.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+    
+    /**
+     * This exception is thrown when the host that responded to a request is
+     * not the host that was requested. This usually happens when a captive
+     * portal, such as on public WiFi, is intercepting requests.
+     */
+    public static class HostMismatchException extends IOException {
+        
+        /**
+         * Create a new HostMismatchException.
+         * 
+         * @param expected The host that was requested.
+         * @param actual The host that responded.
+         */
+        public HostMismatchException(final String expected,
+                final String actual) {
+            super("Expected host " + expected + " but got " + actual);
+        }
+    }
+    
+    /**
+     * This exception is thrown when the server responds with an HTTP error
+     * status.
+     */
+    public static class HttpStatusException extends IOException {
+        
+        private final int status;
+        
+        /**
+         * Create a new HttpStatusException.
+         * 
+         * @param status The HTTP status code the server responded with.
+         */
+        public HttpStatusException(final int status) {
+            super("The server responded with HTTP " + status);
+            
+            this.status = status;
+        }
+        
+        /**
+         * Get the HTTP status code the server responded with.
+         * 
+         * @return The HTTP status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+    }
+    
+    /**
+     * A response which has previously been received from an endpoint, along
+     * with its validators.
+     */
+    private static class CachedResponse {
+        
+        private final String etag;
+        private final String lastModified;
+        private final String body;
+        
+        /**
+         * Create a new CachedResponse.
+         * 
+         * @param etag The ETag header of the response. May be null.
+         * @param lastModified The Last-Modified header of the response. May be
+         * null.
+         * @param body The body of the response.
+         */
+        public CachedResponse(final String etag, final String lastModified,
+                final String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+    
+    /**
+     * An InputStream which counts the number of bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        
+        private long count = 0;
+        
+        /**
+         * Create a new CountingInputStream.
+         * 
+         * @param in The stream to count.
+         */
+        public CountingInputStream(final InputStream in) {
+            super(in);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if(b != -1) count++;
+            return b;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(final byte[] buffer, final int offset,
+                final int length) throws IOException {
+            final int len = super.read(buffer, offset, length);
+            if(len > 0) count += len;
+            return len;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            if(skipped > 0) count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.android.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Metrics keeps lightweight performance metrics for the life of the process
+ * so that they can be looked at on a user's device. There are three kinds;
+ * 
+ * - Counters, which are simply incremented.
+ * - Latency histograms, which count durations in to fixed buckets and keep
+ *   the count, total and maximum.
+ * - Trace sections, which time a piece of code in to the histogram of the
+ *   same name. On Android 4.3 (API level 18) or greater the section is also
+ *   shown in systrace.
+ * 
+ * Sections are used like this;
+ * 
+ * final long start = metrics.beginSection(SECTION_NAME);
+ * try {
+ *     ...
+ * } finally {
+ *     metrics.endSection(SECTION_NAME, start);
+ * }
+ * 
+ * Sections must be ended on the thread they were begun on, in the reverse
+ * order they were begun in.
+ * 
+ * Nothing is persisted. See dump() for a text version of everything that has
+ * been recorded.
+ * 
+ * Get an instance of this class from the getInstance() method.
+ * 
+ * @author Niall Scott
+ */
+public final class Metrics {
+    
+    /**
+     * The upper bounds, in microseconds, of the histogram buckets. There is
+     * one more bucket than there are bounds for durations above the last
+     * bound.
+     */
+    private static final long[] BUCKET_BOUNDS = {
+        500L, 1000L, 2000L, 5000L, 10000L, 20000L, 50000L, 100000L, 200000L,
+        500000L, 1000000L, 2000000L, 5000000L, 10000000L, 30000000L
+    };
+    
+    private static final boolean isJellyBeanMr2OrGreater =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    
+    private static Metrics instance;
+    
+    private final HashMap<String, long[]> counters =
+            new HashMap<String, long[]>();
+    private final HashMap<String, Histogram> histograms =
+            new HashMap<String, Histogram>();
+    private volatile long since = SystemClock.elapsedRealtime();
+    
+    /**
+     * Create a new Metrics. Use getInstance() instead.
+     */
+    private Metrics() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Get the instance of Metrics. This class uses the singleton design
+     * pattern, meaning that no more than 1 instance of this class will exist.
+     * 
+     * @return The singleton instance of this class.
+     */
+    public static synchronized Metrics getInstance() {
+        if(instance == null) instance = new Metrics();
+        return instance;
+    }
+    
+    /**
+     * Increment a counter by 1.
+     * 
+     * @param name The name of the counter.
+     */
+    public void increment(final String name) {
+        add(name, 1);
+    }
+    
+    /**
+     * Add a number to a counter. The counter is created if it does not exist.
+     * 
+     * @param name The name of the counter.
+     * @param delta The number to add to the counter.
+     */
+    public void add(final String name, final long delta) {
+        synchronized(counters) {
+            final long[] counter = counters.get(name);
+            if(counter != null) {
+                counter[0] += delta;
+            } else {
+                counters.put(name, new long[] { delta });
+            }
+        }
+    }
+    
+    /**
+     * Record a duration in a latency histogram. The histogram is created if it
+     * does not exist.
+     * 
+     * @param name The name of the histogram.
+     * @param micros The duration, in microseconds.
+     */
+    public void record(final String name, final long micros) {
+        synchronized(histograms) {
+            Histogram h = histograms.get(name);
+            if(h == null) {
+                h = new Histogram();
+                histograms.put(name, h);
+            }
+            
+            h.add(micros);
+        }
+    }
+    
+    /**
+     * Begin a trace section. endSection() must be called with the same name
+     * and the returned start time when the section is finished, normally
+     * from a finally block.
+     * 
+     * @param name The name of the section. This is also the name of the
+     * histogram the duration is recorded in. It must not be longer than 127
+     * characters.
+     * @return The start time of the section, to be passed to endSection().
+     */
+    public long beginSection(final String name) {
+        if(isJellyBeanMr2OrGreater) beginTrace(name);
+        
+        return System.nanoTime();
+    }
+    
+    /**
+     * End a trace section and record its duration.
+     * 
+     * @param name The name of the section, as given to beginSection().
+     * @param start The start time returned from beginSection().
+     */
+    public void endSection(final String name, final long start) {
+        final long micros = (System.nanoTime() - start) / 1000L;
+        
+        if(isJellyBeanMr2OrGreater) endTrace();
+        
+        record(name, micros);
+    }
+    
+    /**
+     * Get a copy of the counters.
+     * 
+     * @return A mapping of counter name -> value, sorted by name.
+     */
+    public TreeMap<String, Long> getCounters() {
+        final TreeMap<String, Long> result = new TreeMap<String, Long>();
+        
+        synchronized(counters) {
+            for(Map.Entry<String, long[]> entry : counters.entrySet()) {
+                result.put(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get a copy of the latency histograms.
+     * 
+     * @return A mapping of histogram name -> Histogram, sorted by name.
+     */
+    public TreeMap<String, Histogram> getHistograms() {
+        final TreeMap<String, Histogram> result =
+                new TreeMap<String, Histogram>();
+        
+        synchronized(histograms) {
+            for(Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                result.put(entry.getKey(), new Histogram(entry.getValue()));
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get the time, from SystemClock.elapsedRealtime(), that metrics have
+     * been recorded since. This is when the process started, or when reset()
+     * was last called.
+     * 
+     * @return The time that metrics have been recorded since.
+     */
+    public long getSince() {
+        return since;
+    }
+    
+    /**
+     * Forget everything that has been recorded so far.
+     */
+    public void reset() {
+        synchronized(counters) {
+            counters.clear();
+        }
+        
+        synchronized(histograms) {
+            histograms.clear();
+        }
+        
+        since = SystemClock.elapsedRealtime();
+    }
+    
+    /**
+     * Write a text dump of the histograms and counters. Times are in
+     * milliseconds. Percentiles are the upper bound of the bucket they fall
+     * in, so are an overestimate.
+     * 
+     * @param sb The StringBuilder to write the dump to.
+     */
+    public void dump(final StringBuilder sb) {
+        sb.append("Recorded for ")
+                .append((SystemClock.elapsedRealtime() - since) / 1000L)
+                .append("s. Times are in milliseconds.\n\n");
+        
+        sb.append(String.format(Locale.UK, "%-32s %6s %8s %8s %8s %8s %8s\n",
+                "Section", "count", "mean", "p50", "p90", "p99", "max"));
+        for(Map.Entry<String, Histogram> entry :
+                getHistograms().entrySet()) {
+            final Histogram h = entry.getValue();
+            sb.append(String.format(Locale.UK,
+                    "%-32s %6d %8.1f %8.1f %8.1f %8.1f %8.1f\n",
+                    entry.getKey(), h.getCount(), h.getMean() / 1000.0,
+                    h.getPercentile(0.5) / 1000.0,
+                    h.getPercentile(0.9) / 1000.0,
+                    h.getPercentile(0.99) / 1000.0, h.getMax() / 1000.0));
+        }
+        
+        sb.append('\n');
+        sb.append(String.format(Locale.UK, "%-32s %6s\n", "Counter",
+                "value"));
+        for(Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            sb.append(String.format(Locale.UK, "%-32s %6d\n", entry.getKey(),
+                    entry.getValue()));
+        }
+    }
+    
+    /**
+     * Begin a systrace section.
+     * 
+     * @param name The name of the section.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginTrace(final String name) {
+        Trace.beginSection(name);
+    }
+    
+    /**
+     * End the last systrace section begun on this thread.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endTrace() {
+        Trace.endSection();
+    }
+    
+    /**
+     * A Histogram counts durations in to buckets with fixed bounds. This is
+     * enough to give a rough idea of the distribution without keeping every
+     * duration.
+     */
+    public static final class Histogram {
+        
+        private final int[] buckets;
+        private int count;
+        private long total;
+        private long max;
+        
+        /**
+         * Create a new, empty, Histogram.
+         */
+        private Histogram() {
+            buckets = new int[BUCKET_BOUNDS.length + 1];
+        }
+        
+        /**
+         * Create a copy of a Histogram.
+         * 
+         * @param other The Histogram to copy.
+         */
+        private Histogram(final Histogram other) {
+            buckets = other.buckets.clone();
+            count = other.count;
+            total = other.total;
+            max = other.max;
+        }
+        
+        /**
+         * Add a duration to this Histogram.
+         * 
+         * @param micros The duration, in microseconds.
+         */
+        private void add(final long micros) {
+            int i = 0;
+            final int len = BUCKET_BOUNDS.length;
+            while(i < len && micros > BUCKET_BOUNDS[i]) {
+                i++;
+            }
+            
+            buckets[i]++;
+            count++;
+            total += micros;
+            if(micros > max) max = micros;
+        }
+        
+        /**
+         * Get the number of durations recorded.
+         * 
+         * @return The number of durations recorded.
+         */
+        public int getCount() {
+            return count;
+        }
+        
+        /**
+         * Get the total of the durations recorded, in microseconds.
+         * 
+         * @return The total of the durations recorded.
+         */
+        public long getTotal() {
+            return total;
+        }
+        
+        /**
+         * Get the mean duration, in microseconds.
+         * 
+         * @return The mean duration, or 0 if nothing has been recorded.
+         */
+        public long getMean() {
+            return count > 0 ? total / count : 0;
+        }
+        
+        /**
+         * Get the longest duration recorded, in microseconds.
+         * 
+         * @return The longest duration recorded.
+         */
+        public long getMax() {
+            return max;
+        }
+        
+        /**
+         * Get an estimate of a percentile of the durations, in microseconds.
+         * This is the upper bound of the bucket that the percentile falls in,
+         * but never more than the longest duration recorded.
+         * 
+         * @param fraction The percentile, as a fraction between 0 and 1.
+         * @return The estimate of the percentile, or 0 if nothing has been
+         * recorded.
+         */
+        public long getPercentile(final double fraction) {
+            if(count == 0) return 0;
+            
+            final long rank = (long)Math.ceil(fraction * count);
+            long seen = 0;
+            final int len = BUCKET_BOUNDS.length;
+            for(int i = 0; i < len; i++) {
+                seen += buckets[i];
+                if(seen >= rank) return Math.min(BUCKET_BOUNDS[i], max);
+            }
+            
+            return max;
+        }
+    }
+}
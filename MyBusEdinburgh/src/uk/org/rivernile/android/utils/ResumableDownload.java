@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.android.utils;
+
+import android.os.SystemClock;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A ResumableDownload downloads a resource to a file. If the download is
+ * interrupted, it carries on from where it stopped by using an HTTP Range
+ * request, both within a run() and across runs (as long as the partial file
+ * and the validator from getValidator() are kept).
+ * 
+ * The MD5 digest of the file is calculated as it is written, so the file does
+ * not need to be read again to check it. When resuming from an existing
+ * partial file, the part already on disk is read once to restore the digest.
+ * 
+ * @author Niall Scott
+ */
+public class ResumableDownload {
+    
+    private static final int BUFFER_SIZE = 65536;
+    private static final long RETRY_DELAY = 2000;
+    /** HTTP 416 Requested Range Not Satisfiable. */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    
+    private final String endpoint;
+    private final String url;
+    private final File dest;
+    private String validator;
+    private MessageDigest digest;
+    private long offset;
+    
+    /**
+     * Create a new ResumableDownload.
+     * 
+     * @param endpoint The name of the endpoint, used for the HttpTransport
+     * timing stats.
+     * @param url The URL of the resource to download.
+     * @param dest The file to download to. If this already exists, it is
+     * treated as the start of the resource.
+     * @param validator The validator returned by getValidator() when dest was
+     * partially downloaded, or null. If this is null, any existing file is
+     * discarded and the download starts from the beginning.
+     */
+    public ResumableDownload(final String endpoint, final String url,
+            final File dest, final String validator) {
+        this.endpoint = endpoint;
+        this.url = url;
+        this.dest = dest;
+        this.validator = validator;
+    }
+    
+    /**
+     * Download the resource. This blocks, so it must not be called on the UI
+     * thread.
+     * 
+     * @param maxAttempts The maximum number of connections to make before
+     * giving up.
+     * @return The MD5 digest of the complete file, as lower case hex.
+     * @throws IOException When the download could not be completed. The
+     * partial file is left in place so it can be resumed later.
+     */
+    public String run(final int maxAttempts) throws IOException {
+        restoreDigest();
+        
+        IOException lastError = null;
+        for(int attempt = 0; attempt < maxAttempts; attempt++) {
+            if(attempt > 0) {
+                // Back off a little more each time.
+                SystemClock.sleep(RETRY_DELAY * attempt);
+            }
+            
+            try {
+                transfer();
+                
+                return toHexString(digest.digest());
+            } catch(HttpTransport.HttpStatusException e) {
+                if(e.getStatus() != HTTP_RANGE_NOT_SATISFIABLE) throw e;
+                
+                // The partial file is no longer a prefix of the resource.
+                restart();
+                lastError = e;
+            } catch(IOException e) {
+                lastError = e;
+            }
+        }
+        
+        throw lastError != null ? lastError :
+                new IOException("No download attempts were made.");
+    }
+    
+    /**
+     * Get the validator of the resource, to be passed back in to the
+     * constructor when resuming the download later.
+     * 
+     * @return The validator, or null if the server did not give one.
+     */
+    public String getValidator() {
+        return validator;
+    }
+    
+    /**
+     * Get the number of bytes of the resource which have been written to the
+     * file.
+     * 
+     * @return The number of bytes written.
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Make a single attempt to download the rest of the resource.
+     * 
+     * @throws IOException When the attempt failed.
+     */
+    private void transfer() throws IOException {
+        final HttpTransport.Response response;
+        if(offset > 0) {
+            response = HttpTransport.getInstance().openRange(endpoint, url,
+                    offset, validator);
+        } else {
+            response = HttpTransport.getInstance().open(endpoint, url);
+        }
+        
+        try {
+            if(offset > 0 &&
+                    response.getStatus() != HttpURLConnection.HTTP_PARTIAL) {
+                // The server sent the whole resource, either because it does
+                // not support ranges or because the resource has changed.
+                restart();
+            }
+            
+            validator = response.getRangeValidator();
+            
+            final RandomAccessFile out = new RandomAccessFile(dest, "rw");
+            try {
+                out.setLength(offset);
+                out.seek(offset);
+                
+                final InputStream in = response.getInputStream();
+                final byte[] buf = new byte[BUFFER_SIZE];
+                int len;
+                while((len = in.read(buf)) != -1) {
+                    out.write(buf, 0, len);
+                    digest.update(buf, 0, len);
+                    offset += len;
+                }
+                
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch(IOException e) {
+            response.setFailed();
+            throw e;
+        } finally {
+            response.close();
+        }
+    }
+    
+    /**
+     * Set up the digest for the part of the file which already exists. If
+     * there is no validator to resume with, the file is discarded.
+     * 
+     * @throws IOException When the existing file could not be read.
+     */
+    private void restoreDigest() throws IOException {
+        restart();
+        
+        if(validator == null || !dest.exists()) return;
+        
+        final InputStream in = new FileInputStream(dest);
+        try {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while((len = in.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Start the download again from the beginning.
+     * 
+     * @throws IOException When the MD5 algorithm is not available.
+     */
+    private void restart() throws IOException {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available.");
+        }
+        
+        offset = 0;
+    }
+    
+    /**
+     * Convert an array of bytes in to a lower case hex String.
+     * 
+     * @param bytes The bytes to convert.
+     * @return The hex String.
+     */
+    private static String toHexString(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            final int v = b & 0xff;
+            if(v < 0x10) sb.append('0');
+            sb.append(Integer.toHexString(v));
+        }
+        
+        return sb.toString();
+    }
+}
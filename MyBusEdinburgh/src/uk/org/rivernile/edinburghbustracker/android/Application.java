@@ -32,27 +32,29 @@ import static uk.org.rivernile.edinburghbustracker.android.PreferencesActivity
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.pm.ApplicationInfo;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.os.Build;
+import android.os.Handler;
 import android.os.Looper;
 import android.widget.Toast;
 import com.bugsense.trace.BugSenseHandler;
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Random;
 import org.json.JSONException;
 import org.json.JSONObject;
+import uk.org.rivernile.android.utils.HttpTransport;
+import uk.org.rivernile.android.utils.Metrics;
+import uk.org.rivernile.android.utils.ResumableDownload;
+import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
+        .EdinburghParser;
 
 /**
  * This code is the very first code that will be executed when the application
@@ -69,14 +71,30 @@ import org.json.JSONObject;
  */
 public class Application extends android.app.Application {
     
-    private static final String DB_API_CHECK_URL =
-            "http://www.mybustracker.co.uk/ws.php?module=json&function=" +
-            "getTopoId&key=";
-    private static final String DB_UPDATE_CHECK_URL =
-            "http://edinb.us/api/DatabaseVersion?schemaType=" +
-            BusStopDatabase.SCHEMA_NAME + "&random=";
+    private static final String DB_API_CHECK_PATH =
+            "ws.php?module=json&function=getTopoId&key=";
+    private static final String DB_UPDATE_CHECK_PATH =
+            "DatabaseVersion?schemaType=" + BusStopDatabase.SCHEMA_NAME;
     
-    private static final Random random = new Random(System.currentTimeMillis());
+    private static final String ENDPOINT_TOPO_ID = "getTopoId";
+    private static final String ENDPOINT_DATABASE_VERSION = "DatabaseVersion";
+    private static final String ENDPOINT_DATABASE_DOWNLOAD =
+            "DatabaseDownload";
+    private static final String ENDPOINT_DATABASE_CHANGESET =
+            "DatabaseChangeset";
+    
+    private static final String PREF_DOWNLOAD_URL = "dbDownloadUrl";
+    private static final String PREF_DOWNLOAD_CHECKSUM = "dbDownloadChecksum";
+    private static final String PREF_DOWNLOAD_VALIDATOR =
+            "dbDownloadValidator";
+    private static final int DOWNLOAD_ATTEMPTS = 3;
+    
+    private static final String SECTION_UPDATE_DB = "Application.updateStopsDB";
+    private static final String SECTION_SWAP_DB = "Application.swapStopsDB";
+    private static final String SECTION_APPLY_CHANGESET =
+            "Application.applyChangeset";
+    private static final String COUNTER_UPDATE_DB_FAILED =
+            "Application.updateStopsDB.failed";
     
     /**
      * {@inheritDoc}
@@ -86,6 +104,8 @@ public class Application extends android.app.Application {
         super.onCreate();
         // Register the BugSense handler.
         BugSenseHandler.initAndStartSession(this, ApiKey.BUGSENSE_KEY);
+        // Point the web services somewhere else, if asked to.
+        applyEndpointOverrides(this);
         // Cause the bus stop database to be extracted straight away.
         BusStopDatabase.getInstance(this);
         
@@ -96,36 +116,43 @@ public class Application extends android.app.Application {
                     .registerOnSharedPreferenceChangeListener(
                     new SharedPreferencesListener(this));
         
-        // Start the thread to check for bus stop database updates.
-        new Thread(stopDBTasks).start();
+        // Check for bus stop database updates in the background, once the
+        // first screen has been shown.
+        DatabaseUpdateService.scheduleWhenIdle(this);
     }
     
-    private Runnable stopDBTasks = new Runnable() {
-        @Override
-        public void run() {
-            // Delete old database files if they exist.
-            File toDelete = getDatabasePath("busstops.db");
-            if(toDelete.exists()) toDelete.delete();
-            
-            toDelete = getDatabasePath("busstops.db-journal");
-            if(toDelete.exists()) toDelete.delete();
-            
-            toDelete = getDatabasePath("busstops2.db");
-            if(toDelete.exists()) toDelete.delete();
-            
-            toDelete = getDatabasePath("busstops2.db-journal");
-            if(toDelete.exists()) toDelete.delete();
-            
-            toDelete = getDatabasePath("busstops8.db");
-            if(toDelete.exists()) toDelete.delete();
-            
-            toDelete = getDatabasePath("busstops8.db-journal");
-            if(toDelete.exists()) toDelete.delete();
-            
-            // Start update task.
-            checkForDBUpdates(getApplicationContext(), false);
+    /**
+     * On debuggable builds, use the web service base URLs held in the
+     * Endpoints preferences, if any are set. This allows the application to be
+     * profiled against a local replay server. Release builds always use the
+     * live services.
+     * 
+     * If the URLs change, the cached bus times and remembered HTTP responses
+     * are thrown away, as they came from the previous server.
+     * 
+     * @param context A Context instance.
+     */
+    public static void applyEndpointOverrides(final Context context) {
+        if((context.getApplicationInfo().flags &
+                ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            return;
         }
-    };
+        
+        final String oldBusTrackerUrl = Endpoints.getBusTrackerUrl();
+        final String oldApiUrl = Endpoints.getApiUrl();
+        
+        final SharedPreferences sp = context.getSharedPreferences(
+                Endpoints.PREF_FILE, 0);
+        Endpoints.setBaseUrls(
+                sp.getString(Endpoints.PREF_BUS_TRACKER_URL, null),
+                sp.getString(Endpoints.PREF_API_URL, null));
+        
+        if(!oldBusTrackerUrl.equals(Endpoints.getBusTrackerUrl()) ||
+                !oldApiUrl.equals(Endpoints.getApiUrl())) {
+            EdinburghParser.getCachingInstance().clear();
+            HttpTransport.getInstance().clearValidators();
+        }
+    }
     
     /**
      * Check for updates to the bus stop database. This may happen automatically
@@ -135,8 +162,10 @@ public class Application extends android.app.Application {
      * 
      * @param context The context.
      * @param force True if the user forced the check, false if not.
+     * @return true if the check finished, whether or not there was an update,
+     * or false if it failed and should be tried again later.
      */
-    public static void checkForDBUpdates(final Context context,
+    public static boolean checkForDBUpdates(final Context context,
             final boolean force) {
         // Check to see if the user wants their database automatically updated.
         final SharedPreferences sp = context.getSharedPreferences(
@@ -152,59 +181,38 @@ public class Application extends android.app.Application {
                 // If it has not been forced, check the last update time. It is
                 // only checked once per day. Abort if it is too soon.
                 long lastCheck = sp.getLong("lastUpdateCheck", 0);
-                if((System.currentTimeMillis() - lastCheck) < 86400000) return;
+                if((System.currentTimeMillis() - lastCheck) < 86400000) {
+                    return true;
+                }
             }
             
             // Construct the checking URL.
             final StringBuilder sb = new StringBuilder();
-            sb.append(DB_API_CHECK_URL);
+            sb.append(Endpoints.getBusTrackerUrl());
+            sb.append(DB_API_CHECK_PATH);
             sb.append(ApiKey.getHashedKey());
-            sb.append("&random=");
-            // A random number is used so networks don't cache the HTTP
-            // response.
-            sb.append(random.nextInt());
+            final HttpTransport transport = HttpTransport.getInstance();
+            String response;
             try {
-                // Do connection stuff.
-                final URL url = new URL(sb.toString());
-                sb.setLength(0);
-                final HttpURLConnection conn = (HttpURLConnection)url
-                        .openConnection();
-                try {
-                    final BufferedInputStream is = new BufferedInputStream(
-                            conn.getInputStream());
-                    
-                    if(!url.getHost().equals(conn.getURL().getHost())) {
-                        is.close();
-                        conn.disconnect();
-                        return;
-                    }
-                    
-                    // Read the incoming data.
-                    int data;
-                    while((data = is.read()) != -1) {
-                        sb.append((char)data);
-                    }
-                } finally {
-                    // Whether there's an error or not, disconnect.
-                    conn.disconnect();
-                }
-            } catch(MalformedURLException e) {
-                return;
+                // The topoId only changes when the data changes, so the
+                // request is made conditional on the last response.
+                response = transport.getString(ENDPOINT_TOPO_ID, sb.toString(),
+                        true);
             } catch(IOException e) {
-                return;
+                return false;
             }
             
             String topoId;
             try {
                 // Parse the JSON and get the topoId from it.
-                final JSONObject jo = new JSONObject(sb.toString());
+                final JSONObject jo = new JSONObject(response);
                 topoId = jo.getString("topoId");
             } catch(JSONException e) {
-                return;
+                return false;
             }
             
             // If there's topoId then it cannot continue.
-            if(topoId == null || topoId.length() == 0) return;
+            if(topoId == null || topoId.length() == 0) return false;
             
             // Get the current topoId from the database.
             final BusStopDatabase bsd = BusStopDatabase
@@ -218,231 +226,329 @@ public class Application extends android.app.Application {
                 if(force) {
                     // It was forced, alert the user there is no update
                     // available.
-                    Looper.prepare();
-                    Toast.makeText(context, R.string.bus_stop_db_no_updates,
-                            Toast.LENGTH_LONG).show();
-                    Looper.loop();
+                    showToast(context, R.string.bus_stop_db_no_updates);
                 }
-                return;
+                return true;
             }
             
             // There is an update available. Empty the StringBuilder then create
             // the URL to get the new database information.
             sb.setLength(0);
-            sb.append(DB_UPDATE_CHECK_URL);
-            sb.append(random.nextInt());
+            sb.append(Endpoints.getApiUrl());
+            sb.append(DB_UPDATE_CHECK_PATH);
             sb.append("&key=");
             sb.append(ApiKey.getHashedKey());
-            
-            try {
-                // Connection stuff.
-                final URL url = new URL(sb.toString());
-                sb.setLength(0);
-                final HttpURLConnection conn = (HttpURLConnection)url
-                        .openConnection();
+            // Tell the server which version we have, so it can offer a
+            // changeset instead of the whole database.
+            if(dbTopoId != null && dbTopoId.length() > 0) {
                 try {
-                    final BufferedInputStream is = new BufferedInputStream(
-                            conn.getInputStream());
-                    
-                    if(!url.getHost().equals(conn.getURL().getHost())) {
-                        is.close();
-                        conn.disconnect();
-                        return;
-                    }
-                    
-                    int data;
-                    // Read the incoming data.
-                    while((data = is.read()) != -1) {
-                        sb.append((char)data);
-                    }
-                } finally {
-                    // Whether there's an error or not, disconnect.
-                    conn.disconnect();
+                    sb.append("&fromTopoId=");
+                    sb.append(URLEncoder.encode(dbTopoId, "UTF-8"));
+                } catch(UnsupportedEncodingException e) {
+                    // UTF-8 is always supported.
                 }
-            } catch(MalformedURLException e) {
-                return;
+            }
+            
+            // Not conditional, as the response depends on fromTopoId and
+            // HttpTransport only remembers one response per endpoint.
+            try {
+                response = transport.getString(ENDPOINT_DATABASE_VERSION,
+                        sb.toString(), false);
             } catch(IOException e) {
-                return;
+                return false;
             }
             
-            String dbUrl, schemaVersion, checksum;
+            String dbUrl, schemaVersion, checksum, changesetUrl,
+                    changesetChecksum;
             try {
                 // Get the data from tje returned JSON.
-                final JSONObject jo = new JSONObject(sb.toString());
+                final JSONObject jo = new JSONObject(response);
                 dbUrl = jo.getString("db_url");
                 schemaVersion = jo.getString("db_schema_version");
                 topoId = jo.getString("topo_id");
                 checksum = jo.getString("checksum");
+                // The changeset is only offered when the server has one from
+                // our topoId to the latest.
+                changesetUrl = jo.optString("changeset_url", null);
+                changesetChecksum = jo.optString("changeset_checksum", null);
             } catch(JSONException e) {
                 // There was an error parsing the JSON, it cannot continue.
-                return;
+                return false;
             }
             
             // Make sure the returned schema name is compatible with the one
-            // the app uses.
-            if(!BusStopDatabase.SCHEMA_NAME.equals(schemaVersion)) return;
+            // the app uses. Trying again will not help if it isn't.
+            if(!BusStopDatabase.SCHEMA_NAME.equals(schemaVersion)) return true;
             // Some basic sanity checking on the parameters.
-            if(topoId == null || topoId.length() == 0) return;
-            if(dbUrl == null || dbUrl.length() == 0) return;
-            if(checksum == null || checksum.length() == 0) return;
+            if(topoId == null || topoId.length() == 0) return false;
+            if(dbUrl == null || dbUrl.length() == 0) return false;
+            if(checksum == null || checksum.length() == 0) return false;
             
             // Make sure an update really is available.
             if(!topoId.equals(dbTopoId)) {
-                // Update the database.
-                updateStopsDB(context, dbUrl, checksum);
+                // Try the changeset first as it's much smaller. If there isn't
+                // one or it can't be applied, download the whole database.
+                if(changesetUrl == null || changesetUrl.length() == 0 ||
+                        changesetChecksum == null ||
+                        !updateStopsDBFromChangeset(context, changesetUrl,
+                                changesetChecksum, topoId)) {
+                    // Don't record the check time if this fails, so it is
+                    // tried again.
+                    if(!updateStopsDB(context, dbUrl, checksum)) return false;
+                }
             } else if(force) {
                 // Tell the user there is no update available.
-                Looper.prepare();
-                Toast.makeText(context, R.string.bus_stop_db_no_updates,
-                        Toast.LENGTH_LONG).show();
-                Looper.loop();
+                showToast(context, R.string.bus_stop_db_no_updates);
             }
             
             // Write to the SharedPreferences the last update time.
             edit.putLong("lastUpdateCheck", System.currentTimeMillis());
             edit.commit();
         }
+        
+        return true;
+    }
+    
+    /**
+     * Download the stop database from the server and put it in the
+     * application's working data directory. The time this takes is recorded in
+     * Metrics.
+     *
+     * @param context The context to use this method with.
+     * @param url The URL of the bus stop database to download.
+     * @param checksum The MD5 checksum the database should have.
+     * @return true if the database was updated, false if not.
+     * @see #downloadStopsDB(Context, String, String)
+     */
+    private static boolean updateStopsDB(final Context context,
+            final String url, final String checksum) {
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_UPDATE_DB);
+        boolean updated = false;
+        
+        try {
+            updated = downloadStopsDB(context, url, checksum);
+        } finally {
+            metrics.endSection(SECTION_UPDATE_DB, start);
+            if(!updated) metrics.increment(COUNTER_UPDATE_DB_FAILED);
+        }
+        
+        return updated;
     }
     
     /**
      * Download the stop database from the server and put it in the
      * application's working data directory.
+     * 
+     * If a previous download of the same database was interrupted, it carries
+     * on from where it got to rather than starting again. The checksum is
+     * worked out while the file is being downloaded.
      *
      * @param context The context to use this method with.
      * @param url The URL of the bus stop database to download.
+     * @param checksum The MD5 checksum the database should have.
+     * @return true if the database was updated, false if not.
      */
-    private static void updateStopsDB(final Context context,
+    private static boolean downloadStopsDB(final Context context,
             final String url, final String checksum) {
         if(context == null || url == null || url.length() == 0 ||
-                checksum == null || checksum.length() == 0) return;
+                checksum == null || checksum.length() == 0) return false;
+        
+        final SharedPreferences sp = context.getSharedPreferences(
+                PreferencesActivity.PREF_FILE, 0);
+        // The location the file should be downloaded to.
+        final File temp = context
+                .getDatabasePath(BusStopDatabase.STOP_DB_NAME + "_temp");
+        
+        // Only resume the previous download if it was for the same file.
+        String validator = null;
+        if(url.equals(sp.getString(PREF_DOWNLOAD_URL, null)) &&
+                checksum.equals(sp.getString(PREF_DOWNLOAD_CHECKSUM, null))) {
+            validator = sp.getString(PREF_DOWNLOAD_VALIDATOR, null);
+        }
+        
+        final ResumableDownload download = new ResumableDownload(
+                ENDPOINT_DATABASE_DOWNLOAD, url, temp, validator);
+        final String downloadedChecksum;
         try {
-            // Connect to the server.
-            final URL u = new URL(url);
-            final HttpURLConnection con = (HttpURLConnection)u.openConnection();
-            final InputStream in = con.getInputStream();
-            
-            // Make sure the URL is what we expect.
-            if(!u.getHost().equals(con.getURL().getHost())) {
-                in.close();
-                con.disconnect();
-                return;
-            }
-            
-            // The location the file should be downloaded to.
-            final File temp = context
-                    .getDatabasePath(BusStopDatabase.STOP_DB_NAME + "_temp");
-            // The eventual destination of the file.
-            final File dest = context
-                    .getDatabasePath(BusStopDatabase.STOP_DB_NAME);
-            final FileOutputStream out = new FileOutputStream(temp);
-            
-            // Get the file from the server.
-            byte[] buf = new byte[1024];
-            int len;
-            while((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-            
-            // Make sure the stream is flushed then close resources and
-            // disconnect.
-            out.flush();
-            out.close();
-            in.close();
-            con.disconnect();
-            
-            // Do a MD5 checksum on the downloaded file. Make sure it matches
-            // what the server reported.
-            if(!md5Checksum(temp).equalsIgnoreCase(checksum)) {
-                // If it doesn't match, delete the downloaded file.
-                temp.delete();
-                return;
-            }
+            downloadedChecksum = download.run(DOWNLOAD_ATTEMPTS);
+        } catch(IOException e) {
+            // Keep what has been downloaded so far so it can be resumed the
+            // next time the update is tried.
+            sp.edit().putString(PREF_DOWNLOAD_URL, url)
+                    .putString(PREF_DOWNLOAD_CHECKSUM, checksum)
+                    .putString(PREF_DOWNLOAD_VALIDATOR,
+                            download.getValidator())
+                    .commit();
+            return false;
+        }
+        
+        sp.edit().remove(PREF_DOWNLOAD_URL).remove(PREF_DOWNLOAD_CHECKSUM)
+                .remove(PREF_DOWNLOAD_VALIDATOR).commit();
+        
+        // Make sure the checksum of the downloaded file matches what the
+        // server reported.
+        if(!downloadedChecksum.equalsIgnoreCase(checksum)) {
+            // If it doesn't match, delete the downloaded file.
+            BusStopDatabase.deleteDatabaseFiles(temp);
+            return false;
+        }
+        
+        try {
+            // Open the temp database and execute the index operation on it.
+            final SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                    temp.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            BusStopDatabase.setUpIndexes(db);
+            db.close();
+        } catch(SQLiteException e) {
+            // If we couldn't create the index, continue anyway. The user
+            // will still be able to use the database, it will just run
+            // slowly if they want route lines.
+        }
+        
+        // Move the downloaded file in to the place of the current database.
+        final BusStopDatabase bsd = BusStopDatabase
+                .getInstance(context.getApplicationContext());
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_SWAP_DB);
+        final boolean replaced;
+        try {
+            replaced = bsd.replaceDatabase(temp);
+        } finally {
+            metrics.endSection(SECTION_SWAP_DB, start);
+        }
+        
+        if(!replaced) {
+            BusStopDatabase.deleteDatabaseFiles(temp);
+            return false;
+        }
+        
+        // Alert the user that the database has been updated.
+        showToast(context, R.string.bus_stop_db_updated);
+        
+        return true;
+    }
+    
+    /**
+     * Download a changeset for the stop database from the server and apply it
+     * to the current database.
+     * 
+     * @param context The context to use this method with.
+     * @param url The URL of the changeset to download.
+     * @param checksum The MD5 checksum of the changeset.
+     * @param topoId The topology ID the changeset should update to.
+     * @return true if the changeset was applied, false if not. If false, the
+     * database has not been changed.
+     */
+    private static boolean updateStopsDBFromChangeset(final Context context,
+            final String url, final String checksum, final String topoId) {
+        final byte[] body;
+        try {
+            final HttpTransport.Response response = HttpTransport
+                    .getInstance().open(ENDPOINT_DATABASE_CHANGESET, url);
             
             try {
-                // Open the temp database and execute the index operation on it.
-                final SQLiteDatabase db = SQLiteDatabase.openDatabase(
-                        temp.getAbsolutePath(), null,
-                        SQLiteDatabase.OPEN_READWRITE);
-                BusStopDatabase.setUpIndexes(db);
-                db.close();
-            } catch(SQLiteException e) {
-                // If we couldn't create the index, continue anyway. The user
-                // will still be able to use the database, it will just run
-                // slowly if they want route lines.
-            }
-            
-            // Close a currently open database. Delete the old database then
-            // move the downloaded file in to its place. Do this while
-            // synchronized to make sure noting else uses the database in this
-            // time.
-            final BusStopDatabase bsd = BusStopDatabase
-                    .getInstance(context.getApplicationContext());
-            synchronized(bsd) {
-                try {
-                    bsd.getReadableDatabase().close();
-                } catch (SQLiteException e) {
-                    // Nothing to do here. Assume it's already closed.
+                final InputStream in = response.getInputStream();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buf = new byte[8192];
+                int len;
+                while((len = in.read(buf)) != -1) {
+                    out.write(buf, 0, len);
                 }
                 
-                dest.delete();
-                temp.renameTo(dest);
+                body = out.toByteArray();
+            } catch(IOException e) {
+                response.setFailed();
+                throw e;
+            } finally {
+                response.close();
             }
-            
-            // Delete the associated journal file because we no longer need it.
-            final File journalFile = context
-                    .getDatabasePath(BusStopDatabase.STOP_DB_NAME +
-                    "_temp-journal");
-            if(journalFile.exists()) journalFile.delete();
-            
-            // Alert the user that the database has been updated.
-            Looper.prepare();
-            Toast.makeText(context, R.string.bus_stop_db_updated,
-                    Toast.LENGTH_LONG).show();
-            Looper.loop();
-        } catch(MalformedURLException e) {
-        } catch(IOException e) { }
+        } catch(IOException e) {
+            return false;
+        }
+        
+        // Make sure the changeset arrived intact.
+        if(!checksum.equalsIgnoreCase(md5Checksum(body))) return false;
+        
+        final DatabaseChangeset changeset;
+        try {
+            changeset = DatabaseChangeset.fromJSON(new String(body, "UTF-8"));
+        } catch(JSONException e) {
+            return false;
+        } catch(UnsupportedEncodingException e) {
+            return false;
+        }
+        
+        if(!topoId.equals(changeset.getToTopoId())) return false;
+        
+        final BusStopDatabase bsd = BusStopDatabase
+                .getInstance(context.getApplicationContext());
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_APPLY_CHANGESET);
+        final boolean applied;
+        try {
+            applied = bsd.applyChangeset(changeset);
+        } finally {
+            metrics.endSection(SECTION_APPLY_CHANGESET, start);
+        }
+        
+        if(!applied) return false;
+        
+        // Alert the user that the database has been updated.
+        showToast(context, R.string.bus_stop_db_updated);
+        
+        return true;
     }
     
     /**
-     * Create a checksum for a File. This is used to ensure that a downloaded
-     * database has not been corrupted or incomplete.
+     * Show a Toast from a background thread. The Toast is posted to the main
+     * thread, so this does not block the calling thread.
      * 
-     * See: http://vyshemirsky.blogspot.com/2007/08/computing-md5-digest-checksum-in-java.html
-     * This has been slightly modified.
+     * @param context The context.
+     * @param resId The resource ID of the String to show.
+     */
+    private static void showToast(final Context context, final int resId) {
+        final Context appContext = context.getApplicationContext();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(appContext, resId, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+    
+    /**
+     * Create an MD5 checksum for some data.
      * 
-     * @param file The file to run the MD5 checksum against.
+     * @param data The data to run the MD5 checksum against.
      * @return The MD5 checksum string.
      */
-    public static String md5Checksum(final File file) {
+    public static String md5Checksum(final byte[] data) {
         try {
-            final InputStream fin = new FileInputStream(file);
             final MessageDigest md5er = MessageDigest.getInstance("MD5");
-            final byte[] buffer = new byte[1024];
-            int read;
-            
-            while((read = fin.read(buffer)) != -1) {
-                if(read > 0) md5er.update(buffer, 0, read);
-            }
-            fin.close();
-            
-            final byte[] digest = md5er.digest();
-            if(digest == null) return null;
-            final StringBuilder builder = new StringBuilder();
-            for(byte a : digest) {
-                builder.append(Integer.toString((a & 0xff) 
-                + 0x100, 16).substring(1));
-            }
-            
-            return builder.toString();
-        } catch(FileNotFoundException e) {
-            return "";
+            return toHexString(md5er.digest(data));
         } catch(NoSuchAlgorithmException e) {
             return "";
-        } catch(IOException e) {
-            return "";
         }
     }
     
+    /**
+     * Turn a digest in to a lowercase hexadecimal String.
+     * 
+     * @param digest The digest.
+     * @return The digest as a hexadecimal String.
+     */
+    private static String toHexString(final byte[] digest) {
+        final StringBuilder builder = new StringBuilder();
+        for(byte a : digest) {
+            builder.append(Integer.toString((a & 0xff) 
+            + 0x100, 16).substring(1));
+        }
+        
+        return builder.toString();
+    }
+    
     /**
      * The SharedPreferencesListener will look out for changes to the shared
      * preferences and schedule updates with Google Backup if there is, if the
@@ -0,0 +1,737 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+import android.database.Cursor;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A BusStopCatalogue is an immutable, in-memory copy of the bus stops and the
+ * services which serve them. It is built once from the bus stop database and
+ * then shared between all callers, so location based lookups (such as finding
+ * the nearest bus stops) do not need to touch the database at all.
+ * 
+ * The bus stop details are held in parallel primitive arrays and the stops are
+ * bucketed in to a uniform grid so that k-nearest and radius queries only need
+ * to look at the stops near to the given point.
+ * 
+ * Distances used by this class are calculated with an equirectangular
+ * projection centred on the query point. This is accurate to well within a
+ * metre over the distances bus stop lookups are concerned with. Callers which
+ * need an exact distance for display should use
+ * android.location.Location.distanceBetween() on the returned stops.
+ * 
+ * @author Niall Scott
+ */
+public final class BusStopCatalogue {
+    
+    /** The approximate number of metres in a degree of latitude. */
+    private static final double METRES_PER_DEGREE = 111319.49;
+    /** The height of a grid cell, in degrees of latitude (roughly 330m). */
+    private static final double CELL_LATITUDE_SPAN = 0.003;
+    /** The width of a grid cell, in degrees of longitude (roughly 310m). */
+    private static final double CELL_LONGITUDE_SPAN = 0.005;
+    /** Stops which are a long way apart should not cause a huge grid. */
+    private static final int MAX_CELLS = 65536;
+    
+    private final long lastModTime;
+    private final int size;
+    
+    private final String[] stopCodes;
+    private final String[] stopNames;
+    private final String[] localities;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] orientations;
+    private final int[][] stopServices;
+    private final String[] stopServicesStrings;
+    
+    private final String[] serviceNames;
+    private final HashMap<String, Integer> serviceIndexes;
+    private final HashMap<String, Integer> stopIndexes;
+    
+    private final double minLatitude;
+    private final double minLongitude;
+    private final double cellLatitudeSpan;
+    private final double cellLongitudeSpan;
+    private final int rows;
+    private final int columns;
+    // Compressed storage of the grid. The stops in cell n are the entries of
+    // cellStops between cellStart[n] (inclusive) and cellStart[n + 1]
+    // (exclusive).
+    private final int[] cellStart;
+    private final int[] cellStops;
+    
+    /**
+     * Create a new BusStopCatalogue. The stop arrays must all be the same
+     * length.
+     * 
+     * @param lastModTime The last modification time of the database this
+     * catalogue was built from.
+     * @param stopCodes The bus stop codes.
+     * @param stopNames The bus stop names.
+     * @param localities The bus stop localities. Elements may be null.
+     * @param latitudes The bus stop latitudes.
+     * @param longitudes The bus stop longitudes.
+     * @param orientations The bus stop orientations.
+     * @param stopServices For each bus stop, the indexes in to serviceNames of
+     * the services which serve that stop, in display order.
+     * @param serviceNames The names of all the known bus services.
+     */
+    private BusStopCatalogue(final long lastModTime, final String[] stopCodes,
+            final String[] stopNames, final String[] localities,
+            final double[] latitudes, final double[] longitudes,
+            final int[] orientations, final int[][] stopServices,
+            final String[] serviceNames) {
+        this.lastModTime = lastModTime;
+        this.stopCodes = stopCodes;
+        this.stopNames = stopNames;
+        this.localities = localities;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.orientations = orientations;
+        this.stopServices = stopServices;
+        this.serviceNames = serviceNames;
+        size = stopCodes.length;
+        
+        serviceIndexes = new HashMap<String, Integer>(serviceNames.length * 2);
+        for(int i = 0; i < serviceNames.length; i++) {
+            serviceIndexes.put(serviceNames[i], i);
+        }
+        
+        stopIndexes = new HashMap<String, Integer>(size * 2);
+        stopServicesStrings = new String[size];
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < size; i++) {
+            stopIndexes.put(stopCodes[i], i);
+            
+            sb.setLength(0);
+            final int[] services = stopServices[i];
+            for(int j = 0; j < services.length; j++) {
+                if(j > 0) sb.append(", ");
+                sb.append(serviceNames[services[j]]);
+            }
+            
+            stopServicesStrings[i] = sb.toString();
+        }
+        
+        // Work out the bounds of the grid.
+        double minLat = 0, maxLat = 0, minLon = 0, maxLon = 0;
+        for(int i = 0; i < size; i++) {
+            if(i == 0 || latitudes[i] < minLat) minLat = latitudes[i];
+            if(i == 0 || latitudes[i] > maxLat) maxLat = latitudes[i];
+            if(i == 0 || longitudes[i] < minLon) minLon = longitudes[i];
+            if(i == 0 || longitudes[i] > maxLon) maxLon = longitudes[i];
+        }
+        
+        double latSpan = CELL_LATITUDE_SPAN;
+        double lonSpan = CELL_LONGITUDE_SPAN;
+        int r = (int)((maxLat - minLat) / latSpan) + 1;
+        int c = (int)((maxLon - minLon) / lonSpan) + 1;
+        while((long)r * c > MAX_CELLS) {
+            latSpan *= 2;
+            lonSpan *= 2;
+            r = (int)((maxLat - minLat) / latSpan) + 1;
+            c = (int)((maxLon - minLon) / lonSpan) + 1;
+        }
+        
+        minLatitude = minLat;
+        minLongitude = minLon;
+        cellLatitudeSpan = latSpan;
+        cellLongitudeSpan = lonSpan;
+        rows = r;
+        columns = c;
+        
+        // Count the stops in each cell, turn the counts in to offsets, then
+        // place each stop in its cell.
+        final int[] stopCells = new int[size];
+        cellStart = new int[rows * columns + 1];
+        for(int i = 0; i < size; i++) {
+            stopCells[i] = getRow(latitudes[i]) * columns +
+                    getColumn(longitudes[i]);
+            cellStart[stopCells[i] + 1]++;
+        }
+        
+        for(int i = 1; i < cellStart.length; i++) {
+            cellStart[i] += cellStart[i - 1];
+        }
+        
+        cellStops = new int[size];
+        final int[] fill = new int[rows * columns];
+        for(int i = 0; i < size; i++) {
+            final int cell = stopCells[i];
+            cellStops[cellStart[cell] + fill[cell]] = i;
+            fill[cell]++;
+        }
+    }
+    
+    /**
+     * Create a new BusStopCatalogue from database Cursors.
+     * 
+     * @param lastModTime The last modification time of the database the
+     * Cursors came from.
+     * @param stops A Cursor with the columns stopCode, stopName, latitude,
+     * longitude, orientation and locality, in that order.
+     * @param services A Cursor with the columns stopCode and serviceName, in
+     * that order. Rows must be ordered by the order the services should be
+     * displayed in for each stop.
+     * @return A new BusStopCatalogue.
+     */
+    static BusStopCatalogue fromCursors(final long lastModTime,
+            final Cursor stops, final Cursor services) {
+        final int count = stops.getCount();
+        final String[] stopCodes = new String[count];
+        final String[] stopNames = new String[count];
+        final String[] localities = new String[count];
+        final double[] latitudes = new double[count];
+        final double[] longitudes = new double[count];
+        final int[] orientations = new int[count];
+        final HashMap<String, Integer> stopIndexes =
+                new HashMap<String, Integer>(count * 2);
+        
+        int i = 0;
+        while(stops.moveToNext() && i < count) {
+            stopCodes[i] = stops.getString(0);
+            stopNames[i] = stops.getString(1);
+            latitudes[i] = stops.getDouble(2);
+            longitudes[i] = stops.getDouble(3);
+            orientations[i] = stops.getInt(4);
+            localities[i] = stops.getString(5);
+            stopIndexes.put(stopCodes[i], i);
+            i++;
+        }
+        
+        // Services are first collected in to growable lists per stop, then
+        // turned in to compact arrays.
+        final HashMap<String, Integer> serviceIndexes =
+                new HashMap<String, Integer>();
+        final int[] serviceCounts = new int[count];
+        final int[][] stopServices = new int[count][];
+        int serviceCount = 0;
+        String[] serviceNames = new String[64];
+        
+        while(services.moveToNext()) {
+            final Integer stop = stopIndexes.get(services.getString(0));
+            final String serviceName = services.getString(1);
+            if(stop == null || serviceName == null) continue;
+            
+            Integer service = serviceIndexes.get(serviceName);
+            if(service == null) {
+                if(serviceCount == serviceNames.length) {
+                    final String[] grown = new String[serviceCount * 2];
+                    System.arraycopy(serviceNames, 0, grown, 0, serviceCount);
+                    serviceNames = grown;
+                }
+                
+                service = serviceCount;
+                serviceNames[serviceCount++] = serviceName;
+                serviceIndexes.put(serviceName, service);
+            }
+            
+            int[] list = stopServices[stop];
+            final int n = serviceCounts[stop];
+            if(list == null) {
+                list = new int[4];
+                stopServices[stop] = list;
+            } else if(n == list.length) {
+                list = copyOf(list, n * 2);
+                stopServices[stop] = list;
+            }
+            
+            list[n] = service;
+            serviceCounts[stop] = n + 1;
+        }
+        
+        for(i = 0; i < count; i++) {
+            stopServices[i] = stopServices[i] == null ? new int[0] :
+                    copyOf(stopServices[i], serviceCounts[i]);
+        }
+        
+        final String[] names = new String[serviceCount];
+        System.arraycopy(serviceNames, 0, names, 0, serviceCount);
+        
+        return new BusStopCatalogue(lastModTime, stopCodes, stopNames,
+                localities, latitudes, longitudes, orientations, stopServices,
+                names);
+    }
+    
+    /**
+     * Get the last modification time of the database this catalogue was built
+     * from.
+     * 
+     * @return The last modification time of the database this catalogue was
+     * built from.
+     */
+    public long getLastModTime() {
+        return lastModTime;
+    }
+    
+    /**
+     * Get the number of bus stops in this catalogue.
+     * 
+     * @return The number of bus stops in this catalogue.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Get the index of a bus stop in this catalogue.
+     * 
+     * @param stopCode The bus stop code to look for.
+     * @return The index of the bus stop, or -1 if it is not in this catalogue.
+     */
+    public int indexOf(final String stopCode) {
+        final Integer index = stopIndexes.get(stopCode);
+        return index != null ? index : -1;
+    }
+    
+    /**
+     * Get the bus stop code of the stop at index.
+     * 
+     * @param index The index of the stop.
+     * @return The bus stop code.
+     */
+    public String getStopCode(final int index) {
+        return stopCodes[index];
+    }
+    
+    /**
+     * Get the name of the stop at index.
+     * 
+     * @param index The index of the stop.
+     * @return The bus stop name.
+     */
+    public String getStopName(final int index) {
+        return stopNames[index];
+    }
+    
+    /**
+     * Get the locality of the stop at index.
+     * 
+     * @param index The index of the stop.
+     * @return The bus stop locality, or null if it does not have one.
+     */
+    public String getLocality(final int index) {
+        return localities[index];
+    }
+    
+    /**
+     * Get the latitude of the stop at index.
+     * 
+     * @param index The index of the stop.
+     * @return The latitude of the bus stop.
+     */
+    public double getLatitude(final int index) {
+        return latitudes[index];
+    }
+    
+    /**
+     * Get the longitude of the stop at index.
+     * 
+     * @param index The index of the stop.
+     * @return The longitude of the bus stop.
+     */
+    public double getLongitude(final int index) {
+        return longitudes[index];
+    }
+    
+    /**
+     * Get the orientation of the stop at index.
+     * 
+     * @param index The index of the stop.
+     * @return The direction the bus stop faces.
+     */
+    public int getOrientation(final int index) {
+        return orientations[index];
+    }
+    
+    /**
+     * Get the services which serve the stop at index as a comma separated
+     * list, in the same format as
+     * BusStopDatabase.getBusServicesForStopAsString().
+     * 
+     * @param index The index of the stop.
+     * @return A comma separated list of bus services.
+     */
+    public String getServicesString(final int index) {
+        return stopServicesStrings[index];
+    }
+    
+    /**
+     * Find the k nearest bus stops to a point.
+     * 
+     * @param latitude The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @param k The maximum number of stops to return.
+     * @param maxDistance Stops further away than this many metres are not
+     * returned. Use Double.POSITIVE_INFINITY for no limit.
+     * @param services If not null, only stops served by at least one of these
+     * services are returned.
+     * @return The indexes of the matching stops, nearest first.
+     */
+    public int[] findNearest(final double latitude, final double longitude,
+            final int k, final double maxDistance, final String[] services) {
+        final boolean[] filter = getServiceFilter(services);
+        if(k <= 0 || size == 0 || (services != null && filter == null)) {
+            return new int[0];
+        }
+        
+        final double cosLat = Math.cos(Math.toRadians(latitude));
+        final double cellHeight = cellLatitudeSpan * METRES_PER_DEGREE;
+        final double cellWidth = cellLongitudeSpan * METRES_PER_DEGREE *
+                cosLat;
+        final double minCellSize = Math.min(cellHeight, cellWidth);
+        final double maxDistanceSq = maxDistance * maxDistance;
+        
+        // The cell the point lies in. This may be outside of the grid.
+        final int row = (int)Math.floor((latitude - minLatitude) /
+                cellLatitudeSpan);
+        final int column = (int)Math.floor((longitude - minLongitude) /
+                cellLongitudeSpan);
+        final int maxRing = Math.max(Math.max(row, rows - 1 - row),
+                Math.max(column, columns - 1 - column));
+        
+        // The best k stops found so far, kept sorted nearest first. Each entry
+        // is the squared distance (as float bits) packed with the stop index.
+        final long[] best = new long[Math.min(k, size)];
+        int found = 0;
+        
+        for(int ring = 0; ring <= maxRing; ring++) {
+            // The point may lie anywhere in its own cell, so any stops from
+            // this ring outwards are at least this far away.
+            final double bound = Math.max(0, ring - 1) * minCellSize;
+            final double boundSq = bound * bound;
+            if(boundSq > maxDistanceSq) break;
+            if(found == best.length &&
+                    Float.intBitsToFloat((int)(best[found - 1] >>> 32)) <=
+                    boundSq) {
+                break;
+            }
+            
+            final int firstRow = Math.max(0, row - ring);
+            final int lastRow = Math.min(rows - 1, row + ring);
+            for(int r = firstRow; r <= lastRow; r++) {
+                // The top and bottom rows of the ring are new in full, other
+                // rows only have a new cell at either end.
+                final boolean edge = r == row - ring || r == row + ring;
+                final int step = edge ? 1 : ring * 2;
+                final int firstColumn = edge ? Math.max(0, column - ring) :
+                        column - ring;
+                final int lastColumn = edge ?
+                        Math.min(columns - 1, column + ring) : column + ring;
+                for(int c = firstColumn; c <= lastColumn; c += step) {
+                    if(c < 0 || c >= columns) continue;
+                    
+                    final int cell = r * columns + c;
+                    for(int j = cellStart[cell]; j < cellStart[cell + 1];
+                            j++) {
+                        final int stop = cellStops[j];
+                        if(filter != null && !isServedBy(stop, filter)) {
+                            continue;
+                        }
+                        
+                        final float distSq = (float)getDistanceSquared(stop,
+                                latitude, longitude, cosLat);
+                        if(distSq > maxDistanceSq) continue;
+                        
+                        final long entry = ((long)Float.floatToIntBits(distSq)
+                                << 32) | stop;
+                        if(found < best.length) {
+                            found++;
+                        } else if(entry >= best[found - 1]) {
+                            continue;
+                        }
+                        
+                        // Insert in to the sorted list of best stops.
+                        int pos = found - 1;
+                        while(pos > 0 && best[pos - 1] > entry) {
+                            best[pos] = best[pos - 1];
+                            pos--;
+                        }
+                        
+                        best[pos] = entry;
+                    }
+                }
+            }
+        }
+        
+        final int[] result = new int[found];
+        for(int i = 0; i < found; i++) {
+            result[i] = (int)best[i];
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Find all the bus stops within a radius of a point.
+     * 
+     * @param latitude The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @param radius The radius, in metres.
+     * @param services If not null, only stops served by at least one of these
+     * services are returned.
+     * @return The indexes of the matching stops, nearest first.
+     */
+    public int[] findWithinRadius(final double latitude,
+            final double longitude, final double radius,
+            final String[] services) {
+        final boolean[] filter = getServiceFilter(services);
+        if(radius < 0 || size == 0 || (services != null && filter == null)) {
+            return new int[0];
+        }
+        
+        final double cosLat = Math.cos(Math.toRadians(latitude));
+        final double latSpan = radius / METRES_PER_DEGREE;
+        final double lonSpan = radius / (METRES_PER_DEGREE *
+                Math.max(cosLat, 1e-6));
+        final int minRow = Math.max(0, getRowUnclamped(latitude - latSpan));
+        final int maxRow = Math.min(rows - 1,
+                getRowUnclamped(latitude + latSpan));
+        final int minColumn = Math.max(0,
+                getColumnUnclamped(longitude - lonSpan));
+        final int maxColumn = Math.min(columns - 1,
+                getColumnUnclamped(longitude + lonSpan));
+        final double radiusSq = radius * radius;
+        
+        long[] matches = new long[16];
+        int found = 0;
+        
+        for(int r = minRow; r <= maxRow; r++) {
+            for(int c = minColumn; c <= maxColumn; c++) {
+                final int cell = r * columns + c;
+                for(int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+                    final int stop = cellStops[j];
+                    if(filter != null && !isServedBy(stop, filter)) continue;
+                    
+                    final float distSq = (float)getDistanceSquared(stop,
+                            latitude, longitude, cosLat);
+                    if(distSq > radiusSq) continue;
+                    
+                    if(found == matches.length) {
+                        final long[] grown = new long[found * 2];
+                        System.arraycopy(matches, 0, grown, 0, found);
+                        matches = grown;
+                    }
+                    
+                    matches[found++] = ((long)Float.floatToIntBits(distSq)
+                            << 32) | stop;
+                }
+            }
+        }
+        
+        // Distances are never negative, so sorting the packed entries sorts
+        // by distance.
+        Arrays.sort(matches, 0, found);
+        final int[] result = new int[found];
+        for(int i = 0; i < found; i++) {
+            result[i] = (int)matches[i];
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Find all stops within a bounding box.
+     * 
+     * @param minLatitude The southern edge of the box.
+     * @param minLongitude The western edge of the box.
+     * @param maxLatitude The northern edge of the box.
+     * @param maxLongitude The eastern edge of the box.
+     * @param services If not null, only stops served by at least one of these
+     * services are returned.
+     * @return The indexes of the matching stops, in no particular order.
+     */
+    public int[] findInBounds(final double minLatitude,
+            final double minLongitude, final double maxLatitude,
+            final double maxLongitude, final String[] services) {
+        final boolean[] filter = getServiceFilter(services);
+        if(size == 0 || minLatitude > maxLatitude ||
+                minLongitude > maxLongitude ||
+                (services != null && filter == null)) {
+            return new int[0];
+        }
+        
+        final int minRow = Math.max(0, getRowUnclamped(minLatitude));
+        final int maxRow = Math.min(rows - 1, getRowUnclamped(maxLatitude));
+        final int minColumn = Math.max(0, getColumnUnclamped(minLongitude));
+        final int maxColumn = Math.min(columns - 1,
+                getColumnUnclamped(maxLongitude));
+        
+        int[] matches = new int[16];
+        int found = 0;
+        
+        for(int r = minRow; r <= maxRow; r++) {
+            for(int c = minColumn; c <= maxColumn; c++) {
+                final int cell = r * columns + c;
+                for(int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+                    final int stop = cellStops[j];
+                    if(latitudes[stop] < minLatitude ||
+                            latitudes[stop] > maxLatitude ||
+                            longitudes[stop] < minLongitude ||
+                            longitudes[stop] > maxLongitude) continue;
+                    if(filter != null && !isServedBy(stop, filter)) continue;
+                    
+                    if(found == matches.length) {
+                        matches = copyOf(matches, found * 2);
+                    }
+                    
+                    matches[found++] = stop;
+                }
+            }
+        }
+        
+        return copyOf(matches, found);
+    }
+    
+    /**
+     * Get the approximate distance between a stop and a point.
+     * 
+     * @param index The index of the stop.
+     * @param latitude The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @return The approximate distance, in metres.
+     */
+    public double getDistance(final int index, final double latitude,
+            final double longitude) {
+        return Math.sqrt(getDistanceSquared(index, latitude, longitude,
+                Math.cos(Math.toRadians(latitude))));
+    }
+    
+    /**
+     * Get the squared distance between a stop and a point, in metres.
+     * 
+     * @param index The index of the stop.
+     * @param latitude The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @param cosLat The cosine of the point's latitude.
+     * @return The squared distance, in metres.
+     */
+    private double getDistanceSquared(final int index, final double latitude,
+            final double longitude, final double cosLat) {
+        final double dy = (latitudes[index] - latitude) * METRES_PER_DEGREE;
+        final double dx = (longitudes[index] - longitude) * METRES_PER_DEGREE *
+                cosLat;
+        return dx * dx + dy * dy;
+    }
+    
+    /**
+     * Turn a list of service names in to a lookup table indexed by service.
+     * 
+     * @param services The service names. May be null.
+     * @return null if services is null or none of the services are known,
+     * otherwise a table where the known services are marked true.
+     */
+    private boolean[] getServiceFilter(final String[] services) {
+        if(services == null) return null;
+        
+        final boolean[] filter = new boolean[serviceNames.length];
+        boolean any = false;
+        for(String s : services) {
+            final Integer index = serviceIndexes.get(s);
+            if(index != null) {
+                filter[index] = true;
+                any = true;
+            }
+        }
+        
+        return any ? filter : null;
+    }
+    
+    /**
+     * Is a stop served by any of the services marked in the filter?
+     * 
+     * @param index The index of the stop.
+     * @param filter The service filter.
+     * @return true if the stop is served by at least one filtered service.
+     */
+    private boolean isServedBy(final int index, final boolean[] filter) {
+        for(int service : stopServices[index]) {
+            if(filter[service]) return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Copy an int array in to a new array of a different length. This exists
+     * because Arrays.copyOf() is not available before API level 9.
+     * 
+     * @param original The array to copy.
+     * @param length The length of the new array.
+     * @return The new array.
+     */
+    private static int[] copyOf(final int[] original, final int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(original, 0, copy, 0, Math.min(length,
+                original.length));
+        return copy;
+    }
+    
+    /**
+     * Get the grid row for a latitude which is known to be within the grid.
+     * 
+     * @param latitude The latitude.
+     * @return The grid row.
+     */
+    private int getRow(final double latitude) {
+        return Math.min(rows - 1, Math.max(0, getRowUnclamped(latitude)));
+    }
+    
+    /**
+     * Get the grid column for a longitude which is known to be within the
+     * grid.
+     * 
+     * @param longitude The longitude.
+     * @return The grid column.
+     */
+    private int getColumn(final double longitude) {
+        return Math.min(columns - 1,
+                Math.max(0, getColumnUnclamped(longitude)));
+    }
+    
+    /**
+     * Get the grid row for a latitude, which may be outside of the grid.
+     * 
+     * @param latitude The latitude.
+     * @return The grid row.
+     */
+    private int getRowUnclamped(final double latitude) {
+        return (int)Math.floor((latitude - minLatitude) / cellLatitudeSpan);
+    }
+    
+    /**
+     * Get the grid column for a longitude, which may be outside of the grid.
+     * 
+     * @param longitude The longitude.
+     * @return The grid column.
+     */
+    private int getColumnUnclamped(final double longitude) {
+        return (int)Math.floor((longitude - minLongitude) / cellLongitudeSpan);
+    }
+}
@@ -25,15 +25,19 @@
 
 package uk.org.rivernile.edinburghbustracker.android;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.text.Html;
 import android.text.Spanned;
 import android.text.SpannedString;
+import com.davekoelle.alphanum.AlphanumComparator;
 import com.google.android.gms.maps.model.LatLng;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -42,12 +46,27 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class deals with the handling of the Bus Stop Database. It deals with
  * the initialisation as well as instance creation. Get an instance of this
  * class from the getInstance() method.
  * 
+ * Any number of threads may read from the database at the same time. Only
+ * replacing the database (restoring it from assets or swapping in a
+ * downloaded copy) is exclusive. Code which iterates over a Cursor returned
+ * by this class must hold the lock from getReadLock() while doing so, and code
+ * which replaces the database file must hold the lock from getWriteLock().
+ * 
  * @author Niall Scott
  */
 public final class BusStopDatabase extends SQLiteOpenHelper {
@@ -59,13 +78,21 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
     /** The version of the database. For internal use only. */
     protected static final int STOP_DB_VERSION = 1;
     
-    private static final String BUS_STOPS_TABLE = "bus_stops";
-    private static final String BUS_STOPS_STOPCODE = "stopCode";
-    private static final String BUS_STOPS_STOPNAME = "stopName";
-    private static final String BUS_STOPS_X = "x";
-    private static final String BUS_STOPS_Y = "y";
-    private static final String BUS_STOPS_ORIENTATION = "orientation";
-    private static final String BUS_STOPS_LOCALITY = "locality";
+    private static final String BUS_STOPS_TABLE =
+            BusStopQueries.BUS_STOPS_TABLE;
+    private static final String BUS_STOPS_ID = BusStopQueries.BUS_STOPS_ID;
+    private static final String BUS_STOPS_STOPCODE =
+            BusStopQueries.BUS_STOPS_STOPCODE;
+    private static final String BUS_STOPS_STOPNAME =
+            BusStopQueries.BUS_STOPS_STOPNAME;
+    private static final String BUS_STOPS_X = BusStopQueries.BUS_STOPS_X;
+    private static final String BUS_STOPS_Y = BusStopQueries.BUS_STOPS_Y;
+    private static final String BUS_STOPS_ORIENTATION =
+            BusStopQueries.BUS_STOPS_ORIENTATION;
+    private static final String BUS_STOPS_LOCALITY =
+            BusStopQueries.BUS_STOPS_LOCALITY;
+    private static final String BUS_STOPS_GRID_CELL =
+            BusStopQueries.BUS_STOPS_GRID_CELL;
     
     private static final String DATABASE_INFO_TABLE = "database_info";
     private static final String DATABASE_INFO_UPDATE_TIME = "updateTS";
@@ -90,10 +117,53 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
     private static final String SERVICE_POINT_LATITUDE = "latitude";
     private static final String SERVICE_POINT_LONGITUDE = "longitude";
 
+    /** SQL to calculate the grid cell of a row in the bus_stops table. */
+    private static final String GRID_CELL_SQL = BusStopQueries.GRID_CELL_SQL;
+
+    /** The index used to look up the services for bus stops. */
+    private static final String SERVICE_STOPS_INDEX = "service_stops_index";
+    
+    /** The full text search table over the bus stop details. */
+    private static final String SEARCH_TABLE = BusStopQueries.SEARCH_TABLE;
+    /** The stop name and locality, as a single column. */
+    private static final String SEARCH_NAMES = BusStopQueries.SEARCH_NAMES;
+    private static final String SEARCH_STOPCODE =
+            BusStopQueries.SEARCH_STOPCODE;
+    
+    /** Sorts service_stops rows by service name in natural order. */
+    private static final String SERVICE_STOPS_SORT_ORDER =
+            "CASE WHEN " + SERVICE_STOPS_SERVICE_NAME + " GLOB '[^0-9.]*' " +
+            "THEN " + SERVICE_STOPS_SERVICE_NAME + " ELSE cast(" +
+            SERVICE_STOPS_SERVICE_NAME + " AS int) END";
+    /** The tables which may be changed by a DatabaseChangeset. */
+    private static final String[] CHANGESET_TABLES = new String[] {
+        BUS_STOPS_TABLE,
+        SERVICE_STOPS_TABLE,
+        SERVICE_TABLE,
+        SERVICE_COLOUR_TABLE,
+        SERVICE_POINT_TABLE
+    };
+    /** The buffer size used when extracting compressed database assets. */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    /** SQLite allows at most 999 bound arguments in a single statement. */
+    private static final int MAX_SQL_ARGS = 500;
+    
     private static BusStopDatabase instance = null;
     
     private Context context;
     private final File f;
+    private volatile boolean hasSpatialIndex = false;
+    private volatile boolean hasSearchIndex = false;
+    private final AtomicBoolean migrating = new AtomicBoolean(false);
+    private volatile BusStopCatalogue catalogue;
+    private int catalogueGeneration;
+    private final Object catalogueLock = new Object();
+    private final AtomicInteger generation = new AtomicInteger();
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = new ReadyReadLock(lock.readLock());
+    private final Lock writeLock = lock.writeLock();
+    private volatile CountDownLatch readyLatch = new CountDownLatch(0);
 
     /**
      * Create a new instance of this class. This constructor will move the
@@ -107,20 +177,19 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
         
         f = context.getDatabasePath(STOP_DB_NAME);
         if(!f.exists()) {
-            new Thread(new RestoreDBFromAssetsTask(this)).start();
+            startRestoreDBFromAssets(true);
         } else {
             final long assetVersion = Long.parseLong(context.getString(
                     R.string.asset_db_version));
-            long currentVersion;
-            try {
-                currentVersion = getLastDBModTime();
-            } catch(SQLiteException e) {
-                new Thread(new RestoreDBFromAssetsTask(this)).start();
-                return;
-            }
-
-            if(assetVersion > currentVersion) {
-                new Thread(new RestoreDBFromAssetsTask(this)).start();
+            // This is 0 if the database could not be read.
+            final long currentVersion = getLastDBModTime();
+            
+            if(currentVersion == 0) {
+                startRestoreDBFromAssets(true);
+            } else if(assetVersion > currentVersion) {
+                // The existing database can still be used while the newer
+                // one is extracted.
+                startRestoreDBFromAssets(false);
             }
         }
     }
@@ -134,63 +203,248 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param context Provide an application context.
      * @return The singleton instance of this class.
      */
-    public static BusStopDatabase getInstance(final Context context) {
+    public static synchronized BusStopDatabase getInstance(
+            final Context context) {
         if(instance == null) instance = new BusStopDatabase(context);
         return instance;
     }
     
+    /**
+     * Start moving a copy of the database from the application assets in to
+     * the application's database path, in the background.
+     * 
+     * @param blocking true if there is no usable database until this has
+     * finished, in which case readers will wait for it. false if the existing
+     * database can be used in the meantime.
+     */
+    private void startRestoreDBFromAssets(final boolean blocking) {
+        final CountDownLatch latch = new CountDownLatch(blocking ? 1 : 0);
+        readyLatch = latch;
+        
+        final Thread thread = new Thread(new RestoreDBFromAssetsTask(this,
+                latch), "BusStopDatabase restore");
+        thread.start();
+    }
+    
     /**
      * Move a copy of the database from the application assets in to the
-     * application's database path.
+     * application's database path. The assets are first extracted to a
+     * temporary file, so the existing database (if any) can still be read
+     * until the new one is swapped in to its place.
      * 
      * @return True if the operation was successful, otherwise return false.
      */
-    private synchronized boolean restoreDBFromAssets() {
+    private boolean restoreDBFromAssets() {
+        final File temp = context.getDatabasePath(STOP_DB_NAME + "_restore");
+        
         try {
+            extractAssets(temp);
+        } catch(IOException e) {
+            deleteDatabaseFiles(temp);
+            return false;
+        }
+        
+        try {
+            // The database in the assets already has its indexes, so this
+            // only does any work if any of them are missing.
+            final SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                    temp.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
             try {
-                getWritableDatabase().close();
-            } catch (SQLiteException e) {
-                // Nothing to do here. Assume it's already closed.
+                setUpIndexes(db);
+            } finally {
+                db.close();
             }
+        } catch(SQLiteException e) {
+            // Continue anyway, the indexes will be tried again when the
+            // database is opened.
+        }
+        
+        return replaceDatabase(temp);
+    }
+    
+    /**
+     * Replace the database with a new database file. The new file must be in
+     * the same directory as the database.
+     * 
+     * This waits for anything holding the read lock to finish with the old
+     * database. The new file is then renamed over the old one, which is
+     * atomic, so there is never a point where there is no database file.
+     * Readers which still have the old file open keep reading it until they
+     * close it.
+     * 
+     * @param newFile The new database file. This is moved, so it will not
+     * exist after this method returns true.
+     * @return true if the database was replaced, false if not.
+     */
+    public boolean replaceDatabase(final File newFile) {
+        writeLock.lock();
+        try {
+            close();
             
-            f.delete();
-            final AssetManager assetMan = context.getAssets();
-            
-            final ArrayList<String> dbFiles = new ArrayList<String>();
-            final String[] files = assetMan.list("");
+            // The journals of the old database must not be applied to the new
+            // one. The database file itself is overwritten by the rename.
+            new File(f.getPath() + "-journal").delete();
+            new File(f.getPath() + "-wal").delete();
+            new File(f.getPath() + "-shm").delete();
             
-            for (String s : files) {
-                if (s.startsWith(STOP_DB_NAME)) {
-                    dbFiles.add(s);
-                }
-            }
+            if(!newFile.renameTo(f)) return false;
             
-            Collections.sort(dbFiles);
+            new File(newFile.getPath() + "-journal").delete();
+            generation.incrementAndGet();
             
-            InputStream in;
-            final FileOutputStream out = new FileOutputStream(f);
-            final byte[] buf = new byte[1024];
-            int len;
-            for (String s : dbFiles) {
-                in = assetMan.open(s);
-                
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
-                
-                in.close();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Concatenate the split database files in the application assets in to a
+     * single file.
+     * 
+     * @param dest Where to write the database to.
+     * @throws IOException When an error occurs while copying.
+     */
+    private void extractAssets(final File dest) throws IOException {
+        final AssetManager assetMan = context.getAssets();
+        final ArrayList<String> dbFiles = new ArrayList<String>();
+        final String[] files = assetMan.list("");
+        
+        for(String s : files) {
+            if(s.startsWith(STOP_DB_NAME)) {
+                dbFiles.add(s);
+            }
+        }
+        
+        Collections.sort(dbFiles);
+        
+        final File dir = dest.getParentFile();
+        if(dir != null) dir.mkdirs();
+        
+        final FileOutputStream out = new FileOutputStream(dest);
+        try {
+            final byte[] buf = new byte[COPY_BUFFER_SIZE];
+            for(String s : dbFiles) {
+                copyAsset(assetMan, s, out, buf);
             }
             
+            // Make sure the data is on disk before the file is renamed.
             out.flush();
+            out.getFD().sync();
+        } finally {
             out.close();
-            
-            setUpIndexes(getWritableDatabase());
-            
-            return true;
-        } catch (IOException e) {
-            return false;
         }
     }
+    
+    /**
+     * Append an asset to the end of a file. The database assets are
+     * compressed in the APK, so they are decompressed through buf.
+     * 
+     * @param assetMan The AssetManager.
+     * @param name The name of the asset.
+     * @param out The file to append the asset to.
+     * @param buf A buffer to copy the asset through.
+     * @throws IOException When an error occurs while copying.
+     */
+    private static void copyAsset(final AssetManager assetMan,
+            final String name, final FileOutputStream out, final byte[] buf)
+            throws IOException {
+        final InputStream in = assetMan.open(name,
+                AssetManager.ACCESS_STREAMING);
+        try {
+            int len;
+            while((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Has the database been made ready for use? This is false only while
+     * there is no usable database and one is being extracted from the
+     * application assets.
+     * 
+     * @return true if the database is ready to be used, false if not.
+     */
+    public boolean isReady() {
+        return readyLatch.getCount() == 0;
+    }
+    
+    /**
+     * Block until the database is ready for use. All methods in this class
+     * which read from the database call this first, so there is no need to
+     * call it before using them.
+     */
+    public void awaitReady() {
+        boolean interrupted = false;
+        
+        while(true) {
+            try {
+                readyLatch.await();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * Block until the database is ready for use, or the timeout elapses.
+     * 
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout argument.
+     * @return true if the database is ready, false if the timeout elapsed
+     * first.
+     * @throws InterruptedException If the current thread is interrupted while
+     * waiting.
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return readyLatch.await(timeout, unit);
+    }
+    
+    /**
+     * Get the lock which must be held while using a Cursor returned by this
+     * class. Many threads can hold this lock at the same time, but it can't be
+     * held while the database is being replaced. Locking it waits for the
+     * database to be ready first.
+     * 
+     * @return The read lock.
+     */
+    public Lock getReadLock() {
+        return readLock;
+    }
+    
+    /**
+     * Get the lock which must be held while the database file is being
+     * replaced. While this is held, no other thread can read from the
+     * database.
+     * 
+     * @return The write lock.
+     */
+    public Lock getWriteLock() {
+        return writeLock;
+    }
+    
+    /**
+     * Delete a database file along with any journal files SQLite has left
+     * next to it. A stale write-ahead log must not be left behind, otherwise
+     * SQLite would try to apply it to the new database that is put in its
+     * place.
+     * 
+     * @param file The database file to delete.
+     */
+    public static void deleteDatabaseFiles(final File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
 
     /**
      * {@inheritDoc} 
@@ -200,6 +454,83 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
         // The database should already exist, do nothing if it doesn't.
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+        
+        hasSpatialIndex = hasColumn(db, BUS_STOPS_TABLE, BUS_STOPS_GRID_CELL);
+        hasSearchIndex = hasTable(db, SEARCH_TABLE);
+        
+        if(!db.isReadOnly()) {
+            // Write-ahead logging lets readers carry on while another
+            // connection is writing, and allows the framework to use more than
+            // one connection for reads.
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                enableWriteAheadLogging(db);
+            }
+            
+            // Databases restored or downloaded by older versions of the app do
+            // not have the service stops, spatial or search indexes. Building
+            // them can take several seconds and this may be on the main
+            // thread, so it's done in the background. Queries work without
+            // them in the meantime, just more slowly.
+            if(!hasSpatialIndex || !hasSearchIndex ||
+                    !hasIndex(db, SERVICE_STOPS_INDEX)) {
+                startMigrateIndexes();
+            }
+        }
+    }
+    
+    /**
+     * Start adding any missing indexes to the database in the background. This
+     * does nothing if it's already running.
+     */
+    private void startMigrateIndexes() {
+        if(!migrating.compareAndSet(false, true)) return;
+        
+        final Thread thread = new Thread(new MigrateIndexesTask(this),
+                "BusStopDatabase migrate");
+        thread.start();
+    }
+    
+    /**
+     * Add any missing service stops, spatial or search indexes to the
+     * database. The read lock is held so that the database can't be replaced
+     * while this is happening.
+     */
+    private void migrateIndexes() {
+        readLock.lock();
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            setUpServiceStopsIndex(db);
+            hasSpatialIndex = setUpSpatialIndex(db);
+            hasSearchIndex = setUpSearchIndex(db);
+        } catch(SQLiteException e) {
+            // Try again the next time the database is opened.
+        } finally {
+            readLock.unlock();
+            migrating.set(false);
+        }
+    }
+
+    /**
+     * Turn on write-ahead logging for the database.
+     * 
+     * @param db The database to turn on write-ahead logging for.
+     */
+    @TargetApi(11)
+    private static void enableWriteAheadLogging(final SQLiteDatabase db) {
+        try {
+            db.enableWriteAheadLogging();
+        } catch(IllegalStateException e) {
+            // A transaction is in progress. The database still works without
+            // write-ahead logging.
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -224,8 +555,215 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             // run like shit. This is most likely caused because we're out of
             // disk space.
         }
+        
+        setUpServiceStopsIndex(db);
+        setUpSpatialIndex(db);
+        setUpSearchIndex(db);
     }
-
+    
+    /**
+     * Set up the index used to look up the services for bus stops. This can
+     * safely be called on a database that already has the index.
+     * 
+     * @param db The database to create the index on.
+     */
+    private static void setUpServiceStopsIndex(final SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + SERVICE_STOPS_INDEX +
+                    " ON " + SERVICE_STOPS_TABLE + '(' +
+                    SERVICE_STOPS_STOPCODE + ", " +
+                    SERVICE_STOPS_SERVICE_NAME + ')');
+        } catch(SQLiteException e) {
+            // Service lookups will still work, just slower.
+        }
+    }
+    
+    /**
+     * Set up the spatial index on the bus_stops table. Each bus stop is given
+     * the cell of a fixed size grid that it falls in, and the cell is indexed.
+     * Bounding box queries then only need to look at the rows in the cells
+     * that the box covers, rather than the whole table. This can safely be
+     * called on a database that already has the spatial index.
+     * 
+     * @param db The database to create the spatial index on.
+     * @return true if the spatial index exists, false if it could not be
+     * created.
+     */
+    private static boolean setUpSpatialIndex(final SQLiteDatabase db) {
+        try {
+            db.beginTransaction();
+            
+            try {
+                if(!hasColumn(db, BUS_STOPS_TABLE, BUS_STOPS_GRID_CELL)) {
+                    db.execSQL("ALTER TABLE " + BUS_STOPS_TABLE +
+                            " ADD COLUMN " + BUS_STOPS_GRID_CELL + " INTEGER");
+                    db.execSQL("UPDATE " + BUS_STOPS_TABLE + " SET " +
+                            BUS_STOPS_GRID_CELL + " = " + GRID_CELL_SQL);
+                }
+                
+                db.execSQL("CREATE INDEX IF NOT EXISTS bus_stops_grid_index " +
+                        "ON " + BUS_STOPS_TABLE + '(' + BUS_STOPS_GRID_CELL +
+                        ')');
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            
+            return true;
+        } catch(SQLiteException e) {
+            // The queries will still work without the spatial index, they will
+            // just be slower. Most likely there's no disk space.
+            return false;
+        }
+    }
+    
+    /**
+     * Set up the full text search index over the bus stop names, localities
+     * and codes. FTS3 is used rather than FTS4 as FTS4 is not available on
+     * older versions of Android. The stop name and locality are held in one
+     * column so that a search can match words across both. This can safely
+     * be called on a database that already has the search index.
+     * 
+     * @param db The database to create the search index on.
+     * @return true if the search index exists, false if it could not be
+     * created.
+     */
+    private static boolean setUpSearchIndex(final SQLiteDatabase db) {
+        if(hasTable(db, SEARCH_TABLE)) return true;
+        
+        try {
+            db.beginTransaction();
+            
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE +
+                        " USING fts3(" + SEARCH_NAMES + ", " +
+                        SEARCH_STOPCODE + ')');
+                db.execSQL("INSERT INTO " + SEARCH_TABLE + "(docid, " +
+                        SEARCH_NAMES + ", " + SEARCH_STOPCODE + ") SELECT " +
+                        BUS_STOPS_ID + ", " + BUS_STOPS_STOPNAME +
+                        " || ' ' || ifnull(" + BUS_STOPS_LOCALITY + ", ''), " +
+                        BUS_STOPS_STOPCODE + " FROM " + BUS_STOPS_TABLE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            
+            return true;
+        } catch(SQLiteException e) {
+            // Searching will fall back to scanning the bus_stops table. Most
+            // likely there's no disk space.
+            return false;
+        }
+    }
+    
+    /**
+     * Check to see if a table exists in the database.
+     * 
+     * @param db The database to check.
+     * @param table The name of the table.
+     * @return true if the table exists, false if not.
+     */
+    private static boolean hasTable(final SQLiteDatabase db,
+            final String table) {
+        try {
+            final Cursor c = db.rawQuery("SELECT 1 FROM sqlite_master WHERE " +
+                    "type = 'table' AND name = ?", new String[] { table });
+            
+            try {
+                return c.moveToNext();
+            } finally {
+                c.close();
+            }
+        } catch(SQLiteException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Check to see if an index exists in the database.
+     * 
+     * @param db The database to check.
+     * @param index The name of the index.
+     * @return true if the index exists, false if not.
+     */
+    private static boolean hasIndex(final SQLiteDatabase db,
+            final String index) {
+        try {
+            final Cursor c = db.rawQuery("SELECT 1 FROM sqlite_master WHERE " +
+                    "type = 'index' AND name = ?", new String[] { index });
+            
+            try {
+                return c.moveToNext();
+            } finally {
+                c.close();
+            }
+        } catch(SQLiteException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Get the names of the columns in a table.
+     * 
+     * @param db The database to check.
+     * @param table The name of the table.
+     * @return The names of the columns. This is empty if the table does not
+     * exist.
+     */
+    private static HashSet<String> getColumns(final SQLiteDatabase db,
+            final String table) {
+        final HashSet<String> result = new HashSet<String>();
+        
+        try {
+            final Cursor c = db.rawQuery("PRAGMA table_info(" + table + ')',
+                    null);
+            
+            try {
+                final int nameColumn = c.getColumnIndex("name");
+                while(c.moveToNext()) {
+                    result.add(c.getString(nameColumn));
+                }
+            } finally {
+                c.close();
+            }
+        } catch(SQLiteException e) {
+            // Nothing to do here. Assume the table does not exist.
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Check to see if a table has a given column.
+     * 
+     * @param db The database to check.
+     * @param table The name of the table.
+     * @param column The name of the column.
+     * @return true if the table has the column, false if not.
+     */
+    private static boolean hasColumn(final SQLiteDatabase db,
+            final String table, final String column) {
+        try {
+            final Cursor c = db.rawQuery("PRAGMA table_info(" + table + ')',
+                    null);
+            
+            try {
+                final int nameColumn = c.getColumnIndex("name");
+                while(c.moveToNext()) {
+                    if(column.equals(c.getString(nameColumn))) {
+                        return true;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        } catch(SQLiteException e) {
+            // Nothing to do here. Assume the column does not exist.
+        }
+        
+        return false;
+    }
+    
     /**
      * Get information for a bus stop based on a boxed area. This is used to
      * return results based on location.
@@ -236,27 +774,18 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param maxY The maximum latitude to return results for.
      * @return A database Cursor object with the result set.
      */
-    public synchronized Cursor getBusStopsByCoords(final double minX,
+    public Cursor getBusStopsByCoords(final double minX,
             final double minY, final double maxX, final double maxY) {
+        readLock.lock();
         try {
-            final String[] projection = new String[] {
-                BUS_STOPS_STOPCODE,
-                BUS_STOPS_STOPNAME,
-                BUS_STOPS_X,
-                BUS_STOPS_Y,
-                BUS_STOPS_ORIENTATION,
-                BUS_STOPS_LOCALITY
-            };
-            
             final SQLiteDatabase db = getReadableDatabase();
-            return db.query(BUS_STOPS_TABLE, projection,
-                    '(' + BUS_STOPS_X + " BETWEEN ? AND ?) AND " +
-                    '(' + BUS_STOPS_Y + " BETWEEN ? AND ?)",
-                    new String[] { String.valueOf(minX), String.valueOf(maxX),
-                        String.valueOf(minY), String.valueOf(maxY)},
-                    null, null, null);
+            return db.rawQuery(BusStopQueries.getStopsByCoordsSql(minX, minY,
+                    maxX, maxY, hasSpatialIndex),
+                    BusStopQueries.getCoordsArgs(minX, minY, maxX, maxY));
         } catch(SQLiteException e) {
             return null;
+        } finally {
+            readLock.unlock();
         }
     }
     
@@ -272,9 +801,10 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param services Bus services to filter by, as a String array.
      * @return A database Cursor object with the result set.
      */
-    public synchronized Cursor getFilteredStopsByCoords(final double minX,
+    public Cursor getFilteredStopsByCoords(final double minX,
             final double minY, final double maxX, final double maxY,
             final String[] services) {
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             return db.rawQuery("SELECT " +
@@ -284,19 +814,21 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
                     BUS_STOPS_TABLE + '.' + BUS_STOPS_Y + ", " +
                     BUS_STOPS_TABLE + '.' + BUS_STOPS_ORIENTATION + ", " +
                     BUS_STOPS_TABLE + '.' + BUS_STOPS_LOCALITY +
-                    " FROM " + SERVICE_STOPS_TABLE +
-                    " LEFT JOIN " + BUS_STOPS_TABLE + " ON " +
-                    SERVICE_STOPS_TABLE + '.' + SERVICE_STOPS_STOPCODE + " = " +
-                    BUS_STOPS_TABLE + '.' + BUS_STOPS_STOPCODE + " WHERE " +
-                    SERVICE_STOPS_TABLE + '.' + SERVICE_STOPS_SERVICE_NAME +
-                    " IN (" + getStringFormattedForSqlIn(services) + ") AND (" +
-                    BUS_STOPS_X + " BETWEEN ? AND ?) AND " + '(' +
-                    BUS_STOPS_Y + " BETWEEN ? AND ?) " +
+                    " FROM " + BUS_STOPS_TABLE + " WHERE " +
+                    (hasSpatialIndex ? BusStopQueries.getGridCellClause(minX,
+                    minY, maxX, maxY) : "") +
+                    BusStopQueries.COORDS_CLAUSE + " AND " +
+                    BUS_STOPS_TABLE + '.' + BUS_STOPS_STOPCODE + " IN (" +
+                    "SELECT " + SERVICE_STOPS_STOPCODE + " FROM " +
+                    SERVICE_STOPS_TABLE + " WHERE " +
+                    SERVICE_STOPS_SERVICE_NAME + " IN (" +
+                    getStringFormattedForSqlIn(services) + ")) " +
                     "GROUP BY " + BUS_STOPS_TABLE + '.' + BUS_STOPS_STOPCODE,
-                    new String[] { String.valueOf(minX), String.valueOf(maxX),
-                        String.valueOf(minY), String.valueOf(maxY)});
+                    BusStopQueries.getCoordsArgs(minX, minY, maxX, maxY));
         } catch(SQLiteException e) {
             return null;
+        } finally {
+            readLock.unlock();
         }
     }
 
@@ -306,13 +838,16 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param stopCode The bus stop code to query for.
      * @return A Cursor result set.
      */
-    public synchronized Cursor getBusStopByCode(final String stopCode) {
+    public Cursor getBusStopByCode(final String stopCode) {
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             return db.query(BUS_STOPS_TABLE, null, BUS_STOPS_STOPCODE + " = ?",
                     new String[] { stopCode }, null, null, null);
         } catch(SQLiteException e) {
             return null;
+        } finally {
+            readLock.unlock();
         }
     }
 
@@ -322,19 +857,16 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param stopCode The bus stop code to search for.
      * @return A String array of bus services.
      */
-    public synchronized String[] getBusServicesForStop(final String stopCode) {
+    public String[] getBusServicesForStop(final String stopCode) {
         String[] result;
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             final Cursor c = db.query(true, SERVICE_STOPS_TABLE,
                     new String[] { SERVICE_STOPS_SERVICE_NAME },
                     SERVICE_STOPS_STOPCODE + " = ?", new String[] { stopCode },
-                    null, null,
-                    "CASE WHEN " + SERVICE_STOPS_SERVICE_NAME +
-                    " GLOB '[^0-9.]*' THEN " + SERVICE_STOPS_SERVICE_NAME +
-                    " ELSE cast(" + SERVICE_STOPS_SERVICE_NAME + " AS int) END",
-                    null);
+                    null, null, SERVICE_STOPS_SORT_ORDER, null);
             final int count = c.getCount();
             int i = 0;
             if(count > 0) {
@@ -350,6 +882,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             result = new String[] { };
+        } finally {
+            readLock.unlock();
         }
         
         return result;
@@ -363,7 +897,7 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param stopCode The bus stop code to search for.
      * @return A comma separated list bus services.
      */
-    public synchronized String getBusServicesForStopAsString(
+    public String getBusServicesForStopAsString(
             final String stopCode) {
         final String[] services = getBusServicesForStop(stopCode);
         if(services == null) return "";
@@ -379,6 +913,159 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
         return builder.toString();
     }
 
+    /**
+     * Get the generation of the data in the database. This changes every time
+     * the database is replaced or a changeset is applied to it, so anything
+     * held in memory which was loaded from an earlier generation is out of
+     * date. Getting this does not touch SQLite.
+     * 
+     * @return The generation of the data in the database.
+     */
+    public int getGeneration() {
+        return generation.get();
+    }
+    
+    /**
+     * Get the in-memory catalogue of bus stops. The catalogue is built the
+     * first time this is called and then reused until the database is
+     * replaced or changed, at which point it will be built again from the new
+     * data. Unless it needs to be built, this does not touch SQLite.
+     * 
+     * @return The BusStopCatalogue, or null if the database could not be
+     * read.
+     */
+    public BusStopCatalogue getStopCatalogue() {
+        readLock.lock();
+        try {
+            // This is read before the data, so a change made while the
+            // catalogue is being built causes it to be built again next time.
+            final int gen = generation.get();
+            
+            // Only one thread needs to build the catalogue. Any others wait
+            // for it and then use the result.
+            synchronized(catalogueLock) {
+                final BusStopCatalogue current = catalogue;
+                if(current != null && catalogueGeneration == gen) {
+                    return current;
+                }
+                
+                final long modTime = getLastDBModTime();
+                Cursor stops = null;
+                Cursor services = null;
+                try {
+                    final SQLiteDatabase db = getReadableDatabase();
+                    stops = db.query(BUS_STOPS_TABLE, new String[] {
+                                BUS_STOPS_STOPCODE,
+                                BUS_STOPS_STOPNAME,
+                                BUS_STOPS_X,
+                                BUS_STOPS_Y,
+                                BUS_STOPS_ORIENTATION,
+                                BUS_STOPS_LOCALITY
+                            }, null, null, null, null, null);
+                    services = db.query(true, SERVICE_STOPS_TABLE,
+                            new String[] {
+                                SERVICE_STOPS_STOPCODE,
+                                SERVICE_STOPS_SERVICE_NAME
+                            }, null, null, null, null,
+                            SERVICE_STOPS_STOPCODE + ", " +
+                            SERVICE_STOPS_SORT_ORDER, null);
+                    
+                    catalogue = BusStopCatalogue.fromCursors(modTime, stops,
+                            services);
+                    catalogueGeneration = gen;
+                    return catalogue;
+                } catch(SQLiteException e) {
+                    return null;
+                } finally {
+                    if(stops != null) stops.close();
+                    if(services != null) services.close();
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Get the bus services for many bus stops at once, as comma separated
+     * lists in the same format as getBusServicesForStopAsString(). This is
+     * much quicker than calling getBusServicesForStopAsString() for each stop
+     * as only one query is made for every 500 stops.
+     * 
+     * @param stopCodes The bus stop codes to get the services for.
+     * @return A HashMap of stop code to its comma separated list of bus
+     * services. Every requested stop code is in the map. Stops with no
+     * services (or if the database could not be read) map to an empty String.
+     */
+    public HashMap<String, String> getBusServicesForStopsAsString(
+            final String[] stopCodes) {
+        final HashMap<String, String> result = new HashMap<String, String>();
+        if(stopCodes == null || stopCodes.length == 0) return result;
+        
+        final HashMap<String, StringBuilder> builders =
+                new HashMap<String, StringBuilder>();
+        for(String stopCode : stopCodes) {
+            if(stopCode != null) builders.put(stopCode, null);
+        }
+        
+        final String[] codes = builders.keySet().toArray(
+                new String[builders.size()]);
+        
+        readLock.lock();
+        try {
+            final SQLiteDatabase db = getReadableDatabase();
+            
+            for(int start = 0; start < codes.length; start += MAX_SQL_ARGS) {
+                final int count = Math.min(MAX_SQL_ARGS,
+                        codes.length - start);
+                final String[] args = new String[count];
+                System.arraycopy(codes, start, args, 0, count);
+                
+                final StringBuilder selection = new StringBuilder(
+                        SERVICE_STOPS_STOPCODE).append(" IN (");
+                for(int i = 0; i < count; i++) {
+                    selection.append(i == 0 ? "?" : ",?");
+                }
+                
+                selection.append(')');
+                
+                final Cursor c = db.query(true, SERVICE_STOPS_TABLE,
+                        new String[] {
+                            SERVICE_STOPS_STOPCODE,
+                            SERVICE_STOPS_SERVICE_NAME
+                        }, selection.toString(), args, null, null,
+                        SERVICE_STOPS_STOPCODE + ", " +
+                        SERVICE_STOPS_SORT_ORDER, null);
+                
+                while(c.moveToNext()) {
+                    final String stopCode = c.getString(0);
+                    StringBuilder sb = builders.get(stopCode);
+                    if(sb == null) {
+                        sb = new StringBuilder();
+                        builders.put(stopCode, sb);
+                    } else {
+                        sb.append(", ");
+                    }
+                    
+                    sb.append(c.getString(1));
+                }
+                
+                c.close();
+            }
+        } catch(SQLiteException e) {
+            // Fall through, missing stops get an empty String below.
+        } finally {
+            readLock.unlock();
+        }
+        
+        for(String stopCode : codes) {
+            final StringBuilder sb = builders.get(stopCode);
+            result.put(stopCode, sb != null ? sb.toString() : "");
+        }
+        
+        return result;
+    }
+
     /**
      * Get the timestamp for when the bus stop database was last updated. If
      * the value was invalid, 0 is returned.
@@ -386,9 +1073,10 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @return The timestamp for when the bus stop database was last updated. If
      * the value was invalid, 0 is returned.
      */
-    public synchronized long getLastDBModTime() {
+    public long getLastDBModTime() {
         long result = 0;
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             final Cursor c = db.query(true, DATABASE_INFO_TABLE,
@@ -402,6 +1090,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             
+        } finally {
+            readLock.unlock();
         }
         
         return result;
@@ -413,9 +1103,10 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * 
      * @return The current topology ID.
      */
-    public synchronized String getTopoId() {
+    public String getTopoId() {
         String result = "";
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             final Cursor c = db.query(true, DATABASE_INFO_TABLE,
@@ -429,38 +1120,179 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             
+        } finally {
+            readLock.unlock();
         }
         
         return result;
     }
+    
+    /**
+     * Apply a changeset to the database, taking it from one topology ID to
+     * the next without downloading the whole database. The changeset is
+     * applied in a single transaction, so if anything goes wrong the database
+     * is left as it was. The spatial and search indexes are kept up to date
+     * for any bus stops that change.
+     * 
+     * @param changeset The changeset to apply.
+     * @return true if the changeset was applied. false if it does not apply to
+     * the current database (for example, because it was created from a
+     * different topology ID) or could not be applied, in which case the full
+     * database should be downloaded instead.
+     */
+    public boolean applyChangeset(final DatabaseChangeset changeset) {
+        if(changeset == null || !SCHEMA_NAME.equals(changeset.getSchema())) {
+            return false;
+        }
+        
+        readLock.lock();
+        try {
+            // The changeset can only be applied to the version it was made
+            // from.
+            if(!changeset.getFromTopoId().equals(getTopoId())) return false;
+            
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for(DatabaseChangeset.TableChanges table :
+                        changeset.getTables()) {
+                    if(!applyTableChanges(db, table)) return false;
+                }
+                
+                final ContentValues info = new ContentValues();
+                info.put(DATABASE_INFO_TOPOLOGY, changeset.getToTopoId());
+                info.put(DATABASE_INFO_UPDATE_TIME,
+                        changeset.getUpdateTime());
+                if(db.update(DATABASE_INFO_TABLE, info, null, null) < 1) {
+                    return false;
+                }
+                
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            
+            generation.incrementAndGet();
+            return true;
+        } catch(SQLiteException e) {
+            return false;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Apply the changes for a single table. This must be called inside of a
+     * transaction.
+     * 
+     * @param db The database to apply the changes to.
+     * @param table The changes to apply.
+     * @return true if the changes were applied, false if the table or any of
+     * the columns are not known.
+     */
+    private boolean applyTableChanges(final SQLiteDatabase db,
+            final DatabaseChangeset.TableChanges table) {
+        final String name = table.getName();
+        boolean known = false;
+        for(String t : CHANGESET_TABLES) {
+            if(t.equals(name)) known = true;
+        }
+        
+        if(!known) return false;
+        
+        final boolean isBusStops = BUS_STOPS_TABLE.equals(name);
+        final boolean hasGrid = isBusStops &&
+                hasColumn(db, BUS_STOPS_TABLE, BUS_STOPS_GRID_CELL);
+        final boolean hasSearch = isBusStops && hasTable(db, SEARCH_TABLE);
+        final HashSet<String> columns = getColumns(db, name);
+        // The grid cell is derived from the other columns, it's never sent.
+        columns.remove(BUS_STOPS_GRID_CELL);
+        
+        final String[] args = new String[1];
+        final int deleteCount = table.getDeleteCount();
+        for(int i = 0; i < deleteCount; i++) {
+            args[0] = String.valueOf(table.getDelete(i));
+            db.delete(name, BUS_STOPS_ID + " = ?", args);
+            
+            if(hasSearch) {
+                db.execSQL("DELETE FROM " + SEARCH_TABLE + " WHERE docid = ?",
+                        args);
+            }
+        }
+        
+        for(ContentValues values : table.getUpserts()) {
+            for(Map.Entry<String, Object> entry : values.valueSet()) {
+                if(!columns.contains(entry.getKey())) return false;
+            }
+            
+            args[0] = values.getAsString(BUS_STOPS_ID);
+            if(args[0] == null) return false;
+            
+            // _id is not a key in every table (service and service_colour),
+            // so replace() would add a duplicate. Delete the old row first.
+            db.delete(name, BUS_STOPS_ID + " = ?", args);
+            if(db.insert(name, null, values) == -1) return false;
+            
+            if(isBusStops) {
+                if(hasGrid) {
+                    db.execSQL("UPDATE " + BUS_STOPS_TABLE + " SET " +
+                            BUS_STOPS_GRID_CELL + " = " + GRID_CELL_SQL +
+                            " WHERE " + BUS_STOPS_ID + " = ?", args);
+                }
+                
+                if(hasSearch) {
+                    db.execSQL("DELETE FROM " + SEARCH_TABLE +
+                            " WHERE docid = ?", args);
+                    db.execSQL("INSERT INTO " + SEARCH_TABLE + "(docid, " +
+                            SEARCH_NAMES + ", " + SEARCH_STOPCODE +
+                            ") SELECT " + BUS_STOPS_ID + ", " +
+                            BUS_STOPS_STOPNAME + " || ' ' || ifnull(" +
+                            BUS_STOPS_LOCALITY + ", ''), " +
+                            BUS_STOPS_STOPCODE + " FROM " + BUS_STOPS_TABLE +
+                            " WHERE " + BUS_STOPS_ID + " = ?", args);
+                }
+            }
+        }
+        
+        return true;
+    }
 
     /**
-     * Perform a search on the database. This looks at the stop code and stop
-     * name.
+     * Perform a search on the database. This looks at the stop name and
+     * locality, and also the stop code if the term is at least 7 characters
+     * long. Each word in the term is matched against the start of the words in
+     * the bus stop details. Results are ranked so that an exact stop code
+     * match comes first, followed by stops whose name starts with the term.
      * 
      * @param term The search term.
-     * @return A Cursor object as a result set.
-     */
-    public synchronized Cursor searchDatabase(String term) {
-        final boolean searchCodes = term != null && term.length() >= 7;
-        
-        String whereClause = BUS_STOPS_STOPNAME + " LIKE ? OR " +
-                    BUS_STOPS_LOCALITY + " LIKE ?";
-        term = '%' + term + '%';
-        final String[] whereArgs;
-        if (searchCodes) {
-            whereClause += " OR " + BUS_STOPS_STOPCODE + " LIKE ?";
-            whereArgs = new String[] { term, term, term };
-        } else {
-            whereArgs = new String[] { term, term };
-        }
+     * @return A Cursor object as a result set. The columns are _id, stopCode,
+     * stopName, x, y, orientation and locality.
+     */
+    public Cursor searchDatabase(final String term) {
+        if(term == null) return null;
+        
+        final boolean searchCodes = BusStopQueries.shouldSearchCodes(term);
+        final String match = hasSearchIndex ?
+                BusStopQueries.getSearchMatchExpression(term, searchCodes) :
+                null;
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
-            return db.query(BUS_STOPS_TABLE, null, whereClause, whereArgs,
-                    BUS_STOPS_STOPCODE, null, null);
+            
+            if(match == null) {
+                // There's no search index or nothing to match against in it,
+                // so fall back to scanning the table.
+                return db.rawQuery(BusStopQueries.getSearchLikeSql(searchCodes),
+                        BusStopQueries.getSearchLikeArgs(term, searchCodes));
+            }
+            
+            return db.rawQuery(BusStopQueries.getSearchSql(),
+                    BusStopQueries.getSearchArgs(match, term));
         } catch(SQLiteException e) {
             return null;
+        } finally {
+            readLock.unlock();
         }
     }
     
@@ -471,18 +1303,17 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @return A listing of all known bus services in the database, as a String
      * array.
      */
-    public synchronized String[] getBusServiceList() {
+    public String[] getBusServiceList() {
         String[] result;
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
+            // The services are sorted below rather than by the database, as
+            // SQLite cannot sort them in alphanum order.
             final Cursor c = db.query(true, SERVICE_TABLE,
                     new String[] { SERVICE_SERVICE_NAME },
-                    null, null, null, null,
-                    "CASE WHEN " + SERVICE_SERVICE_NAME +
-                    " GLOB '[^0-9.]*' THEN " + SERVICE_SERVICE_NAME +
-                    " ELSE cast(" + SERVICE_SERVICE_NAME + " AS int) END",
-                    null);
+                    null, null, null, null, null, null);
             final int count = c.getCount();
             if(count > 0) {
                 int i = 0;
@@ -498,8 +1329,12 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             result = new String[] { };
+        } finally {
+            readLock.unlock();
         }
         
+        AlphanumComparator.sort(result);
+        
         return result;
     }
     
@@ -511,9 +1346,10 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param stopCode The bus stop code to get the GeoPoint for.
      * @return A GeoPoint which specifies a latitude and longitude.
      */
-    public synchronized LatLng getLatLngForStopCode(final String stopCode) {
+    public LatLng getLatLngForStopCode(final String stopCode) {
         LatLng point = null;
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             final Cursor c = db.query(BUS_STOPS_TABLE,
@@ -528,6 +1364,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             
+        } finally {
+            readLock.unlock();
         }
         
         return point;
@@ -539,9 +1377,10 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param stopCode The bus stop code to get the locality for.
      * @return The locality of the given bus stop.
      */
-    public synchronized String getLocalityForStopCode(final String stopCode) {
+    public String getLocalityForStopCode(final String stopCode) {
         String result = null;
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             final Cursor c = db.query(BUS_STOPS_TABLE,
@@ -556,6 +1395,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             
+        } finally {
+            readLock.unlock();
         }
         
         return result;
@@ -567,8 +1408,9 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param stopCode The bus stop code to get the name for.
      * @return The name of the given bus stop.
      */
-    public synchronized String getNameForBusStop(final String stopCode) {
+    public String getNameForBusStop(final String stopCode) {
         String result = "";
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             final Cursor c = db.query(BUS_STOPS_TABLE,
@@ -583,6 +1425,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             c.close();
         } catch(SQLiteException e) {
             
+        } finally {
+            readLock.unlock();
         }
         
         return result;
@@ -596,12 +1440,13 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * mean that all services are returned.
      * @return A mapping of service names to colours.
      */
-    public synchronized HashMap<String, String> getServiceColours(
+    public HashMap<String, String> getServiceColours(
             final String[] serviceList) {
         // Create the HashMap now. We may need to return an empty version later
         // if there's an error.
         final HashMap<String, String> result = new HashMap<String, String>();
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             Cursor c;
@@ -642,6 +1487,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
             }
         } catch(SQLiteException e) {
             
+        } finally {
+            readLock.unlock();
         }
         
         return result;
@@ -654,13 +1501,14 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
      * @param serviceName The serviceName to get the route points for.
      * @return A Cursor containing the route points for the service.
      */
-    public synchronized Cursor getServicePointsForService(
+    public Cursor getServicePointsForService(
             final String serviceName) {
         if(serviceName == null || serviceName.length() == 0) {
             throw new IllegalArgumentException("The serviceName cannot be " +
                     "null or blank.");
         }
         
+        readLock.lock();
         try {
             final SQLiteDatabase db = getReadableDatabase();
             return db.rawQuery("SELECT " + SERVICE_POINT_CHAINAGE + ", " + 
@@ -674,6 +1522,8 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
                     new String[] { serviceName });
         } catch(SQLiteException e) {
             return null;
+        } finally {
+            readLock.unlock();
         }
     }
     
@@ -731,19 +1581,23 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
     private static class RestoreDBFromAssetsTask implements Runnable {
         
         private final BusStopDatabase bsd;
+        private final CountDownLatch latch;
         
         /**
          * Create a new task.
          * 
          * @param bsd A reference to the BusStopDatabase.
+         * @param latch The latch to count down once the task has finished.
          */
-        public RestoreDBFromAssetsTask(final BusStopDatabase bsd) {
+        public RestoreDBFromAssetsTask(final BusStopDatabase bsd,
+                final CountDownLatch latch) {
             if(bsd == null) {
                 throw new IllegalArgumentException("A reference to the " +
                         "BusStopDatabase must be provided.");
             }
             
             this.bsd = bsd;
+            this.latch = latch;
         }
 
         /**
@@ -751,7 +1605,112 @@ public final class BusStopDatabase extends SQLiteOpenHelper {
          */
         @Override
         public void run() {
-            bsd.restoreDBFromAssets();
+            try {
+                bsd.restoreDBFromAssets();
+            } finally {
+                // Whether it worked or not, don't keep readers waiting.
+                latch.countDown();
+            }
+        }
+    }
+    
+    /**
+     * This task adds any missing indexes to the database. It's run in its own
+     * thread.
+     */
+    private static class MigrateIndexesTask implements Runnable {
+        
+        private final BusStopDatabase bsd;
+        
+        /**
+         * Create a new task.
+         * 
+         * @param bsd A reference to the BusStopDatabase.
+         */
+        public MigrateIndexesTask(final BusStopDatabase bsd) {
+            this.bsd = bsd;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            bsd.migrateIndexes();
+        }
+    }
+    
+    /**
+     * A read lock which waits for the database to be ready before it is
+     * acquired. Waiting happens before the lock is taken so that a thread
+     * waiting for the database never holds up the thread putting it in place.
+     */
+    private class ReadyReadLock implements Lock {
+        
+        private final Lock lock;
+        
+        /**
+         * Create a new ReadyReadLock.
+         * 
+         * @param lock The underlying read lock.
+         */
+        public ReadyReadLock(final Lock lock) {
+            this.lock = lock;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void lock() {
+            awaitReady();
+            lock.lock();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            readyLatch.await();
+            lock.lockInterruptibly();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean tryLock() {
+            return isReady() && lock.tryLock();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean tryLock(final long time, final TimeUnit unit)
+                throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(time);
+            if(!awaitReady(time, unit)) return false;
+            
+            return lock.tryLock(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void unlock() {
+            lock.unlock();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Condition newCondition() {
+            return lock.newCondition();
         }
     }
 }
\ No newline at end of file
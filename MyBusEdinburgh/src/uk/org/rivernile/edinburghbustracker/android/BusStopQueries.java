@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+import java.util.Locale;
+
+/**
+ * BusStopQueries builds the SQL for the bus stop location and search queries
+ * run by BusStopDatabase. It has no Android dependencies, so the benchmarks
+ * can run exactly the same queries on a plain JVM.
+ * 
+ * The spatial grid splits the world in to cells of GRID_CELL_SIZE degrees.
+ * Each bus stop has the number of the cell it is in stored in the grid_cell
+ * column, which is indexed, so a box only needs to look at the rows in the
+ * cells that it covers.
+ * 
+ * @author Niall Scott
+ */
+final class BusStopQueries {
+    
+    static final String BUS_STOPS_TABLE = "bus_stops";
+    static final String BUS_STOPS_ID = "_id";
+    static final String BUS_STOPS_STOPCODE = "stopCode";
+    static final String BUS_STOPS_STOPNAME = "stopName";
+    static final String BUS_STOPS_X = "x";
+    static final String BUS_STOPS_Y = "y";
+    static final String BUS_STOPS_ORIENTATION = "orientation";
+    static final String BUS_STOPS_LOCALITY = "locality";
+    static final String BUS_STOPS_GRID_CELL = "grid_cell";
+    
+    /** The full text search table over the bus stop details. */
+    static final String SEARCH_TABLE = "bus_stops_search";
+    /** The stop name and locality, as a single column. */
+    static final String SEARCH_NAMES = "names";
+    static final String SEARCH_STOPCODE = "stopCode";
+    
+    /**
+     * The size, in degrees, of each side of a cell in the spatial grid. At
+     * Edinburgh's latitude, a cell is roughly 1.1km by 0.6km.
+     */
+    private static final double GRID_CELL_SIZE = 0.01;
+    /** The number of columns in the spatial grid, 360 / GRID_CELL_SIZE. */
+    private static final long GRID_COLUMNS = 36000;
+    /**
+     * When a box spans more rows of the spatial grid than this, the grid is not
+     * used to query it.
+     */
+    private static final int GRID_MAX_ROWS = 64;
+    /**
+     * SQL to calculate the grid cell of a row in the bus_stops table. This must
+     * match getGridRow() and getGridColumn().
+     */
+    static final String GRID_CELL_SQL =
+            "CAST((" + BUS_STOPS_X + " + 90) / " + GRID_CELL_SIZE +
+            " AS INTEGER) * " + GRID_COLUMNS + " + CAST((" + BUS_STOPS_Y +
+            " + 180) / " + GRID_CELL_SIZE + " AS INTEGER)";
+    
+    /** Limits the bus_stops table to a box. */
+    static final String COORDS_CLAUSE = '(' + BUS_STOPS_X +
+            " BETWEEN ? AND ?) AND (" + BUS_STOPS_Y + " BETWEEN ? AND ?)";
+    
+    /** The columns returned by the search queries. */
+    static final String[] SEARCH_COLUMNS = new String[] {
+        BUS_STOPS_ID,
+        BUS_STOPS_STOPCODE,
+        BUS_STOPS_STOPNAME,
+        BUS_STOPS_X,
+        BUS_STOPS_Y,
+        BUS_STOPS_ORIENTATION,
+        BUS_STOPS_LOCALITY
+    };
+    
+    private static final String STOPS_BY_COORDS_SQL = "SELECT " +
+            BUS_STOPS_STOPCODE + ", " + BUS_STOPS_STOPNAME + ", " +
+            BUS_STOPS_X + ", " + BUS_STOPS_Y + ", " + BUS_STOPS_ORIENTATION +
+            ", " + BUS_STOPS_LOCALITY + " FROM " + BUS_STOPS_TABLE +
+            " WHERE ";
+    private static final String SEARCH_SQL = buildSearchSql();
+    
+    /**
+     * This constructor has intentionally been left blank so that this class
+     * cannot be instantiated.
+     */
+    private BusStopQueries() {
+        
+    }
+    
+    /**
+     * Get the SQL to get the stops in a box. The arguments for it come from
+     * getCoordsArgs().
+     * 
+     * @param minX The minimum latitude of the box.
+     * @param minY The minimum longitude of the box.
+     * @param maxX The maximum latitude of the box.
+     * @param maxY The maximum longitude of the box.
+     * @param useGrid true if the database has the spatial grid index.
+     * @return The SQL. The columns are stopCode, stopName, x, y, orientation
+     * and locality.
+     */
+    static String getStopsByCoordsSql(final double minX, final double minY,
+            final double maxX, final double maxY, final boolean useGrid) {
+        return STOPS_BY_COORDS_SQL + (useGrid ?
+                getGridCellClause(minX, minY, maxX, maxY) : "") +
+                COORDS_CLAUSE;
+    }
+    
+    /**
+     * Get the arguments for COORDS_CLAUSE.
+     * 
+     * @param minX The minimum latitude of the box.
+     * @param minY The minimum longitude of the box.
+     * @param maxX The maximum latitude of the box.
+     * @param maxY The maximum longitude of the box.
+     * @return The arguments.
+     */
+    static String[] getCoordsArgs(final double minX, final double minY,
+            final double maxX, final double maxY) {
+        return new String[] {
+            String.valueOf(minX), String.valueOf(maxX),
+            String.valueOf(minY), String.valueOf(maxY)
+        };
+    }
+    
+    /**
+     * Get the row of the spatial grid that a latitude falls in.
+     * 
+     * @param latitude The latitude.
+     * @return The row of the spatial grid.
+     */
+    private static long getGridRow(final double latitude) {
+        return (long)((latitude + 90) / GRID_CELL_SIZE);
+    }
+    
+    /**
+     * Get the column of the spatial grid that a longitude falls in.
+     * 
+     * @param longitude The longitude.
+     * @return The column of the spatial grid.
+     */
+    private static long getGridColumn(final double longitude) {
+        return (long)((longitude + 180) / GRID_CELL_SIZE);
+    }
+    
+    /**
+     * Get a SQL clause which limits the bus_stops table to the cells of the
+     * spatial grid that a box covers. Each row of the grid is a contiguous
+     * range of cells, so this is one range per row. This must only be used
+     * when the database has the spatial grid index.
+     * 
+     * @param minX The minimum latitude of the box.
+     * @param minY The minimum longitude of the box.
+     * @param maxX The maximum latitude of the box.
+     * @param maxY The maximum longitude of the box.
+     * @return The SQL clause, including a trailing " AND ", or an empty String
+     * if the spatial index cannot be used for this box.
+     */
+    static String getGridCellClause(final double minX, final double minY,
+            final double maxX, final double maxY) {
+        if(minX > maxX || minY > maxY) return "";
+        
+        final long minRow = getGridRow(minX);
+        final long maxRow = getGridRow(maxX);
+        // The box is that big that the index wouldn't help much.
+        if(maxRow - minRow >= GRID_MAX_ROWS) return "";
+        
+        final long minColumn = getGridColumn(minY);
+        final long maxColumn = getGridColumn(maxY);
+        final StringBuilder sb = new StringBuilder();
+        sb.append('(');
+        
+        for(long row = minRow; row <= maxRow; row++) {
+            if(row != minRow) {
+                sb.append(" OR ");
+            }
+            
+            sb.append('(').append(BUS_STOPS_TABLE).append('.')
+                    .append(BUS_STOPS_GRID_CELL).append(" BETWEEN ")
+                    .append(row * GRID_COLUMNS + minColumn).append(" AND ")
+                    .append(row * GRID_COLUMNS + maxColumn).append(')');
+        }
+        
+        sb.append(") AND ");
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Should a search term be matched against stop codes as well as stop names
+     * and localities? This is only done when the term is as long as a stop
+     * code.
+     * 
+     * @param term The search term.
+     * @return true if stop codes should be matched.
+     */
+    static boolean shouldSearchCodes(final String term) {
+        return term.length() >= 7;
+    }
+    
+    /**
+     * Get the SQL to search the full text search index. The arguments for it
+     * come from getSearchArgs().
+     * 
+     * @return The SQL. The columns are SEARCH_COLUMNS.
+     */
+    static String getSearchSql() {
+        return SEARCH_SQL;
+    }
+    
+    /**
+     * Get the arguments for getSearchSql().
+     * 
+     * @param match The match expression, from getSearchMatchExpression().
+     * @param term The search term.
+     * @return The arguments.
+     */
+    static String[] getSearchArgs(final String match, final String term) {
+        final String trimmed = term.trim();
+        return new String[] { match, trimmed, trimmed + '%' };
+    }
+    
+    /**
+     * Get the SQL to search by scanning the bus_stops table, for databases
+     * without the full text search index. The arguments for it come from
+     * getSearchLikeArgs().
+     * 
+     * @param searchCodes true if stop codes should be matched.
+     * @return The SQL. The columns are SEARCH_COLUMNS.
+     */
+    static String getSearchLikeSql(final boolean searchCodes) {
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        for(int i = 0; i < SEARCH_COLUMNS.length; i++) {
+            if(i > 0) sb.append(", ");
+            sb.append(SEARCH_COLUMNS[i]);
+        }
+        
+        sb.append(" FROM ").append(BUS_STOPS_TABLE).append(" WHERE ")
+                .append(BUS_STOPS_STOPNAME).append(" LIKE ? OR ")
+                .append(BUS_STOPS_LOCALITY).append(" LIKE ?");
+        if(searchCodes) {
+            sb.append(" OR ").append(BUS_STOPS_STOPCODE).append(" LIKE ?");
+        }
+        
+        sb.append(" GROUP BY ").append(BUS_STOPS_STOPCODE);
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Get the arguments for getSearchLikeSql().
+     * 
+     * @param term The search term.
+     * @param searchCodes true if stop codes should be matched.
+     * @return The arguments.
+     */
+    static String[] getSearchLikeArgs(final String term,
+            final boolean searchCodes) {
+        final String likeTerm = '%' + term + '%';
+        return searchCodes ? new String[] { likeTerm, likeTerm, likeTerm } :
+                new String[] { likeTerm, likeTerm };
+    }
+    
+    /**
+     * Turn a search term typed by the user in to a full text search match
+     * expression. Each word becomes a prefix query, and all words must match.
+     * Any characters which have a special meaning in a match expression are
+     * treated as word separators.
+     * 
+     * @param term The search term.
+     * @param searchCodes true if stop codes should be matched, false if only
+     * the names and localities should be matched.
+     * @return The match expression, or null if the term contains no words.
+     */
+    static String getSearchMatchExpression(final String term,
+            final boolean searchCodes) {
+        final StringBuilder sb = new StringBuilder();
+        final int len = term.length();
+        int start = -1;
+        
+        for(int i = 0; i <= len; i++) {
+            final boolean isWordChar = i < len &&
+                    (Character.isLetterOrDigit(term.charAt(i)) ||
+                    term.charAt(i) > 127);
+            if(isWordChar) {
+                if(start < 0) start = i;
+            } else if(start >= 0) {
+                if(sb.length() > 0) sb.append(' ');
+                if(!searchCodes) sb.append(SEARCH_NAMES).append(':');
+                // Lowercase so that words such as OR are not seen as
+                // operators.
+                sb.append(term.substring(start, i).toLowerCase(Locale.UK))
+                        .append('*');
+                start = -1;
+            }
+        }
+        
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+    
+    /**
+     * Build the SQL to search the full text search index. An exact stop code
+     * match comes first, followed by stops whose name starts with the term.
+     * 
+     * @return The SQL.
+     */
+    private static String buildSearchSql() {
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        for(int i = 0; i < SEARCH_COLUMNS.length; i++) {
+            if(i > 0) sb.append(", ");
+            sb.append("b.").append(SEARCH_COLUMNS[i]);
+        }
+        
+        sb.append(" FROM ").append(SEARCH_TABLE).append(" f JOIN ")
+                .append(BUS_STOPS_TABLE).append(" b ON b.")
+                .append(BUS_STOPS_ID).append(" = f.docid WHERE ")
+                .append(SEARCH_TABLE).append(" MATCH ? GROUP BY b.")
+                .append(BUS_STOPS_STOPCODE).append(" ORDER BY (b.")
+                .append(BUS_STOPS_STOPCODE).append(" = ?) DESC, (b.")
+                .append(BUS_STOPS_STOPNAME).append(" LIKE ?) DESC, b.")
+                .append(BUS_STOPS_STOPNAME);
+        
+        return sb.toString();
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+import android.content.ContentValues;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A DatabaseChangeset describes the row level changes needed to take the bus
+ * stop database from one topology ID to the next. It is applied with
+ * BusStopDatabase.applyChangeset(). The changeset is sent by the server as
+ * JSON in the following format;
+ * 
+ * <pre>
+ * {
+ *   "schema": "MBE_10",
+ *   "from_topo_id": "...",
+ *   "to_topo_id": "...",
+ *   "update_ts": 1401815699757,
+ *   "tables": [
+ *     {
+ *       "name": "bus_stops",
+ *       "delete": [ 12, 13 ],
+ *       "upsert": [ { "_id": 14, "stopCode": "36232845", ... } ]
+ *     }
+ *   ]
+ * }
+ * </pre>
+ * 
+ * Rows are identified by their _id. Upserted rows must include their _id.
+ * Any existing rows with the same _id are deleted and the upserted row is
+ * inserted in their place, so it must contain every column that should have
+ * a value.
+ * Tables are applied in the order they are given.
+ * 
+ * @author Niall Scott
+ */
+public final class DatabaseChangeset {
+    
+    private final String schema;
+    private final String fromTopoId;
+    private final String toTopoId;
+    private final long updateTime;
+    private final List<TableChanges> tables;
+    
+    /**
+     * Create a new DatabaseChangeset.
+     * 
+     * @param schema The database schema the changeset applies to.
+     * @param fromTopoId The topology ID the changeset applies to.
+     * @param toTopoId The topology ID after the changeset has been applied.
+     * @param updateTime The database update time after the changeset has been
+     * applied.
+     * @param tables The changes to each table.
+     */
+    private DatabaseChangeset(final String schema, final String fromTopoId,
+            final String toTopoId, final long updateTime,
+            final List<TableChanges> tables) {
+        this.schema = schema;
+        this.fromTopoId = fromTopoId;
+        this.toTopoId = toTopoId;
+        this.updateTime = updateTime;
+        this.tables = tables;
+    }
+    
+    /**
+     * Parse a changeset from its JSON representation.
+     * 
+     * @param json The JSON String.
+     * @return The parsed DatabaseChangeset.
+     * @throws JSONException If the JSON is malformed or a required field is
+     * missing.
+     */
+    public static DatabaseChangeset fromJSON(final String json)
+            throws JSONException {
+        final JSONObject jo = new JSONObject(json);
+        final String fromTopoId = jo.getString("from_topo_id");
+        final String toTopoId = jo.getString("to_topo_id");
+        
+        if(fromTopoId.length() == 0 || toTopoId.length() == 0) {
+            throw new JSONException("The topology IDs must not be empty.");
+        }
+        
+        final JSONArray jTables = jo.getJSONArray("tables");
+        final int len = jTables.length();
+        final ArrayList<TableChanges> tables =
+                new ArrayList<TableChanges>(len);
+        for(int i = 0; i < len; i++) {
+            tables.add(parseTableChanges(jTables.getJSONObject(i)));
+        }
+        
+        return new DatabaseChangeset(jo.getString("schema"), fromTopoId,
+                toTopoId, jo.getLong("update_ts"),
+                Collections.unmodifiableList(tables));
+    }
+    
+    /**
+     * Parse the changes for a single table.
+     * 
+     * @param jo The JSON object describing the table changes.
+     * @return The parsed TableChanges.
+     * @throws JSONException If the JSON is malformed.
+     */
+    private static TableChanges parseTableChanges(final JSONObject jo)
+            throws JSONException {
+        final String name = jo.getString("name");
+        
+        final JSONArray jDeletes = jo.optJSONArray("delete");
+        final long[] deletes;
+        if(jDeletes != null) {
+            final int len = jDeletes.length();
+            deletes = new long[len];
+            for(int i = 0; i < len; i++) {
+                deletes[i] = jDeletes.getLong(i);
+            }
+        } else {
+            deletes = new long[0];
+        }
+        
+        final JSONArray jUpserts = jo.optJSONArray("upsert");
+        final ArrayList<ContentValues> upserts = new ArrayList<ContentValues>();
+        if(jUpserts != null) {
+            final int len = jUpserts.length();
+            for(int i = 0; i < len; i++) {
+                upserts.add(parseRow(jUpserts.getJSONObject(i)));
+            }
+        }
+        
+        return new TableChanges(name, deletes,
+                Collections.unmodifiableList(upserts));
+    }
+    
+    /**
+     * Parse a single row in to a ContentValues object.
+     * 
+     * @param jo The JSON object describing the row.
+     * @return The row as ContentValues.
+     * @throws JSONException If the row does not have an _id, or contains a
+     * value which is not a String, number, boolean or null.
+     */
+    private static ContentValues parseRow(final JSONObject jo)
+            throws JSONException {
+        if(!jo.has("_id")) {
+            throw new JSONException("Every upserted row must have an _id.");
+        }
+        
+        final ContentValues values = new ContentValues();
+        final Iterator<?> keys = jo.keys();
+        while(keys.hasNext()) {
+            final String key = (String)keys.next();
+            final Object value = jo.get(key);
+            
+            if(value == JSONObject.NULL) {
+                values.putNull(key);
+            } else if(value instanceof String) {
+                values.put(key, (String)value);
+            } else if(value instanceof Integer || value instanceof Long) {
+                values.put(key, ((Number)value).longValue());
+            } else if(value instanceof Number) {
+                values.put(key, ((Number)value).doubleValue());
+            } else if(value instanceof Boolean) {
+                values.put(key, ((Boolean)value) ? 1 : 0);
+            } else {
+                throw new JSONException("Unsupported value for " + key);
+            }
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Get the database schema this changeset applies to.
+     * 
+     * @return The database schema name.
+     */
+    public String getSchema() {
+        return schema;
+    }
+    
+    /**
+     * Get the topology ID this changeset must be applied to.
+     * 
+     * @return The topology ID this changeset must be applied to.
+     */
+    public String getFromTopoId() {
+        return fromTopoId;
+    }
+    
+    /**
+     * Get the topology ID the database will have once this changeset has been
+     * applied.
+     * 
+     * @return The new topology ID.
+     */
+    public String getToTopoId() {
+        return toTopoId;
+    }
+    
+    /**
+     * Get the database update time once this changeset has been applied.
+     * 
+     * @return The new database update time.
+     */
+    public long getUpdateTime() {
+        return updateTime;
+    }
+    
+    /**
+     * Get the changes to each table, in the order they should be applied.
+     * 
+     * @return An unmodifiable List of table changes.
+     */
+    public List<TableChanges> getTables() {
+        return tables;
+    }
+    
+    /**
+     * The changes to be made to a single table.
+     */
+    public static final class TableChanges {
+        
+        private final String name;
+        private final long[] deletes;
+        private final List<ContentValues> upserts;
+        
+        /**
+         * Create a new TableChanges.
+         * 
+         * @param name The name of the table.
+         * @param deletes The _ids of the rows to delete.
+         * @param upserts The rows to insert or replace.
+         */
+        private TableChanges(final String name, final long[] deletes,
+                final List<ContentValues> upserts) {
+            this.name = name;
+            this.deletes = deletes;
+            this.upserts = upserts;
+        }
+        
+        /**
+         * Get the name of the table.
+         * 
+         * @return The name of the table.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Get the number of rows to delete.
+         * 
+         * @return The number of rows to delete.
+         */
+        public int getDeleteCount() {
+            return deletes.length;
+        }
+        
+        /**
+         * Get the _id of a row to delete.
+         * 
+         * @param index The index of the delete.
+         * @return The _id of the row to delete.
+         */
+        public long getDelete(final int index) {
+            return deletes[index];
+        }
+        
+        /**
+         * Get the rows to insert or replace.
+         * 
+         * @return An unmodifiable List of rows.
+         */
+        public List<ContentValues> getUpserts() {
+            return upserts;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.PowerManager;
+import java.io.File;
+
+/**
+ * The DatabaseUpdateService does the background maintenance of the bus stop
+ * database: it deletes database files left behind by older versions of the
+ * app and checks for database updates.
+ * 
+ * It is not run when the process starts. Instead, schedule() sets an alarm for
+ * the next time it is due. The alarm does not wake the device. When it runs,
+ * it only checks for updates when the network is unmetered or the device is
+ * idle (the screen is off). Otherwise it tries again later. If the check
+ * fails, the time until the next attempt doubles each time up to a maximum.
+ * The outcome of the last run is recorded in the SharedPreferences.
+ * 
+ * As this is an IntentService, it runs in a separate thread and does not block
+ * the UI thread.
+ * 
+ * @author Niall Scott
+ */
+public class DatabaseUpdateService extends IntentService {
+    
+    /** The SharedPreferences key for the time the service last ran. */
+    public static final String PREF_LAST_RUN = "dbUpdateLastRun";
+    /** The SharedPreferences key for the outcome of the last run. */
+    public static final String PREF_LAST_RESULT = "dbUpdateLastResult";
+    /** The SharedPreferences key for the number of failures in a row. */
+    public static final String PREF_FAILURES = "dbUpdateFailures";
+    /** The SharedPreferences key for the time the service will next run. */
+    public static final String PREF_NEXT_RUN = "dbUpdateNextRun";
+    
+    /** The update check finished. */
+    public static final int RESULT_SUCCESS = 1;
+    /** The update check failed and will be retried. */
+    public static final int RESULT_FAILED = 2;
+    /** The network was metered and the device was in use, so the check was
+     * put off. */
+    public static final int RESULT_DEFERRED = 3;
+    
+    private static final long INITIAL_DELAY = 60000;
+    private static final long CHECK_INTERVAL = 86400000;
+    private static final long DEFERRED_DELAY = 3600000;
+    private static final long RETRY_DELAY = 900000;
+    private static final int MAX_BACKOFF_SHIFT = 6;
+    
+    private static final String[] LEGACY_DATABASES = {
+        "busstops.db", "busstops2.db", "busstops8.db"
+    };
+    
+    /**
+     * Create a new instance of the DatabaseUpdateService. This simply calls
+     * its super constructor.
+     */
+    public DatabaseUpdateService() {
+        super(DatabaseUpdateService.class.getSimpleName());
+    }
+    
+    /**
+     * Schedule the service once the main thread has nothing left to do, which
+     * is after the first Activity has been drawn. This must be called on the
+     * main thread.
+     * 
+     * @param context The context.
+     */
+    public static void scheduleWhenIdle(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                schedule(appContext);
+                
+                // Only run once.
+                return false;
+            }
+        });
+    }
+    
+    /**
+     * Schedule the service to run when it is next due. If it is overdue, or
+     * has never been scheduled, it is run shortly.
+     * 
+     * @param context The context.
+     */
+    public static void schedule(final Context context) {
+        final SharedPreferences sp = context.getSharedPreferences(
+                PreferencesActivity.PREF_FILE, 0);
+        final long now = System.currentTimeMillis();
+        final long nextRun = sp.getLong(PREF_NEXT_RUN, 0);
+        
+        setAlarm(context, Math.max(nextRun, now + INITIAL_DELAY));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onHandleIntent(final Intent intent) {
+        deleteLegacyDatabases();
+        
+        final SharedPreferences sp = getSharedPreferences(
+                PreferencesActivity.PREF_FILE, 0);
+        int failures = sp.getInt(PREF_FAILURES, 0);
+        final int result;
+        final long delay;
+        
+        if(!canRunNow()) {
+            result = RESULT_DEFERRED;
+            delay = DEFERRED_DELAY;
+        } else if(Application.checkForDBUpdates(this, false)) {
+            result = RESULT_SUCCESS;
+            failures = 0;
+            delay = CHECK_INTERVAL;
+        } else {
+            result = RESULT_FAILED;
+            failures++;
+            // Back off exponentially: 15 minutes, 30 minutes, 1 hour... up to
+            // a maximum of 16 hours.
+            delay = RETRY_DELAY <<
+                    Math.min(failures - 1, MAX_BACKOFF_SHIFT);
+        }
+        
+        final long now = System.currentTimeMillis();
+        final long nextRun = now + delay;
+        sp.edit().putLong(PREF_LAST_RUN, now)
+                .putInt(PREF_LAST_RESULT, result)
+                .putInt(PREF_FAILURES, failures)
+                .putLong(PREF_NEXT_RUN, nextRun)
+                .commit();
+        
+        setAlarm(this, nextRun);
+    }
+    
+    /**
+     * Check if the conditions are right to check for updates. There must be a
+     * network connection, and it must either be unmetered or the device must
+     * not be in use.
+     * 
+     * @return true if the update check can go ahead, false if not.
+     */
+    private boolean canRunNow() {
+        final ConnectivityManager connMan = (ConnectivityManager)
+                getSystemService(CONNECTIVITY_SERVICE);
+        final NetworkInfo info = connMan.getActiveNetworkInfo();
+        if(info == null || !info.isConnected()) return false;
+        
+        if(!isMetered(connMan, info)) return true;
+        
+        final PowerManager powerMan = (PowerManager)
+                getSystemService(POWER_SERVICE);
+        return !powerMan.isScreenOn();
+    }
+    
+    /**
+     * Check if the active network is metered.
+     * 
+     * @param connMan The ConnectivityManager.
+     * @param info The active network.
+     * @return true if the network is metered, false if not.
+     */
+    private static boolean isMetered(final ConnectivityManager connMan,
+            final NetworkInfo info) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return connMan.isActiveNetworkMetered();
+        }
+        
+        final int type = info.getType();
+        return type != ConnectivityManager.TYPE_WIFI &&
+                type != ConnectivityManager.TYPE_ETHERNET;
+    }
+    
+    /**
+     * Delete the database files from older versions of the app if they exist.
+     */
+    private void deleteLegacyDatabases() {
+        File toDelete;
+        for(String name : LEGACY_DATABASES) {
+            toDelete = getDatabasePath(name);
+            if(toDelete.exists()) toDelete.delete();
+            
+            toDelete = getDatabasePath(name + "-journal");
+            if(toDelete.exists()) toDelete.delete();
+        }
+    }
+    
+    /**
+     * Set the alarm which starts the service. Any previous alarm is replaced.
+     * The alarm does not wake the device up.
+     * 
+     * @param context The context.
+     * @param time The wall clock time to run at.
+     */
+    private static void setAlarm(final Context context, final long time) {
+        final Intent intent = new Intent(context, DatabaseUpdateService.class);
+        final PendingIntent pi = PendingIntent.getService(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        final AlarmManager alarmMan = (AlarmManager)
+                context.getSystemService(ALARM_SERVICE);
+        alarmMan.set(AlarmManager.RTC, time, pi);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+/**
+ * This class holds the base URLs of the web services the application talks
+ * to. By default these are the live services, but they can be pointed
+ * somewhere else, such as a local replay server, to profile the application
+ * without depending on the live services.
+ * 
+ * On debuggable builds, Application reads overrides from the
+ * PREF_BUS_TRACKER_URL and PREF_API_URL preferences in PREF_FILE when it is
+ * created.
+ * 
+ * @author Niall Scott
+ */
+public final class Endpoints {
+    
+    /** The base URL of the bus tracker web service. */
+    public static final String DEFAULT_BUS_TRACKER_URL =
+            "http://www.mybustracker.co.uk/";
+    /** The base URL of the application's own API. */
+    public static final String DEFAULT_API_URL = "http://edinb.us/api/";
+    
+    /**
+     * The preferences file the overrides are held in. This is kept apart from
+     * the user's preferences so that it is not backed up, otherwise a restore
+     * could point another device at a server that only existed on a
+     * developer's machine.
+     */
+    public static final String PREF_FILE = "endpoints";
+    /** The preference which overrides the bus tracker base URL. */
+    public static final String PREF_BUS_TRACKER_URL = "debugBusTrackerUrl";
+    /** The preference which overrides the application API base URL. */
+    public static final String PREF_API_URL = "debugApiUrl";
+    
+    private static volatile String busTrackerUrl = DEFAULT_BUS_TRACKER_URL;
+    private static volatile String apiUrl = DEFAULT_API_URL;
+    
+    /**
+     * This class is not to be instantiated.
+     */
+    private Endpoints() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Get the base URL of the bus tracker web service. It always ends with a
+     * '/'.
+     * 
+     * @return The base URL of the bus tracker web service.
+     */
+    public static String getBusTrackerUrl() {
+        return busTrackerUrl;
+    }
+    
+    /**
+     * Get the base URL of the application's own API. It always ends with a
+     * '/'.
+     * 
+     * @return The base URL of the application's own API.
+     */
+    public static String getApiUrl() {
+        return apiUrl;
+    }
+    
+    /**
+     * Set the base URLs of the web services. Requests which have already been
+     * started are not affected.
+     * 
+     * @param busTracker The base URL of the bus tracker web service, or null
+     * or an empty String to use DEFAULT_BUS_TRACKER_URL.
+     * @param api The base URL of the application's own API, or null or an
+     * empty String to use DEFAULT_API_URL.
+     */
+    public static void setBaseUrls(final String busTracker,
+            final String api) {
+        busTrackerUrl = normalise(busTracker, DEFAULT_BUS_TRACKER_URL);
+        apiUrl = normalise(api, DEFAULT_API_URL);
+    }
+    
+    /**
+     * Make sure a base URL ends with a '/', or use the default if it is not
+     * set.
+     * 
+     * @param url The base URL. May be null.
+     * @param defaultUrl The URL to use if url is null or empty.
+     * @return The base URL to use.
+     */
+    private static String normalise(final String url,
+            final String defaultUrl) {
+        if(url == null) return defaultUrl;
+        
+        final String trimmed = url.trim();
+        if(trimmed.length() == 0) {
+            return defaultUrl;
+        } else if(trimmed.charAt(trimmed.length() - 1) != '/') {
+            return trimmed + '/';
+        }
+        
+        return trimmed;
+    }
+}
@@ -139,4 +139,12 @@ public class MainActivity extends ActionBarActivity
         new OpenSourceLicenseDialogFragment()
                 .show(getSupportFragmentManager(), DIALOG_LICENCE);
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onShowDiagnostics() {
+        startActivity(new Intent(this, DiagnosticsActivity.class));
+    }
 }
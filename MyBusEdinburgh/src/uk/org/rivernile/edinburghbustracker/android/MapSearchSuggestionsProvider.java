@@ -38,7 +38,10 @@ import android.os.Build;
 import android.provider.BaseColumns;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import uk.org.rivernile.android.utils.Metrics;
 
 /**
  * This ContentProvider extends the SearchRecentSuggestionsProvider and quite
@@ -61,6 +64,8 @@ public class MapSearchSuggestionsProvider extends
     private static final String[] COLUMNS;
     private static final boolean SUPPORTS_ICON =
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    private static final String SECTION_QUERY =
+            "MapSearchSuggestionsProvider.query";
     
     private LocationManager locMan;
     
@@ -112,6 +117,32 @@ public class MapSearchSuggestionsProvider extends
     public Cursor query(final Uri uri, final String[] projection,
             final String selection, final String[] selectionArgs,
             final String sortOrder) {
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_QUERY);
+        
+        try {
+            return querySuggestions(uri, projection, selection, selectionArgs,
+                    sortOrder);
+        } finally {
+            metrics.endSection(SECTION_QUERY, start);
+        }
+    }
+    
+    /**
+     * Get the suggestions for a search. These are the recent search terms,
+     * followed by the bus stops which match the search term, sorted by
+     * distance from the last known location.
+     * 
+     * @param uri See query().
+     * @param projection See query().
+     * @param selection See query().
+     * @param selectionArgs See query(). The first item is the search term.
+     * @param sortOrder See query().
+     * @return A Cursor of the suggestions.
+     */
+    private Cursor querySuggestions(final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs,
+            final String sortOrder) {
         // Get the recent search terms first, then merge later.
         final Cursor recentCursor = super.query(uri, projection, selection,
                 selectionArgs, sortOrder);
@@ -137,8 +168,11 @@ public class MapSearchSuggestionsProvider extends
         SearchResult result;
         String locality;
         
-        // Synchronize so that requests aren't made during database updates.
-        synchronized(bsd) {
+        // Hold the read lock so that the database isn't replaced while it's
+        // being read.
+        final Lock readLock = bsd.getReadLock();
+        readLock.lock();
+        try {
             final Cursor c = bsd.searchDatabase(query);
             if(c != null) {
                 while(c.moveToNext()) {
@@ -150,8 +184,6 @@ public class MapSearchSuggestionsProvider extends
                     result.longitude = c.getDouble(4);
                     result.orientation = c.getInt(5);
                     locality = c.getString(6);
-                    result.services = bsd.getBusServicesForStopAsString(
-                            result.stopCode);
                     if(location != null) {
                         // If the location is known, get the distance to the bus
                         // stop.
@@ -173,6 +205,22 @@ public class MapSearchSuggestionsProvider extends
                 
                 c.close();
             }
+            
+            // Get the services for all of the results in one go, rather than
+            // querying the database for each result.
+            final int size = results.size();
+            final String[] stopCodes = new String[size];
+            for(int i = 0; i < size; i++) {
+                stopCodes[i] = results.get(i).stopCode;
+            }
+            
+            final HashMap<String, String> services =
+                    bsd.getBusServicesForStopsAsString(stopCodes);
+            for(SearchResult r : results) {
+                r.services = services.get(r.stopCode);
+            }
+        } finally {
+            readLock.unlock();
         }
         
         // Sort the list by distance ascending.
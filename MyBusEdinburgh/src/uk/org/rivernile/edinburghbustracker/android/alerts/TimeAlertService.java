@@ -36,14 +36,16 @@ import android.support.v4.app.NotificationCompat;
 import java.util.HashMap;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusParser;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusParserException;
-import uk.org.rivernile.android.bustracker.parser.livetimes.BusService;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusStop;
 import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
 import uk.org.rivernile.edinburghbustracker.android.DisplayStopDataActivity;
 import uk.org.rivernile.edinburghbustracker.android.PreferencesActivity;
 import uk.org.rivernile.edinburghbustracker.android.R;
 import uk.org.rivernile.edinburghbustracker.android.SettingsDatabase;
-import uk.org.rivernile.edinburghbustracker.android.livetimes.parser.EdinburghBus;
+import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
+        .DeparturesSnapshot;
+import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
+        .EdinburghBusStop;
 import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
         .EdinburghParser;
 
@@ -110,7 +112,7 @@ public class TimeAlertService extends IntentService {
         final String stopCode = intent.getStringExtra(ARG_STOPCODE);
         final String[] services = intent.getStringArrayExtra(ARG_SERVICES);
         final int timeTrigger = intent.getIntExtra(ARG_TIME_TRIGGER, 5);
-        final BusParser parser = new EdinburghParser();
+        final BusParser parser = EdinburghParser.getCachingInstance();
         
         HashMap<String, BusStop> result;
         try {
@@ -124,24 +126,24 @@ public class TimeAlertService extends IntentService {
         
         // Get the bus stop we are interested in. It should be the only one in
         // the HashMap anyway.
-        final BusStop busStop = result.get(stopCode);
+        final DeparturesSnapshot departures =
+                ((EdinburghBusStop)result.get(stopCode)).getDepartures();
+        final int serviceCount = departures.getServiceCount();
         int time;
-        EdinburghBus edinBs;
         
         // Loop through all the bus services at this stop.
-        for(BusService bs : busStop.getBusServices()) {
+        for(int i = 0; i < serviceCount; i++) {
             // We are only interested in the next departure. Also get the time.
-            edinBs = (EdinburghBus)bs.getFirstBus();
-            if (edinBs == null) {
+            time = departures.getNextArrivalMinutes(i);
+            if(time < 0) {
                 continue;
             }
             
-            time = edinBs.getArrivalMinutes();
-            
             // Loop through all of the services we are interested in.
             for(String service : services) {
                 // The service matches and meets the time criteria.
-                if(service.equals(bs.getServiceName()) && time <= timeTrigger) {
+                if(service.equals(departures.getServiceName(i)) &&
+                        time <= timeTrigger) {
                     // The alert may have been cancelled by the user recently,
                     // check it's still active to stay relevant. Cancel the
                     // alert if we're continuing.
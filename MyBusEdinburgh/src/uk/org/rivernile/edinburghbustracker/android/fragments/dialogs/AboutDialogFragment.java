@@ -38,6 +38,7 @@ import android.support.v4.app.DialogFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.Button;
 import android.widget.TextView;
 import java.lang.reflect.Constructor;
@@ -99,6 +100,16 @@ public class AboutDialogFragment extends DialogFragment {
             // This should never occur.
             temp.setText("Unknown");
         }
+        
+        // The diagnostics screen is hidden behind a long press on the
+        // version.
+        temp.setOnLongClickListener(new OnLongClickListener() {
+            @Override
+            public boolean onLongClick(final View v) {
+                callbacks.onShowDiagnostics();
+                return true;
+            }
+        });
 
         final TextView txtDBVersion = (TextView)layout.findViewById(R.id
                 .aboutDBVersion);
@@ -196,5 +207,10 @@ public class AboutDialogFragment extends DialogFragment {
          * This is called when the user wants to see the open source licences.
          */
         public void onShowLicences();
+        
+        /**
+         * This is called when the user wants to see the diagnostics screen.
+         */
+        public void onShowDiagnostics();
     }
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ import android.app.SearchManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.SearchRecentSuggestions;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
@@ -51,12 +52,14 @@ import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.Polyline;
-import com.google.android.gms.maps.model.PolylineOptions;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import uk.org.rivernile.edinburghbustracker.android.BusStopCatalogue;
 import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
 import uk.org.rivernile.edinburghbustracker.android
         .MapSearchSuggestionsProvider;
@@ -69,9 +72,14 @@ import uk.org.rivernile.edinburghbustracker.android.fragments.dialogs
 import uk.org.rivernile.edinburghbustracker.android.fragments.dialogs
         .ServicesChooserDialogFragment;
 import uk.org.rivernile.edinburghbustracker.android.maps.BusStopMarkerLoader;
+import uk.org.rivernile.edinburghbustracker.android.maps.BusStopTileLoader;
 import uk.org.rivernile.edinburghbustracker.android.maps.GeoSearchLoader;
 import uk.org.rivernile.edinburghbustracker.android.maps.MapInfoWindow;
+import uk.org.rivernile.edinburghbustracker.android.maps.RouteGeometry;
 import uk.org.rivernile.edinburghbustracker.android.maps.RouteLineLoader;
+import uk.org.rivernile.edinburghbustracker.android.maps
+        .StopOverlayTileProvider;
+import uk.org.rivernile.edinburghbustracker.android.maps.StopTileCache;
 
 /**
  * The BusStopMapFragment shows a Google Maps v2 MapView and depending on the
@@ -127,10 +135,15 @@ public class BusStopMapFragment extends SupportMapFragment
     private static final String LOADER_ARG_FILTERED_SERVICES =
             "filteredServices";
     private static final String LOADER_ARG_QUERY = "query";
+    private static final String LOADER_ARG_TILES = "tiles";
     
     private static final int LOADER_ID_BUS_STOPS = 0;
     private static final int LOADER_ID_GEO_SEARCH = 1;
     private static final int LOADER_ID_ROUTE_LINES = 2;
+    private static final int LOADER_ID_BUS_STOP_TILES = 3;
+    
+    /** How long the camera must be still before the stops are refreshed. */
+    private static final long CAMERA_SETTLE_DELAY = 150;
     
     private Callbacks callbacks;
     private BusStopDatabase bsd;
@@ -140,8 +153,16 @@ public class BusStopMapFragment extends SupportMapFragment
     
     private final HashMap<String, Marker> busStopMarkers =
             new HashMap<String, Marker>();
+    private final HashSet<Marker> clusterMarkers = new HashSet<Marker>();
+    private final StopTileCache stopTileCache = new StopTileCache();
+    private final Handler handler = new Handler();
     private final HashMap<String, LinkedList<Polyline>> routeLines =
             new HashMap<String, LinkedList<Polyline>>();
+    private final HashMap<String, RouteGeometry> routeGeometries =
+            new HashMap<String, RouteGeometry>();
+    private int routeLineLevel = -1;
+    private TileOverlay stopOverlay;
+    private int stopOverlayGeneration;
     private HashSet<Marker> geoSearchMarkers = new HashSet<Marker>();
     private String searchedBusStop = null;
     private String[] services;
@@ -278,6 +299,7 @@ public class BusStopMapFragment extends SupportMapFragment
                 map.setPadding(0, actionBarHeight, 0, 0);
                 moveCameraToInitialLocation();
                 
+                addStopOverlay();
                 refreshBusStops(null);
                 
                 // Check to see if a search is to be done.
@@ -314,6 +336,8 @@ public class BusStopMapFragment extends SupportMapFragment
     public void onPause() {
         super.onPause();
         
+        handler.removeCallbacks(refreshBusStopsTask);
+        
         if(map != null) {
             // Save the camera location to SharedPreferences, so the user is
             // shown this location when they load the map again.
@@ -412,8 +436,12 @@ public class BusStopMapFragment extends SupportMapFragment
      */
     @Override
     public void onCameraChange(final CameraPosition position) {
-        // If the camera has changed, force a refresh of the bus stop markers.
-        refreshBusStops(position);
+        // If the camera has changed, refresh the bus stop markers once it has
+        // settled. Camera changes often come in quick succession.
+        handler.removeCallbacks(refreshBusStopsTask);
+        handler.postDelayed(refreshBusStopsTask, CAMERA_SETTLE_DELAY);
+        // The route lines may need a different level of detail.
+        updateRouteLineDetail(position.zoom);
     }
     
     /**
@@ -421,16 +449,19 @@ public class BusStopMapFragment extends SupportMapFragment
      */
     @Override
     public boolean onMarkerClick(final Marker marker) {
-        final String snippet = marker.getSnippet();
+        if(clusterMarkers.contains(marker)) {
+            // Zoom in on the cluster so that its stops can be seen.
+            final float zoom = Math.min(map.getCameraPosition().zoom + 2,
+                    BusStopMarkerLoader.CLUSTER_ZOOM_LEVEL);
+            map.animateCamera(CameraUpdateFactory.newLatLngZoom(
+                    marker.getPosition(), zoom));
+            
+            return true;
+        }
         
-        if(busStopMarkers.containsValue(marker) &&
-                (snippet == null || snippet.length() == 0)) {
-            final Matcher matcher = STOP_CODE_PATTERN
-                    .matcher(marker.getTitle());
-            if(matcher.find()) {
-                final String stopCode = matcher.group(1);
-                marker.setSnippet(bsd.getBusServicesForStopAsString(stopCode));
-            }
+        // The info window is about to be shown, so fill in the details.
+        if(busStopMarkers.containsValue(marker)) {
+            populateStopMarker(marker);
         }
         
         return false;
@@ -441,7 +472,8 @@ public class BusStopMapFragment extends SupportMapFragment
      */
     @Override
     public void onInfoWindowClick(final Marker marker) {
-        if(busStopMarkers.containsValue(marker)) {
+        if(busStopMarkers.containsValue(marker) &&
+                !clusterMarkers.contains(marker)) {
             final Matcher matcher = STOP_CODE_PATTERN.matcher(
                     marker.getTitle());
             if(matcher.find()) {
@@ -488,6 +520,10 @@ public class BusStopMapFragment extends SupportMapFragment
             case LOADER_ID_ROUTE_LINES:
                 return new RouteLineLoader(getActivity(),
                         bundle.getStringArray(LOADER_ARG_FILTERED_SERVICES));
+            case LOADER_ID_BUS_STOP_TILES:
+                return new BusStopTileLoader(getActivity(),
+                        bundle.getLongArray(LOADER_ARG_TILES),
+                        bundle.getStringArray(LOADER_ARG_FILTERED_SERVICES));
             default:
                 return null;
         }
@@ -507,8 +543,12 @@ public class BusStopMapFragment extends SupportMapFragment
                     addGeoSearchResults((HashSet<MarkerOptions>)d);
                     break;
                 case LOADER_ID_ROUTE_LINES:
-                    addRouteLines((HashMap<String,
-                            LinkedList<PolylineOptions>>)d);
+                    addRouteLines((HashMap<String, RouteGeometry>)d);
+                    break;
+                case LOADER_ID_BUS_STOP_TILES:
+                    addBusStopTiles((HashMap<Long,
+                            HashMap<String, MarkerOptions>>)d,
+                            ((BusStopTileLoader)loader).getGeneration());
                     break;
                 default:
                     break;
@@ -532,7 +572,10 @@ public class BusStopMapFragment extends SupportMapFragment
         this.chosenServices = chosenServices;
         
         // If the user has chosen services in the services filter, force a
-        // refresh of the marker icons.
+        // refresh of the marker icons. The loaded tiles were for the old
+        // filter.
+        stopTileCache.clear();
+        addStopOverlay();
         refreshBusStops(null);
         
         final LinkedList<String> tempList = new LinkedList<String>();
@@ -561,6 +604,7 @@ public class BusStopMapFragment extends SupportMapFragment
         for(String toRemove : tempList) {
             polyLines = routeLines.get(toRemove);
             routeLines.remove(toRemove);
+            routeGeometries.remove(toRemove);
             
             for(Polyline pl : polyLines) {
                 pl.remove();
@@ -725,11 +769,35 @@ public class BusStopMapFragment extends SupportMapFragment
         }
     }
     
+    /**
+     * Add the overlay which shows the stops as dots when the map is zoomed
+     * out, replacing any existing overlay. This is called again when the
+     * chosen services change, as the overlay is drawn for a set of services.
+     */
+    private void addStopOverlay() {
+        if(map == null) {
+            return;
+        }
+        
+        if(stopOverlay != null) {
+            stopOverlay.remove();
+        }
+        
+        stopOverlay = map.addTileOverlay(new TileOverlayOptions()
+                .tileProvider(new StopOverlayTileProvider(getActivity(),
+                        chosenServices)));
+        stopOverlayGeneration = bsd.getGeneration();
+    }
+    
     /**
      * Refresh the bus stop marker icons on the map. This may be because the
      * camera has moved, a configuration change has happened or the user has
      * selected services to filter by.
      * 
+     * When zoomed in, stops are loaded in tiles which are kept in the
+     * StopTileCache, so panning only loads the tiles which have come in to
+     * view. When zoomed out, the clusters are worked out again.
+     * 
      * @param position If a CameraPosition is available, send it in so that it
      * doesn't need to be looked up again. If it's not available, use null.
      */
@@ -743,28 +811,111 @@ public class BusStopMapFragment extends SupportMapFragment
             position = map.getCameraPosition();
         }
         
+        // If the database has changed, the map is still holding overlay tiles
+        // drawn from the old stops.
+        final int generation = bsd.getGeneration();
+        if(stopOverlay != null && stopOverlayGeneration != generation) {
+            stopOverlay.clearTileCache();
+            stopOverlayGeneration = generation;
+        }
+        
         // Get the visible bounds.
         final LatLngBounds lastVisibleBounds =
                 map.getProjection().getVisibleRegion().latLngBounds;
         final Bundle b = new Bundle();
         
-        // Populate the Bundle of arguments for the bus stops Loader.
-        b.putDouble(LOADER_ARG_MIN_X, lastVisibleBounds.southwest.latitude);
-        b.putDouble(LOADER_ARG_MIN_Y, lastVisibleBounds.southwest.longitude);
-        b.putDouble(LOADER_ARG_MAX_X, lastVisibleBounds.northeast.latitude);
-        b.putDouble(LOADER_ARG_MAX_Y, lastVisibleBounds.northeast.longitude);
-        b.putFloat(LOADER_ARG_ZOOM, position.zoom);
-
         // If there are chosen services, then set the filtered services
         // argument.
         if(chosenServices != null && chosenServices.length > 0) {
             b.putStringArray(LOADER_ARG_FILTERED_SERVICES, chosenServices);
         }
         
-        // Start the bus stops Loader.
-        getLoaderManager().restartLoader(LOADER_ID_BUS_STOPS, b, this);
+        if(position.zoom < BusStopMarkerLoader.CLUSTER_ZOOM_LEVEL) {
+            // Clusters are worked out from memory, so they are not tiled.
+            getLoaderManager().destroyLoader(LOADER_ID_BUS_STOP_TILES);
+            
+            // Populate the Bundle of arguments for the bus stops Loader.
+            b.putDouble(LOADER_ARG_MIN_X,
+                    lastVisibleBounds.southwest.latitude);
+            b.putDouble(LOADER_ARG_MIN_Y,
+                    lastVisibleBounds.southwest.longitude);
+            b.putDouble(LOADER_ARG_MAX_X,
+                    lastVisibleBounds.northeast.latitude);
+            b.putDouble(LOADER_ARG_MAX_Y,
+                    lastVisibleBounds.northeast.longitude);
+            b.putFloat(LOADER_ARG_ZOOM, position.zoom);
+            
+            // Start the bus stops Loader.
+            getLoaderManager().restartLoader(LOADER_ID_BUS_STOPS, b, this);
+            return;
+        }
+        
+        // Make sure a cluster load that is still running does not replace the
+        // stops.
+        getLoaderManager().destroyLoader(LOADER_ID_BUS_STOPS);
+        
+        // Show what has already been loaded straight away, then only load the
+        // tiles which have not been seen before. If the database has changed,
+        // everything which has been loaded is out of date.
+        stopTileCache.setGeneration(generation);
+        final long[] tiles = getVisibleTiles(lastVisibleBounds);
+        addBusStopMarkers(stopTileCache.getMarkers(tiles));
+        
+        final long[] missing = stopTileCache.getMissingTiles(tiles);
+        if(missing.length > 0) {
+            b.putLongArray(LOADER_ARG_TILES, missing);
+            getLoaderManager().restartLoader(LOADER_ID_BUS_STOP_TILES, b,
+                    this);
+        }
     }
     
+    /**
+     * This method is called when the bus stop tiles Loader has finished
+     * loading. The tiles are added to the cache and the stops in the visible
+     * tiles are shown. Another load is not started from here, so if the map
+     * has moved on, the rest of the tiles are loaded the next time the camera
+     * changes.
+     * 
+     * @param result The loaded tiles.
+     * @param generation The generation of the bus stop database the tiles were
+     * loaded from.
+     */
+    private void addBusStopTiles(
+            final HashMap<Long, HashMap<String, MarkerOptions>> result,
+            final int generation) {
+        stopTileCache.putAll(result, generation);
+        
+        if(map == null || map.getCameraPosition().zoom <
+                BusStopMarkerLoader.CLUSTER_ZOOM_LEVEL) {
+            return;
+        }
+        
+        addBusStopMarkers(stopTileCache.getMarkers(getVisibleTiles(
+                map.getProjection().getVisibleRegion().latLngBounds)));
+    }
+    
+    /**
+     * Get the StopTileCache tiles covering the visible area of the map.
+     * 
+     * @param bounds The visible bounds of the map.
+     * @return The keys of the tiles.
+     */
+    private static long[] getVisibleTiles(final LatLngBounds bounds) {
+        return StopTileCache.getTiles(bounds.southwest.latitude,
+                bounds.southwest.longitude, bounds.northeast.latitude,
+                bounds.northeast.longitude);
+    }
+    
+    /**
+     * This Runnable refreshes the bus stops once the camera has settled.
+     */
+    private final Runnable refreshBusStopsTask = new Runnable() {
+        @Override
+        public void run() {
+            refreshBusStops(null);
+        }
+    };
+    
     /**
      * This method is called when the bus stops Loader has finished loading bus
      * stops and has data ready to be populated on the map.
@@ -793,6 +944,7 @@ public class BusStopMapFragment extends SupportMapFragment
                     !marker.isInfoWindowShown()) {
                 marker.remove();
                 busStopMarkers.remove((String)existingStop);
+                clusterMarkers.remove(marker);
             } else {
                 // Otherwise, remove the bus stop from the new data as it is
                 // already populated on the map and doesn't need to be
@@ -805,7 +957,12 @@ public class BusStopMapFragment extends SupportMapFragment
         // stops common to the existing collection and the new collection will
         // not be touched.
         for(String newStop : result.keySet()) {
-            busStopMarkers.put(newStop, map.addMarker(result.get(newStop)));
+            marker = map.addMarker(result.get(newStop));
+            busStopMarkers.put(newStop, marker);
+            
+            if(newStop.startsWith(BusStopMarkerLoader.CLUSTER_KEY_PREFIX)) {
+                clusterMarkers.add(marker);
+            }
         }
         
         // If map has been moved to this location because the user searched for
@@ -815,13 +972,8 @@ public class BusStopMapFragment extends SupportMapFragment
             
             // If the marker has been found...
             if(marker != null) {
-                // Get the snippet text for the marker and if it does not exist,
-                // populate it with the bus services list.
-                final String snippet = marker.getSnippet();
-                if(snippet == null || snippet.length() == 0) {
-                    marker.setSnippet(bsd.getBusServicesForStopAsString(
-                            searchedBusStop));
-                }
+                // Fill in the title and the bus services list.
+                populateStopMarker(marker);
                 
                 // Show the info window of the marker to highlight it.
                 marker.showInfoWindow();
@@ -832,6 +984,46 @@ public class BusStopMapFragment extends SupportMapFragment
         }
     }
     
+    /**
+     * Fill in the title and snippet of a bus stop marker. Bus stop markers are
+     * created with only the stopCode as their title, as building the full
+     * title for every marker is wasted work when most never show their info
+     * window. This must be called before the info window is shown. It does
+     * nothing if the marker has already been filled in.
+     * 
+     * @param marker The bus stop marker.
+     */
+    private void populateStopMarker(final Marker marker) {
+        final String stopCode = marker.getTitle();
+        if(stopCode == null ||
+                !STOP_CODE_SEARCH_PATTERN.matcher(stopCode).matches()) {
+            return;
+        }
+        
+        // The catalogue is held in memory, so try that before the database.
+        final BusStopCatalogue catalogue = bsd.getStopCatalogue();
+        final int index = catalogue != null ? catalogue.indexOf(stopCode) : -1;
+        final String stopName, locality, services;
+        if(index >= 0) {
+            stopName = catalogue.getStopName(index);
+            locality = catalogue.getLocality(index);
+            services = catalogue.getServicesString(index);
+        } else {
+            stopName = bsd.getNameForBusStop(stopCode);
+            locality = bsd.getLocalityForStopCode(stopCode);
+            services = bsd.getBusServicesForStopAsString(stopCode);
+        }
+        
+        if(locality != null) {
+            marker.setTitle(getString(R.string.busstop_locality, stopName,
+                    locality, stopCode));
+        } else {
+            marker.setTitle(getString(R.string.busstop, stopName, stopCode));
+        }
+        
+        marker.setSnippet(services);
+    }
+    
     /**
      * This method is called when the search Loader has finished loading and
      * data is to be populated on the map.
@@ -894,31 +1086,65 @@ public class BusStopMapFragment extends SupportMapFragment
      * Add route lines to the Map. This is called when the route lines loader
      * has finished loading the route lines.
      * 
-     * @param result A HashMap, mapping the service name to a LinkedList of
-     * PolylineOptions objects. This is a LinkedList because a service may have
-     * more than one Polyline.
+     * @param result A HashMap, mapping the service name to the RouteGeometry
+     * of its route lines.
      */
-    private void addRouteLines(
-            final HashMap<String, LinkedList<PolylineOptions>> result) {
+    private void addRouteLines(final HashMap<String, RouteGeometry> result) {
         if(map == null) {
             return;
         }
         
-        LinkedList<PolylineOptions> polyLineOptions;
+        routeLineLevel = RouteGeometry.getLevelForZoom(
+                map.getCameraPosition().zoom);
+        RouteGeometry geometry;
         LinkedList<Polyline> newPolyLines;
+        int lineCount;
         
         // Loop through all services in the HashMap.
         for(String service : result.keySet()) {
-            polyLineOptions = result.get(service);
+            geometry = result.get(service);
+            routeGeometries.put(service, geometry);
             // Create the LinkedList that the Polylines will be stored in.
             newPolyLines = new LinkedList<Polyline>();
             // Add the LinkedList to the routeLines HashMap.
             routeLines.put(service, newPolyLines);
             
-            // Loop through all the PolylineOptions for this service, and add
-            // them to the map and the Polyline LinkedList.
-            for(PolylineOptions plo : polyLineOptions) {
-                newPolyLines.add(map.addPolyline(plo));
+            // Add each line of the service to the map at the level of detail
+            // for the current zoom.
+            lineCount = geometry.getLineCount();
+            for(int i = 0; i < lineCount; i++) {
+                newPolyLines.add(map.addPolyline(
+                        geometry.getPolylineOptions(routeLineLevel, i)));
+            }
+        }
+    }
+    
+    /**
+     * Change the level of detail of the route lines on the map if the zoom
+     * level needs a different one. The existing Polylines are given the points
+     * of the new level rather than being removed and added again.
+     * 
+     * @param zoom The zoom level of the camera.
+     */
+    private void updateRouteLineDetail(final float zoom) {
+        final int level = RouteGeometry.getLevelForZoom(zoom);
+        if(level == routeLineLevel) {
+            return;
+        }
+        
+        routeLineLevel = level;
+        RouteGeometry geometry;
+        int i;
+        
+        for(String service : routeLines.keySet()) {
+            geometry = routeGeometries.get(service);
+            if(geometry == null) {
+                continue;
+            }
+            
+            i = 0;
+            for(Polyline pl : routeLines.get(service)) {
+                pl.setPoints(geometry.getPoints(level, i++));
             }
         }
     }
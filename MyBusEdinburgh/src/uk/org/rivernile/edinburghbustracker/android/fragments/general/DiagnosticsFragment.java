@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.fragments.general;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import uk.org.rivernile.android.bustracker.parser.livetimes
+        .CachingBusParser;
+import uk.org.rivernile.android.utils.HttpTransport;
+import uk.org.rivernile.android.utils.Metrics;
+import uk.org.rivernile.edinburghbustracker.android.Application;
+import uk.org.rivernile.edinburghbustracker.android.Endpoints;
+import uk.org.rivernile.edinburghbustracker.android.R;
+import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
+        .EdinburghParser;
+
+/**
+ * This Fragment shows the performance metrics that have been recorded since
+ * the process started, along with the HttpTransport stats for each endpoint.
+ * The report can be shared as plain text so that it can be attached to bug
+ * reports.
+ * 
+ * On debuggable builds, it also allows the base URLs of the web services to
+ * be changed, for example to point the application at a replay server.
+ * 
+ * @author Niall Scott
+ */
+public class DiagnosticsFragment extends Fragment {
+    
+    private TextView txtReport;
+    private EditText txtBusTrackerUrl;
+    private EditText txtApiUrl;
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public View onCreateView(final LayoutInflater inflater,
+            final ViewGroup container, final Bundle savedInstanceState) {
+        final View v = inflater.inflate(R.layout.diagnostics, container,
+                false);
+        
+        txtReport = (TextView)v.findViewById(R.id.txtReport);
+        
+        if((getActivity().getApplicationInfo().flags &
+                ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            v.findViewById(R.id.layoutEndpoints).setVisibility(View.VISIBLE);
+            
+            txtBusTrackerUrl = (EditText)v.findViewById(R.id.txtBusTrackerUrl);
+            txtApiUrl = (EditText)v.findViewById(R.id.txtApiUrl);
+            txtBusTrackerUrl.setHint(Endpoints.DEFAULT_BUS_TRACKER_URL);
+            txtApiUrl.setHint(Endpoints.DEFAULT_API_URL);
+            
+            final Button btnApply = (Button)v.findViewById(
+                    R.id.btnApplyEndpoints);
+            btnApply.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(final View v) {
+                    applyEndpoints();
+                }
+            });
+        }
+        
+        return v;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onActivityCreated(final Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        
+        setHasOptionsMenu(true);
+        
+        // Only fill in the URLs the first time, so that any edits survive
+        // rotation.
+        if(savedInstanceState == null && txtBusTrackerUrl != null) {
+            final SharedPreferences sp = getActivity().getSharedPreferences(
+                    Endpoints.PREF_FILE, 0);
+            txtBusTrackerUrl.setText(
+                    sp.getString(Endpoints.PREF_BUS_TRACKER_URL, ""));
+            txtApiUrl.setText(sp.getString(Endpoints.PREF_API_URL, ""));
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onResume() {
+        super.onResume();
+        
+        refresh();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreateOptionsMenu(final Menu menu,
+            final MenuInflater inflater) {
+        inflater.inflate(R.menu.diagnostics_option_menu, menu);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        switch(item.getItemId()) {
+            case R.id.diagnostics_option_menu_refresh:
+                refresh();
+                return true;
+            case R.id.diagnostics_option_menu_share:
+                share();
+                return true;
+            case R.id.diagnostics_option_menu_reset:
+                Metrics.getInstance().reset();
+                EdinburghParser.getCachingInstance().resetStats();
+                HttpTransport.getInstance().resetStats();
+                refresh();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+    
+    /**
+     * Show the latest report.
+     */
+    private void refresh() {
+        txtReport.setText(buildReport(getActivity()));
+    }
+    
+    /**
+     * Send the report to another application, such as an email client.
+     */
+    private void share() {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT,
+                getString(R.string.diagnostics_share_subject));
+        intent.putExtra(Intent.EXTRA_TEXT, buildReport(getActivity()));
+        
+        startActivity(Intent.createChooser(intent,
+                getString(R.string.diagnostics_share_chooser)));
+    }
+    
+    /**
+     * Save the endpoint URLs to the preferences and start using them straight
+     * away. An empty URL means the live service is used.
+     */
+    private void applyEndpoints() {
+        getActivity().getSharedPreferences(Endpoints.PREF_FILE, 0)
+                .edit()
+                .putString(Endpoints.PREF_BUS_TRACKER_URL,
+                        txtBusTrackerUrl.getText().toString().trim())
+                .putString(Endpoints.PREF_API_URL,
+                        txtApiUrl.getText().toString().trim())
+                .commit();
+        Application.applyEndpointOverrides(getActivity());
+        
+        Toast.makeText(getActivity(), R.string.diagnostics_endpoints_applied,
+                Toast.LENGTH_SHORT).show();
+        refresh();
+    }
+    
+    /**
+     * Build the plain text report. This has details of the application and
+     * device, the Metrics dump, the bus times cache stats and the HttpTransport
+     * stats.
+     * 
+     * @param context A Context instance.
+     * @return The report.
+     */
+    private static String buildReport(final Context context) {
+        final StringBuilder sb = new StringBuilder();
+        
+        try {
+            final PackageInfo info = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            sb.append(context.getString(R.string.app_name)).append(' ')
+                    .append(info.versionName).append(" (#")
+                    .append(info.versionCode).append(")\n");
+        } catch(NameNotFoundException e) {
+            // This should never occur.
+        }
+        
+        sb.append("Android ").append(Build.VERSION.RELEASE).append(" (API ")
+                .append(Build.VERSION.SDK_INT).append("), ")
+                .append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append('\n');
+        sb.append("Bus tracker: ").append(Endpoints.getBusTrackerUrl())
+                .append('\n');
+        sb.append("API: ").append(Endpoints.getApiUrl()).append("\n\n");
+        
+        Metrics.getInstance().dump(sb);
+        
+        final CachingBusParser parser = EdinburghParser.getCachingInstance();
+        sb.append('\n');
+        sb.append(String.format(Locale.UK, "%-32s %6d\n",
+                "Bus times cache hits", parser.getHits()));
+        sb.append(String.format(Locale.UK, "%-32s %6d\n",
+                "Bus times cache misses", parser.getMisses()));
+        sb.append(String.format(Locale.UK, "%-32s %6d\n",
+                "Bus times cache coalesced", parser.getCoalesced()));
+        
+        sb.append('\n');
+        sb.append(String.format(Locale.UK, "%-20s %6s %6s %6s %8s %8s %10s\n",
+                "Endpoint", "reqs", "fails", "304s", "mean", "max", "bytes"));
+        final TreeMap<String, HttpTransport.EndpointStats> stats =
+                new TreeMap<String, HttpTransport.EndpointStats>(
+                        HttpTransport.getInstance().getStats());
+        for(Map.Entry<String, HttpTransport.EndpointStats> entry :
+                stats.entrySet()) {
+            final HttpTransport.EndpointStats s = entry.getValue();
+            sb.append(String.format(Locale.UK,
+                    "%-20s %6d %6d %6d %8d %8d %10d\n", entry.getKey(),
+                    s.getRequests(), s.getFailures(), s.getNotModified(),
+                    s.getMeanTime(), s.getMaxTime(), s.getBytes()));
+        }
+        
+        return sb.toString();
+    }
+}
@@ -25,14 +25,10 @@
 
 package uk.org.rivernile.edinburghbustracker.android.fragments.general;
 
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Color;
 import android.graphics.Rect;
-import android.graphics.drawable.GradientDrawable;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -55,25 +51,26 @@ import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 import android.widget.ImageButton;
 import android.widget.ProgressBar;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import uk.org.rivernile.android.bustracker.parser.livetimes.Bus;
+import java.util.HashSet;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusParser;
-import uk.org.rivernile.android.bustracker.parser.livetimes.BusService;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusStop;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusTimesLoader;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusTimesResult;
+import uk.org.rivernile.android.bustracker.parser.livetimes
+        .CachingBusParser;
 import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
 import uk.org.rivernile.edinburghbustracker.android.PreferencesActivity;
 import uk.org.rivernile.edinburghbustracker.android.R;
 import uk.org.rivernile.edinburghbustracker.android.SettingsDatabase;
 import uk.org.rivernile.edinburghbustracker.android.fragments.dialogs
         .DeleteFavouriteDialogFragment;
-import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
-        .EdinburghBus;
+import uk.org.rivernile.edinburghbustracker.android.livetimes
+        .DeparturesAdapter;
+import uk.org.rivernile.edinburghbustracker.android.livetimes
+        .DeparturesPresenter;
 import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
         .EdinburghBusStop;
 import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
@@ -101,10 +98,6 @@ public class DisplayStopDataFragment extends Fragment
     private static final int EVENT_REFRESH = 1;
     private static final int EVENT_UPDATE_TIME = 2;
     
-    private static final String SERVICE_NAME_KEY = "SERVICE_NAME";
-    private static final String DESTINATION_KEY = "DESTINATION";
-    private static final String ARRIVAL_TIME_KEY = "ARRIVAL_TIME";
-    
     /** This is the stop code argument. */
     public static final String ARG_STOPCODE = "stopCode";
     /** This is the argument required to force a reload of data. */
@@ -113,6 +106,7 @@ public class DisplayStopDataFragment extends Fragment
     private static final String LOADER_ARG_STOPCODES = "stopCodes";
     private static final String LOADER_ARG_NUMBER_OF_DEPARTURES =
             "numberOfDepartures";
+    private static final String LOADER_ARG_IGNORE_CACHE = "ignoreCache";
     
     private static final String STATE_KEY_AUTOREFRESH = "autoRefresh";
     private static final String STATE_KEY_LAST_REFRESH = "lastRefresh";
@@ -128,7 +122,8 @@ public class DisplayStopDataFragment extends Fragment
     
     private ExpandableListView listView;
     private TextView txtLastRefreshed, txtStopName, txtServices, txtError;
-    private BusTimesExpandableListAdapter listAdapter;
+    private DeparturesAdapter listAdapter;
+    private DeparturesPresenter presenter;
     private View layoutTopBar;
     private ProgressBar progressSmall, progressBig;
     private ImageButton imgbtnFavourite;
@@ -139,7 +134,7 @@ public class DisplayStopDataFragment extends Fragment
     private String stopLocality;
     private boolean autoRefresh;
     private long lastRefresh = 0;
-    private final ArrayList<String> expandedServices = new ArrayList<String>();
+    private final HashSet<String> expandedServices = new HashSet<String>();
     private boolean busTimesLoading = false;
     private int hitboxSize;
     
@@ -273,9 +268,29 @@ public class DisplayStopDataFragment extends Fragment
         // The ListView has a context menu.
         registerForContextMenu(listView);
         
+        // The rows are kept by the presenter and updated in place on each
+        // refresh.
+        listAdapter = new DeparturesAdapter(getActivity());
+        presenter = new DeparturesPresenter(getActivity(), listAdapter);
+        listView.setAdapter(listAdapter);
+        
         return v;
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        
+        // Remember which services were expanded in case the View is created
+        // again.
+        populateExpandedItemsList();
+        listAdapter = null;
+        presenter = null;
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -294,9 +309,9 @@ public class DisplayStopDataFragment extends Fragment
                     bsd.getBusServicesForStopAsString(stopCode)));
             
             if(getArguments().getBoolean(ARG_FORCELOAD, false)) {
-                loadBusTimes(true);
+                loadBusTimes(true, true);
             } else {
-                loadBusTimes(false);
+                loadBusTimes(false, false);
             }
         } else {
             handleError(BusParser.ERROR_NOCODE);
@@ -466,7 +481,7 @@ public class DisplayStopDataFragment extends Fragment
                 edit.putBoolean(PreferencesActivity.PREF_SERVICE_SORTING,
                         sortByTime);
                 edit.commit();
-                loadBusTimes(false);
+                loadBusTimes(false, false);
                 getActivity().supportInvalidateOptionsMenu();
                 
                 return true;
@@ -486,7 +501,7 @@ public class DisplayStopDataFragment extends Fragment
             case R.id.displaystopdata_option_menu_refresh:
                 // Ask for a refresh.
                 mHandler.removeMessages(EVENT_REFRESH);
-                loadBusTimes(true);
+                loadBusTimes(true, true);
                 
                 return true;
             case R.id.displaystopdata_option_menu_prox:
@@ -542,12 +557,10 @@ public class DisplayStopDataFragment extends Fragment
                         .getPackedPositionGroup(info.packedPosition);
                 if(listAdapter != null &&
                         position < listAdapter.getGroupCount()) {
-                    final HashMap<String, String> groupData =
-                            (HashMap<String, String>)listAdapter
-                            .getGroup(position);
                     // Fire off the Activity.
-                    callbacks.onShowAddTimeAlert(stopCode,
-                            new String[] { groupData.get(SERVICE_NAME_KEY) });
+                    callbacks.onShowAddTimeAlert(stopCode, new String[] {
+                        listAdapter.getServiceName(position)
+                    });
                 }
                 return true;
             default:
@@ -566,7 +579,12 @@ public class DisplayStopDataFragment extends Fragment
         showProgress();
         busTimesLoading = true;
         
-        return new BusTimesLoader(getActivity(), new EdinburghParser(),
+        // When the user has asked for a refresh, they should not be given
+        // the same data back from the cache.
+        final CachingBusParser parser = EdinburghParser.getCachingInstance();
+        return new BusTimesLoader(getActivity(),
+                args.getBoolean(LOADER_ARG_IGNORE_CACHE, false) ?
+                        parser.getRefreshingParser() : parser,
                 args.getStringArray(LOADER_ARG_STOPCODES),
                 args.getInt(LOADER_ARG_NUMBER_OF_DEPARTURES, 4));
     }
@@ -607,7 +625,7 @@ public class DisplayStopDataFragment extends Fragment
             switch(msg.what) {
                 case EVENT_REFRESH:
                     // Do a refresh.
-                    loadBusTimes(true);
+                    loadBusTimes(true, false);
                     break;
                 case EVENT_UPDATE_TIME:
                     // Update the last update time.
@@ -622,13 +640,20 @@ public class DisplayStopDataFragment extends Fragment
     
     /**
      * Request new bus times.
+     * 
+     * @param reload true if the bus times should be loaded again, false if an
+     * existing load can be reused.
+     * @param ignoreCache true if the user asked for the reload, in which case
+     * recently cached bus times are not used.
      */
-    private void loadBusTimes(final boolean reload) {
+    private void loadBusTimes(final boolean reload,
+            final boolean ignoreCache) {
         mHandler.removeMessages(EVENT_REFRESH);
         
         final Bundle args = new Bundle();
         args.putStringArray(LOADER_ARG_STOPCODES, new String[] { stopCode });
         args.putInt(LOADER_ARG_NUMBER_OF_DEPARTURES, numDepartures);
+        args.putBoolean(LOADER_ARG_IGNORE_CACHE, ignoreCache);
         
         if(reload) {
             getLoaderManager().restartLoader(0, args, this);
@@ -816,9 +841,9 @@ public class DisplayStopDataFragment extends Fragment
             return;
         }
         
-        // If this is just a refresh, populate the expanded items list.
-        if(listAdapter != null) {
-            populateExpandedItemsList();
+        if(presenter == null) {
+            // There is no View to show the data in.
+            return;
         }
         
         // If the stopName could not be set earlier, get it now from the web
@@ -833,125 +858,23 @@ public class DisplayStopDataFragment extends Fragment
             txtStopName.setText(Html.fromHtml(name));
         }
         
-        // Get the list of services in the user's preferred order.
-        final ArrayList<BusService> services;
-        if(sp.getBoolean(PreferencesActivity.PREF_SERVICE_SORTING, false)) {
-            services = busStop.getSortedByTimeBusServices();
-        } else {
-            services = busStop.getBusServices();
-        }
-        
-        // Does the user want to show night services?
-        final boolean showNightServices =
-                sp.getBoolean(PreferencesActivity.PREF_SHOW_NIGHT_BUSES, true);
+        // If this is the first time departures are shown in this View, the
+        // previously expanded services need to be expanded again. After this,
+        // the ListView keeps track of them itself as the group IDs are stable.
+        final boolean firstDisplay = listAdapter.getGroupCount() == 0;
         
-        // Declare variables before going in to the loop.
-        final ArrayList<HashMap<String, String>> groupData =
-                new ArrayList<HashMap<String, String>>();
-        final ArrayList<ArrayList<HashMap<String, String>>> childData =
-                new ArrayList<ArrayList<HashMap<String, String>>>();
-        HashMap<String, String> curGroupMap;
-        ArrayList<HashMap<String, String>> children;
-        HashMap<String, String> curChildMap;
-        EdinburghBus bus;
-        String timeToDisplay, destination;
-        int mins;
-        boolean first;
+        // Only the rows which have changed are updated.
+        presenter.present(busStop.getDepartures(),
+                sp.getBoolean(PreferencesActivity.PREF_SERVICE_SORTING, false),
+                sp.getBoolean(PreferencesActivity.PREF_SHOW_NIGHT_BUSES, true));
         
-        // Loop through the list of services.
-        for(BusService busService : services) {
-            if(!showNightServices &&
-                    busService.getServiceName().startsWith("N")) continue;
-            
-            curGroupMap = new HashMap<String, String>();
-            groupData.add(curGroupMap);
-            // Add the service name.
-            curGroupMap.put(SERVICE_NAME_KEY, busService.getServiceName());
-            
-            children = new ArrayList<HashMap<String, String>>();
-            first = true;
-            // Loop through the buses inside a service.
-            for(Bus lBus : busService.getBuses()) {
-                bus = (EdinburghBus)lBus;
-                destination = bus.getDestination();
-                
-                if(bus.isDiverted()) {
-                    // Special case if diverted.
-                    timeToDisplay = "";
-                    
-                    // Destination may be null when it comes back from the web
-                    // service. Display diverted notice accordingly.
-                    if(destination != null) {
-                        destination += " (" +
-                                getString(R.string.displaystopdata_diverted) +
-                                ')';
-                    } else {
-                        destination = getString(R.string
-                                .displaystopdata_diverted);
-                    }
-                } else {
-                    // Get the number of minutes until arrival.
-                    mins = bus.getArrivalMinutes();
-                    if(mins > 59) {
-                        // If more than 59 minutes, display the full time.
-                        timeToDisplay = bus.getArrivalTime();
-                    } else if(mins < 2) {
-                        // If the bus is due in less than 2 mins, show as due.
-                        timeToDisplay = "DUE";
-                    } else {
-                        // Otherwise, display the number of minutes until
-                        // arrival.
-                        timeToDisplay = String.valueOf(mins);
-                    }
-
-                    // If the time is estimated, prefix this to the time shown.
-                    if(bus.isEstimated()) {
-                        timeToDisplay = '*' + timeToDisplay;
-                    }
-                    
-                    // If the destination is null, make it the empty string to
-                    // prevent future problems.
-                    if(destination == null) {
-                        destination = "";
-                    }
-                }
-                
-                if(first) {
-                    // If this is the first bus for this service, put this entry
-                    // in the group map.
-                    curGroupMap.put(DESTINATION_KEY, destination);
-                    curGroupMap.put(ARRIVAL_TIME_KEY, timeToDisplay);
-                    first = false;
-                } else {
-                    // Otherwise, put it in the expanded child map.
-                    curChildMap = new HashMap<String, String>();
-                    children.add(curChildMap);
-                    curChildMap.put(DESTINATION_KEY, destination);
-                    curChildMap.put(ARRIVAL_TIME_KEY, timeToDisplay);
+        if(firstDisplay && !expandedServices.isEmpty()) {
+            final int count = listAdapter.getGroupCount();
+            for(int i = 0; i < count; i++) {
+                if(expandedServices.contains(listAdapter.getServiceName(i))) {
+                    listView.expandGroup(i);
                 }
             }
-            childData.add(children);
-        }
-        
-        // Create the adatper. This is ugly.
-        listAdapter = new BusTimesExpandableListAdapter(
-                getActivity(), groupData, R.layout.expandable_list_group,
-                new String[] { SERVICE_NAME_KEY, DESTINATION_KEY,
-                    ARRIVAL_TIME_KEY },
-                new int[] { R.id.buslist_service, R.id.buslist_destination,
-                    R.id.buslist_time },
-                childData, R.layout.expandable_list_child,
-                new String[] { DESTINATION_KEY, ARRIVAL_TIME_KEY },
-                new int[] { R.id.buschild_destination, R.id.buschild_time });
-        listView.setAdapter(listAdapter);
-        
-        final int count = groupData.size();
-        for(int i = 0; i < count; i++) {
-            curGroupMap = groupData.get(i);
-            // Re-expand previously expanded items.
-            if(expandedServices.contains(curGroupMap.get(SERVICE_NAME_KEY))) {
-                listView.expandGroup(i);
-            }
         }
 
         showTimes();
@@ -1014,29 +937,27 @@ public class DisplayStopDataFragment extends Fragment
     }
     
     /**
-     * This method populates the ArrayList of expanded list items. It will clear
+     * This method populates the set of expanded list items. It will clear
      * the list and loop through the group items in the expanded items to see
      * if that item is expanded or not. If the item is expanded, the service
      * name will be added to the list.
      */
     private void populateExpandedItemsList() {
-        // Firstly, flush the previous items from the list.
-        expandedServices.clear();
-        
-        // The ListAdapter could be null.
+        // The ListAdapter could be null if there is no View. If so, keep the
+        // items found when the View was destroyed.
         if(listAdapter != null) {
+            // Firstly, flush the previous items from the list.
+            expandedServices.clear();
+            
             // Cache the count.
             final int count = listAdapter.getGroupCount();
             
-            HashMap<String, String> groupData;
             // Loop through all group items.
             for(int i = 0; i < count; i++) {
                 // If the group is expanded, get the service name and add it to
                 // the list.
                 if(listView.isGroupExpanded(i)) {
-                    groupData = (HashMap<String, String>)listAdapter
-                            .getGroup(i);
-                    expandedServices.add(groupData.get(SERVICE_NAME_KEY));
+                    expandedServices.add(listAdapter.getServiceName(i));
                 }
             }
         }
@@ -1061,133 +982,6 @@ public class DisplayStopDataFragment extends Fragment
         // Nothing to do here.
     }
     
-    /**
-     * This custom ExpandableListAdapter attributes colours to service names
-     * in the ExpandableListView.
-     */
-    private static class BusTimesExpandableListAdapter
-            extends SimpleExpandableListAdapter {
-        
-        private final Context context;
-        private final int defaultColour;
-        private final HashMap<String, String> colours;
-        
-        /**
-         * Create a new BusTimesExpandableListAdapter.
-         * 
-         * @param context A Context instance.
-         * @param groupData The group data.
-         * @param groupLayout The layout to use for the group View.
-         * @param groupFrom An array of keys to use for the group items.
-         * @param groupTo The TextViews to load the keys in to.
-         * @param childData The child data.
-         * @param childLayout The layout to use for the child View.
-         * @param childFrom An array of keys to use for the child View.
-         * @param childTo The TextViews to load the keys in to.
-         */
-        public BusTimesExpandableListAdapter(final Context context,
-                final ArrayList<HashMap<String, String>> groupData,
-                final int groupLayout, final String[] groupFrom,
-                final int[] groupTo,
-                final ArrayList<ArrayList<HashMap<String, String>>> childData,
-                final int childLayout,
-                final String[] childFrom, final int[] childTo) {
-            super(context, groupData, groupLayout, groupFrom, groupTo,
-                    childData, childLayout, childFrom, childTo);
-            
-            // The superclass has no way to get the context again, so cache it
-            // here.
-            this.context = context;
-            
-            final BusStopDatabase bsd = BusStopDatabase.getInstance(
-                    context.getApplicationContext());
-            defaultColour = context.getResources().getColor(R.color
-                    .defaultBusColour);
-            final int size = groupData.size();
-            // Create an array of String to hold the loaded services.
-            final String[] services = new String[size];
-            int i = 0;
-            
-            // Get the service list from the group data and put it in the
-            // service array.
-            for(HashMap<String, String> map : groupData) {
-                services[i] = map.get(SERVICE_NAME_KEY);
-                i++;
-            }
-            
-            if(size > 0) {
-                colours = bsd.getServiceColours(services);
-            } else {
-                colours = null;
-            }
-        }
-        
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        @SuppressLint({"NewAPI"})
-        public View getGroupView(final int groupPosition,
-                final boolean isExpanded, final View convertView,
-                final ViewGroup parent) {
-            final View v = super.getGroupView(groupPosition, isExpanded,
-                    convertView, parent);
-            final TextView txtService = (TextView)v.findViewById(
-                    R.id.buslist_service);
-            // Get the HashMap for the groupPosition.
-            final HashMap<String, String> group =
-                    (HashMap<String, String>)getGroup(groupPosition);
-            // Get the name of the service.
-            final String service = group.get(SERVICE_NAME_KEY);
-            // Get the Drawable which makes up the retangle in the background
-            // with the rounded corners. Make it mutable so it doesn't affect
-            // other instances of the same Drawable.
-            final GradientDrawable background;
-            try {
-                background = (GradientDrawable)context.getResources()
-                        .getDrawable(R.drawable.bus_service_rounded_background)
-                        .mutate();
-            } catch(ClassCastException e) {
-                txtService.setTextColor(Color.BLACK);
-                return v;
-            }
-            
-            // Night services are treated differently to the rest.
-            if(service.startsWith("N")) {
-                // Give it a black background.
-                background.setColor(Color.BLACK);
-                // We need to replace the text in the TextView because HTML
-                // formatting has been applied to it, to make the 'N' red.
-                txtService.setText(
-                        BusStopDatabase.getColouredServiceListString(service));
-            } else if(colours != null && colours.containsKey(service)) {
-                try {
-                    // If the colour for the service can be parsed, set the
-                    // background here.
-                    background.setColor(Color.parseColor(
-                            colours.get(service)));
-                } catch(IllegalArgumentException e) {
-                    // If it cannot be parsed, use the default background
-                    // colour.
-                    background.setColor(defaultColour);
-                }
-            } else {
-                // If not a night service, and a colour doesn't exist for the
-                // service, use the default colour.
-                background.setColor(defaultColour);
-            }
-            
-            // Set the background and return the View for the group.
-            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-                txtService.setBackground(background);
-            } else {
-                txtService.setBackgroundDrawable(background);
-            }
-            
-            return v;
-        }
-    }
-    
     /**
      * Any Activities which host this Fragment must implement this interface to
      * handle navigation events.
@@ -540,17 +540,15 @@ public class FavouriteStopsFragment extends ListFragment
             final TextView services = (TextView)v.findViewById(
                     android.R.id.text2);
             
-            // Look to see if the service list is in the cache. If not, get it
-            // from the database.
+            // Look to see if the service list is in the cache. If not, load
+            // the service lists for every stop in the Cursor at once.
             Spanned s = serviceListings.get(stopCode);
             if(s == null) {
-                s = BusStopDatabase.getColouredServiceListString(
-                        bsd.getBusServicesForStopAsString(stopCode));
-                if(s != null) {
-                    services.setText(s);
-                    serviceListings.put(stopCode, s);
-                }
-            } else {
+                loadServiceListings(cursor);
+                s = serviceListings.get(stopCode);
+            }
+            
+            if(s != null) {
                 services.setText(s);
             }
         }
@@ -565,6 +563,34 @@ public class FavouriteStopsFragment extends ListFragment
             
             return super.swapCursor(newCursor);
         }
+        
+        /**
+         * Populate the service listings cache for every bus stop in the
+         * Cursor with a single database query.
+         * 
+         * @param cursor The Cursor of favourite bus stops. Its position is
+         * restored afterwards.
+         */
+        private void loadServiceListings(final Cursor cursor) {
+            final int position = cursor.getPosition();
+            final String[] stopCodes = new String[cursor.getCount()];
+            int i = 0;
+            
+            cursor.moveToPosition(-1);
+            while(cursor.moveToNext()) {
+                stopCodes[i++] = cursor.getString(0);
+            }
+            
+            cursor.moveToPosition(position);
+            
+            final HashMap<String, String> lists =
+                    bsd.getBusServicesForStopsAsString(stopCodes);
+            for(String code : lists.keySet()) {
+                serviceListings.put(code,
+                        BusStopDatabase.getColouredServiceListString(
+                        lists.get(code)));
+            }
+        }
     }
     
     /**
@@ -29,7 +29,6 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ResolveInfo;
-import android.database.Cursor;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -56,7 +55,9 @@ import java.util.Collections;
 import java.util.List;
 import uk.org.rivernile.android.utils.GenericUtils;
 import uk.org.rivernile.android.utils.LocationUtils;
+import uk.org.rivernile.android.utils.Metrics;
 import uk.org.rivernile.android.utils.SimpleResultLoader;
+import uk.org.rivernile.edinburghbustracker.android.BusStopCatalogue;
 import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
 import uk.org.rivernile.edinburghbustracker.android.PreferencesActivity;
 import uk.org.rivernile.edinburghbustracker.android.R;
@@ -584,8 +585,8 @@ public class NearestStopsFragment extends ListFragment
     /**
      * The NearestStopsLoader accepts an argument Bundle which contains the
      * handset\'s current latitude and longitude and optionally a list of
-     * filtered bus services. It will then query the bus stop database to result
-     * a list of matching results.
+     * filtered bus services. It will then query the in-memory bus stop
+     * catalogue to return a list of matching results.
      */
     private static class NearestStopsLoader
             extends SimpleResultLoader<ArrayList<SearchResult>> {
@@ -597,10 +598,10 @@ public class NearestStopsFragment extends ListFragment
         /** The filtered services argument. */
         public static final String ARG_FILTERED_SERVICES = "filteredServices";
         
-        /** If modifying for another city, check that this value is correct. */
-        private static final double LATITUDE_SPAN = 0.004499;
-        /** If modifying for another city, check that this value is correct. */
-        private static final double LONGITUDE_SPAN = 0.008001;
+        /** The radius, in metres, to search for bus stops within. */
+        private static final double SEARCH_RADIUS = 500.0;
+        
+        private static final String SECTION_LOAD = "NearestStopsLoader.load";
         
         private final BusStopDatabase bsd;
         private final Bundle args;
@@ -629,6 +630,24 @@ public class NearestStopsFragment extends ListFragment
          */
         @Override
         public ArrayList<SearchResult> loadInBackground() {
+            final Metrics metrics = Metrics.getInstance();
+            final long start = metrics.beginSection(SECTION_LOAD);
+            
+            try {
+                return findNearestStops();
+            } finally {
+                metrics.endSection(SECTION_LOAD, start);
+            }
+        }
+        
+        /**
+         * Find the stops within SEARCH_RADIUS of the location given in the
+         * arguments.
+         * 
+         * @return The stops, sorted by distance. This is empty if the
+         * location was not given.
+         */
+        private ArrayList<SearchResult> findNearestStops() {
             // Create the List where the results will be placed. If no results
             // have been found, this list will be empty.
             final ArrayList<SearchResult> result =
@@ -644,51 +663,35 @@ public class NearestStopsFragment extends ListFragment
             final double latitude = args.getDouble(ARG_LATITUDE);
             final double longitude = args.getDouble(ARG_LONGITUDE);
             
-            // Calculate the bounds.
-            final double minX = latitude - LATITUDE_SPAN;
-            final double minY = longitude - LONGITUDE_SPAN;
-            final double maxX = latitude + LATITUDE_SPAN;
-            final double maxY = longitude + LONGITUDE_SPAN;
+            // The stop catalogue is built once and shared, so the database is
+            // not queried here unless the catalogue needs to be (re)built.
+            final BusStopCatalogue catalogue = bsd.getStopCatalogue();
+            if(catalogue == null) return result;
             
-            // Do not let anything else touch the stop database while we are
-            // querying it.
-            synchronized(bsd) {
-                Cursor c;
-                // What query is executed depends on whether services are being
-                // filtered or not.
-                if(args.containsKey(ARG_FILTERED_SERVICES)) {
-                    c = bsd.getFilteredStopsByCoords(minX, minY, maxX, maxY,
-                            args.getStringArray(ARG_FILTERED_SERVICES));
-                } else {
-                    c = bsd.getBusStopsByCoords(minX, minY, maxX, maxY);
-                }
-                
-                // Defensive programming!
-                if(c != null) {
-                    // We don't care about the bearings so a float array of only
-                    // 1 in size is required.
-                    final float[] distance = new float[1];
-                    distance[0] = 0f;
-                    
-                    // Loop through all results.
-                    while(c.moveToNext()) {
-                        // Use the Location class in the Android framework to
-                        // compute the distance between the handset and the bus
-                        // stop.
-                        Location.distanceBetween(latitude, longitude,
-                                c.getDouble(2), c.getDouble(3), distance);
-                        final String stopCode = c.getString(0);
-                        // Create a new SearchResult and add it to the results
-                        // list.
-                        result.add(new SearchResult(stopCode, c.getString(1),
-                                BusStopDatabase.getColouredServiceListString(
-                                bsd.getBusServicesForStopAsString(stopCode)),
-                                distance[0], c.getInt(4), c.getString(5)));
-                    }
-                    
-                    // Cursor is no longer needed, free the resource.
-                    c.close();
-                }
+            final String[] filteredServices =
+                    args.containsKey(ARG_FILTERED_SERVICES) ?
+                    args.getStringArray(ARG_FILTERED_SERVICES) : null;
+            final int[] stops = catalogue.findWithinRadius(latitude,
+                    longitude, SEARCH_RADIUS, filteredServices);
+            
+            // We don't care about the bearings so a float array of only 1 in
+            // size is required.
+            final float[] distance = new float[1];
+            distance[0] = 0f;
+            
+            for(int stop : stops) {
+                // Use the Location class in the Android framework to compute
+                // the distance between the handset and the bus stop.
+                Location.distanceBetween(latitude, longitude,
+                        catalogue.getLatitude(stop),
+                        catalogue.getLongitude(stop), distance);
+                // Create a new SearchResult and add it to the results list.
+                result.add(new SearchResult(catalogue.getStopCode(stop),
+                        catalogue.getStopName(stop),
+                        BusStopDatabase.getColouredServiceListString(
+                        catalogue.getServicesString(stop)), distance[0],
+                        catalogue.getOrientation(stop),
+                        catalogue.getLocality(stop)));
             }
             
             // Sort the bus stop results in order of distance from the handset.
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.livetimes;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.GradientDrawable;
+import android.os.Build;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.TextView;
+import java.util.ArrayList;
+import java.util.HashMap;
+import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
+import uk.org.rivernile.edinburghbustracker.android.R;
+
+/**
+ * The DeparturesAdapter shows the departures from a bus stop in an
+ * ExpandableListView. Each group is a bus service showing its next
+ * departure, and the children are the departures after that.
+ * 
+ * The rows are owned by a DeparturesPresenter, which updates them in place
+ * when new departures are loaded. Group IDs are stable for each service, so
+ * the ExpandableListView keeps the expanded services expanded when the data
+ * changes. The colours of services are loaded once per service rather than
+ * on every refresh.
+ * 
+ * @author Niall Scott
+ */
+public class DeparturesAdapter extends BaseExpandableListAdapter {
+    
+    private final Context context;
+    private final LayoutInflater inflater;
+    private final BusStopDatabase bsd;
+    private final int defaultColour;
+    private final HashMap<String, Integer> colours =
+            new HashMap<String, Integer>();
+    private ArrayList<ServiceRow> rows = new ArrayList<ServiceRow>();
+    
+    /**
+     * Create a new DeparturesAdapter.
+     * 
+     * @param context A Context instance.
+     */
+    public DeparturesAdapter(final Context context) {
+        this.context = context;
+        inflater = LayoutInflater.from(context);
+        bsd = BusStopDatabase.getInstance(context.getApplicationContext());
+        defaultColour = context.getResources()
+                .getColor(R.color.defaultBusColour);
+    }
+    
+    /**
+     * Get the name of the service shown at a group position.
+     * 
+     * @param groupPosition The position of the group.
+     * @return The name of the service.
+     */
+    public String getServiceName(final int groupPosition) {
+        return rows.get(groupPosition).serviceName;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getGroupCount() {
+        return rows.size();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getChildrenCount(final int groupPosition) {
+        return Math.max(0, rows.get(groupPosition).count - 1);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getGroup(final int groupPosition) {
+        return rows.get(groupPosition);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getChild(final int groupPosition, final int childPosition) {
+        return rows.get(groupPosition).destinations[childPosition + 1];
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getGroupId(final int groupPosition) {
+        return rows.get(groupPosition).id;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getChildId(final int groupPosition, final int childPosition) {
+        return childPosition;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isChildSelectable(final int groupPosition,
+            final int childPosition) {
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public View getGroupView(final int groupPosition, final boolean isExpanded,
+            final View convertView, final ViewGroup parent) {
+        final View v;
+        final GroupViewHolder holder;
+        if(convertView == null) {
+            v = inflater.inflate(R.layout.expandable_list_group, parent,
+                    false);
+            holder = new GroupViewHolder(v);
+            v.setTag(holder);
+        } else {
+            v = convertView;
+            holder = (GroupViewHolder)v.getTag();
+        }
+        
+        final ServiceRow row = rows.get(groupPosition);
+        holder.txtService.setText(row.displayName);
+        if(row.count > 0) {
+            holder.txtDestination.setText(row.destinations[0]);
+            holder.txtTime.setText(row.times[0]);
+        } else {
+            holder.txtDestination.setText(null);
+            holder.txtTime.setText(null);
+        }
+        
+        if(holder.background != null) {
+            holder.background.setColor(getServiceColour(row.serviceName));
+        }
+        
+        return v;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public View getChildView(final int groupPosition, final int childPosition,
+            final boolean isLastChild, final View convertView,
+            final ViewGroup parent) {
+        final View v;
+        final ChildViewHolder holder;
+        if(convertView == null) {
+            v = inflater.inflate(R.layout.expandable_list_child, parent,
+                    false);
+            holder = new ChildViewHolder(v);
+            v.setTag(holder);
+        } else {
+            v = convertView;
+            holder = (ChildViewHolder)v.getTag();
+        }
+        
+        final ServiceRow row = rows.get(groupPosition);
+        holder.txtDestination.setText(row.destinations[childPosition + 1]);
+        holder.txtTime.setText(row.times[childPosition + 1]);
+        
+        return v;
+    }
+    
+    /**
+     * Set the rows shown by this adapter. This does not notify the observers,
+     * as the presenter only does that when something has changed.
+     * 
+     * @param rows The rows to show.
+     */
+    void setRows(final ArrayList<ServiceRow> rows) {
+        this.rows = rows;
+    }
+    
+    /**
+     * Load the colours of services which have not been seen before. This
+     * needs to be called before rows for the services are shown.
+     * 
+     * @param services The services to load the colours for.
+     */
+    void loadColours(final ArrayList<String> services) {
+        final HashMap<String, String> hexColours = bsd.getServiceColours(
+                services.toArray(new String[services.size()]));
+        
+        for(String service : services) {
+            int colour = defaultColour;
+            final String hexColour = hexColours.get(service);
+            
+            if(hexColour != null) {
+                try {
+                    colour = Color.parseColor(hexColour);
+                } catch(IllegalArgumentException e) {
+                    // If it cannot be parsed, use the default colour.
+                }
+            }
+            
+            colours.put(service, colour);
+        }
+    }
+    
+    /**
+     * Get the background colour of a service.
+     * 
+     * @param service The name of the service.
+     * @return The background colour of the service.
+     */
+    private int getServiceColour(final String service) {
+        // Night services are treated differently to the rest.
+        if(service.startsWith("N")) {
+            return Color.BLACK;
+        }
+        
+        final Integer colour = colours.get(service);
+        return colour != null ? colour : defaultColour;
+    }
+    
+    /**
+     * The departures of a single service. The departures are held as the
+     * Strings which are shown, so they are only formatted when they change.
+     */
+    static class ServiceRow {
+        
+        final String serviceName;
+        final CharSequence displayName;
+        final long id;
+        String[] destinations = new String[4];
+        String[] times = new String[4];
+        int count;
+        int generation;
+        
+        /**
+         * Create a new ServiceRow.
+         * 
+         * @param serviceName The name of the service.
+         * @param id The stable ID of the row.
+         */
+        ServiceRow(final String serviceName, final long id) {
+            this.serviceName = serviceName;
+            this.id = id;
+            // The 'N' in night services is coloured.
+            displayName = serviceName.startsWith("N") ?
+                    BusStopDatabase.getColouredServiceListString(serviceName) :
+                    serviceName;
+        }
+        
+        /**
+         * Set a departure in this row.
+         * 
+         * @param index The index of the departure. This must not be more than
+         * the number of departures already set.
+         * @param destination The destination to show.
+         * @param time The time to show.
+         * @return true if the departure has changed, false if not.
+         */
+        boolean set(final int index, final String destination,
+                final String time) {
+            if(index == destinations.length) {
+                final int newLength = index * 2;
+                destinations = copyOf(destinations, newLength);
+                times = copyOf(times, newLength);
+            }
+            
+            final boolean changed = index >= count ||
+                    !destination.equals(destinations[index]) ||
+                    !time.equals(times[index]);
+            destinations[index] = destination;
+            times[index] = time;
+            
+            return changed;
+        }
+        
+        /**
+         * Set the number of departures in this row.
+         * 
+         * @param newCount The number of departures.
+         * @return true if the number of departures has changed, false if not.
+         */
+        boolean setCount(final int newCount) {
+            final boolean changed = newCount != count;
+            for(int i = newCount; i < count; i++) {
+                destinations[i] = null;
+                times[i] = null;
+            }
+            
+            count = newCount;
+            
+            return changed;
+        }
+        
+        /**
+         * Copy an array in to a new array of a different length.
+         * 
+         * @param array The array to copy.
+         * @param length The length of the new array.
+         * @return The new array.
+         */
+        private static String[] copyOf(final String[] array,
+                final int length) {
+            final String[] result = new String[length];
+            System.arraycopy(array, 0, result, 0,
+                    Math.min(array.length, length));
+            
+            return result;
+        }
+    }
+    
+    /**
+     * This holds the Views of a group, so they only need to be found once.
+     */
+    private class GroupViewHolder {
+        
+        final TextView txtService;
+        final TextView txtDestination;
+        final TextView txtTime;
+        final GradientDrawable background;
+        
+        /**
+         * Create a new GroupViewHolder.
+         * 
+         * @param v The group View.
+         */
+        @SuppressLint({"NewApi"})
+        GroupViewHolder(final View v) {
+            txtService = (TextView)v.findViewById(R.id.buslist_service);
+            txtDestination = (TextView)v.findViewById(
+                    R.id.buslist_destination);
+            txtTime = (TextView)v.findViewById(R.id.buslist_time);
+            
+            // Get the Drawable which makes up the rectangle in the background
+            // with the rounded corners. Make it mutable so it doesn't affect
+            // other instances of the same Drawable.
+            final Drawable d = context.getResources()
+                    .getDrawable(R.drawable.bus_service_rounded_background)
+                    .mutate();
+            if(d instanceof GradientDrawable) {
+                background = (GradientDrawable)d;
+                
+                if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    txtService.setBackground(background);
+                } else {
+                    txtService.setBackgroundDrawable(background);
+                }
+            } else {
+                background = null;
+                txtService.setTextColor(Color.BLACK);
+            }
+        }
+    }
+    
+    /**
+     * This holds the Views of a child, so they only need to be found once.
+     */
+    private static class ChildViewHolder {
+        
+        final TextView txtDestination;
+        final TextView txtTime;
+        
+        /**
+         * Create a new ChildViewHolder.
+         * 
+         * @param v The child View.
+         */
+        ChildViewHolder(final View v) {
+            txtDestination = (TextView)v.findViewById(
+                    R.id.buschild_destination);
+            txtTime = (TextView)v.findViewById(R.id.buschild_time);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.livetimes;
+
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import uk.org.rivernile.edinburghbustracker.android.R;
+import uk.org.rivernile.edinburghbustracker.android.livetimes
+        .DeparturesAdapter.ServiceRow;
+import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
+        .DeparturesSnapshot;
+
+/**
+ * The DeparturesPresenter turns the departures loaded for a bus stop in to
+ * the rows shown by a DeparturesAdapter.
+ * 
+ * The rows are kept between refreshes. Each time new departures are
+ * presented, they are compared against the rows already shown and only the
+ * rows that differ are changed. The adapter is only told its data has
+ * changed when something is different, so a refresh which brings back the
+ * same departures does not cause the list to be redrawn.
+ * 
+ * This must only be used from the main thread.
+ * 
+ * @author Niall Scott
+ */
+public class DeparturesPresenter {
+    
+    private final DeparturesAdapter adapter;
+    private final String divertedText;
+    private final HashMap<String, ServiceRow> rowsByService =
+            new HashMap<String, ServiceRow>();
+    private ArrayList<ServiceRow> shownRows = new ArrayList<ServiceRow>();
+    private ArrayList<ServiceRow> newRows = new ArrayList<ServiceRow>();
+    private final ArrayList<String> newServices = new ArrayList<String>();
+    private long nextId = 0;
+    private int generation = 0;
+    
+    /**
+     * Create a new DeparturesPresenter.
+     * 
+     * @param context A Context instance.
+     * @param adapter The adapter to show the departures in.
+     */
+    public DeparturesPresenter(final Context context,
+            final DeparturesAdapter adapter) {
+        this.adapter = adapter;
+        divertedText = context.getString(R.string.displaystopdata_diverted);
+        
+        adapter.setRows(shownRows);
+    }
+    
+    /**
+     * Present the departures from a bus stop.
+     * 
+     * @param departures The departures to show.
+     * @param sortByTime true if the services should be sorted by the time of
+     * their next departure, false if they should be sorted by name.
+     * @param showNightServices true if night services should be shown, false
+     * if not.
+     * @return true if what is shown has changed, false if it is the same as
+     * before.
+     */
+    public boolean present(final DeparturesSnapshot departures,
+            final boolean sortByTime, final boolean showNightServices) {
+        final int serviceCount = departures.getServiceCount();
+        
+        generation++;
+        newRows.clear();
+        newServices.clear();
+        boolean changed = false;
+        
+        for(int i = 0; i < serviceCount; i++) {
+            final int service = sortByTime ?
+                    departures.getServiceByTime(i) : i;
+            final String serviceName = departures.getServiceName(service);
+            if(!showNightServices && serviceName.startsWith("N")) continue;
+            
+            ServiceRow row = rowsByService.get(serviceName);
+            if(row == null) {
+                row = new ServiceRow(serviceName, nextId++);
+                rowsByService.put(serviceName, row);
+                newServices.add(serviceName);
+            }
+            
+            row.generation = generation;
+            if(updateRow(row, departures, service)) {
+                changed = true;
+            }
+            
+            newRows.add(row);
+        }
+        
+        // Forget about the services which are no longer shown.
+        final Iterator<ServiceRow> it = rowsByService.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().generation != generation) {
+                it.remove();
+            }
+        }
+        
+        // The rows are compared by identity, so this checks whether the
+        // services are shown in the same order.
+        if(!changed && !newRows.equals(shownRows)) {
+            changed = true;
+        }
+        
+        final ArrayList<ServiceRow> temp = shownRows;
+        shownRows = newRows;
+        newRows = temp;
+        
+        if(!newServices.isEmpty()) {
+            adapter.loadColours(newServices);
+        }
+        
+        adapter.setRows(shownRows);
+        if(changed) {
+            adapter.notifyDataSetChanged();
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * Update a row with the departures of a service.
+     * 
+     * @param row The row to update.
+     * @param departures The departures being shown.
+     * @param service The index of the service in the departures.
+     * @return true if the row has changed, false if not.
+     */
+    private boolean updateRow(final ServiceRow row,
+            final DeparturesSnapshot departures, final int service) {
+        final int count = departures.getDepartureCount(service);
+        boolean changed = false;
+        
+        for(int i = 0; i < count; i++) {
+            String destination = departures.getDestination(service, i);
+            final String time;
+            
+            if(departures.isDiverted(service, i)) {
+                // Special case if diverted.
+                time = "";
+                
+                // Destination may be null when it comes back from the web
+                // service. Display diverted notice accordingly.
+                if(destination != null) {
+                    destination += " (" + divertedText + ')';
+                } else {
+                    destination = divertedText;
+                }
+            } else {
+                time = getTimeToDisplay(departures, service, i);
+                
+                // If the destination is null, make it the empty string to
+                // prevent future problems.
+                if(destination == null) {
+                    destination = "";
+                }
+            }
+            
+            if(row.set(i, destination, time)) {
+                changed = true;
+            }
+        }
+        
+        if(row.setCount(count)) {
+            changed = true;
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * Get the time to show for a departure which is not diverted.
+     * 
+     * @param departures The departures being shown.
+     * @param service The index of the service in the departures.
+     * @param departure The index of the departure within the service.
+     * @return The time to show.
+     */
+    private static String getTimeToDisplay(final DeparturesSnapshot departures,
+            final int service, final int departure) {
+        // Get the number of minutes until arrival.
+        final int mins = departures.getArrivalMinutes(service, departure);
+        final String time;
+        if(mins > 59) {
+            // If more than 59 minutes, display the full time.
+            time = departures.getArrivalTime(service, departure);
+        } else if(mins < 2) {
+            // If the bus is due in less than 2 mins, show as due.
+            time = "DUE";
+        } else {
+            // Otherwise, display the number of minutes until arrival.
+            time = String.valueOf(mins);
+        }
+        
+        // If the time is estimated, prefix this to the time shown.
+        return departures.isEstimated(service, departure) ? '*' + time : time;
+    }
+}
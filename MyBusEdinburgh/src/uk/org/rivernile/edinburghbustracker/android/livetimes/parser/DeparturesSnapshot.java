@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.livetimes.parser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import uk.org.rivernile.android.bustracker.parser.livetimes.Bus;
+import uk.org.rivernile.android.bustracker.parser.livetimes.BusService;
+
+/**
+ * A DeparturesSnapshot is an immutable copy of the departures from an
+ * EdinburghBusStop, laid out so that it can be read many times without
+ * anything being copied or sorted again.
+ * 
+ * The services are sorted by name once, when the snapshot is created, and
+ * the order of the services by their next departure is worked out at the
+ * same time. Services are referred to by their index in the name order. The
+ * departures of all services are held in flat arrays, with the arrival
+ * minutes and reliability held as primitives.
+ * 
+ * As nothing can change after creation, a snapshot can be shared between
+ * threads. Snapshots are created by EdinburghBusStop.getDepartures().
+ * 
+ * @author Niall Scott
+ */
+public class DeparturesSnapshot {
+    
+    private final String stopCode;
+    private final String stopName;
+    private final boolean disruption;
+    
+    private final String[] serviceNames;
+    private final boolean[] serviceDisruptions;
+    private final int[] timeOrder;
+    
+    private final int[] departureStart;
+    private final String[] destinations;
+    private final String[] arrivalTimes;
+    private final int[] arrivalMinutes;
+    private final char[] reliabilities;
+    
+    /**
+     * Create a new DeparturesSnapshot of the departures from a bus stop. The
+     * lock on the bus stop must be held, so that the services are not changed
+     * while they are read.
+     * 
+     * @param busStop The bus stop to take the snapshot of.
+     * @param services The services of the bus stop, sorted by name. They are
+     * not changed.
+     */
+    DeparturesSnapshot(final EdinburghBusStop busStop,
+            final List<BusService> services) {
+        stopCode = busStop.getStopCode();
+        stopName = busStop.getStopName();
+        disruption = busStop.getDisruption();
+        
+        final int serviceCount = services.size();
+        serviceNames = new String[serviceCount];
+        serviceDisruptions = new boolean[serviceCount];
+        departureStart = new int[serviceCount + 1];
+        int departureCount = 0;
+        
+        for(int i = 0; i < serviceCount; i++) {
+            final BusService service = services.get(i);
+            serviceNames[i] = service.getServiceName();
+            serviceDisruptions[i] = service instanceof EdinburghBusService &&
+                    ((EdinburghBusService)service).getDisruption();
+            departureStart[i] = departureCount;
+            departureCount += service.getBusCount();
+        }
+        
+        departureStart[serviceCount] = departureCount;
+        destinations = new String[departureCount];
+        arrivalTimes = new String[departureCount];
+        arrivalMinutes = new int[departureCount];
+        reliabilities = new char[departureCount];
+        
+        int d = 0;
+        for(int i = 0; i < serviceCount; i++) {
+            final BusService service = services.get(i);
+            final int busCount = service.getBusCount();
+            for(int j = 0; j < busCount; j++) {
+                final Bus bus = service.getBus(j);
+                destinations[d] = bus.getDestination();
+                arrivalTimes[d] = bus.getArrivalTime();
+                
+                if(bus instanceof EdinburghBus) {
+                    final EdinburghBus edinBus = (EdinburghBus)bus;
+                    arrivalMinutes[d] = edinBus.getArrivalMinutes();
+                    reliabilities[d] = edinBus.getReliability();
+                } else {
+                    arrivalMinutes[d] = Integer.MAX_VALUE;
+                    reliabilities[d] = EdinburghBus.RELIABILITY_UNKNOWN;
+                }
+                
+                d++;
+            }
+        }
+        
+        timeOrder = sortByTime();
+    }
+    
+    /**
+     * Get the stop code of the bus stop.
+     * 
+     * @return The stop code of the bus stop.
+     */
+    public String getStopCode() {
+        return stopCode;
+    }
+    
+    /**
+     * Get the name of the bus stop.
+     * 
+     * @return The name of the bus stop.
+     */
+    public String getStopName() {
+        return stopName;
+    }
+    
+    /**
+     * Get the disruption status of the bus stop.
+     * 
+     * @return The disruption status of the bus stop.
+     */
+    public boolean getDisruption() {
+        return disruption;
+    }
+    
+    /**
+     * Get the number of services.
+     * 
+     * @return The number of services.
+     */
+    public int getServiceCount() {
+        return serviceNames.length;
+    }
+    
+    /**
+     * Get the name of a service.
+     * 
+     * @param service The index of the service, in name order.
+     * @return The name of the service.
+     */
+    public String getServiceName(final int service) {
+        return serviceNames[service];
+    }
+    
+    /**
+     * Get the disruption status of a service.
+     * 
+     * @param service The index of the service, in name order.
+     * @return The disruption status of the service.
+     */
+    public boolean getServiceDisruption(final int service) {
+        return serviceDisruptions[service];
+    }
+    
+    /**
+     * Get the names of all services, sorted by name. The List cannot be
+     * changed.
+     * 
+     * @return The names of all services.
+     */
+    public List<String> getServiceNames() {
+        return Collections.unmodifiableList(Arrays.asList(serviceNames));
+    }
+    
+    /**
+     * Get the index of a service.
+     * 
+     * @param serviceName The name of the service.
+     * @return The index of the service, or -1 if the service does not call at
+     * this stop.
+     */
+    public int indexOfService(final String serviceName) {
+        // There are only ever a few services at a stop.
+        for(int i = 0; i < serviceNames.length; i++) {
+            if(serviceNames[i].equals(serviceName)) return i;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Get the service at a position when the services are sorted by the time
+     * of their next departure. Services with no departures are last.
+     * 
+     * @param position The position in the time order.
+     * @return The index of the service, in name order.
+     */
+    public int getServiceByTime(final int position) {
+        return timeOrder[position];
+    }
+    
+    /**
+     * Get the number of departures of a service.
+     * 
+     * @param service The index of the service, in name order.
+     * @return The number of departures of the service.
+     */
+    public int getDepartureCount(final int service) {
+        return departureStart[service + 1] - departureStart[service];
+    }
+    
+    /**
+     * Get the destination of a departure. This can be null.
+     * 
+     * @param service The index of the service, in name order.
+     * @param departure The index of the departure within the service.
+     * @return The destination of the departure.
+     */
+    public String getDestination(final int service, final int departure) {
+        return destinations[departureStart[service] + departure];
+    }
+    
+    /**
+     * Get the arrival time of a departure, as given by the web service.
+     * 
+     * @param service The index of the service, in name order.
+     * @param departure The index of the departure within the service.
+     * @return The arrival time of the departure.
+     */
+    public String getArrivalTime(final int service, final int departure) {
+        return arrivalTimes[departureStart[service] + departure];
+    }
+    
+    /**
+     * Get the number of minutes until a departure.
+     * 
+     * @param service The index of the service, in name order.
+     * @param departure The index of the departure within the service.
+     * @return The number of minutes until the departure.
+     */
+    public int getArrivalMinutes(final int service, final int departure) {
+        return arrivalMinutes[departureStart[service] + departure];
+    }
+    
+    /**
+     * Get the reliability of a departure. This is one of the RELIABILITY_*
+     * constants in EdinburghBus.
+     * 
+     * @param service The index of the service, in name order.
+     * @param departure The index of the departure within the service.
+     * @return The reliability of the departure.
+     */
+    public char getReliability(final int service, final int departure) {
+        return reliabilities[departureStart[service] + departure];
+    }
+    
+    /**
+     * Get whether the time of a departure is estimated.
+     * 
+     * @param service The index of the service, in name order.
+     * @param departure The index of the departure within the service.
+     * @return true if the time is estimated, false if not.
+     */
+    public boolean isEstimated(final int service, final int departure) {
+        return getReliability(service, departure) ==
+                EdinburghBus.RELIABILITY_ESTIMATED;
+    }
+    
+    /**
+     * Get whether a departure is diverted.
+     * 
+     * @param service The index of the service, in name order.
+     * @param departure The index of the departure within the service.
+     * @return true if the departure is diverted, false if not.
+     */
+    public boolean isDiverted(final int service, final int departure) {
+        return getReliability(service, departure) ==
+                EdinburghBus.RELIABILITY_DIVERTED;
+    }
+    
+    /**
+     * Get the number of minutes until the next departure of a service.
+     * 
+     * @param service The index of the service, in name order.
+     * @return The number of minutes until the next departure, or -1 if the
+     * service has no departures.
+     */
+    public int getNextArrivalMinutes(final int service) {
+        return getDepartureCount(service) > 0 ?
+                arrivalMinutes[departureStart[service]] : -1;
+    }
+    
+    /**
+     * Work out the order of the services by the time of their next
+     * departure. The sort is stable, so services with the same time stay in
+     * name order. There are only ever a few services at a stop, so an
+     * insertion sort is used.
+     * 
+     * @return The indexes of the services, in time order.
+     */
+    private int[] sortByTime() {
+        final int count = serviceNames.length;
+        final int[] order = new int[count];
+        final int[] keys = new int[count];
+        
+        for(int i = 0; i < count; i++) {
+            final int key = getDepartureCount(i) > 0 ?
+                    arrivalMinutes[departureStart[i]] : Integer.MAX_VALUE;
+            int j = i;
+            
+            while(j > 0 && keys[j - 1] > key) {
+                order[j] = order[j - 1];
+                keys[j] = keys[j - 1];
+                j--;
+            }
+            
+            order[j] = i;
+            keys[j] = key;
+        }
+        
+        return order;
+    }
+}
@@ -25,21 +25,19 @@
 
 package uk.org.rivernile.edinburghbustracker.android.livetimes.parser;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusService;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusStop;
 
 /**
  * This is the Edinburgh specific implementation of a BusStop. Essentially it
- * adds sorting by time to the results.
+ * adds sorting by time to the results, through getDepartures().
  * 
  * @author Niall Scott
  */
 public class EdinburghBusStop extends BusStop {
     
     private final boolean disruption;
+    private DeparturesSnapshot departures;
     
     /**
      * Create a new EdinburghBusStop instance.
@@ -57,14 +55,39 @@ public class EdinburghBusStop extends BusStop {
     }
     
     /**
-     * Get the list sorted by time.
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addBusService(final BusService busService) {
+        super.addBusService(busService);
+        
+        // The snapshot no longer has all of the services.
+        departures = null;
+    }
+    
+    /**
+     * Get an immutable snapshot of the departures from this bus stop. The
+     * snapshot is only created once, so this is cheap to call many times.
+     * 
+     * @return The departures from this bus stop.
+     */
+    public synchronized DeparturesSnapshot getDepartures() {
+        if(departures == null) {
+            departures = createDepartures();
+        }
+        
+        return departures;
+    }
+    
+    /**
+     * Create a new snapshot of the departures from this bus stop. It is built
+     * straight from the services held by this bus stop, so they are not
+     * copied first.
      * 
-     * @return The list sorted by time.
+     * @return The departures from this bus stop.
      */
-    public ArrayList<BusService> getSortedByTimeBusServices() {
-        final ArrayList<BusService> busServices = getBusServices();
-        Collections.sort(busServices, serviceComparator);
-        return busServices;
+    synchronized DeparturesSnapshot createDepartures() {
+        return new DeparturesSnapshot(this, getSortedBusServices());
     }
     
     /**
@@ -75,17 +98,4 @@ public class EdinburghBusStop extends BusStop {
     public boolean getDisruption() {
         return disruption;
     }
-    
-    private static Comparator<BusService> serviceComparator =
-            new Comparator<BusService>() {
-        @Override
-        public int compare(final BusService a, final BusService b) {
-            final EdinburghBus busA = (EdinburghBus)a.getFirstBus();
-            final EdinburghBus busB = (EdinburghBus)b.getFirstBus();
-            
-            if(busA == null || busB == null) return 0;
-            
-            return busA.getArrivalMinutes() - busB.getArrivalMinutes();
-        }
-    };
 }
\ No newline at end of file
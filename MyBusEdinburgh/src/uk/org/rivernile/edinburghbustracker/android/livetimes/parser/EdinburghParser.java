@@ -25,20 +25,29 @@
 
 package uk.org.rivernile.edinburghbustracker.android.livetimes.parser;
 
-import java.io.BufferedInputStream;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Random;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import uk.org.rivernile.android.bustracker.parser.livetimes
+        .BatchedBusParser;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusParser;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusParserException;
 import uk.org.rivernile.android.bustracker.parser.livetimes.BusStop;
+import uk.org.rivernile.android.bustracker.parser.livetimes.CachingBusParser;
+import uk.org.rivernile.android.utils.HttpTransport;
 import uk.org.rivernile.edinburghbustracker.android.ApiKey;
+import uk.org.rivernile.edinburghbustracker.android.Endpoints;
 
 /**
  * This is the Edinburgh specific implementation of the bus times parser. To
@@ -59,11 +68,17 @@ public final class EdinburghParser implements BusParser {
     /** This error is called when the system is overloaded. */
     public static final byte ERROR_SYSTEM_OVERLOADED = 11;
     
-    private static final String URL =
-            "http://www.mybustracker.co.uk/ws.php?module=json&key=";
-    private static final Random rand = new Random(System.currentTimeMillis());
+    /** The maximum number of stop codes the API accepts in one request. */
+    public static final int MAX_STOP_CODES = 6;
     
-    private boolean globalDisruption = false;
+    private static final String URL_PATH = "ws.php?module=json&key=";
+    private static final String ENDPOINT = "getBusTimes";
+    private static final boolean isHoneycombOrGreater =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    
+    private static CachingBusParser cachingInstance;
+    
+    private volatile boolean globalDisruption = false;
     
     /**
      * Create a new EdinburghParser object.
@@ -72,6 +87,22 @@ public final class EdinburghParser implements BusParser {
         // Nothing to do here.
     }
     
+    /**
+     * Get the process-wide CachingBusParser which wraps an EdinburghParser.
+     * This should be used by anything that loads bus times so that the same
+     * stop is not requested multiple times at once.
+     * 
+     * @return The process-wide CachingBusParser.
+     */
+    public static synchronized CachingBusParser getCachingInstance() {
+        if(cachingInstance == null) {
+            cachingInstance = new CachingBusParser(new EdinburghParser(),
+                    CachingBusParser.DEFAULT_MAX_AGE);
+        }
+        
+        return cachingInstance;
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -80,9 +111,17 @@ public final class EdinburghParser implements BusParser {
             final int numDepartures) throws BusParserException {
         if(stopCodes == null || stopCodes.length == 0) return null;
         
+        // The API only accepts so many stop codes at once. Rather than drop
+        // the rest, split them in to multiple requests.
+        if(stopCodes.length > MAX_STOP_CODES) {
+            return new BatchedBusParser(this, MAX_STOP_CODES)
+                    .getBusStopData(stopCodes, numDepartures);
+        }
+        
         // Build the URL.
         final StringBuilder sb = new StringBuilder();
-        sb.append(URL);
+        sb.append(Endpoints.getBusTrackerUrl());
+        sb.append(URL_PATH);
         sb.append(ApiKey.getHashedKey());
         sb.append("&function=getBusTimes&");
         final int len = stopCodes.length;
@@ -93,8 +132,6 @@ public final class EdinburghParser implements BusParser {
             sb.append('&');
         } else {
             for(int i = 0; i < len; i++) {
-                if(i >= 6) break;
-                
                 sb.append("stopId");
                 sb.append(i + 1);
                 sb.append('=');
@@ -105,37 +142,34 @@ public final class EdinburghParser implements BusParser {
         
         sb.append("nb=");
         sb.append(numDepartures);
-        // Add a random arg so the response isn't cached by the network proxies.
-        sb.append("&random=");
-        sb.append(rand.nextInt());
         
-        // TODO: review this code. I'm sure it could be done better.
         try {
-            final URL url = new URL(sb.toString());
-            // Reset the StringBuilder because we're going to reuse it.
-            sb.setLength(0);
-            final HttpURLConnection conn = (HttpURLConnection)url
-                    .openConnection();
+            final HttpTransport.Response response = HttpTransport.getInstance()
+                    .open(ENDPOINT, sb.toString());
+            final String json;
+            
             try {
-                final BufferedInputStream is = new BufferedInputStream(
-                        conn.getInputStream());
-                // Check to see if the URL we connected to was what we expected.
-                if(!url.getHost().equals(conn.getURL().getHost())) {
-                    is.close();
-                    conn.disconnect();
-                    throw new BusParserException(ERROR_URLMISMATCH);
+                // JsonReader is only available on Honeycomb or greater. When
+                // it's available, build the model objects straight from the
+                // stream rather than holding the whole response in memory.
+                if(isHoneycombOrGreater) {
+                    return parseJSONStream(response.getInputStream());
                 }
                 
-                int data;
-                
-                while((data = is.read()) != -1) {
-                    sb.append((char)data);
-                }
+                json = response.readString();
+            } catch(BusParserException e) {
+                response.setFailed();
+                throw e;
+            } catch(IOException e) {
+                response.setFailed();
+                throw e;
             } finally {
-                conn.disconnect();
+                response.close();
             }
 
-            return parseJSON(sb.toString());
+            return parseJSON(json);
+        } catch(HttpTransport.HostMismatchException e) {
+            throw new BusParserException(ERROR_URLMISMATCH);
         } catch(MalformedURLException e) {
             throw new BusParserException(ERROR_CANNOTRESOLVE);
         } catch(IOException e) {
@@ -154,27 +188,15 @@ public final class EdinburghParser implements BusParser {
      * @throws JSONException When a JSON exception occurs.
      * @throws BusParserException When a BusParserException occurs.
      */
-    private HashMap<String, BusStop> parseJSON(final String jsonString)
+    HashMap<String, BusStop> parseJSON(final String jsonString)
             throws JSONException, BusParserException {
         final HashMap<String, BusStop> data = new HashMap<String, BusStop>();
         JSONObject jo = new JSONObject(jsonString);
         
         // Check to see if the API returns errors.
         if(jo.has("faultcode")) {
-            final String err = jo.getString("faultcode");
-            if("INVALID_APP_KEY".equals(err)) {
-                throw new BusParserException(ERROR_INVALID_APP_KEY);
-            } else if("INVALID_PARAMETER".equals(err)) {
-                throw new BusParserException(ERROR_INVALID_PARAMETER);
-            } else if("PROCESSING_ERROR".equals(err)) {
-                throw new BusParserException(ERROR_PROCESSING_ERROR);
-            } else if("SYSTEM_MAINTENANCE".equals(err)) {
-                throw new BusParserException(ERROR_SYSTEM_MAINTENANCE);
-            } else if("SYSTEM_OVERLOADED".equals(err)) {
-                throw new BusParserException(ERROR_SYSTEM_OVERLOADED);
-            } else {
-                throw new BusParserException(ERROR_UNKNOWN);
-            }
+            throw new BusParserException(
+                    getFaultCodeError(jo.getString("faultcode")));
         }
         
         final JSONArray ja = jo.getJSONArray("busTimes");
@@ -215,6 +237,331 @@ public final class EdinburghParser implements BusParser {
         return data;
     }
     
+    /**
+     * Parse the JSON returned from the bus tracker web services directly from
+     * the stream. Unlike parseJSON(), the response is never held in memory as
+     * a String or as a tree of JSONObjects, the model objects are created as
+     * the data is read.
+     * 
+     * @param in The InputStream to read the JSON from.
+     * @return A HashMap which has String -> BusStop mappings containing the
+     * bus stop data.
+     * @throws IOException When there was a problem reading from the stream.
+     * @throws BusParserException When a BusParserException occurs.
+     */
+    @TargetApi(11)
+    HashMap<String, BusStop> parseJSONStream(final InputStream in)
+            throws IOException, BusParserException {
+        final HashMap<String, BusStop> data = new HashMap<String, BusStop>();
+        final JsonReader reader = new JsonReader(
+                new InputStreamReader(in, "UTF-8"));
+        boolean hasBusTimes = false;
+        int count = 0;
+        
+        try {
+            reader.beginObject();
+            
+            while(reader.hasNext()) {
+                final String name = reader.nextName();
+                
+                if("faultcode".equals(name)) {
+                    // The API has returned an error.
+                    throw new BusParserException(
+                            getFaultCodeError(nextStringOrNull(reader)));
+                } else if("busTimes".equals(name)) {
+                    hasBusTimes = true;
+                    reader.beginArray();
+                    
+                    while(reader.hasNext()) {
+                        parseBusTimesEntry(reader, data);
+                        count++;
+                    }
+                    
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            
+            reader.endObject();
+        } catch(MalformedJsonException e) {
+            throw new BusParserException(ERROR_PARSEERR);
+        } catch(IllegalStateException e) {
+            // Thrown by JsonReader when the JSON isn't of the expected shape.
+            throw new BusParserException(ERROR_PARSEERR);
+        } finally {
+            reader.close();
+        }
+        
+        if(!hasBusTimes) {
+            throw new BusParserException(ERROR_PARSEERR);
+        } else if(count == 0) {
+            // Make sure there were array elements.
+            throw new BusParserException(ERROR_NODATA);
+        }
+        
+        return data;
+    }
+    
+    /**
+     * Parse a single element of the busTimes array from the stream. Each
+     * element describes a single service at a bus stop. If the bus stop has
+     * not been seen before, it is created and added to data.
+     * 
+     * @param reader The JsonReader, positioned at the start of the element.
+     * @param data The HashMap of stopCode -> BusStop to add the data to.
+     * @throws IOException When there was a problem reading from the stream.
+     * @throws BusParserException When a BusParserException occurs.
+     */
+    @TargetApi(11)
+    private void parseBusTimesEntry(final JsonReader reader,
+            final HashMap<String, BusStop> data)
+            throws IOException, BusParserException {
+        // The order of the keys is not guaranteed, so hold on to the values
+        // until the whole element has been read.
+        Boolean global = null, stopDisruption = null, serviceDisruption = null;
+        String stopId = null, stopName = null, mnemoService = null,
+                nameService = null;
+        ArrayList<EdinburghBus> buses = null;
+        
+        reader.beginObject();
+        
+        while(reader.hasNext()) {
+            final String name = reader.nextName();
+            
+            if("globalDisruption".equals(name)) {
+                global = nextBooleanOrNull(reader);
+            } else if("stopId".equals(name)) {
+                stopId = nextStringOrNull(reader);
+            } else if("stopName".equals(name)) {
+                stopName = nextStringOrNull(reader);
+            } else if("busStopDisruption".equals(name)) {
+                stopDisruption = nextBooleanOrNull(reader);
+            } else if("mnemoService".equals(name)) {
+                mnemoService = nextStringOrNull(reader);
+            } else if("nameService".equals(name)) {
+                nameService = nextStringOrNull(reader);
+            } else if("serviceDisruption".equals(name)) {
+                serviceDisruption = nextBooleanOrNull(reader);
+            } else if("timeDatas".equals(name)
+                    && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                buses = new ArrayList<EdinburghBus>();
+                reader.beginArray();
+                
+                // Loop through the times for each bus.
+                while(reader.hasNext()) {
+                    final EdinburghBus bus = parseEdinburghBus(reader);
+                    if(bus != null) {
+                        buses.add(bus);
+                    }
+                }
+                
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        
+        reader.endObject();
+        
+        // These are mandatory, as they are when parsing with JSONObject.
+        if(global == null || stopId == null) {
+            throw new BusParserException(ERROR_PARSEERR);
+        }
+        
+        // Check to see if there are any global disruptions.
+        globalDisruption = global;
+        // Get data for the bus stop.
+        EdinburghBusStop currentBusStop = (EdinburghBusStop)data.get(stopId);
+        if(currentBusStop == null) {
+            if(stopName == null || stopDisruption == null) return;
+            
+            try {
+                currentBusStop = new EdinburghBusStop(stopId, stopName,
+                        stopDisruption);
+            } catch(IllegalArgumentException e) {
+                return;
+            }
+            
+            data.put(stopId, currentBusStop);
+        }
+        
+        if(mnemoService == null || nameService == null ||
+                serviceDisruption == null || buses == null) return;
+        
+        // Add a bus service to the current bus stop.
+        final EdinburghBusService service;
+        try {
+            service = new EdinburghBusService(
+                    serviceNameConversion(mnemoService), nameService,
+                    serviceDisruption);
+        } catch(IllegalArgumentException e) {
+            return;
+        }
+        
+        for(EdinburghBus bus : buses) {
+            service.addBus(bus);
+        }
+        
+        currentBusStop.addBusService(service);
+    }
+    
+    /**
+     * Create an EdinburghBus object from the stream.
+     * 
+     * @param reader The JsonReader, positioned at the start of the bus object.
+     * @return An EdinburghBus object, or null if there was a problem.
+     * @throws IOException When there was a problem reading from the stream.
+     */
+    @TargetApi(11)
+    private static EdinburghBus parseEdinburghBus(final JsonReader reader)
+            throws IOException {
+        if(reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        
+        String nameDest = null, time = null, reliability = null, type = null,
+                terminus = null;
+        Integer day = null, minutes = null;
+        
+        reader.beginObject();
+        
+        while(reader.hasNext()) {
+            final String name = reader.nextName();
+            
+            if("nameDest".equals(name)) {
+                nameDest = nextStringOrNull(reader);
+            } else if("day".equals(name)) {
+                day = nextIntOrNull(reader);
+            } else if("time".equals(name)) {
+                time = nextStringOrNull(reader);
+            } else if("minutes".equals(name)) {
+                minutes = nextIntOrNull(reader);
+            } else if("reliability".equals(name)) {
+                reliability = nextStringOrNull(reader);
+            } else if("type".equals(name)) {
+                type = nextStringOrNull(reader);
+            } else if("terminus".equals(name)) {
+                terminus = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        
+        reader.endObject();
+        
+        if(nameDest == null || day == null || time == null || minutes == null
+                || reliability == null || reliability.length() == 0
+                || type == null || type.length() == 0 || terminus == null) {
+            return null;
+        }
+        
+        try {
+            return new EdinburghBus(nameDest, day, time, minutes,
+                    reliability.charAt(0), type.charAt(0), terminus);
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Get the next value from the reader as a String. Numbers are coerced in to
+     * Strings, as JSONObject.getString() does.
+     * 
+     * @param reader The JsonReader to read from.
+     * @return The String value, or null if the value was not a String.
+     * @throws IOException When there was a problem reading from the stream.
+     */
+    @TargetApi(11)
+    private static String nextStringOrNull(final JsonReader reader)
+            throws IOException {
+        final JsonToken token = reader.peek();
+        if(token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        
+        reader.skipValue();
+        return null;
+    }
+    
+    /**
+     * Get the next value from the reader as a Boolean. The Strings "true" and
+     * "false" are accepted, as JSONObject.getBoolean() does.
+     * 
+     * @param reader The JsonReader to read from.
+     * @return The Boolean value, or null if the value was not a boolean.
+     * @throws IOException When there was a problem reading from the stream.
+     */
+    @TargetApi(11)
+    private static Boolean nextBooleanOrNull(final JsonReader reader)
+            throws IOException {
+        final JsonToken token = reader.peek();
+        if(token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        } else if(token == JsonToken.STRING) {
+            final String value = reader.nextString();
+            if("true".equalsIgnoreCase(value)) {
+                return Boolean.TRUE;
+            } else if("false".equalsIgnoreCase(value)) {
+                return Boolean.FALSE;
+            }
+            
+            return null;
+        }
+        
+        reader.skipValue();
+        return null;
+    }
+    
+    /**
+     * Get the next value from the reader as an Integer. Numeric Strings are
+     * accepted, as JSONObject.getInt() does.
+     * 
+     * @param reader The JsonReader to read from.
+     * @return The Integer value, or null if the value was not an int.
+     * @throws IOException When there was a problem reading from the stream.
+     */
+    @TargetApi(11)
+    private static Integer nextIntOrNull(final JsonReader reader)
+            throws IOException {
+        final JsonToken token = reader.peek();
+        if(token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return reader.nextInt();
+            } catch(NumberFormatException e) {
+                // The value is not consumed when it can't be parsed.
+            }
+        }
+        
+        reader.skipValue();
+        return null;
+    }
+    
+    /**
+     * Convert a faultcode returned by the bus tracker web services in to an
+     * error code.
+     * 
+     * @param faultCode The faultcode returned by the web service.
+     * @return The error code that maps to the faultcode. ERROR_UNKNOWN is
+     * returned if the faultcode is not known.
+     */
+    private static byte getFaultCodeError(final String faultCode) {
+        if("INVALID_APP_KEY".equals(faultCode)) {
+            return ERROR_INVALID_APP_KEY;
+        } else if("INVALID_PARAMETER".equals(faultCode)) {
+            return ERROR_INVALID_PARAMETER;
+        } else if("PROCESSING_ERROR".equals(faultCode)) {
+            return ERROR_PROCESSING_ERROR;
+        } else if("SYSTEM_MAINTENANCE".equals(faultCode)) {
+            return ERROR_SYSTEM_MAINTENANCE;
+        } else if("SYSTEM_OVERLOADED".equals(faultCode)) {
+            return ERROR_SYSTEM_OVERLOADED;
+        } else {
+            return ERROR_UNKNOWN;
+        }
+    }
+    
     /**
      * Create an EdinburghBusStop object from a JSONObject.
      * 
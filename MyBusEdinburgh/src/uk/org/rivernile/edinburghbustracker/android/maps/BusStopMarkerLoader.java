@@ -26,18 +26,28 @@
 package uk.org.rivernile.edinburghbustracker.android.maps;
 
 import android.content.Context;
-import android.database.Cursor;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import android.content.res.Resources;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.MarkerOptions;
 import java.util.HashMap;
+import uk.org.rivernile.android.utils.Metrics;
 import uk.org.rivernile.android.utils.SimpleResultLoader;
+import uk.org.rivernile.edinburghbustracker.android.BusStopCatalogue;
 import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
 import uk.org.rivernile.edinburghbustracker.android.R;
 
 /**
  * This Loader retrieves the bus stops for a given area from the bus stop
- * database and outputs the bus stops as a HashMap of MarkerOptions objects.
+ * catalogue and outputs the bus stops as a HashMap of MarkerOptions objects.
+ * 
+ * It is only used when the map is zoomed out below CLUSTER_ZOOM_LEVEL. Stops
+ * which are close together are grouped in to cluster markers which show the
+ * number of stops in them. When zoomed in, BusStopTileLoader loads the
+ * individual stops instead.
+ * 
+ * The keys of cluster markers start with CLUSTER_KEY_PREFIX and include the
+ * number of stops, so a cluster which changes gets a new key. Clusters of a
+ * single stop are shown as a normal stop marker, keyed by its stopCode.
  * 
  * Optionally, a service filter can be specified where only services that are
  * contained in the filter are returned.
@@ -47,7 +57,17 @@ import uk.org.rivernile.edinburghbustracker.android.R;
 public class BusStopMarkerLoader
         extends SimpleResultLoader<HashMap<String, MarkerOptions>> {
     
-    private static final int MIN_ZOOM_LEVEL = 14;
+    /** The prefix of the keys of cluster markers. */
+    public static final String CLUSTER_KEY_PREFIX = "cluster:";
+    /** Below this zoom level, stops are clustered. */
+    public static final int CLUSTER_ZOOM_LEVEL = 14;
+    
+    /** The size of each cluster cell, in density independent pixels. */
+    private static final double CLUSTER_CELL_SIZE = 64.0;
+    
+    private static final String SECTION_CLUSTERS =
+            "BusStopMarkerLoader.clusters";
+    private static final String COUNTER_MARKERS = "BusStopMarkerLoader.markers";
     
     private final BusStopDatabase bsd;
     
@@ -106,110 +126,100 @@ public class BusStopMarkerLoader
      */
     @Override
     public HashMap<String, MarkerOptions> loadInBackground() {
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_CLUSTERS);
+        final HashMap<String, MarkerOptions> result;
+        
+        try {
+            result = loadClusters();
+        } finally {
+            metrics.endSection(SECTION_CLUSTERS, start);
+        }
+        
+        metrics.add(COUNTER_MARKERS, result.size());
+        
+        return result;
+    }
+    
+    /**
+     * Load the stops in the area as clusters. Clusters with a single stop are
+     * shown as a normal stop marker.
+     * 
+     * @return A HashMap of the markers, keyed by stopCode for single stops and
+     * by cluster key for clusters.
+     */
+    private HashMap<String, MarkerOptions> loadClusters() {
         final HashMap<String, MarkerOptions> result =
                 new HashMap<String, MarkerOptions>();
+        final BusStopCatalogue catalogue = bsd.getStopCatalogue();
+        if(catalogue == null) return result;
+        
+        final StopClusterer clusterer = new StopClusterer(zoom,
+                CLUSTER_CELL_SIZE);
+        final double[] bounds = clusterer.getSearchBounds(minX, minY, maxX,
+                maxY);
+        final String[] services = filteredServices != null &&
+                filteredServices.length > 0 ? filteredServices : null;
+        final int[] stops = catalogue.findInBounds(bounds[0], bounds[1],
+                bounds[2], bounds[3], services);
         
-        // Does the zoom level satisfy the mininum zoom requirement?
-        if(zoom < MIN_ZOOM_LEVEL) return result;
+        final MarkerStyleCache styles = MarkerStyleCache.getInstance();
+        final Resources res = getContext().getResources();
+        int stop, count;
         
-        // When dealing with the Cursor externally to BusStopDatabase, then the
-        // BusStopDatabase instance needs to be synchronized. This is so that
-        // the database cannot be updated while it is being used.
-        synchronized(bsd) {
-            Cursor c;
+        for(StopClusterer.Cluster cluster :
+                clusterer.cluster(catalogue, stops)) {
+            count = cluster.getCount();
             
-            // What query to execute depends on whether filtering has been
-            // enabled or not.
-            if(filteredServices != null && filteredServices.length > 0) {
-                c = bsd.getFilteredStopsByCoords(minX, minY, maxX, maxY,
-                        filteredServices);
-            } else {
-                c = bsd.getBusStopsByCoords(minX, minY, maxX, maxY);
+            if(count == 1) {
+                stop = cluster.getFirstStop();
+                result.put(catalogue.getStopCode(stop), createStopMarker(
+                        catalogue.getStopCode(stop),
+                        catalogue.getLatitude(stop),
+                        catalogue.getLongitude(stop),
+                        catalogue.getOrientation(stop)));
+                continue;
             }
             
-            if(c != null) {
-                MarkerOptions mo;
-                int orientation;
-                String locality, stopCode, title;
-                
-                // Loop through all rows in the Cursor.
-                while(c.moveToNext()) {
-                    // Create a new MarkerOptions...
-                    mo = new MarkerOptions();
-                    // ...and set its options.
-                    mo.draggable(false);
-                    mo.anchor(0.5f, 1.f);
-                    
-                    // Get the stopCode.
-                    stopCode = c.getString(0);
-                    
-                    // Set the latitude and longitude.
-                    mo.position(new LatLng(c.getDouble(2), c.getDouble(3)));
-                    
-                    locality = c.getString(5);
-                    
-                    if(locality != null) {
-                        title = getContext().getString(
-                                R.string.busstop_locality, c.getString(1),
-                                locality, stopCode);
-                    } else {
-                        title = getContext().getString(
-                                R.string.busstop, c.getString(1), stopCode);
-                    }
-                    
-                    mo.title(title);
-                    
-                    orientation = c.getInt(4);
-                    
-                    // The icon to use depends on the orientation.
-                    switch(orientation) {
-                        case 0:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_n));
-                            break;
-                        case 1:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_ne));
-                            break;
-                        case 2:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_e));
-                            break;
-                        case 3:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_se));
-                            break;
-                        case 4:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_s));
-                            break;
-                        case 5:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_sw));
-                            break;
-                        case 6:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_w));
-                            break;
-                        case 7:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker_nw));
-                            break;
-                        default:
-                            mo.icon(BitmapDescriptorFactory.fromResource(
-                                    R.drawable.mapmarker));
-                            break;
-                    }
-                    
-                    // Add the marker to the result HashMap.
-                    result.put(stopCode, mo);
-                }
-                
-                // Remember to close the Cursor object.
-                c.close();
-            }
+            final MarkerOptions mo = new MarkerOptions();
+            mo.draggable(false);
+            mo.anchor(0.5f, 0.5f);
+            mo.position(new LatLng(cluster.getLatitude(),
+                    cluster.getLongitude()));
+            mo.title(res.getQuantityString(R.plurals.map_cluster_title, count,
+                    count));
+            mo.icon(styles.getClusterIcon(getContext(), count));
+            
+            result.put(CLUSTER_KEY_PREFIX + cluster.getKey() + ':' + count,
+                    mo);
         }
         
         return result;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Create the MarkerOptions for a single bus stop. The title of the marker
+     * is only the stopCode. Building the full title is left until the info
+     * window of the marker is about to be shown, as most markers never have
+     * their info window shown.
+     * 
+     * @param stopCode The stopCode of the bus stop.
+     * @param latitude The latitude of the bus stop.
+     * @param longitude The longitude of the bus stop.
+     * @param orientation The orientation of the bus stop.
+     * @return The MarkerOptions for the bus stop.
+     */
+    static MarkerOptions createStopMarker(final String stopCode,
+            final double latitude, final double longitude,
+            final int orientation) {
+        final MarkerOptions mo = new MarkerOptions();
+        mo.draggable(false);
+        mo.anchor(0.5f, 1.f);
+        mo.position(new LatLng(latitude, longitude));
+        mo.title(stopCode);
+        // The icon to use depends on the orientation.
+        mo.icon(MarkerStyleCache.getInstance().getStopIcon(orientation));
+        
+        return mo;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import android.content.Context;
+import android.database.Cursor;
+import com.google.android.gms.maps.model.MarkerOptions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import uk.org.rivernile.android.utils.Metrics;
+import uk.org.rivernile.android.utils.SimpleResultLoader;
+import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
+
+/**
+ * This Loader retrieves the bus stops for a set of StopTileCache tiles from
+ * the bus stop database. Neighbouring tiles in the same row are loaded with a
+ * single query for the strip they make up, and the stops are then split in
+ * to their tiles. Every requested tile
+ * is in the result, even if it has no stops, so that empty tiles are not
+ * loaded again.
+ * 
+ * Optionally, a service filter can be specified where only services that are
+ * contained in the filter are returned.
+ * 
+ * @author Niall Scott
+ */
+public class BusStopTileLoader extends SimpleResultLoader<
+        HashMap<Long, HashMap<String, MarkerOptions>>> {
+    
+    private static final String SECTION_LOAD = "BusStopTileLoader.load";
+    private static final String COUNTER_TILES = "BusStopTileLoader.tiles";
+    private static final String COUNTER_QUERIES = "BusStopTileLoader.queries";
+    
+    private final BusStopDatabase bsd;
+    private final long[] tiles;
+    private final String[] filteredServices;
+    private volatile int generation;
+    
+    /**
+     * Create a new BusStopTileLoader.
+     * 
+     * @param context A Context instance.
+     * @param tiles The keys of the tiles to load.
+     * @param filteredServices A String array of the only services to show, or
+     * null to show all services.
+     */
+    public BusStopTileLoader(final Context context, final long[] tiles,
+            final String[] filteredServices) {
+        super(context);
+        
+        bsd = BusStopDatabase.getInstance(context.getApplicationContext());
+        
+        this.tiles = tiles;
+        this.filteredServices = filteredServices;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HashMap<Long, HashMap<String, MarkerOptions>> loadInBackground() {
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_LOAD);
+        
+        try {
+            return loadTiles(metrics);
+        } finally {
+            metrics.endSection(SECTION_LOAD, start);
+        }
+    }
+    
+    /**
+     * Load the stops in each of the tiles.
+     * 
+     * @param metrics Where to count the tiles and queries.
+     * @return A HashMap of tile key -> the markers in that tile, keyed by
+     * stopCode.
+     */
+    private HashMap<Long, HashMap<String, MarkerOptions>> loadTiles(
+            final Metrics metrics) {
+        final HashMap<Long, HashMap<String, MarkerOptions>> result =
+                new HashMap<Long, HashMap<String, MarkerOptions>>();
+        if(tiles == null || tiles.length == 0) return result;
+        
+        metrics.add(COUNTER_TILES, tiles.length);
+        for(long tile : tiles) {
+            result.put(tile, new HashMap<String, MarkerOptions>());
+        }
+        
+        // Sorting the keys puts the tiles in each row next to each other, in
+        // order of column.
+        final long[] sorted = tiles.clone();
+        Arrays.sort(sorted);
+        
+        // When dealing with the Cursor externally to BusStopDatabase, then the
+        // read lock needs to be held. This is so that the database cannot be
+        // updated while it is being used.
+        final Lock readLock = bsd.getReadLock();
+        readLock.lock();
+        try {
+            generation = bsd.getGeneration();
+            
+            // Query each run of neighbouring tiles in a row as one strip. The
+            // missing tiles are often an L shape around the tiles which have
+            // already been loaded, and querying the area covering all of them
+            // would load those tiles again.
+            int first = 0;
+            for(int i = 1; i <= sorted.length; i++) {
+                if(i < sorted.length && sorted[i] == sorted[i - 1] + 1 &&
+                        (sorted[i] >> 32) == (sorted[i - 1] >> 32)) {
+                    continue;
+                }
+                
+                loadStrip(sorted[first], sorted[i - 1], result);
+                metrics.increment(COUNTER_QUERIES);
+                first = i;
+            }
+        } finally {
+            readLock.unlock();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get the generation of the bus stop database that the tiles were loaded
+     * from. This is only valid once the load has finished.
+     * 
+     * @return The generation of the bus stop database.
+     * @see BusStopDatabase#getGeneration()
+     */
+    public int getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Load the stops in a strip of tiles in the same row. The read lock of
+     * the database must be held by the caller.
+     * 
+     * @param firstTile The key of the western most tile in the strip.
+     * @param lastTile The key of the eastern most tile in the strip.
+     * @param result Where to put the stops. It must already contain each tile
+     * in the strip.
+     */
+    private void loadStrip(final long firstTile, final long lastTile,
+            final HashMap<Long, HashMap<String, MarkerOptions>> result) {
+        final double[] first = StopTileCache.getTileBounds(firstTile);
+        final double[] last = StopTileCache.getTileBounds(lastTile);
+        
+        final Cursor c;
+        if(filteredServices != null && filteredServices.length > 0) {
+            c = bsd.getFilteredStopsByCoords(first[0], first[1], last[2],
+                    last[3], filteredServices);
+        } else {
+            c = bsd.getBusStopsByCoords(first[0], first[1], last[2], last[3]);
+        }
+        
+        if(c == null) return;
+        
+        HashMap<String, MarkerOptions> tile;
+        String stopCode;
+        double latitude, longitude;
+        
+        while(c.moveToNext()) {
+            latitude = c.getDouble(2);
+            longitude = c.getDouble(3);
+            // Stops on the edge of the strip may be in a neighbouring tile.
+            tile = result.get(StopTileCache.getTile(latitude, longitude));
+            if(tile == null) continue;
+            
+            stopCode = c.getString(0);
+            tile.put(stopCode, BusStopMarkerLoader.createStopMarker(stopCode,
+                    latitude, longitude, c.getInt(4)));
+        }
+        
+        c.close();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.support.v4.util.LruCache;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import uk.org.rivernile.edinburghbustracker.android.R;
+
+/**
+ * The MarkerStyleCache holds the icons used by bus stop and cluster markers,
+ * so they are not created again for every marker. Only a limited number of
+ * cluster icons are held. All methods are safe to call from any thread.
+ * 
+ * @author Niall Scott
+ */
+public class MarkerStyleCache {
+    
+    /** The diameter of a cluster icon, in density independent pixels. */
+    private static final float CLUSTER_ICON_SIZE = 36f;
+    /**
+     * The maximum number of cluster icons to hold. Every count needs its own
+     * icon, so the least recently used are removed once there are more than
+     * this.
+     */
+    private static final int MAX_CLUSTER_ICONS = 64;
+    
+    /**
+     * The bus stop icons, indexed by orientation. The last element is used
+     * when the orientation is not known.
+     */
+    private static final int[] STOP_ICONS = {
+        R.drawable.mapmarker_n, R.drawable.mapmarker_ne,
+        R.drawable.mapmarker_e, R.drawable.mapmarker_se,
+        R.drawable.mapmarker_s, R.drawable.mapmarker_sw,
+        R.drawable.mapmarker_w, R.drawable.mapmarker_nw,
+        R.drawable.mapmarker
+    };
+    
+    private static MarkerStyleCache instance;
+    
+    private final BitmapDescriptor[] stopIcons =
+            new BitmapDescriptor[STOP_ICONS.length];
+    private final LruCache<Integer, BitmapDescriptor> clusterIcons =
+            new LruCache<Integer, BitmapDescriptor>(MAX_CLUSTER_ICONS);
+    
+    /**
+     * Create a new MarkerStyleCache. Use getInstance() to get the instance.
+     */
+    private MarkerStyleCache() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Get the single instance of this class.
+     * 
+     * @return The instance of this class.
+     */
+    public static synchronized MarkerStyleCache getInstance() {
+        if(instance == null) instance = new MarkerStyleCache();
+        
+        return instance;
+    }
+    
+    /**
+     * Get the icon for a bus stop marker.
+     * 
+     * @param orientation The orientation of the bus stop, from 0 (north)
+     * clockwise to 7 (north west). Any other value gives the icon without a
+     * direction.
+     * @return The icon.
+     */
+    public synchronized BitmapDescriptor getStopIcon(final int orientation) {
+        final int index = orientation >= 0 &&
+                orientation < STOP_ICONS.length - 1 ? orientation :
+                        STOP_ICONS.length - 1;
+        
+        if(stopIcons[index] == null) {
+            stopIcons[index] = BitmapDescriptorFactory.fromResource(
+                    STOP_ICONS[index]);
+        }
+        
+        return stopIcons[index];
+    }
+    
+    /**
+     * Get the icon for a cluster marker, which is a circle with the number of
+     * stops in it.
+     * 
+     * @param context A Context instance.
+     * @param count The number of stops in the cluster.
+     * @return The icon.
+     */
+    public synchronized BitmapDescriptor getClusterIcon(final Context context,
+            final int count) {
+        BitmapDescriptor icon = clusterIcons.get(count);
+        if(icon == null) {
+            icon = createClusterIcon(context.getResources(), count);
+            clusterIcons.put(count, icon);
+        }
+        
+        return icon;
+    }
+    
+    /**
+     * Draw the icon for a cluster.
+     * 
+     * @param res The application Resources.
+     * @param count The number of stops in the cluster.
+     * @return The icon.
+     */
+    private static BitmapDescriptor createClusterIcon(final Resources res,
+            final int count) {
+        final float density = res.getDisplayMetrics().density;
+        final int size = (int)(CLUSTER_ICON_SIZE * density + 0.5f);
+        final float centre = size / 2f;
+        final Bitmap bitmap = Bitmap.createBitmap(size, size,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(0xffffffff);
+        canvas.drawCircle(centre, centre, centre, paint);
+        paint.setColor(res.getColor(R.color.actionBarColour));
+        canvas.drawCircle(centre, centre, centre - 2 * density, paint);
+        
+        final String text = String.valueOf(count);
+        paint.setColor(0xffffffff);
+        paint.setTypeface(Typeface.DEFAULT_BOLD);
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setTextSize((text.length() > 3 ? 11 : 13) * density);
+        canvas.drawText(text, centre,
+                centre - (paint.descent() + paint.ascent()) / 2, paint);
+        
+        return BitmapDescriptorFactory.fromBitmap(bitmap);
+    }
+}
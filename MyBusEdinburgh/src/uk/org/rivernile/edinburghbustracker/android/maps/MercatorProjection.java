@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+/**
+ * Converts between latitude and longitude and positions on the Mercator
+ * projection used by the map. Positions are for a world which is 1 wide and 1
+ * high, with the y axis pointing south. Multiply them by the size of the world
+ * at a zoom level to get pixels or tiles at that zoom level.
+ * 
+ * @author Niall Scott
+ */
+final class MercatorProjection {
+    
+    /** The projection is cut off north and south of this latitude. */
+    private static final double MAX_LATITUDE = 85.0;
+    
+    /**
+     * This class only has static methods.
+     */
+    private MercatorProjection() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Get the x position of a longitude.
+     * 
+     * @param longitude The longitude.
+     * @return The x position.
+     */
+    static double getX(final double longitude) {
+        return (longitude + 180.0) / 360.0;
+    }
+    
+    /**
+     * Get the y position of a latitude. Latitudes nearer the poles than
+     * MAX_LATITUDE are treated as MAX_LATITUDE, as the projection goes to
+     * infinity at the poles.
+     * 
+     * @param latitude The latitude.
+     * @return The y position.
+     */
+    static double getY(final double latitude) {
+        final double sin = Math.sin(Math.toRadians(
+                Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+    
+    /**
+     * Get the longitude of an x position.
+     * 
+     * @param x The x position.
+     * @return The longitude.
+     */
+    static double getLongitude(final double x) {
+        return x * 360.0 - 180.0;
+    }
+    
+    /**
+     * Get the latitude of a y position.
+     * 
+     * @param y The y position.
+     * @return The latitude.
+     */
+    static double getLatitude(final double y) {
+        final double n = Math.PI * (1 - 2 * y);
+        return Math.toDegrees(Math.atan(0.5 * (Math.exp(n) - Math.exp(-n))));
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import android.database.Cursor;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.PolylineOptions;
+import java.util.ArrayList;
+
+/**
+ * A RouteGeometry holds the route lines of a single bus service at several
+ * levels of detail. Each level is simplified with the Douglas-Peucker
+ * algorithm, with a tolerance of one screen pixel at the highest zoom level
+ * the level is used for, so the simplification cannot be seen on the map.
+ * 
+ * To keep the memory used small, the points are stored as the difference from
+ * the previous point, in microdegrees, written as variable length integers.
+ * Most points are close together, so they take up 2 to 4 bytes each rather
+ * than the 16 bytes of a pair of doubles.
+ * 
+ * A service can have more than one route line (known as "chainage"s). All
+ * levels have the same lines, so a Polyline can be switched between levels by
+ * giving it the points of the new level.
+ * 
+ * Instances of this class are immutable.
+ * 
+ * @author Niall Scott
+ */
+public class RouteGeometry {
+    
+    /**
+     * The lowest camera zoom each level is used at. Level 0 is the full
+     * detail.
+     */
+    private static final float[] LEVEL_MIN_ZOOM = { 16f, 14f, 12f, 10f, 0f };
+    /** The number of levels of detail. */
+    public static final int LEVEL_COUNT = LEVEL_MIN_ZOOM.length;
+    
+    private static final double MICRODEGREES = 1000000.0;
+    /** The width of the world in pixels at zoom level 0. */
+    private static final double WORLD_PIXELS = 256.0;
+    
+    private final int colour;
+    private final int lineCount;
+    private final byte[][] levelData;
+    private final int[][] lineOffsets;
+    private final int[][] linePoints;
+    
+    /**
+     * Create a new RouteGeometry. Use fromCursor() to construct a new instance.
+     * 
+     * @param colour The colour of the route lines.
+     * @param lineCount The number of lines.
+     * @param levelData The encoded points for each level.
+     * @param lineOffsets The offset in to the encoded points of the start of
+     * each line, for each level.
+     * @param linePoints The number of points in each line, for each level.
+     */
+    private RouteGeometry(final int colour, final int lineCount,
+            final byte[][] levelData, final int[][] lineOffsets,
+            final int[][] linePoints) {
+        this.colour = colour;
+        this.lineCount = lineCount;
+        this.levelData = levelData;
+        this.lineOffsets = lineOffsets;
+        this.linePoints = linePoints;
+    }
+    
+    /**
+     * Create a new RouteGeometry from a Cursor of service points, as returned
+     * by BusStopDatabase.getServicePointsForService(). The Cursor is read
+     * from its current position to the end, but it is not closed.
+     * 
+     * @param c The Cursor of service points. The columns must be chainage,
+     * latitude and longitude, ordered by chainage.
+     * @param colour The colour of the route lines.
+     * @return A new RouteGeometry.
+     */
+    public static RouteGeometry fromCursor(final Cursor c, final int colour) {
+        final int count = c.getCount();
+        final int[] lats = new int[count];
+        final int[] lons = new int[count];
+        // A line starts at each change of chainage. There is an extra element
+        // at the end, so the end of line i is at lineStarts[i + 1].
+        int[] lineStarts = new int[16];
+        int lineCount = 0;
+        int numPoints = 0;
+        int currentChainage = -1;
+        int chainage;
+        
+        while(c.moveToNext() && numPoints < count) {
+            chainage = c.getInt(0);
+            if(chainage != currentChainage || lineCount == 0) {
+                if(lineCount + 1 >= lineStarts.length) {
+                    lineStarts = grow(lineStarts);
+                }
+                
+                lineStarts[lineCount++] = numPoints;
+                currentChainage = chainage;
+            }
+            
+            lats[numPoints] = (int)Math.round(c.getDouble(1) * MICRODEGREES);
+            lons[numPoints] = (int)Math.round(c.getDouble(2) * MICRODEGREES);
+            numPoints++;
+        }
+        
+        lineStarts[lineCount] = numPoints;
+        
+        // Distances are measured with the longitude scaled by the cosine of
+        // the latitude, which makes them roughly equal in both directions.
+        final double lonScale = numPoints > 0 ?
+                Math.cos(Math.toRadians(lats[0] / MICRODEGREES)) : 1.0;
+        
+        final byte[][] levelData = new byte[LEVEL_COUNT][];
+        final int[][] lineOffsets = new int[LEVEL_COUNT][lineCount];
+        final int[][] linePoints = new int[LEVEL_COUNT][lineCount];
+        final boolean[] keep = new boolean[numPoints];
+        final Encoder encoder = new Encoder(numPoints * 4);
+        
+        for(int level = 0; level < LEVEL_COUNT; level++) {
+            final double tolerance = getTolerance(level, lonScale);
+            encoder.reset();
+            
+            for(int line = 0; line < lineCount; line++) {
+                final int start = lineStarts[line];
+                final int end = lineStarts[line + 1];
+                
+                simplify(lats, lons, start, end, lonScale, tolerance, keep);
+                lineOffsets[level][line] = encoder.size();
+                
+                int prevLat = 0, prevLon = 0, kept = 0;
+                for(int i = start; i < end; i++) {
+                    if(!keep[i]) continue;
+                    
+                    encoder.write(lats[i] - prevLat);
+                    encoder.write(lons[i] - prevLon);
+                    prevLat = lats[i];
+                    prevLon = lons[i];
+                    kept++;
+                }
+                
+                linePoints[level][line] = kept;
+            }
+            
+            levelData[level] = encoder.toByteArray();
+        }
+        
+        return new RouteGeometry(colour, lineCount, levelData, lineOffsets,
+                linePoints);
+    }
+    
+    /**
+     * Get the level of detail to use for a camera zoom level.
+     * 
+     * @param zoom The camera zoom level.
+     * @return The level of detail, where 0 is the full detail.
+     */
+    public static int getLevelForZoom(final float zoom) {
+        for(int i = 0; i < LEVEL_COUNT; i++) {
+            if(zoom >= LEVEL_MIN_ZOOM[i]) return i;
+        }
+        
+        return LEVEL_COUNT - 1;
+    }
+    
+    /**
+     * Get the colour of the route lines.
+     * 
+     * @return The colour of the route lines.
+     */
+    public int getColour() {
+        return colour;
+    }
+    
+    /**
+     * Get the number of route lines.
+     * 
+     * @return The number of route lines.
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+    
+    /**
+     * Get the number of points in a route line at a level of detail.
+     * 
+     * @param level The level of detail.
+     * @param line The index of the route line.
+     * @return The number of points.
+     */
+    public int getPointCount(final int level, final int line) {
+        return linePoints[level][line];
+    }
+    
+    /**
+     * Get the approximate amount of memory used by this object, in bytes.
+     * 
+     * @return The approximate memory used, in bytes.
+     */
+    public int getSizeInBytes() {
+        // Each array has a header of roughly 16 bytes.
+        int size = 32 + lineCount * LEVEL_COUNT * 8;
+        for(byte[] data : levelData) {
+            size += 16 + data.length;
+        }
+        
+        return size + LEVEL_COUNT * 32;
+    }
+    
+    /**
+     * Get the points of a route line at a level of detail.
+     * 
+     * @param level The level of detail.
+     * @param line The index of the route line.
+     * @return The points of the route line.
+     */
+    public ArrayList<LatLng> getPoints(final int level, final int line) {
+        final int count = linePoints[level][line];
+        final ArrayList<LatLng> points = new ArrayList<LatLng>(count);
+        final byte[] data = levelData[level];
+        final int[] pos = { lineOffsets[level][line] };
+        int lat = 0, lon = 0;
+        
+        for(int i = 0; i < count; i++) {
+            lat += readVarInt(data, pos);
+            lon += readVarInt(data, pos);
+            points.add(new LatLng(lat / MICRODEGREES, lon / MICRODEGREES));
+        }
+        
+        return points;
+    }
+    
+    /**
+     * Get a PolylineOptions for a route line at a level of detail, ready to
+     * be added to the map.
+     * 
+     * @param level The level of detail.
+     * @param line The index of the route line.
+     * @return A new PolylineOptions.
+     */
+    public PolylineOptions getPolylineOptions(final int level,
+            final int line) {
+        return new PolylineOptions().color(colour)
+                .addAll(getPoints(level, line));
+    }
+    
+    /**
+     * Get the simplification tolerance of a level, in microdegrees of
+     * latitude.
+     * 
+     * @param level The level of detail.
+     * @param lonScale The cosine of the latitude.
+     * @return The tolerance. For level 0, this is 0.
+     */
+    private static double getTolerance(final int level,
+            final double lonScale) {
+        if(level == 0) return 0;
+        
+        // A pixel at the highest zoom the level is shown at, which is the
+        // lowest zoom of the level before it. Route lines are several pixels
+        // wide, so this can't be seen. On a Mercator map, a pixel covers the
+        // same distance in both directions.
+        final double pixel = 360.0 * MICRODEGREES /
+                (WORLD_PIXELS * Math.pow(2, LEVEL_MIN_ZOOM[level - 1]));
+        return pixel * lonScale;
+    }
+    
+    /**
+     * Simplify a line with the Douglas-Peucker algorithm. This is done without
+     * recursion, as lines can have hundreds of points.
+     * 
+     * @param lats The latitudes of the points.
+     * @param lons The longitudes of the points.
+     * @param start The index of the first point of the line.
+     * @param end The index after the last point of the line.
+     * @param lonScale The value to scale longitude differences by.
+     * @param tolerance The largest distance a removed point can be from the
+     * simplified line.
+     * @param keep Set to true for each point which should be kept.
+     */
+    private static void simplify(final int[] lats, final int[] lons,
+            final int start, final int end, final double lonScale,
+            final double tolerance, final boolean[] keep) {
+        if(end - start < 3 || tolerance <= 0) {
+            for(int i = start; i < end; i++) keep[i] = true;
+            
+            return;
+        }
+        
+        for(int i = start; i < end; i++) keep[i] = false;
+        keep[start] = true;
+        keep[end - 1] = true;
+        
+        final double toleranceSq = tolerance * tolerance;
+        // A stack of (first, last) index pairs still to be checked.
+        int[] stack = new int[32];
+        int top = 0;
+        stack[top++] = start;
+        stack[top++] = end - 1;
+        
+        while(top > 0) {
+            final int last = stack[--top];
+            final int first = stack[--top];
+            
+            final double ax = lons[first] * lonScale, ay = lats[first];
+            final double dx = lons[last] * lonScale - ax;
+            final double dy = lats[last] - ay;
+            final double lengthSq = dx * dx + dy * dy;
+            double maxDistSq = -1;
+            int maxIndex = -1;
+            
+            for(int i = first + 1; i < last; i++) {
+                final double px = lons[i] * lonScale - ax, py = lats[i] - ay;
+                double distSq;
+                if(lengthSq == 0) {
+                    distSq = px * px + py * py;
+                } else {
+                    // The distance from the segment, not the infinite line,
+                    // so that lines which double back are kept.
+                    final double t = Math.max(0, Math.min(1,
+                            (px * dx + py * dy) / lengthSq));
+                    final double ex = px - t * dx, ey = py - t * dy;
+                    distSq = ex * ex + ey * ey;
+                }
+                
+                if(distSq > maxDistSq) {
+                    maxDistSq = distSq;
+                    maxIndex = i;
+                }
+            }
+            
+            if(maxDistSq > toleranceSq) {
+                keep[maxIndex] = true;
+                
+                if(top + 4 > stack.length) stack = grow(stack);
+                stack[top++] = first;
+                stack[top++] = maxIndex;
+                stack[top++] = maxIndex;
+                stack[top++] = last;
+            }
+        }
+    }
+    
+    /**
+     * Read a zig-zag encoded variable length integer.
+     * 
+     * @param data The encoded data.
+     * @param pos A single element array holding the position to read from.
+     * This is moved past the integer.
+     * @return The decoded integer.
+     */
+    private static int readVarInt(final byte[] data, final int[] pos) {
+        int p = pos[0];
+        int value = 0, shift = 0, b;
+        
+        do {
+            b = data[p++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        
+        pos[0] = p;
+        
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    /**
+     * Double the size of an int array.
+     * 
+     * @param arr The array to grow.
+     * @return A new array, with the contents of arr at the start.
+     */
+    private static int[] grow(final int[] arr) {
+        final int[] newArr = new int[arr.length * 2];
+        System.arraycopy(arr, 0, newArr, 0, arr.length);
+        
+        return newArr;
+    }
+    
+    /**
+     * Writes zig-zag encoded variable length integers in to a byte array which
+     * grows as needed. Small numbers, whether positive or negative, take up
+     * fewer bytes.
+     */
+    private static class Encoder {
+        
+        private byte[] buf;
+        private int size;
+        
+        /**
+         * Create a new Encoder.
+         * 
+         * @param capacity The initial capacity, in bytes.
+         */
+        public Encoder(final int capacity) {
+            buf = new byte[Math.max(capacity, 16)];
+        }
+        
+        /**
+         * Write an integer.
+         * 
+         * @param value The integer to write.
+         */
+        public void write(final int value) {
+            // At most 5 bytes are needed for a 32 bit integer.
+            if(size + 5 > buf.length) {
+                final byte[] newBuf = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, size);
+                buf = newBuf;
+            }
+            
+            int v = (value << 1) ^ (value >> 31);
+            while((v & ~0x7f) != 0) {
+                buf[size++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            
+            buf[size++] = (byte)v;
+        }
+        
+        /**
+         * Get the number of bytes written.
+         * 
+         * @return The number of bytes written.
+         */
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * Discard everything written so far.
+         */
+        public void reset() {
+            size = 0;
+        }
+        
+        /**
+         * Get a copy of the bytes written.
+         * 
+         * @return A new array of the bytes written.
+         */
+        public byte[] toByteArray() {
+            final byte[] result = new byte[size];
+            System.arraycopy(buf, 0, result, 0, size);
+            
+            return result;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * The RouteGeometryCache holds the RouteGeometry of recently shown bus
+ * services, so that they do not have to be loaded from the database and
+ * simplified again when they are shown again, even by a new map.
+ * 
+ * The geometry is only valid for the version of the database it was loaded
+ * from, so the cache is tied to a topology ID. When a different topology ID
+ * is used, such as after a database update, everything in the cache is
+ * thrown away.
+ * 
+ * The cache is limited by the memory used by the geometry. The least
+ * recently used services are removed first.
+ * 
+ * @author Niall Scott
+ */
+public class RouteGeometryCache {
+    
+    /** The maximum memory the cached geometry can use, in bytes. */
+    private static final int MAX_SIZE = 1024 * 1024;
+    
+    private static RouteGeometryCache instance;
+    
+    private final LruCache<String, RouteGeometry> cache;
+    private String topoId;
+    
+    /**
+     * Create a new RouteGeometryCache. Use getInstance() to get the instance.
+     */
+    private RouteGeometryCache() {
+        cache = new LruCache<String, RouteGeometry>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(final String key,
+                    final RouteGeometry value) {
+                return value.getSizeInBytes();
+            }
+        };
+    }
+    
+    /**
+     * Get the single instance of this class.
+     * 
+     * @return The instance of this class.
+     */
+    public static synchronized RouteGeometryCache getInstance() {
+        if(instance == null) instance = new RouteGeometryCache();
+        
+        return instance;
+    }
+    
+    /**
+     * Get the cached geometry of a service.
+     * 
+     * @param topoId The topology ID of the database currently in use.
+     * @param service The name of the service.
+     * @return The geometry of the service, or null if it is not cached.
+     */
+    public synchronized RouteGeometry get(final String topoId,
+            final String service) {
+        checkTopoId(topoId);
+        
+        return cache.get(service);
+    }
+    
+    /**
+     * Put the geometry of a service in to the cache.
+     * 
+     * @param topoId The topology ID of the database the geometry was loaded
+     * from.
+     * @param service The name of the service.
+     * @param geometry The geometry of the service.
+     */
+    public synchronized void put(final String topoId, final String service,
+            final RouteGeometry geometry) {
+        checkTopoId(topoId);
+        
+        cache.put(service, geometry);
+    }
+    
+    /**
+     * Empty the cache if the topology ID is not the one the cached geometry
+     * was loaded with.
+     * 
+     * @param newTopoId The topology ID of the database currently in use.
+     */
+    private void checkTopoId(final String newTopoId) {
+        if(newTopoId == null ? topoId != null : !newTopoId.equals(topoId)) {
+            cache.evictAll();
+            topoId = newTopoId;
+        }
+    }
+}
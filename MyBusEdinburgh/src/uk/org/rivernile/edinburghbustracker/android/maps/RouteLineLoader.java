@@ -28,23 +28,33 @@ package uk.org.rivernile.edinburghbustracker.android.maps;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Color;
-import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.PolylineOptions;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.locks.Lock;
+import uk.org.rivernile.android.utils.Metrics;
 import uk.org.rivernile.android.utils.SimpleResultLoader;
 import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
 
 /**
  * This Loader retrieves all the route lines for given route names and creates
- * PolylineOption objects for each poly line. Each bus service can have more
- * than one poly line (known as "chainage"s). This is why each service has a
- * LinkedList of PolylineOptions objects.
+ * a RouteGeometry for each service. Each bus service can have more than one
+ * poly line (known as "chainage"s), and the RouteGeometry holds them at
+ * several levels of detail so the map can show the right one for its zoom.
+ * 
+ * Services which have been loaded recently are taken from the
+ * RouteGeometryCache, so only the services which are not cached are loaded
+ * from the database.
  * 
  * @author Niall Scott
  */
 public class RouteLineLoader extends SimpleResultLoader<
-        HashMap<String, LinkedList<PolylineOptions>>> {
+        HashMap<String, RouteGeometry>> {
+    
+    private static final String SECTION_LOAD = "RouteLineLoader.load";
+    private static final String COUNTER_CACHE_HITS =
+            "RouteLineLoader.cacheHits";
+    private static final String COUNTER_CACHE_MISSES =
+            "RouteLineLoader.cacheMisses";
     
     private final String[] services;
     private final BusStopDatabase bsd;
@@ -67,27 +77,66 @@ public class RouteLineLoader extends SimpleResultLoader<
      * {@inheritDoc}
      */
     @Override
-    public HashMap<String, LinkedList<PolylineOptions>> loadInBackground() {
-        final HashMap<String, LinkedList<PolylineOptions>> result =
-                new HashMap<String, LinkedList<PolylineOptions>>();
+    public HashMap<String, RouteGeometry> loadInBackground() {
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.beginSection(SECTION_LOAD);
+        
+        try {
+            return loadRoutes(metrics);
+        } finally {
+            metrics.endSection(SECTION_LOAD, start);
+        }
+    }
+    
+    /**
+     * Load the RouteGeometry for each of the services, from the cache if
+     * possible.
+     * 
+     * @param metrics Where to count cache hits and misses.
+     * @return A HashMap of service name -> RouteGeometry.
+     */
+    private HashMap<String, RouteGeometry> loadRoutes(final Metrics metrics) {
+        final HashMap<String, RouteGeometry> result =
+                new HashMap<String, RouteGeometry>();
         
         // If we've not been given services, there's no point continuing.
         if(services == null || services.length == 0) {
             return result;
         }
         
-        synchronized(bsd) {
+        final RouteGeometryCache cache = RouteGeometryCache.getInstance();
+        final Lock readLock = bsd.getReadLock();
+        readLock.lock();
+        try {
+            // The cache is only valid for the current version of the database.
+            final String topoId = bsd.getTopoId();
+            final ArrayList<String> toLoad = new ArrayList<String>();
+            RouteGeometry geometry;
+            
+            for(String service : services) {
+                geometry = cache.get(topoId, service);
+                if(geometry != null) {
+                    result.put(service, geometry);
+                } else {
+                    toLoad.add(service);
+                }
+            }
+            
+            metrics.add(COUNTER_CACHE_HITS, result.size());
+            metrics.add(COUNTER_CACHE_MISSES, toLoad.size());
+            
+            if(toLoad.isEmpty()) {
+                return result;
+            }
+            
             // Get the colours for all the services we're loading here.
             final HashMap<String, String> colours = bsd.getServiceColours(
-                    services);
-            LinkedList<PolylineOptions> polyLines;
-            PolylineOptions plOption = null;
+                    toLoad.toArray(new String[toLoad.size()]));
             Cursor c;
-            int currentChainage, chainage;
             String hexColour;
             int currentColour;
             
-            for(String service : services) {
+            for(String service : toLoad) {
                 // Get the hex colour for the service.
                 hexColour = colours.get(service);
                 if(hexColour != null) {
@@ -103,36 +152,21 @@ public class RouteLineLoader extends SimpleResultLoader<
                     currentColour = Color.BLACK;
                 }
                 
-                // Create the data structures and then query the database for
-                // service points.
-                polyLines = new LinkedList<PolylineOptions>();
-                result.put(service, polyLines);
+                // Query the database for service points and simplify them.
                 c = bsd.getServicePointsForService(service);
-                // Default the chainage to -1 as it's always a positive number.
-                currentChainage = -1;
-                
                 if(c != null) {
-                    while(c.moveToNext()) {
-                        chainage = c.getInt(0);
-                        
-                        // If the chainage has changed (or this is the first
-                        // pass), then create a new PolyLineOptions object.
-                        if(chainage != currentChainage) {
-                            plOption = new PolylineOptions();
-                            polyLines.add(plOption);
-                            plOption.color(currentColour);
-                            
-                            currentChainage = chainage;
-                        }
-                        
-                        // Add each LatLng pair as a Polyline point.
-                        plOption.add(new LatLng(c.getDouble(1),
-                                c.getDouble(2)));
+                    try {
+                        geometry = RouteGeometry.fromCursor(c, currentColour);
+                    } finally {
+                        c.close();
                     }
                     
-                    c.close();
+                    result.put(service, geometry);
+                    cache.put(topoId, service, geometry);
                 }
             }
+        } finally {
+            readLock.unlock();
         }
         
         return result;
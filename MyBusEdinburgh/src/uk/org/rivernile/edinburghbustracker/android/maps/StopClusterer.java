@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import uk.org.rivernile.edinburghbustracker.android.BusStopCatalogue;
+
+/**
+ * The StopClusterer groups bus stops which would be drawn close together on
+ * the map in to clusters, so that a zoomed out map shows a marker per cluster
+ * rather than hundreds of overlapping markers.
+ * 
+ * The clusters are the cells of a grid of squares on the screen at the
+ * current whole zoom level. The grid is fixed to the world rather than the
+ * screen, so panning the map does not change the clusters, and a cluster's
+ * key can be used to tell whether it is already on the map.
+ * 
+ * This does not touch the UI, so it is safe to use on any thread.
+ * 
+ * @author Niall Scott
+ */
+public class StopClusterer {
+    
+    /** The width of the world in pixels at zoom level 0. */
+    private static final double WORLD_SIZE = 256.0;
+    
+    private final int zoom;
+    private final double cellSize;
+    private final double worldSize;
+    
+    /**
+     * Create a new StopClusterer.
+     * 
+     * @param zoom The zoom level of the map. Only the whole part is used, so
+     * the clusters only change when the zoom crosses a whole number.
+     * @param cellSize The width and height of each cluster cell, in map
+     * pixels (which are density independent pixels).
+     */
+    public StopClusterer(final float zoom, final double cellSize) {
+        this.zoom = (int)Math.floor(zoom);
+        this.cellSize = cellSize;
+        worldSize = WORLD_SIZE * Math.pow(2, this.zoom);
+    }
+    
+    /**
+     * Get the bounds which should be searched for stops to cluster the given
+     * visible bounds. This is the visible bounds expanded out to the edges of
+     * the cells it touches, so that clusters at the edge of the screen include
+     * all of their stops and do not change as the map is panned.
+     * 
+     * @param minLatitude The southern edge of the visible bounds.
+     * @param minLongitude The western edge of the visible bounds.
+     * @param maxLatitude The northern edge of the visible bounds.
+     * @param maxLongitude The eastern edge of the visible bounds.
+     * @return An array of the expanded minLatitude, minLongitude, maxLatitude
+     * and maxLongitude, in that order.
+     */
+    public double[] getSearchBounds(final double minLatitude,
+            final double minLongitude, final double maxLatitude,
+            final double maxLongitude) {
+        final double minX = Math.floor(getX(minLongitude) / cellSize) *
+                cellSize;
+        final double maxX = (Math.floor(getX(maxLongitude) / cellSize) + 1) *
+                cellSize;
+        // The y axis points south.
+        final double minY = Math.floor(getY(maxLatitude) / cellSize) *
+                cellSize;
+        final double maxY = (Math.floor(getY(minLatitude) / cellSize) + 1) *
+                cellSize;
+        
+        return new double[] {
+            getLatitude(maxY), getLongitude(minX),
+            getLatitude(minY), getLongitude(maxX)
+        };
+    }
+    
+    /**
+     * Group stops in to clusters.
+     * 
+     * @param catalogue The catalogue the stops are in.
+     * @param stops The indexes of the stops to cluster.
+     * @return The clusters. Clusters with a single stop are included.
+     */
+    public ArrayList<Cluster> cluster(final BusStopCatalogue catalogue,
+            final int[] stops) {
+        final HashMap<Long, Cluster> cells = new HashMap<Long, Cluster>();
+        final ArrayList<Cluster> result = new ArrayList<Cluster>();
+        
+        for(int stop : stops) {
+            final double latitude = catalogue.getLatitude(stop);
+            final double longitude = catalogue.getLongitude(stop);
+            final int column = (int)Math.floor(getX(longitude) / cellSize);
+            final int row = (int)Math.floor(getY(latitude) / cellSize);
+            final Long key = Long.valueOf(((long)column << 32) |
+                    (row & 0xffffffffL));
+            
+            Cluster cluster = cells.get(key);
+            if(cluster == null) {
+                cluster = new Cluster(zoom, column, row, stop);
+                cells.put(key, cluster);
+                result.add(cluster);
+            }
+            
+            cluster.add(latitude, longitude);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get the x position of a longitude in world pixels.
+     * 
+     * @param longitude The longitude.
+     * @return The x position.
+     */
+    private double getX(final double longitude) {
+        return MercatorProjection.getX(longitude) * worldSize;
+    }
+    
+    /**
+     * Get the y position of a latitude in world pixels.
+     * 
+     * @param latitude The latitude.
+     * @return The y position.
+     */
+    private double getY(final double latitude) {
+        return MercatorProjection.getY(latitude) * worldSize;
+    }
+    
+    /**
+     * Get the longitude of an x position in world pixels.
+     * 
+     * @param x The x position.
+     * @return The longitude.
+     */
+    private double getLongitude(final double x) {
+        return MercatorProjection.getLongitude(x / worldSize);
+    }
+    
+    /**
+     * Get the latitude of a y position in world pixels.
+     * 
+     * @param y The y position.
+     * @return The latitude.
+     */
+    private double getLatitude(final double y) {
+        return MercatorProjection.getLatitude(y / worldSize);
+    }
+    
+    /**
+     * A Cluster is a group of stops in the same cell.
+     */
+    public static class Cluster {
+        
+        private final String key;
+        private final int firstStop;
+        private int count;
+        private double latitudeSum;
+        private double longitudeSum;
+        
+        /**
+         * Create a new Cluster.
+         * 
+         * @param zoom The whole zoom level.
+         * @param column The column of the cell.
+         * @param row The row of the cell.
+         * @param firstStop The index of the first stop in the cluster.
+         */
+        private Cluster(final int zoom, final int column, final int row,
+                final int firstStop) {
+            key = zoom + ":" + column + ':' + row;
+            this.firstStop = firstStop;
+        }
+        
+        /**
+         * Add a stop to the cluster.
+         * 
+         * @param latitude The latitude of the stop.
+         * @param longitude The longitude of the stop.
+         */
+        private void add(final double latitude, final double longitude) {
+            count++;
+            latitudeSum += latitude;
+            longitudeSum += longitude;
+        }
+        
+        /**
+         * Get a key which identifies the cell of this cluster. It does not
+         * include the number of stops.
+         * 
+         * @return The key of the cluster.
+         */
+        public String getKey() {
+            return key;
+        }
+        
+        /**
+         * Get the number of stops in the cluster.
+         * 
+         * @return The number of stops in the cluster.
+         */
+        public int getCount() {
+            return count;
+        }
+        
+        /**
+         * Get the index of the first stop added to the cluster. When the
+         * cluster only has one stop, this is that stop.
+         * 
+         * @return The index of the first stop in the cluster.
+         */
+        public int getFirstStop() {
+            return firstStop;
+        }
+        
+        /**
+         * Get the latitude of the centre of the stops in the cluster.
+         * 
+         * @return The latitude of the centre of the cluster.
+         */
+        public double getLatitude() {
+            return latitudeSum / count;
+        }
+        
+        /**
+         * Get the longitude of the centre of the stops in the cluster.
+         * 
+         * @return The longitude of the centre of the cluster.
+         */
+        public double getLongitude() {
+            return longitudeSum / count;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import uk.org.rivernile.edinburghbustracker.android.Application;
+import uk.org.rivernile.edinburghbustracker.android.BusStopCatalogue;
+import uk.org.rivernile.edinburghbustracker.android.BusStopDatabase;
+
+/**
+ * The StopOverlayTileProvider draws the position of every bus stop as a dot
+ * in map tiles. It is used at zoom levels where showing a marker per stop
+ * would be too expensive, so that the coverage of the network can still be
+ * seen. The cost of showing the overlay does not depend on the number of
+ * stops, as the map only ever shows a fixed number of tiles.
+ * 
+ * When services have been chosen, only the stops served by those services
+ * are drawn, and each stop is drawn in the colour of a service which serves
+ * it.
+ * 
+ * The map calls getTile() from its own pool of background threads. Drawn
+ * tiles are saved in the application's cache directory so they do not need
+ * to be drawn again. The saved tiles are only valid for the version of the
+ * database they were drawn from, so they are kept in a directory per
+ * topology ID and the directories of other topology IDs are deleted. Within
+ * that, there is a directory per set of chosen services. Only the most
+ * recently used of these are kept.
+ * 
+ * @author Niall Scott
+ */
+public class StopOverlayTileProvider implements TileProvider {
+    
+    /** Tiles are drawn for zoom levels below this one. */
+    public static final int MAX_ZOOM_LEVEL =
+            BusStopMarkerLoader.CLUSTER_ZOOM_LEVEL;
+    
+    /** The size of a tile, in density independent pixels. */
+    private static final int TILE_SIZE = 256;
+    /** The colour of stops when no services have been chosen. */
+    private static final int DEFAULT_COLOUR = 0xff1a5fb4;
+    /** The name of the directory in the cache that tiles are saved in. */
+    private static final String CACHE_DIRECTORY = "stoptiles";
+    /** The file name of an empty tile, marking it has been drawn. */
+    private static final String EMPTY_TILE = ".empty";
+    /** The maximum number of service filters to keep saved tiles for. */
+    private static final int MAX_FILTER_DIRECTORIES = 8;
+    
+    private final BusStopDatabase bsd;
+    private final File cacheRoot;
+    private final String[] services;
+    private final String filterKey;
+    private final int tileSize;
+    
+    private BusStopCatalogue catalogue;
+    private File cacheDir;
+    private int[] serviceColours;
+    
+    /**
+     * Create a new StopOverlayTileProvider.
+     * 
+     * @param context A Context instance.
+     * @param services The services to draw the stops of, or null to draw all
+     * stops.
+     */
+    public StopOverlayTileProvider(final Context context,
+            final String[] services) {
+        final Context appContext = context.getApplicationContext();
+        bsd = BusStopDatabase.getInstance(appContext);
+        cacheRoot = new File(appContext.getCacheDir(), CACHE_DIRECTORY);
+        // High density screens get tiles with double the pixels.
+        tileSize = appContext.getResources().getDisplayMetrics().density >=
+                1.5f ? TILE_SIZE * 2 : TILE_SIZE;
+        
+        if(services != null && services.length > 0) {
+            this.services = new String[services.length];
+            System.arraycopy(services, 0, this.services, 0, services.length);
+            Arrays.sort(this.services);
+            filterKey = getFilterKey(this.services);
+        } else {
+            this.services = null;
+            filterKey = "all";
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tile getTile(final int x, final int y, final int zoom) {
+        if(zoom >= MAX_ZOOM_LEVEL) {
+            return NO_TILE;
+        }
+        
+        final File dir = getCacheDirectory();
+        if(dir == null) {
+            return NO_TILE;
+        }
+        
+        final String name = zoom + "_" + x + '_' + y;
+        final File tileFile = new File(dir, name + ".png");
+        if(tileFile.exists()) {
+            final byte[] data = readFile(tileFile);
+            if(data != null) {
+                return new Tile(tileSize, tileSize, data);
+            }
+        } else if(new File(dir, name + EMPTY_TILE).exists()) {
+            return NO_TILE;
+        }
+        
+        final byte[] data = drawTile(x, y, zoom);
+        if(data == null) {
+            markEmpty(new File(dir, name + EMPTY_TILE));
+            return NO_TILE;
+        }
+        
+        writeFile(dir, tileFile, data);
+        
+        return new Tile(tileSize, tileSize, data);
+    }
+    
+    /**
+     * Draw a tile.
+     * 
+     * @param x The x coordinate of the tile.
+     * @param y The y coordinate of the tile.
+     * @param zoom The zoom level of the tile.
+     * @return The tile encoded as a PNG, or null if there are no stops in the
+     * tile.
+     */
+    private byte[] drawTile(final int x, final int y, final int zoom) {
+        final BusStopCatalogue cat;
+        final int[] colours;
+        synchronized(this) {
+            cat = catalogue;
+            colours = serviceColours;
+        }
+        
+        if(cat == null) {
+            return null;
+        }
+        
+        final double scale = Math.pow(2, zoom);
+        // The dots get bigger as the map is zoomed in. A tile covers
+        // TILE_SIZE density independent pixels on the screen.
+        final float radius = Math.max(1f, (zoom - 8) * 0.75f) * tileSize /
+                TILE_SIZE;
+        // Extend the search so that dots at the edge of neighbouring tiles
+        // are drawn over the edge of this tile too.
+        final double margin = (double)radius / tileSize;
+        final double minLatitude =
+                MercatorProjection.getLatitude((y + 1 + margin) / scale);
+        final double maxLatitude =
+                MercatorProjection.getLatitude((y - margin) / scale);
+        final double minLongitude =
+                MercatorProjection.getLongitude((x - margin) / scale);
+        final double maxLongitude =
+                MercatorProjection.getLongitude((x + 1 + margin) / scale);
+        
+        Bitmap bitmap = null;
+        Canvas canvas = null;
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setStyle(Paint.Style.FILL);
+        
+        // When there's no filter, there is a single pass over all the stops.
+        // Otherwise, there is a pass per service so each stop is drawn in the
+        // colour of the last service drawn which serves it.
+        final int passes = services == null ? 1 : services.length;
+        for(int i = 0; i < passes; i++) {
+            final int[] stops = cat.findInBounds(minLatitude, minLongitude,
+                    maxLatitude, maxLongitude,
+                    services == null ? null : new String[] { services[i] });
+            if(stops.length == 0) {
+                continue;
+            }
+            
+            if(bitmap == null) {
+                bitmap = Bitmap.createBitmap(tileSize, tileSize,
+                        Bitmap.Config.ARGB_8888);
+                canvas = new Canvas(bitmap);
+            }
+            
+            paint.setColor(colours == null ? DEFAULT_COLOUR : colours[i]);
+            
+            for(int stop : stops) {
+                final float px = (float)((MercatorProjection.getX(
+                        cat.getLongitude(stop)) * scale - x) * tileSize);
+                final float py = (float)((MercatorProjection.getY(
+                        cat.getLatitude(stop)) * scale - y) * tileSize);
+                canvas.drawCircle(px, py, radius, paint);
+            }
+        }
+        
+        if(bitmap == null) {
+            return null;
+        }
+        
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        
+        return out.toByteArray();
+    }
+    
+    /**
+     * Get the directory the tiles for the current database and filter are
+     * saved in. If the database has changed since this was last called, the
+     * tiles saved for any other topology ID are deleted.
+     * 
+     * @return The directory, or null if the stops could not be loaded.
+     */
+    private synchronized File getCacheDirectory() {
+        final BusStopCatalogue current = bsd.getStopCatalogue();
+        if(current == null) {
+            return null;
+        }
+        
+        if(current != catalogue || cacheDir == null) {
+            // The topology ID is only read when the catalogue changes, which
+            // happens when the database does.
+            final String topoId = bsd.getTopoId();
+            final String topoDirName = topoId.length() > 0 ?
+                    topoId.replaceAll("[^A-Za-z0-9_.-]", "_") : "unknown";
+            
+            final File[] existing = cacheRoot.listFiles();
+            if(existing != null) {
+                for(File f : existing) {
+                    if(!f.getName().equals(topoDirName)) {
+                        deleteRecursively(f);
+                    }
+                }
+            }
+            
+            final File topoDir = new File(cacheRoot, topoDirName);
+            final File dir = new File(topoDir, filterKey);
+            if(!dir.isDirectory() && !dir.mkdirs()) {
+                return null;
+            }
+            
+            // The modification time of the directory marks when it was last
+            // used.
+            dir.setLastModified(System.currentTimeMillis());
+            pruneFilterDirectories(topoDir, dir);
+            
+            cacheDir = dir;
+            catalogue = current;
+            
+            if(services != null) {
+                serviceColours = loadServiceColours();
+            }
+        }
+        
+        return cacheDir;
+    }
+    
+    /**
+     * Load the colours of the chosen services.
+     * 
+     * @return The colours, in the same order as the services array.
+     */
+    private int[] loadServiceColours() {
+        final HashMap<String, String> hexColours =
+                bsd.getServiceColours(services);
+        final int[] colours = new int[services.length];
+        
+        for(int i = 0; i < services.length; i++) {
+            final String hexColour = hexColours.get(services[i]);
+            colours[i] = DEFAULT_COLOUR;
+            
+            if(hexColour != null) {
+                try {
+                    colours[i] = Color.parseColor(hexColour);
+                } catch(IllegalArgumentException e) {
+                    // Use the default colour.
+                }
+            }
+        }
+        
+        return colours;
+    }
+    
+    /**
+     * Delete the saved tiles of the least recently used service filters, so
+     * that only MAX_FILTER_DIRECTORIES are kept.
+     * 
+     * @param topoDir The directory holding the directory of each filter.
+     * @param current The directory of the filter in use, which is never
+     * deleted.
+     */
+    private static void pruneFilterDirectories(final File topoDir,
+            final File current) {
+        final File[] dirs = topoDir.listFiles();
+        if(dirs == null || dirs.length <= MAX_FILTER_DIRECTORIES) {
+            return;
+        }
+        
+        // Most recently used first.
+        Arrays.sort(dirs, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l > r ? -1 : (l < r ? 1 : 0);
+            }
+        });
+        
+        for(int i = MAX_FILTER_DIRECTORIES; i < dirs.length; i++) {
+            if(!dirs[i].equals(current)) {
+                deleteRecursively(dirs[i]);
+            }
+        }
+    }
+    
+    /**
+     * Get a key to name the cache directory for a set of services. The same
+     * set of services always gets the same key, whatever the order, and
+     * different sets get different keys.
+     * 
+     * @param sortedServices The services, sorted.
+     * @return The key.
+     */
+    private static String getFilterKey(final String[] sortedServices) {
+        final StringBuilder sb = new StringBuilder();
+        for(String service : sortedServices) {
+            sb.append(service).append('\n');
+        }
+        
+        // An MD5 digest of the names keeps the directory name short and safe
+        // to use in the file system.
+        return "s" + Application.md5Checksum(sb.toString().getBytes());
+    }
+    
+    /**
+     * Read the whole of a file.
+     * 
+     * @param file The file to read.
+     * @return The contents of the file, or null if it could not be read.
+     */
+    private static byte[] readFile(final File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final byte[] data = new byte[(int)file.length()];
+            int read = 0;
+            while(read < data.length) {
+                final int count = in.read(data, read, data.length - read);
+                if(count < 0) {
+                    return null;
+                }
+                
+                read += count;
+            }
+            
+            return data;
+        } catch(IOException e) {
+            return null;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    // Nothing can be done here.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Save a tile. The tile is written to a temporary file first then renamed,
+     * so another thread can never read a partly written tile. Failure is
+     * ignored, as the tile can be drawn again.
+     * 
+     * @param dir The directory the tile is saved in.
+     * @param file The file to save the tile as.
+     * @param data The tile data.
+     */
+    private static void writeFile(final File dir, final File file,
+            final byte[] data) {
+        FileOutputStream out = null;
+        File temp = null;
+        try {
+            temp = File.createTempFile("tile", ".tmp", dir);
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            
+            if(!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch(IOException e) {
+            if(temp != null) {
+                temp.delete();
+            }
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException e) {
+                    // Nothing can be done here.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Create an empty file to mark a tile which has no stops in it.
+     * 
+     * @param file The file to create.
+     */
+    private static void markEmpty(final File file) {
+        try {
+            file.createNewFile();
+        } catch(IOException e) {
+            // The tile will be checked again next time.
+        }
+    }
+    
+    /**
+     * Delete a file, or a directory and everything in it.
+     * 
+     * @param file The file or directory to delete.
+     */
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        
+        file.delete();
+    }
+}
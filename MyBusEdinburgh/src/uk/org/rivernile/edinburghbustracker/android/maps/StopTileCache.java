@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import com.google.android.gms.maps.model.MarkerOptions;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The StopTileCache holds the bus stop markers which have already been loaded,
+ * split in to fixed tiles of latitude and longitude. When the map is panned,
+ * only the tiles which have not been loaded before need to be loaded from the
+ * database.
+ * 
+ * The number of tiles held is limited. When the limit is reached, the tile
+ * which was least recently shown is removed.
+ * 
+ * The tiles are only valid for the generation of the bus stop database that
+ * they were loaded from. When the database is replaced or changed, all the
+ * tiles are removed.
+ * 
+ * This class is not thread safe. It is only meant to be used from the UI
+ * thread.
+ * 
+ * @author Niall Scott
+ */
+public class StopTileCache {
+    
+    /** The height of a tile, in degrees of latitude (roughly 2.2km). */
+    private static final double TILE_LATITUDE_SPAN = 0.02;
+    /** The width of a tile, in degrees of longitude (roughly 2.5km). */
+    private static final double TILE_LONGITUDE_SPAN = 0.04;
+    /** The maximum number of tiles to hold. */
+    private static final int MAX_TILES = 128;
+    
+    private final LinkedHashMap<Long, HashMap<String, MarkerOptions>> tiles =
+            new LinkedHashMap<Long, HashMap<String, MarkerOptions>>(16, 0.75f,
+                    true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long,
+                HashMap<String, MarkerOptions>> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+    private int generation;
+    
+    /**
+     * Get the tiles which cover an area.
+     * 
+     * @param minLatitude The southern edge of the area.
+     * @param minLongitude The western edge of the area.
+     * @param maxLatitude The northern edge of the area.
+     * @param maxLongitude The eastern edge of the area.
+     * @return The keys of the tiles.
+     */
+    public static long[] getTiles(final double minLatitude,
+            final double minLongitude, final double maxLatitude,
+            final double maxLongitude) {
+        final int minRow = getRow(minLatitude);
+        final int maxRow = getRow(maxLatitude);
+        final int minColumn = getColumn(minLongitude);
+        final int maxColumn = getColumn(maxLongitude);
+        final int rows = Math.max(0, maxRow - minRow + 1);
+        final int columns = Math.max(0, maxColumn - minColumn + 1);
+        
+        final long[] result = new long[rows * columns];
+        int i = 0;
+        for(int r = minRow; r <= maxRow; r++) {
+            for(int c = minColumn; c <= maxColumn; c++) {
+                result[i++] = getKey(r, c);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get the tile a point is in.
+     * 
+     * @param latitude The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @return The key of the tile.
+     */
+    public static long getTile(final double latitude, final double longitude) {
+        return getKey(getRow(latitude), getColumn(longitude));
+    }
+    
+    /**
+     * Get the area covered by a tile.
+     * 
+     * @param tile The key of the tile.
+     * @return An array of the minLatitude, minLongitude, maxLatitude and
+     * maxLongitude of the tile, in that order.
+     */
+    public static double[] getTileBounds(final long tile) {
+        final int row = (int)(tile >> 32);
+        final int column = (int)tile;
+        
+        return new double[] {
+            row * TILE_LATITUDE_SPAN, column * TILE_LONGITUDE_SPAN,
+            (row + 1) * TILE_LATITUDE_SPAN, (column + 1) * TILE_LONGITUDE_SPAN
+        };
+    }
+    
+    /**
+     * Find which of the given tiles have not been loaded.
+     * 
+     * @param wanted The keys of the tiles.
+     * @return The keys of the tiles which are not in the cache.
+     */
+    public long[] getMissingTiles(final long[] wanted) {
+        final long[] missing = new long[wanted.length];
+        int count = 0;
+        for(long tile : wanted) {
+            if(!tiles.containsKey(tile)) missing[count++] = tile;
+        }
+        
+        final long[] result = new long[count];
+        System.arraycopy(missing, 0, result, 0, count);
+        
+        return result;
+    }
+    
+    /**
+     * Add loaded tiles to the cache. If the tiles were loaded from an older
+     * generation of the database than the tiles already held, they are out of
+     * date and are not added.
+     * 
+     * @param loaded The loaded tiles, mapping the tile key to the markers in
+     * that tile.
+     * @param generation The generation of the bus stop database the tiles were
+     * loaded from.
+     */
+    public void putAll(final HashMap<Long, HashMap<String, MarkerOptions>>
+            loaded, final int generation) {
+        if(generation < this.generation) return;
+        
+        setGeneration(generation);
+        tiles.putAll(loaded);
+    }
+    
+    /**
+     * Set the current generation of the bus stop database. If it is not the
+     * generation the tiles were loaded from, all the tiles are removed. This
+     * should be called before working out which tiles are missing.
+     * 
+     * @param generation The current generation of the bus stop database, from
+     * BusStopDatabase.getGeneration().
+     */
+    public void setGeneration(final int generation) {
+        if(generation != this.generation) {
+            tiles.clear();
+            this.generation = generation;
+        }
+    }
+    
+    /**
+     * Get all the markers in the given tiles. Tiles which have not been loaded
+     * are skipped.
+     * 
+     * @param wanted The keys of the tiles.
+     * @return A new HashMap of the markers, keyed by stopCode.
+     */
+    public HashMap<String, MarkerOptions> getMarkers(final long[] wanted) {
+        final HashMap<String, MarkerOptions> result =
+                new HashMap<String, MarkerOptions>();
+        HashMap<String, MarkerOptions> tile;
+        for(long key : wanted) {
+            tile = tiles.get(key);
+            if(tile != null) result.putAll(tile);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Remove all the tiles. This must be called when the stops that should be
+     * shown change, such as when the service filter changes.
+     */
+    public void clear() {
+        tiles.clear();
+    }
+    
+    /**
+     * Get the tile row of a latitude.
+     * 
+     * @param latitude The latitude.
+     * @return The tile row.
+     */
+    private static int getRow(final double latitude) {
+        return (int)Math.floor(latitude / TILE_LATITUDE_SPAN);
+    }
+    
+    /**
+     * Get the tile column of a longitude.
+     * 
+     * @param longitude The longitude.
+     * @return The tile column.
+     */
+    private static int getColumn(final double longitude) {
+        return (int)Math.floor(longitude / TILE_LONGITUDE_SPAN);
+    }
+    
+    /**
+     * Get the key of a tile.
+     * 
+     * @param row The tile row.
+     * @param column The tile column.
+     * @return The key of the tile.
+     */
+    private static long getKey(final int row, final int column) {
+        return ((long)row << 32) | (column & 0xffffffffL);
+    }
+}
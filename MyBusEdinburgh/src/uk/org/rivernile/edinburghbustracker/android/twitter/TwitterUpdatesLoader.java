@@ -27,19 +27,16 @@ package uk.org.rivernile.edinburghbustracker.android.twitter;
 
 import android.content.Context;
 import android.text.Html;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Random;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import uk.org.rivernile.android.utils.HttpTransport;
 import uk.org.rivernile.android.utils.SimpleResultLoader;
 import uk.org.rivernile.edinburghbustracker.android.ApiKey;
+import uk.org.rivernile.edinburghbustracker.android.Endpoints;
 
 /**
  * This Loader handles fetching data from Twitter to display as news items
@@ -65,10 +62,10 @@ public class TwitterUpdatesLoader
      */
     public static final byte ERROR_URLMISMATCH = 4;
     
-    private static final String REQUEST_URL = "http://edinb.us/api/" +
+    private static final String REQUEST_PATH =
             "TwitterStatuses?appName=MBE&key=";
     
-    private static final Random random = new Random(System.currentTimeMillis());
+    private static final String ENDPOINT = "TwitterStatuses";
     
     /**
      * Create a new TwitterUpdatesLoader.
@@ -87,41 +84,22 @@ public class TwitterUpdatesLoader
         final ArrayList<TwitterNewsItem> items =
                 new ArrayList<TwitterNewsItem>();
         
-        final StringBuilder urlBuilder = new StringBuilder(REQUEST_URL);
+        final StringBuilder urlBuilder = new StringBuilder(
+                Endpoints.getApiUrl());
+        urlBuilder.append(REQUEST_PATH);
         urlBuilder.append(ApiKey.getHashedKey());
-        urlBuilder.append("&random=").append(random.nextInt());
         
         byte error;
 
         try {
-            // Create URL object.
-            final URL u = new URL(urlBuilder.toString());
-            // Open the connection to the HTTP server.
-            final HttpURLConnection con = (HttpURLConnection)u.openConnection();
-            // Buffer the input.
-            final BufferedReader in = new BufferedReader(new InputStreamReader(
-                    con.getInputStream()));
+            // Only download the statuses again if they have changed.
+            final String json = HttpTransport.getInstance().getString(
+                    ENDPOINT, urlBuilder.toString(), true);
             
-            // Check to see if the URL we've connected to is what we expected.
-            if(u.getHost().equals(con.getURL().getHost())) {
-                // All text will be put in to a StringBuilder.
-                final StringBuilder sb = new StringBuilder();
-                String lineIn;
-
-                // Keep accepting input until there is no more.
-                while((lineIn = in.readLine()) != null) {
-                    sb.append(lineIn);
-                }
-                
-                // Parse the JSON.
-                error = parseJSON(items, sb.toString());
-            } else {
-                error = ERROR_URLMISMATCH;
-            }
-            
-            // Remember to release resources.
-            in.close();
-            con.disconnect();
+            // Parse the JSON.
+            error = parseJSON(items, json);
+        } catch(HttpTransport.HostMismatchException e) {
+            error = ERROR_URLMISMATCH;
         } catch(MalformedURLException e) {
             error = ERROR_URLERR;
         } catch(IOException e) {
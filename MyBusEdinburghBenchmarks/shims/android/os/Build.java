@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package android.os;
+
+/**
+ * A JVM stand-in for android.os.Build, which reports API level 19, the level
+ * the application targets. This must come before android.jar on the
+ * classpath.
+ * 
+ * @author Niall Scott
+ */
+public class Build {
+    
+    /**
+     * The version of the platform.
+     */
+    public static class VERSION {
+        
+        /** The API level. */
+        public static final int SDK_INT = VERSION_CODES.KITKAT;
+    }
+    
+    /**
+     * The API levels referred to by the application.
+     */
+    public static class VERSION_CODES {
+        
+        public static final int FROYO = 8;
+        public static final int GINGERBREAD = 9;
+        public static final int GINGERBREAD_MR1 = 10;
+        public static final int HONEYCOMB = 11;
+        public static final int HONEYCOMB_MR1 = 12;
+        public static final int HONEYCOMB_MR2 = 13;
+        public static final int ICE_CREAM_SANDWICH = 14;
+        public static final int ICE_CREAM_SANDWICH_MR1 = 15;
+        public static final int JELLY_BEAN = 16;
+        public static final int JELLY_BEAN_MR1 = 17;
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int KITKAT = 19;
+    }
+}
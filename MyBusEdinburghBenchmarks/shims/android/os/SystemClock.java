@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package android.os;
+
+/**
+ * A JVM stand-in for the android.os.SystemClock methods used by the client
+ * stack, so that it can run outside of a device. android.jar only holds stubs
+ * which throw. This must come before android.jar on the classpath.
+ * 
+ * @author Niall Scott
+ */
+public final class SystemClock {
+    
+    /**
+     * This class is not to be instantiated.
+     */
+    private SystemClock() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Get the milliseconds since some fixed point, which do not go backwards.
+     * 
+     * @return The milliseconds since some fixed point.
+     */
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    /**
+     * Get the milliseconds since some fixed point, which do not go backwards.
+     * 
+     * @return The milliseconds since some fixed point.
+     */
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+}
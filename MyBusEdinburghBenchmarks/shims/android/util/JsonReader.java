@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A JVM stand-in for android.util.JsonReader. The platform class started out
+ * as a copy of the Gson JsonReader and has the same API, so this passes
+ * through to Gson. This must come before android.jar on the classpath.
+ * 
+ * @author Niall Scott
+ */
+public final class JsonReader implements Closeable {
+    
+    private final com.google.gson.stream.JsonReader reader;
+    
+    /**
+     * Create a new JsonReader.
+     * 
+     * @param in The Reader to read the JSON from.
+     */
+    public JsonReader(final Reader in) {
+        reader = new com.google.gson.stream.JsonReader(in);
+    }
+    
+    /**
+     * See android.util.JsonReader.setLenient().
+     * 
+     * @param lenient true to accept malformed JSON.
+     */
+    public void setLenient(final boolean lenient) {
+        reader.setLenient(lenient);
+    }
+    
+    /**
+     * See android.util.JsonReader.isLenient().
+     * 
+     * @return true if malformed JSON is accepted.
+     */
+    public boolean isLenient() {
+        return reader.isLenient();
+    }
+    
+    /**
+     * See android.util.JsonReader.beginArray().
+     * 
+     * @throws IOException When the JSON could not be read.
+     */
+    public void beginArray() throws IOException {
+        try {
+            reader.beginArray();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.endArray().
+     * 
+     * @throws IOException When the JSON could not be read.
+     */
+    public void endArray() throws IOException {
+        try {
+            reader.endArray();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.beginObject().
+     * 
+     * @throws IOException When the JSON could not be read.
+     */
+    public void beginObject() throws IOException {
+        try {
+            reader.beginObject();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.endObject().
+     * 
+     * @throws IOException When the JSON could not be read.
+     */
+    public void endObject() throws IOException {
+        try {
+            reader.endObject();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.hasNext().
+     * 
+     * @return true if the current array or object has another element.
+     * @throws IOException When the JSON could not be read.
+     */
+    public boolean hasNext() throws IOException {
+        try {
+            return reader.hasNext();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.peek().
+     * 
+     * @return The type of the next token.
+     * @throws IOException When the JSON could not be read.
+     */
+    public JsonToken peek() throws IOException {
+        try {
+            return JsonToken.valueOf(reader.peek().name());
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextName().
+     * 
+     * @return The name of the next property.
+     * @throws IOException When the JSON could not be read.
+     */
+    public String nextName() throws IOException {
+        try {
+            return reader.nextName();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextString().
+     * 
+     * @return The next String value.
+     * @throws IOException When the JSON could not be read.
+     */
+    public String nextString() throws IOException {
+        try {
+            return reader.nextString();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextBoolean().
+     * 
+     * @return The next boolean value.
+     * @throws IOException When the JSON could not be read.
+     */
+    public boolean nextBoolean() throws IOException {
+        try {
+            return reader.nextBoolean();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextNull().
+     * 
+     * @throws IOException When the JSON could not be read.
+     */
+    public void nextNull() throws IOException {
+        try {
+            reader.nextNull();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextDouble().
+     * 
+     * @return The next double value.
+     * @throws IOException When the JSON could not be read.
+     */
+    public double nextDouble() throws IOException {
+        try {
+            return reader.nextDouble();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextLong().
+     * 
+     * @return The next long value.
+     * @throws IOException When the JSON could not be read.
+     */
+    public long nextLong() throws IOException {
+        try {
+            return reader.nextLong();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.nextInt().
+     * 
+     * @return The next int value.
+     * @throws IOException When the JSON could not be read.
+     */
+    public int nextInt() throws IOException {
+        try {
+            return reader.nextInt();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * See android.util.JsonReader.skipValue().
+     * 
+     * @throws IOException When the JSON could not be read.
+     */
+    public void skipValue() throws IOException {
+        try {
+            reader.skipValue();
+        } catch(com.google.gson.stream.MalformedJsonException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package android.util;
+
+import java.io.IOException;
+
+/**
+ * A JVM stand-in for android.util.MalformedJsonException. This must come
+ * before android.jar on the classpath.
+ * 
+ * @author Niall Scott
+ */
+public final class MalformedJsonException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Create a new MalformedJsonException.
+     * 
+     * @param message The detail message.
+     */
+    public MalformedJsonException(final String message) {
+        super(message);
+    }
+}
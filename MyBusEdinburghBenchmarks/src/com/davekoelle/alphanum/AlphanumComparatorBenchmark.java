@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package com.davekoelle.alphanum;
+
+import android.database.Cursor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.org.rivernile.benchmarks.BenchmarkDatabase;
+
+/**
+ * Benchmarks sorting the full list of service names from the bus stop
+ * database, which is the biggest list the application sorts. The names are
+ * shuffled in to a fixed order first. Each benchmark sorts a fresh copy of
+ * that order, so the cost of the copy is included in all of them.
+ * 
+ * @author Niall Scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AlphanumComparatorBenchmark {
+    
+    private static final Comparator<KeyedName> KEYED_COMPARATOR =
+            new Comparator<KeyedName>() {
+        @Override
+        public int compare(final KeyedName a, final KeyedName b) {
+            return AlphanumComparator.compareWithKeys(a.name, a.key, b.name,
+                    b.key);
+        }
+    };
+    
+    private final LegacyAlphanumComparator legacyComparator =
+            new LegacyAlphanumComparator();
+    private final AlphanumComparator comparator = new AlphanumComparator();
+    private String[] names;
+    private KeyedName[] keyedNames;
+    
+    /**
+     * Load the service names from the database and shuffle them.
+     * 
+     * @throws Exception When the database could not be read.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final ArrayList<String> list = new ArrayList<String>();
+        final BenchmarkDatabase db = new BenchmarkDatabase();
+        try {
+            final Cursor c = db.rawQuery("SELECT name FROM service", null);
+            while(c.moveToNext()) {
+                list.add(c.getString(0));
+            }
+            
+            c.close();
+        } finally {
+            db.close();
+        }
+        
+        Collections.shuffle(list, new Random(42));
+        names = list.toArray(new String[list.size()]);
+        keyedNames = new KeyedName[names.length];
+        for(int i = 0; i < names.length; i++) {
+            keyedNames[i] = new KeyedName(names[i]);
+        }
+    }
+    
+    /**
+     * Sort with the old implementation, which split the Strings in to chunks.
+     * 
+     * @return The sorted names.
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public String[] legacyComparator() {
+        final String[] copy = names.clone();
+        Arrays.sort(copy, legacyComparator);
+        return copy;
+    }
+    
+    /**
+     * Sort with AlphanumComparator as a Comparator.
+     * 
+     * @return The sorted names.
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public String[] comparator() {
+        final String[] copy = names.clone();
+        Arrays.sort(copy, comparator);
+        return copy;
+    }
+    
+    /**
+     * Sort with AlphanumComparator.sort().
+     * 
+     * @return The sorted names.
+     */
+    @Benchmark
+    public String[] sort() {
+        final String[] copy = names.clone();
+        AlphanumComparator.sort(copy);
+        return copy;
+    }
+    
+    /**
+     * Sort names which have their sort key worked out up front, as
+     * BusService does.
+     * 
+     * @return The sorted names.
+     */
+    @Benchmark
+    public KeyedName[] sortKeys() {
+        final KeyedName[] copy = keyedNames.clone();
+        Arrays.sort(copy, KEYED_COMPARATOR);
+        return copy;
+    }
+    
+    /**
+     * A name with its sort key.
+     */
+    public static class KeyedName {
+        
+        private final String name;
+        private final long key;
+        
+        /**
+         * Create a new KeyedName.
+         * 
+         * @param name The name.
+         */
+        public KeyedName(final String name) {
+            this.name = name;
+            key = AlphanumComparator.getSortKey(name);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.benchmarks;
+
+import android.database.Cursor;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Gives access to the bus stop database shipped with the application, through
+ * JDBC. The path to the database is taken from the benchmark.database system
+ * property, which is set by the build.
+ * 
+ * @author Niall Scott
+ */
+public class BenchmarkDatabase {
+    
+    /** The system property which holds the path to the database. */
+    public static final String DATABASE_PROPERTY = "benchmark.database";
+    
+    private final Connection connection;
+    
+    /**
+     * Open the bus stop database, read only.
+     * 
+     * @throws SQLException When the database could not be opened.
+     */
+    public BenchmarkDatabase() throws SQLException {
+        final String path = System.getProperty(DATABASE_PROPERTY);
+        if(path == null || !new File(path).isFile()) {
+            throw new IllegalStateException("The bus stop database was not " +
+                    "found. Set the " + DATABASE_PROPERTY + " system " +
+                    "property to its path.");
+        }
+        
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch(ClassNotFoundException e) {
+            throw new IllegalStateException("sqlite-jdbc is not on the " +
+                    "classpath.", e);
+        }
+        
+        // SQLITE_OPEN_READONLY. The read only flag can't be changed once the
+        // connection is open.
+        final Properties properties = new Properties();
+        properties.setProperty("open_mode", "1");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + path,
+                properties);
+    }
+    
+    /**
+     * Run a query and return all of its rows in a Cursor, in the same way as
+     * SQLiteDatabase.rawQuery().
+     * 
+     * @param sql The SQL to run.
+     * @param selectionArgs The arguments to bind to the SQL. May be null.
+     * @return A Cursor holding the result set.
+     * @throws SQLException When the query fails.
+     */
+    public Cursor rawQuery(final String sql, final String[] selectionArgs)
+            throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            return new JdbcCursor(statement, selectionArgs);
+        } finally {
+            statement.close();
+        }
+    }
+    
+    /**
+     * Get the last modification time of the database, from the database_info
+     * table.
+     * 
+     * @return The last modification time of the database.
+     * @throws SQLException When the query fails.
+     */
+    public long getLastDBModTime() throws SQLException {
+        final Cursor c = rawQuery("SELECT updateTS FROM database_info", null);
+        try {
+            return c.moveToNext() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Close the database.
+     * 
+     * @throws SQLException When closing the database fails.
+     */
+    public void close() throws SQLException {
+        connection.close();
+    }
+}
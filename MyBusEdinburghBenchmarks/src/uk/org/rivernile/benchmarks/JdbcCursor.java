@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.benchmarks;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * A read-only Cursor over the result of a JDBC query. All rows are read in
+ * when the Cursor is created, the same as an Android SQLiteCursor fills its
+ * CursorWindow, so that code which takes a Cursor can be run on a plain JVM.
+ * 
+ * The data never changes, so observers are never called and registering them
+ * does nothing. There are no extras.
+ * 
+ * @author Niall Scott
+ */
+public class JdbcCursor implements Cursor {
+    
+    private final String[] columnNames;
+    private final ArrayList<Object[]> rows;
+    private int position = -1;
+    private boolean closed;
+    
+    /**
+     * Create a new JdbcCursor by running a query.
+     * 
+     * @param statement The statement to run. It is not closed.
+     * @param args The arguments to bind to the statement, in order. May be
+     * null.
+     * @throws SQLException When the query fails.
+     */
+    public JdbcCursor(final PreparedStatement statement, final String[] args)
+            throws SQLException {
+        if(args != null) {
+            for(int i = 0; i < args.length; i++) {
+                statement.setString(i + 1, args[i]);
+            }
+        }
+        
+        final ResultSet rs = statement.executeQuery();
+        try {
+            final ResultSetMetaData meta = rs.getMetaData();
+            final int columnCount = meta.getColumnCount();
+            columnNames = new String[columnCount];
+            for(int i = 0; i < columnCount; i++) {
+                columnNames[i] = meta.getColumnLabel(i + 1);
+            }
+            
+            rows = new ArrayList<Object[]>();
+            while(rs.next()) {
+                final Object[] row = new Object[columnCount];
+                for(int i = 0; i < columnCount; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                
+                rows.add(row);
+            }
+        } finally {
+            rs.close();
+        }
+    }
+    
+    /**
+     * Get the value of a column in the current row.
+     * 
+     * @param column The column index.
+     * @return The value, which may be null.
+     */
+    private Object get(final int column) {
+        if(position < 0 || position >= rows.size()) {
+            throw new IllegalStateException("The Cursor is not on a row.");
+        }
+        
+        return rows.get(position)[column];
+    }
+    
+    /**
+     * Get a column value as a Number, converting Strings as SQLite does.
+     * 
+     * @param column The column index.
+     * @return The value as a Number. null is returned as 0.
+     */
+    private Number getNumber(final int column) {
+        final Object value = get(column);
+        if(value == null) {
+            return 0;
+        } else if(value instanceof Number) {
+            return (Number)value;
+        }
+        
+        try {
+            return Double.valueOf(value.toString());
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean move(final int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveToPosition(final int newPosition) {
+        final int count = rows.size();
+        if(newPosition >= count) {
+            position = count;
+            return false;
+        } else if(newPosition < 0) {
+            position = -1;
+            return false;
+        }
+        
+        position = newPosition;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(rows.size() - 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isFirst() {
+        return position == 0 && !rows.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLast() {
+        return !rows.isEmpty() && position == rows.size() - 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBeforeFirst() {
+        return rows.isEmpty() || position == -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAfterLast() {
+        return rows.isEmpty() || position == rows.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getColumnIndex(final String columnName) {
+        final int dot = columnName.lastIndexOf('.');
+        final String name = dot < 0 ? columnName :
+                columnName.substring(dot + 1);
+        for(int i = 0; i < columnNames.length; i++) {
+            if(columnNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getColumnIndexOrThrow(final String columnName) {
+        final int index = getColumnIndex(columnName);
+        if(index < 0) {
+            throw new IllegalArgumentException("column '" + columnName +
+                    "' does not exist");
+        }
+        
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getColumnName(final int columnIndex) {
+        return columnNames[columnIndex];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getBlob(final int columnIndex) {
+        final Object value = get(columnIndex);
+        if(value == null) {
+            return null;
+        } else if(value instanceof byte[]) {
+            return (byte[])value;
+        }
+        
+        return value.toString().getBytes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getString(final int columnIndex) {
+        final Object value = get(columnIndex);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void copyStringToBuffer(final int columnIndex,
+            final CharArrayBuffer buffer) {
+        final String value = getString(columnIndex);
+        if(value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        
+        final char[] data = buffer.data == null ||
+                buffer.data.length < value.length() ?
+                        value.toCharArray() : buffer.data;
+        value.getChars(0, value.length(), data, 0);
+        buffer.data = data;
+        buffer.sizeCopied = value.length();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int columnIndex) {
+        return getNumber(columnIndex).shortValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int columnIndex) {
+        return getNumber(columnIndex).intValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLong(final int columnIndex) {
+        return getNumber(columnIndex).longValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getFloat(final int columnIndex) {
+        return getNumber(columnIndex).floatValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getDouble(final int columnIndex) {
+        return getNumber(columnIndex).doubleValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getType(final int columnIndex) {
+        final Object value = get(columnIndex);
+        if(value == null) {
+            return FIELD_TYPE_NULL;
+        } else if(value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        } else if(value instanceof Float || value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if(value instanceof Number) {
+            return FIELD_TYPE_INTEGER;
+        }
+        
+        return FIELD_TYPE_STRING;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNull(final int columnIndex) {
+        return get(columnIndex) == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deactivate() {
+        // Nothing to do.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requery() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        closed = true;
+        rows.clear();
+        position = -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerContentObserver(final ContentObserver observer) {
+        // Nothing to do here. The data never changes.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unregisterContentObserver(final ContentObserver observer) {
+        // Nothing to do here. The data never changes.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerDataSetObserver(final DataSetObserver observer) {
+        // Nothing to do here. The data never changes.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unregisterDataSetObserver(final DataSetObserver observer) {
+        // Nothing to do here. The data never changes.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNotificationUri(final ContentResolver cr, final Uri uri) {
+        // Nothing to do here. The data never changes.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Uri getNotificationUri() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Bundle getExtras() {
+        return Bundle.EMPTY;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Bundle respond(final Bundle extras) {
+        return Bundle.EMPTY;
+    }
+}
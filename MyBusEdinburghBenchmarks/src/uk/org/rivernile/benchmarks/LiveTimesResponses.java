@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates responses in the format returned by the getBusTimes method of the
+ * bus tracker web service. The content is made up, but the structure, field
+ * order and field sizes follow real responses, including the fields that the
+ * application does not read.
+ * 
+ * The same arguments always produce the same response.
+ * 
+ * @author Niall Scott
+ */
+public final class LiveTimesResponses {
+    
+    private static final String[] SERVICES = {
+        "1", "3", "4", "5", "7", "8", "10", "11", "12", "14", "15", "15A",
+        "16", "21", "22", "23", "24", "25", "26", "27", "29", "30", "31",
+        "33", "34", "35", "36", "37", "38", "41", "44", "44A", "45", "47",
+        "N3", "N22", "N26", "N44", "X12", "X25", "TRAM"
+    };
+    
+    private static final String[] DESTINATIONS = {
+        "Clovenstone", "Ocean Terminal", "Gyle Centre", "Hyvots Bank",
+        "Riccarton", "Royal Infirmary", "Silverknowes", "Musselburgh",
+        "Wallyford", "Balerno", "Newcraighall", "Edinburgh Airport",
+        "Seafield", "Hermiston Gait", "Torphin", "Granton"
+    };
+    
+    private static final char[] RELIABILITIES = {
+        'H', 'H', 'H', 'H', 'F', 'T', 'T', 'B', 'V'
+    };
+    
+    private static final char[] TYPES = {
+        'N', 'N', 'N', 'N', 'D', 'P'
+    };
+    
+    /**
+     * This class is not to be instantiated.
+     */
+    private LiveTimesResponses() {
+        // Nothing to do here.
+    }
+    
+    /**
+     * Generate a response.
+     * 
+     * @param stops The number of bus stops in the response.
+     * @param servicesPerStop The number of services at each stop.
+     * @param departures The number of departures for each service.
+     * @param seed The seed for the made up content.
+     * @return The response as a JSON String.
+     */
+    public static String generate(final int stops, final int servicesPerStop,
+            final int departures, final long seed) {
+        final String[] stopCodes = new String[stops];
+        for(int i = 0; i < stops; i++) {
+            stopCodes[i] = String.valueOf(36232000 + i * 17);
+        }
+        
+        return generate(stopCodes, servicesPerStop, departures, seed);
+    }
+    
+    /**
+     * Generate a response for the given stops.
+     * 
+     * @param stopCodes The stop codes of the bus stops in the response.
+     * @param servicesPerStop The number of services at each stop.
+     * @param departures The number of departures for each service.
+     * @param seed The seed for the made up content.
+     * @return The response as a JSON String.
+     */
+    public static String generate(final String[] stopCodes,
+            final int servicesPerStop, final int departures, final long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(stopCodes.length *
+                servicesPerStop * (300 + departures * 150));
+        sb.append("{\"busTimes\":[");
+        boolean first = true;
+        
+        for(String stopCode : stopCodes) {
+            final String stopName = DESTINATIONS[random.nextInt(
+                    DESTINATIONS.length)] + " Road";
+            final boolean stopDisruption = random.nextInt(20) == 0;
+            final int serviceOffset = random.nextInt(SERVICES.length);
+            
+            for(int service = 0; service < servicesPerStop; service++) {
+                final String serviceName = SERVICES[(serviceOffset + service) %
+                        SERVICES.length];
+                if(!first) sb.append(',');
+                first = false;
+                
+                sb.append("{\"operatorId\":\"LB\",\"stopId\":\"")
+                        .append(stopCode).append("\",\"stopName\":\"")
+                        .append(stopName).append("\",\"refService\":\"")
+                        .append(serviceName).append("\",\"mnemoService\":\"")
+                        .append(serviceName).append("\",\"nameService\":\"")
+                        .append(DESTINATIONS[random.nextInt(
+                                DESTINATIONS.length)])
+                        .append(" - ").append(DESTINATIONS[random.nextInt(
+                                DESTINATIONS.length)])
+                        .append("\",\"timeDatas\":[");
+                
+                int minutes = random.nextInt(10);
+                for(int i = 0; i < departures; i++) {
+                    if(i > 0) sb.append(',');
+                    final String destination = DESTINATIONS[random.nextInt(
+                            DESTINATIONS.length)];
+                    final int time = 8 * 60 + minutes;
+                    sb.append("{\"day\":0,\"time\":\"");
+                    appendTwoDigits(sb, (time / 60) % 24);
+                    sb.append(':');
+                    appendTwoDigits(sb, time % 60);
+                    sb.append("\",\"minutes\":").append(minutes)
+                            .append(",\"reliability\":\"")
+                            .append(RELIABILITIES[random.nextInt(
+                                    RELIABILITIES.length)])
+                            .append("\",\"type\":\"")
+                            .append(TYPES[random.nextInt(TYPES.length)])
+                            .append("\",\"terminus\":\"")
+                            .append(36234000 + random.nextInt(900))
+                            .append("\",\"journeyId\":\"")
+                            .append(random.nextInt(10000))
+                            .append("\",\"busId\":\"")
+                            .append(random.nextInt(1000))
+                            .append("\",\"nameDest\":\"")
+                            .append(destination).append("\"}");
+                    minutes += 3 + random.nextInt(15);
+                }
+                
+                sb.append("],\"busStopDisruption\":").append(stopDisruption)
+                        .append(",\"serviceDisruption\":")
+                        .append(random.nextInt(30) == 0)
+                        .append(",\"serviceDiversion\":false")
+                        .append(",\"globalDisruption\":false}");
+            }
+        }
+        
+        sb.append("]}");
+        return sb.toString();
+    }
+    
+    /**
+     * Append a number to a StringBuilder as two digits.
+     * 
+     * @param sb The StringBuilder to append to.
+     * @param value The number, from 0 to 99.
+     */
+    private static void appendTwoDigits(final StringBuilder sb,
+            final int value) {
+        if(value < 10) sb.append('0');
+        sb.append(value);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.benchmarks.replay;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Command line arguments in the form --name value.
+ * 
+ * @author Niall Scott
+ */
+public class Arguments {
+    
+    private final HashMap<String, String> values =
+            new HashMap<String, String>();
+    private final HashSet<String> used = new HashSet<String>();
+    
+    /**
+     * Parse command line arguments.
+     * 
+     * @param args The command line arguments.
+     * @throws IllegalArgumentException When the arguments are not in the form
+     * --name value.
+     */
+    public Arguments(final String[] args) {
+        for(int i = 0; i < args.length; i += 2) {
+            if(!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value, " +
+                        "got " + args[i]);
+            }
+            
+            values.put(args[i].substring(2), args[i + 1]);
+        }
+    }
+    
+    /**
+     * Get an argument as a String.
+     * 
+     * @param name The name of the argument, without the leading --.
+     * @param defaultValue The value to use when the argument is not given.
+     * @return The value of the argument.
+     */
+    public String getString(final String name, final String defaultValue) {
+        used.add(name);
+        final String value = values.get(name);
+        return value != null ? value : defaultValue;
+    }
+    
+    /**
+     * Get an argument as an int.
+     * 
+     * @param name The name of the argument, without the leading --.
+     * @param defaultValue The value to use when the argument is not given.
+     * @return The value of the argument.
+     * @throws IllegalArgumentException When the value is not a number.
+     */
+    public int getInt(final String name, final int defaultValue) {
+        return (int)getLong(name, defaultValue);
+    }
+    
+    /**
+     * Get an argument as a long.
+     * 
+     * @param name The name of the argument, without the leading --.
+     * @param defaultValue The value to use when the argument is not given.
+     * @return The value of the argument.
+     * @throws IllegalArgumentException When the value is not a number.
+     */
+    public long getLong(final String name, final long defaultValue) {
+        final String value = getString(name, null);
+        if(value == null) return defaultValue;
+        
+        try {
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name +
+                    " must be a whole number.");
+        }
+    }
+    
+    /**
+     * Get an argument as a double.
+     * 
+     * @param name The name of the argument, without the leading --.
+     * @param defaultValue The value to use when the argument is not given.
+     * @return The value of the argument.
+     * @throws IllegalArgumentException When the value is not a number.
+     */
+    public double getDouble(final String name, final double defaultValue) {
+        final String value = getString(name, null);
+        if(value == null) return defaultValue;
+        
+        try {
+            return Double.parseDouble(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name +
+                    " must be a number.");
+        }
+    }
+    
+    /**
+     * Get an argument as a boolean.
+     * 
+     * @param name The name of the argument, without the leading --.
+     * @param defaultValue The value to use when the argument is not given.
+     * @return The value of the argument.
+     */
+    public boolean getBoolean(final String name, final boolean defaultValue) {
+        final String value = getString(name, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+    
+    /**
+     * Make sure that every argument that was given has been asked for, so
+     * that typing mistakes are not silently ignored.
+     * 
+     * @throws IllegalArgumentException When an argument was not asked for.
+     */
+    public void checkAllUsed() {
+        for(String name : values.keySet()) {
+            if(!used.contains(name)) {
+                throw new IllegalArgumentException("Unknown argument --" +
+                        name);
+            }
+        }
+    }
+}
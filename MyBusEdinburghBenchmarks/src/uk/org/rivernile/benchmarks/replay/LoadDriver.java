@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.benchmarks.replay;
+
+import android.database.Cursor;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import uk.org.rivernile.android.bustracker.parser.livetimes.BusParser;
+import uk.org.rivernile.android.bustracker.parser.livetimes
+        .BusParserException;
+import uk.org.rivernile.android.utils.HttpTransport;
+import uk.org.rivernile.benchmarks.BenchmarkDatabase;
+import uk.org.rivernile.edinburghbustracker.android.ApiKey;
+import uk.org.rivernile.edinburghbustracker.android.Endpoints;
+import uk.org.rivernile.edinburghbustracker.android.livetimes.parser
+        .EdinburghParser;
+
+/**
+ * Drives load through the application's client stack, HttpTransport and
+ * EdinburghParser, against a ReplayServer and reports the end to end latency
+ * and throughput of refreshes. Unless --url is given, a ReplayServer is
+ * started in this process, and it takes the same arguments as
+ * ReplayServer.main().
+ * 
+ * The arguments, on top of those of ReplayServer, are:
+ * 
+ * --url url            The base URL of a ReplayServer that is already
+ *                      running. The API is expected at url/api/.
+ * --endpoint name      getBusTimes (the default), getTopoId, DatabaseVersion
+ *                      or TwitterStatuses.
+ * --threads n          The number of threads making requests. Default 4.
+ * --warmup s           Seconds to run before measuring. Default 5.
+ * --duration s         Seconds to measure for. Default 30.
+ * --stops n            The stops in each getBusTimes request. Default 1.
+ * --departures n       The departures asked for in each getBusTimes
+ *                      request. Default 4.
+ * --cached true        Go through the shared CachingBusParser, as the
+ *                      application does, rather than a plain EdinburghParser.
+ * 
+ * @author Niall Scott
+ */
+public class LoadDriver {
+    
+    private static final String ENDPOINT_BUS_TIMES = "getBusTimes";
+    
+    // These repeat the paths in Application and TwitterUpdatesLoader.
+    private static final String TOPO_ID_PATH =
+            "ws.php?module=json&function=getTopoId&key=";
+    private static final String DATABASE_VERSION_PATH =
+            "DatabaseVersion?schemaType=MBE_10&key=";
+    private static final String TWITTER_STATUSES_PATH =
+            "TwitterStatuses?appName=MBE&key=";
+    
+    private final String endpoint;
+    private final BusParser parser;
+    private final String[] allStopCodes;
+    private final int stopsPerRequest;
+    private final int departures;
+    
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+    
+    /**
+     * Create a new LoadDriver. The Endpoints must already point at the
+     * server.
+     * 
+     * @param endpoint The endpoint to make requests to.
+     * @param parser The BusParser to use for getBusTimes requests.
+     * @param allStopCodes The stop codes to pick from for getBusTimes
+     * requests.
+     * @param stopsPerRequest The number of stops in each getBusTimes request.
+     * @param departures The number of departures in each getBusTimes request.
+     */
+    public LoadDriver(final String endpoint, final BusParser parser,
+            final String[] allStopCodes, final int stopsPerRequest,
+            final int departures) {
+        this.endpoint = endpoint;
+        this.parser = parser;
+        this.allStopCodes = allStopCodes;
+        this.stopsPerRequest = stopsPerRequest;
+        this.departures = departures;
+    }
+    
+    /**
+     * Run the load.
+     * 
+     * @param threadCount The number of threads making requests.
+     * @param warmupMillis The time to run before measuring, in milliseconds.
+     * @param durationMillis The time to measure for, in milliseconds.
+     * @return The combined measurements of all of the threads.
+     * @throws InterruptedException When interrupted while waiting for the
+     * threads.
+     */
+    public Recorder run(final int threadCount, final long warmupMillis,
+            final long durationMillis) throws InterruptedException {
+        final Worker[] workers = new Worker[threadCount];
+        for(int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        
+        Thread.sleep(warmupMillis);
+        for(Worker worker : workers) {
+            worker.recorder.reset();
+        }
+        
+        measuring = true;
+        final long start = System.nanoTime();
+        Thread.sleep(durationMillis);
+        running = false;
+        final long elapsed = System.nanoTime() - start;
+        
+        final Recorder total = new Recorder();
+        for(Worker worker : workers) {
+            worker.join();
+            total.add(worker.recorder);
+        }
+        
+        total.elapsedNanos = elapsed;
+        return total;
+    }
+    
+    /**
+     * Make a single request, in the same way as the application.
+     * 
+     * @param random The Random to pick stops with.
+     * @return null if the request succeeded, otherwise a description of the
+     * error.
+     */
+    private String request(final Random random) {
+        try {
+            if(ENDPOINT_BUS_TIMES.equals(endpoint)) {
+                final String[] stopCodes = new String[stopsPerRequest];
+                for(int i = 0; i < stopsPerRequest; i++) {
+                    stopCodes[i] = allStopCodes[random.nextInt(
+                            allStopCodes.length)];
+                }
+                
+                parser.getBusStopData(stopCodes, departures);
+            } else if("getTopoId".equals(endpoint)) {
+                new JSONObject(getString(Endpoints.getBusTrackerUrl() +
+                        TOPO_ID_PATH)).getString("topoId");
+            } else if("DatabaseVersion".equals(endpoint)) {
+                new JSONObject(getString(Endpoints.getApiUrl() +
+                        DATABASE_VERSION_PATH)).getString("topo_id");
+            } else {
+                new JSONArray(getString(Endpoints.getApiUrl() +
+                        TWITTER_STATUSES_PATH)).length();
+            }
+            
+            return null;
+        } catch(BusParserException e) {
+            return "BusParserException " + e.getCode();
+        } catch(HttpTransport.HttpStatusException e) {
+            return "HTTP " + e.getStatus();
+        } catch(IOException e) {
+            return e.getClass().getSimpleName();
+        } catch(JSONException e) {
+            return "JSONException";
+        }
+    }
+    
+    /**
+     * Get a response as a String, conditional on the last response, as the
+     * application does for these endpoints.
+     * 
+     * @param url The URL to request, without the API key.
+     * @return The body of the response.
+     * @throws IOException When the request failed.
+     */
+    private String getString(final String url) throws IOException {
+        return HttpTransport.getInstance().getString(endpoint,
+                url + ApiKey.getHashedKey(), true);
+    }
+    
+    /**
+     * A thread which makes requests one after another until the run is over.
+     */
+    private class Worker extends Thread {
+        
+        private final Recorder recorder = new Recorder();
+        private final Random random;
+        
+        /**
+         * Create a new Worker.
+         * 
+         * @param index The index of the thread, used to seed its Random.
+         */
+        public Worker(final int index) {
+            super("LoadDriver-" + index);
+            random = new Random(index);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            while(running) {
+                final boolean measured = measuring;
+                final long start = System.nanoTime();
+                final String error = request(random);
+                final long time = System.nanoTime() - start;
+                
+                // Requests that were started during the warm up are not
+                // counted.
+                if(measured && running) {
+                    recorder.record(time, error);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Holds the latencies and errors of requests.
+     */
+    public static class Recorder {
+        
+        private long[] latencies = new long[1024];
+        private int count;
+        private final TreeMap<String, Integer> errors =
+                new TreeMap<String, Integer>();
+        private long elapsedNanos;
+        
+        /**
+         * Record a request.
+         * 
+         * @param nanos The time taken, in nanoseconds.
+         * @param error null if the request succeeded, otherwise a description
+         * of the error.
+         */
+        public synchronized void record(final long nanos, final String error) {
+            if(count == latencies.length) {
+                final long[] grown = new long[count * 2];
+                System.arraycopy(latencies, 0, grown, 0, count);
+                latencies = grown;
+            }
+            
+            latencies[count++] = nanos;
+            if(error != null) {
+                final Integer n = errors.get(error);
+                errors.put(error, n == null ? 1 : n + 1);
+            }
+        }
+        
+        /**
+         * Forget all of the recorded requests.
+         */
+        public synchronized void reset() {
+            count = 0;
+            errors.clear();
+        }
+        
+        /**
+         * Add the requests recorded by another Recorder to this one.
+         * 
+         * @param other The other Recorder.
+         */
+        public synchronized void add(final Recorder other) {
+            synchronized(other) {
+                for(int i = 0; i < other.count; i++) {
+                    record(other.latencies[i], null);
+                }
+                
+                for(Map.Entry<String, Integer> e : other.errors.entrySet()) {
+                    final Integer n = errors.get(e.getKey());
+                    errors.put(e.getKey(), n == null ? e.getValue() :
+                            n + e.getValue());
+                }
+            }
+        }
+        
+        /**
+         * Get the number of requests.
+         * 
+         * @return The number of requests.
+         */
+        public synchronized int getCount() {
+            return count;
+        }
+        
+        /**
+         * Get the number of requests which failed.
+         * 
+         * @return The number of requests which failed.
+         */
+        public synchronized int getErrorCount() {
+            int total = 0;
+            for(Integer n : errors.values()) {
+                total += n;
+            }
+            
+            return total;
+        }
+        
+        /**
+         * Get the latency at a percentile.
+         * 
+         * @param percentile The percentile, from 0 to 100.
+         * @return The latency, in milliseconds.
+         */
+        public synchronized double getPercentile(final double percentile) {
+            if(count == 0) return 0;
+            
+            final long[] sorted = new long[count];
+            System.arraycopy(latencies, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            final int index = (int)Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+        }
+        
+        /**
+         * Get the mean latency.
+         * 
+         * @return The mean latency, in milliseconds.
+         */
+        public synchronized double getMean() {
+            if(count == 0) return 0;
+            
+            long total = 0;
+            for(int i = 0; i < count; i++) {
+                total += latencies[i];
+            }
+            
+            return total / 1e6 / count;
+        }
+        
+        /**
+         * Print a summary of the requests.
+         */
+        public synchronized void print() {
+            final double seconds = elapsedNanos / 1e9;
+            System.out.println(String.format(Locale.UK,
+                    "Requests:     %d in %.1f s (%.1f/s)", count, seconds,
+                    seconds > 0 ? count / seconds : 0));
+            System.out.println("Errors:       " + getErrorCount() +
+                    (errors.isEmpty() ? "" : " " + errors));
+            System.out.println(String.format(Locale.UK,
+                    "Latency (ms): mean %.2f, p50 %.2f, p90 %.2f, " +
+                    "p99 %.2f, max %.2f", getMean(), getPercentile(50),
+                    getPercentile(90), getPercentile(99),
+                    getPercentile(100)));
+        }
+    }
+    
+    /**
+     * Load the stop codes from the bus stop database, if it is available.
+     * 
+     * @return The stop codes, or made up stop codes if the database is not
+     * available.
+     */
+    private static String[] loadStopCodes() {
+        if(System.getProperty(BenchmarkDatabase.DATABASE_PROPERTY) != null) {
+            try {
+                final BenchmarkDatabase db = new BenchmarkDatabase();
+                try {
+                    final Cursor c = db.rawQuery(
+                            "SELECT stopCode FROM bus_stops", null);
+                    final ArrayList<String> result = new ArrayList<String>();
+                    while(c.moveToNext()) {
+                        result.add(c.getString(0));
+                    }
+                    
+                    c.close();
+                    if(!result.isEmpty()) {
+                        return result.toArray(new String[result.size()]);
+                    }
+                } finally {
+                    db.close();
+                }
+            } catch(SQLException e) {
+                System.err.println("Could not read the stop codes: " + e);
+            }
+        }
+        
+        final String[] result = new String[500];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = String.valueOf(36232000 + i);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Run the load driver from the command line. See the class description
+     * for the arguments.
+     * 
+     * @param args The command line arguments.
+     * @throws Exception When the load could not be run.
+     */
+    public static void main(final String[] args) throws Exception {
+        final Arguments arguments = new Arguments(args);
+        final String url = arguments.getString("url", null);
+        final String endpoint = arguments.getString("endpoint",
+                ENDPOINT_BUS_TIMES);
+        final int threads = arguments.getInt("threads", 4);
+        final long warmup = arguments.getLong("warmup", 5) * 1000;
+        final long duration = arguments.getLong("duration", 30) * 1000;
+        final int stops = arguments.getInt("stops", 1);
+        final int departures = arguments.getInt("departures", 4);
+        final boolean cached = arguments.getBoolean("cached", false);
+        
+        if(!ENDPOINT_BUS_TIMES.equals(endpoint) &&
+                !"getTopoId".equals(endpoint) &&
+                !"DatabaseVersion".equals(endpoint) &&
+                !"TwitterStatuses".equals(endpoint)) {
+            throw new IllegalArgumentException("Unknown endpoint: " +
+                    endpoint);
+        }
+        
+        final ReplayServer server;
+        if(url == null) {
+            server = ReplayServer.create(arguments);
+            arguments.checkAllUsed();
+            server.start();
+            Endpoints.setBaseUrls(server.getBaseUrl(), server.getApiUrl());
+        } else {
+            arguments.checkAllUsed();
+            server = null;
+            final String base = url.endsWith("/") ? url : url + '/';
+            Endpoints.setBaseUrls(base, base + "api/");
+        }
+        
+        final BusParser parser = cached ? EdinburghParser.getCachingInstance()
+                : new EdinburghParser();
+        final LoadDriver driver = new LoadDriver(endpoint, parser,
+                loadStopCodes(), stops, departures);
+        
+        System.out.println("Endpoint:     " + endpoint + " at " +
+                Endpoints.getBusTrackerUrl());
+        System.out.println("Threads:      " + threads);
+        try {
+            driver.run(threads, warmup, duration).print();
+        } finally {
+            if(server != null) server.stop();
+        }
+        
+        System.out.println();
+        System.out.println("HttpTransport, including the warm up:");
+        final HashMap<String, HttpTransport.EndpointStats> stats =
+                HttpTransport.getInstance().getStats();
+        for(Map.Entry<String, HttpTransport.EndpointStats> e :
+                stats.entrySet()) {
+            final HttpTransport.EndpointStats s = e.getValue();
+            System.out.println("  " + e.getKey() + ": " + s.getRequests() +
+                    " requests, " + s.getFailures() + " failed, " +
+                    s.getNotModified() + " not modified, mean " +
+                    s.getMeanTime() + " ms, max " + s.getMaxTime() +
+                    " ms, " + s.getBytes() + " bytes");
+        }
+        
+        if(server != null) {
+            System.out.println("ReplayServer served: " +
+                    server.getServedCounts());
+        }
+    }
+}
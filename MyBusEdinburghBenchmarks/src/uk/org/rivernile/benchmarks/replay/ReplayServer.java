@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.benchmarks.replay;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import uk.org.rivernile.benchmarks.LiveTimesResponses;
+
+/**
+ * A local HTTP server which stands in for the bus tracker web service and the
+ * application API, so that the client can be profiled without depending on
+ * the live services. It serves the getBusTimes and getTopoId functions of the
+ * bus tracker web service under /ws.php, and DatabaseVersion and
+ * TwitterStatuses under /api/.
+ * 
+ * Responses are taken from a directory of recordings, see
+ * recordings/README.txt. getBusTimes responses are generated when there is no
+ * recording for them. Latency, HTTP errors and bus tracker fault codes can be
+ * added to the responses.
+ * 
+ * Point the client at it with Endpoints.setBaseUrls(), using getBaseUrl() and
+ * getApiUrl(). On a device, set them from the diagnostics screen of a
+ * debuggable build instead. The emulator reaches the host machine at
+ * 10.0.2.2.
+ * 
+ * @author Niall Scott
+ */
+public class ReplayServer {
+    
+    /** The port the server listens on by default. */
+    public static final int DEFAULT_PORT = 8642;
+    /**
+     * The system property which holds the default directory of recordings.
+     */
+    public static final String RECORDINGS_PROPERTY = "replay.recordings";
+    /** The number of services at each stop in generated responses. */
+    public static final int DEFAULT_SERVICES_PER_STOP = 8;
+    
+    private static final String ENDPOINT_BUS_TIMES = "getBusTimes";
+    private static final String ENDPOINT_TOPO_ID = "getTopoId";
+    private static final String ENDPOINT_DATABASE_VERSION = "DatabaseVersion";
+    private static final String ENDPOINT_TWITTER_STATUSES = "TwitterStatuses";
+    private static final String API_PATH = "/api/";
+    private static final String BUS_TRACKER_PATH = "/ws.php";
+    private static final String CHARSET = "UTF-8";
+    
+    private final HashMap<String, byte[]> recordings =
+            new HashMap<String, byte[]>();
+    private final HashMap<String, String> etags =
+            new HashMap<String, String>();
+    private final TreeMap<String, AtomicInteger> served =
+            new TreeMap<String, AtomicInteger>();
+    private final Random random;
+    
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    private volatile int minLatency;
+    private volatile int maxLatency;
+    private volatile double errorRate;
+    private volatile int errorStatus = HttpURLConnection.HTTP_UNAVAILABLE;
+    private volatile double faultRate;
+    private volatile String faultCode = "SYSTEM_OVERLOADED";
+    private volatile int servicesPerStop = DEFAULT_SERVICES_PER_STOP;
+    
+    static {
+        // Without this, the response headers and body go in separate
+        // packets and Nagle's algorithm adds about 40ms to every response.
+        // It must be set before the first server is created.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+    
+    /**
+     * Create a new ReplayServer. It is not started until start() is called.
+     * 
+     * @param port The port to listen on. 0 picks a free port.
+     * @param recordingsDir The directory holding the recordings. May be null,
+     * in which case only generated getBusTimes responses are served.
+     * @param seed The seed for the latency, errors, faults and generated
+     * responses.
+     * @throws IOException When the port could not be opened or the
+     * recordings could not be read.
+     */
+    public ReplayServer(final int port, final File recordingsDir,
+            final long seed) throws IOException {
+        random = new Random(seed);
+        
+        if(recordingsDir != null) {
+            loadRecordings(recordingsDir);
+        }
+        
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        // Requests sleep for the latency, so don't limit the threads.
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                try {
+                    ReplayServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Start serving requests.
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stop serving requests, waiting at most a second for requests that are
+     * in progress.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Get the base URL of the stand-in bus tracker web service.
+     * 
+     * @return The base URL, ending in a '/'.
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + '/';
+    }
+    
+    /**
+     * Get the base URL of the stand-in application API.
+     * 
+     * @return The base URL, ending in a '/'.
+     */
+    public String getApiUrl() {
+        return getBaseUrl() + API_PATH.substring(1);
+    }
+    
+    /**
+     * Set the time taken to respond to each request. A time between min and
+     * max is picked at random for each request.
+     * 
+     * @param min The least time, in milliseconds.
+     * @param max The most time, in milliseconds.
+     */
+    public void setLatency(final int min, final int max) {
+        if(min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid latency range.");
+        }
+        
+        minLatency = min;
+        maxLatency = max;
+    }
+    
+    /**
+     * Set the proportion of requests which fail with an HTTP error.
+     * 
+     * @param rate The proportion of requests, from 0 to 1.
+     * @param status The HTTP status code to fail with.
+     */
+    public void setErrorRate(final double rate, final int status) {
+        errorRate = rate;
+        errorStatus = status;
+    }
+    
+    /**
+     * Set the proportion of bus tracker requests which return a fault code
+     * instead of data.
+     * 
+     * @param rate The proportion of requests, from 0 to 1.
+     * @param code The fault code, for example SYSTEM_OVERLOADED or
+     * INVALID_APP_KEY.
+     */
+    public void setFaultRate(final double rate, final String code) {
+        faultRate = rate;
+        faultCode = code;
+    }
+    
+    /**
+     * Set the number of services at each stop in generated getBusTimes
+     * responses.
+     * 
+     * @param servicesPerStop The number of services at each stop.
+     */
+    public void setServicesPerStop(final int servicesPerStop) {
+        this.servicesPerStop = servicesPerStop;
+    }
+    
+    /**
+     * Get the number of requests served for each endpoint so far, including
+     * those that failed.
+     * 
+     * @return A mapping of endpoint name -> number of requests.
+     */
+    public TreeMap<String, Integer> getServedCounts() {
+        final TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+        synchronized(served) {
+            for(Map.Entry<String, AtomicInteger> e : served.entrySet()) {
+                result.put(e.getKey(), e.getValue().get());
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Handle a request.
+     * 
+     * @param exchange The request.
+     * @throws IOException When the response could not be sent.
+     */
+    private void handle(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final HashMap<String, String> query =
+                parseQuery(exchange.getRequestURI().getRawQuery());
+        final boolean busTracker = BUS_TRACKER_PATH.equals(path);
+        final String endpoint;
+        if(busTracker) {
+            endpoint = query.get("function");
+        } else if(path.startsWith(API_PATH)) {
+            endpoint = path.substring(API_PATH.length());
+        } else {
+            endpoint = null;
+        }
+        
+        if(!ENDPOINT_BUS_TIMES.equals(endpoint) &&
+                !ENDPOINT_TOPO_ID.equals(endpoint) &&
+                !ENDPOINT_DATABASE_VERSION.equals(endpoint) &&
+                !ENDPOINT_TWITTER_STATUSES.equals(endpoint)) {
+            sendEmpty(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+            return;
+        }
+        
+        countServed(endpoint);
+        sleep(pickLatency());
+        
+        if(chance(errorRate)) {
+            sendEmpty(exchange, errorStatus);
+            return;
+        }
+        
+        if(busTracker && chance(faultRate)) {
+            send(exchange, ("{\"faultcode\":\"" + faultCode + "\"}")
+                    .getBytes(CHARSET), null);
+            return;
+        }
+        
+        final byte[] body;
+        final String etag;
+        if(ENDPOINT_BUS_TIMES.equals(endpoint)) {
+            body = getBusTimes(query);
+            etag = null;
+        } else {
+            body = recordings.get(endpoint);
+            etag = etags.get(endpoint);
+        }
+        
+        if(body == null) {
+            sendEmpty(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+        } else if(etag != null && etag.equals(
+                exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            sendEmpty(exchange, HttpURLConnection.HTTP_NOT_MODIFIED);
+        } else {
+            send(exchange, body, etag);
+        }
+    }
+    
+    /**
+     * Get the body of a getBusTimes response, either from the recordings or
+     * generated for the requested stops.
+     * 
+     * @param query The query parameters of the request.
+     * @return The body of the response.
+     * @throws UnsupportedEncodingException Never, as UTF-8 is always
+     * supported.
+     */
+    private byte[] getBusTimes(final HashMap<String, String> query)
+            throws UnsupportedEncodingException {
+        final ArrayList<String> stopCodes = new ArrayList<String>();
+        final String single = query.get("stopId");
+        if(single != null) {
+            stopCodes.add(single);
+        } else {
+            for(int i = 1; query.containsKey("stopId" + i); i++) {
+                stopCodes.add(query.get("stopId" + i));
+            }
+        }
+        
+        byte[] body = null;
+        if(stopCodes.size() == 1) {
+            body = recordings.get(ENDPOINT_BUS_TIMES + '-' + stopCodes.get(0));
+        }
+        
+        if(body == null) {
+            body = recordings.get(ENDPOINT_BUS_TIMES);
+        }
+        
+        if(body == null) {
+            int departures;
+            try {
+                departures = Integer.parseInt(query.get("nb"));
+            } catch(NumberFormatException e) {
+                departures = 4;
+            }
+            
+            body = LiveTimesResponses.generate(
+                    stopCodes.toArray(new String[stopCodes.size()]),
+                    servicesPerStop, departures, random.nextLong())
+                    .getBytes(CHARSET);
+        }
+        
+        return body;
+    }
+    
+    /**
+     * Send a response with a JSON body, compressing it if the client accepts
+     * gzip.
+     * 
+     * @param exchange The request.
+     * @param body The body.
+     * @param etag The ETag of the body, or null if it has none.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void send(final HttpExchange exchange, final byte[] body,
+            final String etag) throws IOException {
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        if(etag != null) {
+            headers.set("ETag", etag);
+        }
+        
+        final String acceptEncoding =
+                exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        final byte[] data;
+        if(acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(body);
+            gzip.close();
+            data = bytes.toByteArray();
+            headers.set("Content-Encoding", "gzip");
+        } else {
+            data = body;
+        }
+        
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, data.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(data);
+        out.close();
+    }
+    
+    /**
+     * Send a response with no body.
+     * 
+     * @param exchange The request.
+     * @param status The HTTP status code.
+     * @throws IOException When the response could not be sent.
+     */
+    private static void sendEmpty(final HttpExchange exchange,
+            final int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+    
+    /**
+     * Count a request against its endpoint.
+     * 
+     * @param endpoint The name of the endpoint.
+     */
+    private void countServed(final String endpoint) {
+        AtomicInteger count;
+        synchronized(served) {
+            count = served.get(endpoint);
+            if(count == null) {
+                count = new AtomicInteger();
+                served.put(endpoint, count);
+            }
+        }
+        
+        count.incrementAndGet();
+    }
+    
+    /**
+     * Pick the latency for a request.
+     * 
+     * @return The latency, in milliseconds.
+     */
+    private int pickLatency() {
+        final int min = minLatency;
+        final int max = maxLatency;
+        return max > min ? min + random.nextInt(max - min + 1) : min;
+    }
+    
+    /**
+     * Decide at random if something should happen.
+     * 
+     * @param rate The chance of it happening, from 0 to 1.
+     * @return true if it should happen.
+     */
+    private boolean chance(final double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+    
+    /**
+     * Sleep for a while, giving up early if interrupted.
+     * 
+     * @param millis The time to sleep for, in milliseconds.
+     */
+    private static void sleep(final int millis) {
+        if(millis <= 0) return;
+        
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Read the recordings in a directory in to memory. Each file named
+     * something.json is the recording for the endpoint "something".
+     * 
+     * @param dir The directory holding the recordings.
+     * @throws IOException When a recording could not be read.
+     */
+    private void loadRecordings(final File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        if(files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        
+        for(File file : files) {
+            final String name = file.getName();
+            if(!file.isFile() || !name.endsWith(".json")) continue;
+            
+            final byte[] body = readFile(file);
+            final String endpoint = name.substring(0, name.length() - 5);
+            recordings.put(endpoint, body);
+            etags.put(endpoint, '"' +
+                    Integer.toHexString(Arrays.hashCode(body)) + '"');
+        }
+    }
+    
+    /**
+     * Read the whole of a file.
+     * 
+     * @param file The file to read.
+     * @return The contents of the file.
+     * @throws IOException When the file could not be read.
+     */
+    private static byte[] readFile(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int)file.length());
+            final byte[] buf = new byte[8192];
+            int read;
+            while((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Parse the query String of a request.
+     * 
+     * @param rawQuery The raw query String. May be null.
+     * @return A mapping of parameter name -> value.
+     * @throws UnsupportedEncodingException Never, as UTF-8 is always
+     * supported.
+     */
+    private static HashMap<String, String> parseQuery(final String rawQuery)
+            throws UnsupportedEncodingException {
+        final HashMap<String, String> result = new HashMap<String, String>();
+        if(rawQuery == null) return result;
+        
+        for(String pair : rawQuery.split("&")) {
+            final int eq = pair.indexOf('=');
+            if(eq < 0) {
+                result.put(URLDecoder.decode(pair, CHARSET), "");
+            } else {
+                result.put(URLDecoder.decode(pair.substring(0, eq), CHARSET),
+                        URLDecoder.decode(pair.substring(eq + 1), CHARSET));
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Run the server from the command line until the process is killed. The
+     * arguments are:
+     * 
+     * --port n             The port to listen on. Default 8642.
+     * --recordings dir     The directory holding the recordings. Defaults to
+     *                      the replay.recordings system property.
+     * --latency min[-max]  The time taken to respond, in milliseconds.
+     * --error-rate r       The proportion of requests that fail, 0 to 1.
+     * --error-status n     The HTTP status failed requests get. Default 503.
+     * --fault-rate r       The proportion of bus tracker requests that get a
+     *                      fault code, 0 to 1.
+     * --fault-code code    The fault code. Default SYSTEM_OVERLOADED.
+     * --services n         The services at each stop in generated getBusTimes
+     *                      responses. Default 8.
+     * --seed n             The random seed.
+     * 
+     * @param args The command line arguments.
+     * @throws IOException When the server could not be started.
+     */
+    public static void main(final String[] args) throws IOException {
+        final Arguments arguments = new Arguments(args);
+        final ReplayServer server = create(arguments);
+        arguments.checkAllUsed();
+        server.start();
+        
+        System.out.println("Bus tracker base URL: " + server.getBaseUrl());
+        System.out.println("API base URL:         " + server.getApiUrl());
+        System.out.println("From the emulator, use 10.0.2.2 in place of " +
+                "localhost.");
+    }
+    
+    /**
+     * Create a ReplayServer from command line arguments. See main() for the
+     * arguments.
+     * 
+     * @param arguments The command line arguments.
+     * @return A new ReplayServer, which has not been started.
+     * @throws IOException When the server could not be created.
+     */
+    public static ReplayServer create(final Arguments arguments)
+            throws IOException {
+        final String recordings = arguments.getString("recordings",
+                System.getProperty(RECORDINGS_PROPERTY));
+        final ReplayServer server = new ReplayServer(
+                arguments.getInt("port", DEFAULT_PORT),
+                recordings != null ? new File(recordings) : null,
+                arguments.getLong("seed", 42));
+        
+        final String latency = arguments.getString("latency", "0");
+        final int dash = latency.indexOf('-');
+        try {
+            if(dash < 0) {
+                final int fixed = Integer.parseInt(latency);
+                server.setLatency(fixed, fixed);
+            } else {
+                server.setLatency(Integer.parseInt(latency.substring(0, dash)),
+                        Integer.parseInt(latency.substring(dash + 1)));
+            }
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency: " + latency);
+        }
+        
+        server.setErrorRate(arguments.getDouble("error-rate", 0),
+                arguments.getInt("error-status",
+                        HttpURLConnection.HTTP_UNAVAILABLE));
+        server.setFaultRate(arguments.getDouble("fault-rate", 0),
+                arguments.getString("fault-code", "SYSTEM_OVERLOADED"));
+        server.setServicesPerStop(arguments.getInt("services",
+                DEFAULT_SERVICES_PER_STOP));
+        
+        return server;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+import android.database.Cursor;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.org.rivernile.benchmarks.BenchmarkDatabase;
+
+/**
+ * Benchmarks building the BusStopCatalogue from the database shipped with the
+ * application, and the bounding box lookups the map does on it. The queries
+ * repeat the ones in BusStopDatabase.getBusStopCatalogue().
+ * 
+ * @author Niall Scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class BusStopCatalogueBenchmark {
+    
+    /** The latitude of the centre of the boxes, Princes Street. */
+    private static final double CENTRE_LATITUDE = 55.9533;
+    /** The longitude of the centre of the boxes, Princes Street. */
+    private static final double CENTRE_LONGITUDE = -3.1883;
+    
+    private static final String STOPS_SQL = "SELECT stopCode, stopName, x, " +
+            "y, orientation, locality FROM bus_stops";
+    private static final String SERVICES_SQL = "SELECT DISTINCT stopCode, " +
+            "serviceName FROM service_stops ORDER BY stopCode, CASE WHEN " +
+            "serviceName GLOB '[^0-9.]*' THEN serviceName ELSE " +
+            "cast(serviceName AS int) END";
+    
+    private long modTime;
+    private Cursor stops;
+    private Cursor services;
+    private BusStopCatalogue catalogue;
+    
+    /**
+     * Load the rows from the database and build the catalogue.
+     * 
+     * @throws SQLException When the database could not be read.
+     */
+    @Setup
+    public void setUp() throws SQLException {
+        final BenchmarkDatabase db = new BenchmarkDatabase();
+        try {
+            modTime = db.getLastDBModTime();
+            stops = db.rawQuery(STOPS_SQL, null);
+            services = db.rawQuery(SERVICES_SQL, null);
+        } finally {
+            db.close();
+        }
+        
+        catalogue = build();
+    }
+    
+    /**
+     * Build the catalogue from the rows that have already been read from the
+     * database, leaving out the time spent in the database.
+     * 
+     * @return The catalogue.
+     */
+    @Benchmark
+    public BusStopCatalogue build() {
+        stops.moveToPosition(-1);
+        services.moveToPosition(-1);
+        return BusStopCatalogue.fromCursors(modTime, stops, services);
+    }
+    
+    /**
+     * Find the stops in the box.
+     * 
+     * @param box The box to look in.
+     * @return The indexes of the stops.
+     */
+    @Benchmark
+    public int[] findInBounds(final Box box) {
+        return catalogue.findInBounds(box.minLatitude, box.minLongitude,
+                box.maxLatitude, box.maxLongitude, box.services);
+    }
+    
+    /**
+     * The box to look in. This is kept apart from the catalogue so that
+     * build() is not repeated for each box.
+     */
+    @State(Scope.Thread)
+    public static class Box {
+        
+        /** The width and height of the box, in degrees. */
+        @Param({ "0.01", "0.05", "1" })
+        public double boxSize;
+        
+        /** The service to filter the box by, or an empty String for none. */
+        @Param({ "", "21" })
+        public String filter;
+        
+        private double minLatitude;
+        private double minLongitude;
+        private double maxLatitude;
+        private double maxLongitude;
+        private String[] services;
+        
+        /**
+         * Work out the edges of the box.
+         */
+        @Setup
+        public void setUp() {
+            minLatitude = CENTRE_LATITUDE - boxSize / 2;
+            minLongitude = CENTRE_LONGITUDE - boxSize / 2;
+            maxLatitude = CENTRE_LATITUDE + boxSize / 2;
+            maxLongitude = CENTRE_LONGITUDE + boxSize / 2;
+            services = filter.length() == 0 ? null : new String[] { filter };
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android;
+
+import android.database.Cursor;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.org.rivernile.benchmarks.BenchmarkDatabase;
+
+/**
+ * Benchmarks the bounding box and search queries of BusStopDatabase against
+ * the database shipped with the application. BusStopDatabase itself needs an
+ * Android Context, so the SQL is built with BusStopQueries, the same as
+ * BusStopDatabase does, and run directly.
+ * 
+ * The queries run through sqlite-jdbc rather than the SQLite on a device, so
+ * only compare these numbers with each other, not with timings taken on a
+ * device.
+ * 
+ * @author Niall Scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class BusStopDatabaseBenchmark {
+    
+    /** The latitude of the centre of the boxes, Princes Street. */
+    private static final double CENTRE_LATITUDE = 55.9533;
+    /** The longitude of the centre of the boxes, Princes Street. */
+    private static final double CENTRE_LONGITUDE = -3.1883;
+    
+    private BenchmarkDatabase db;
+    
+    /**
+     * Open the database.
+     * 
+     * @throws SQLException When the database could not be opened.
+     */
+    @Setup
+    public void setUp() throws SQLException {
+        db = new BenchmarkDatabase();
+    }
+    
+    /**
+     * Close the database.
+     * 
+     * @throws SQLException When the database could not be closed.
+     */
+    @TearDown
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+    
+    /**
+     * Get the stops in the box, using the spatial grid index.
+     * 
+     * @param box The box to look in.
+     * @return The number of stops found.
+     * @throws SQLException When the query fails.
+     */
+    @Benchmark
+    public int stopsByCoords(final Box box) throws SQLException {
+        return count(db.rawQuery(box.gridSql, box.args));
+    }
+    
+    /**
+     * Get the stops in the box by scanning the table, as on databases
+     * without the spatial grid index.
+     * 
+     * @param box The box to look in.
+     * @return The number of stops found.
+     * @throws SQLException When the query fails.
+     */
+    @Benchmark
+    public int stopsByCoordsNoGrid(final Box box) throws SQLException {
+        return count(db.rawQuery(box.noGridSql, box.args));
+    }
+    
+    /**
+     * Search for stops using the full text search index.
+     * 
+     * @param search The search to do.
+     * @return The number of stops found.
+     * @throws SQLException When the query fails.
+     */
+    @Benchmark
+    public int searchFts(final Search search) throws SQLException {
+        return count(db.rawQuery(BusStopQueries.getSearchSql(),
+                search.ftsArgs));
+    }
+    
+    /**
+     * Search for stops by scanning the table, as on databases without the
+     * full text search index.
+     * 
+     * @param search The search to do.
+     * @return The number of stops found.
+     * @throws SQLException When the query fails.
+     */
+    @Benchmark
+    public int searchLike(final Search search) throws SQLException {
+        return count(db.rawQuery(search.likeSql, search.likeArgs));
+    }
+    
+    /**
+     * Get the number of rows in a Cursor, and close it.
+     * 
+     * @param c The Cursor.
+     * @return The number of rows.
+     */
+    private static int count(final Cursor c) {
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * A box to get the stops in, centred on Princes Street.
+     */
+    @State(Scope.Thread)
+    public static class Box {
+        
+        /** The width and height of the box, in degrees. */
+        @Param({ "0.01", "0.05", "1" })
+        public double boxSize;
+        
+        private String[] args;
+        private String gridSql;
+        private String noGridSql;
+        
+        /**
+         * Build the SQL for the box.
+         */
+        @Setup
+        public void setUp() {
+            final double minX = CENTRE_LATITUDE - boxSize / 2;
+            final double maxX = CENTRE_LATITUDE + boxSize / 2;
+            final double minY = CENTRE_LONGITUDE - boxSize / 2;
+            final double maxY = CENTRE_LONGITUDE + boxSize / 2;
+            args = BusStopQueries.getCoordsArgs(minX, minY, maxX, maxY);
+            gridSql = BusStopQueries.getStopsByCoordsSql(minX, minY, maxX,
+                    maxY, true);
+            noGridSql = BusStopQueries.getStopsByCoordsSql(minX, minY, maxX,
+                    maxY, false);
+        }
+    }
+    
+    /**
+     * A search for stops.
+     */
+    @State(Scope.Thread)
+    public static class Search {
+        
+        /** The search term, as typed by the user. */
+        @Param({ "leith", "princes st" })
+        public String searchTerm;
+        
+        private String[] ftsArgs;
+        private String likeSql;
+        private String[] likeArgs;
+        
+        /**
+         * Build the SQL for the search.
+         */
+        @Setup
+        public void setUp() {
+            final boolean searchCodes =
+                    BusStopQueries.shouldSearchCodes(searchTerm);
+            ftsArgs = BusStopQueries.getSearchArgs(
+                    BusStopQueries.getSearchMatchExpression(searchTerm,
+                            searchCodes), searchTerm);
+            likeSql = BusStopQueries.getSearchLikeSql(searchCodes);
+            likeArgs = BusStopQueries.getSearchLikeArgs(searchTerm,
+                    searchCodes);
+        }
+    }
+}
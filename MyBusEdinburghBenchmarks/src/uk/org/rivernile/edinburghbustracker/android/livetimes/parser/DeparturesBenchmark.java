@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.livetimes.parser;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.org.rivernile.android.bustracker.parser.livetimes.BusStop;
+import uk.org.rivernile.benchmarks.LiveTimesResponses;
+
+/**
+ * Benchmarks ordering the departures of a bus stop for display. The snapshot
+ * benchmark creates a new DeparturesSnapshot, which holds both the name and
+ * time orders, as EdinburghBusStop.getDepartures() does the first time it is
+ * called for a response.
+ * 
+ * @author Niall Scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class DeparturesBenchmark {
+    
+    @Param({ "4", "12", "30" })
+    public int services;
+    
+    private EdinburghBusStop busStop;
+    
+    /**
+     * Parse a response for a single stop.
+     * 
+     * @throws Exception When the response could not be parsed.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final BusStop stop = new EdinburghParser().parseJSON(
+                LiveTimesResponses.generate(1, services, 4, 42)).values()
+                .iterator().next();
+        busStop = (EdinburghBusStop)stop;
+        // Sort by name up front, as the bus times screen does.
+        busStop.getBusServices();
+    }
+    
+    /**
+     * Take a new snapshot of the departures.
+     * 
+     * @return The snapshot.
+     */
+    @Benchmark
+    public DeparturesSnapshot snapshot() {
+        return busStop.createDepartures();
+    }
+}
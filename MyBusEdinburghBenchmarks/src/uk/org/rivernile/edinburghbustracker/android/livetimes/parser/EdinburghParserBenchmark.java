@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.livetimes.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.org.rivernile.android.bustracker.parser.livetimes
+        .BusParserException;
+import uk.org.rivernile.android.bustracker.parser.livetimes.BusStop;
+import uk.org.rivernile.benchmarks.LiveTimesResponses;
+
+/**
+ * Benchmarks parsing of bus times responses by EdinburghParser. The number of
+ * stops matches the sizes the application asks for: a single stop from the
+ * bus times screen, a handful for the alert checks and the most the web
+ * service allows in one request.
+ * 
+ * parseJSONStream() is the parser used on Honeycomb and later. parseJSON() is
+ * the parser used on older devices, and is the baseline it is compared with.
+ * 
+ * @author Niall Scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class EdinburghParserBenchmark {
+    
+    @Param({ "1", "6", "30" })
+    public int stops;
+    
+    @Param({ "8" })
+    public int servicesPerStop;
+    
+    @Param({ "4" })
+    public int departures;
+    
+    private EdinburghParser parser;
+    private String response;
+    private byte[] responseBytes;
+    
+    /**
+     * Generate the response to parse.
+     * 
+     * @throws UnsupportedEncodingException Never, as UTF-8 is always
+     * supported.
+     */
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        parser = new EdinburghParser();
+        response = LiveTimesResponses.generate(stops, servicesPerStop,
+                departures, 42);
+        responseBytes = response.getBytes("UTF-8");
+    }
+    
+    /**
+     * Parse the response.
+     * 
+     * @return The parsed bus stops.
+     * @throws JSONException When the response is not valid.
+     * @throws BusParserException When the response holds an error.
+     */
+    @Benchmark
+    public HashMap<String, BusStop> parseJSON() throws JSONException,
+            BusParserException {
+        return parser.parseJSON(response);
+    }
+    
+    /**
+     * Parse the response from a stream, as the response body is read.
+     * 
+     * @return The parsed bus stops.
+     * @throws IOException When the response could not be read.
+     * @throws BusParserException When the response holds an error.
+     */
+    @Benchmark
+    public HashMap<String, BusStop> parseJSONStream() throws IOException,
+            BusParserException {
+        return parser.parseJSONStream(new ByteArrayInputStream(
+                responseBytes));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 Niall 'Rivernile' Scott
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty.  In no event will the authors or contributors be held liable for
+ * any damages arising from the use of this software.
+ *
+ * The aforementioned copyright holder(s) hereby grant you a
+ * non-transferrable right to use this software for any purpose (including
+ * commercial applications), and to modify it and redistribute it, subject to
+ * the following conditions:
+ *
+ *  1. This notice may not be removed or altered from any file it appears in.
+ *
+ *  2. Any modifications made to this software, except those defined in
+ *     clause 3 of this agreement, must be released under this license, and
+ *     the source code of any modifications must be made available on a
+ *     publically accessible (and locateable) website, or sent to the
+ *     original author of this software.
+ *
+ *  3. Software modifications that do not alter the functionality of the
+ *     software but are simply adaptations to a specific environment are
+ *     exempt from clause 2.
+ */
+
+package uk.org.rivernile.edinburghbustracker.android.maps;
+
+import android.database.Cursor;
+import com.google.android.gms.maps.model.LatLng;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.org.rivernile.benchmarks.BenchmarkDatabase;
+
+/**
+ * Benchmarks building route lines, as RouteLineLoader does, and getting the
+ * points of every line of a route at a level of detail, as the map does when
+ * it adds or updates the route lines. The query repeats the one in
+ * BusStopDatabase.getServicePointsForService().
+ * 
+ * @author Niall Scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class RouteGeometryBenchmark {
+    
+    private static final String SERVICE_POINTS_SQL = "SELECT chainage, " +
+            "latitude, longitude FROM service_point WHERE service_id = " +
+            "(SELECT _id FROM service WHERE name = ?) ORDER BY chainage " +
+            "ASC, order_value ASC";
+    
+    /** The service to build the route lines of. 21 has the most points. */
+    @Param({ "21", "TRAM" })
+    public String service;
+    
+    private Cursor points;
+    private RouteGeometry geometry;
+    
+    /**
+     * Load the points of the service from the database.
+     * 
+     * @throws SQLException When the database could not be read.
+     */
+    @Setup
+    public void setUp() throws SQLException {
+        final BenchmarkDatabase db = new BenchmarkDatabase();
+        try {
+            points = db.rawQuery(SERVICE_POINTS_SQL, new String[] { service });
+        } finally {
+            db.close();
+        }
+        
+        geometry = fromCursor();
+    }
+    
+    /**
+     * Build the route lines from points that have already been read from the
+     * database, leaving out the time spent in the database.
+     * 
+     * @return The route lines.
+     */
+    @Benchmark
+    public RouteGeometry fromCursor() {
+        points.moveToPosition(-1);
+        return RouteGeometry.fromCursor(points, 0);
+    }
+    
+    /**
+     * Get the points of all of the lines of the route at a level of detail.
+     * 
+     * @param level The level of detail.
+     * @param bh The Blackhole to consume the points.
+     */
+    @Benchmark
+    public void getPoints(final Level level, final Blackhole bh) {
+        final int lineCount = geometry.getLineCount();
+        for(int i = 0; i < lineCount; i++) {
+            final ArrayList<LatLng> linePoints =
+                    geometry.getPoints(level.level, i);
+            bh.consume(linePoints);
+        }
+    }
+    
+    /**
+     * The level of detail to get the points at.
+     */
+    @State(Scope.Thread)
+    public static class Level {
+        
+        /** The level of detail, from 0 (full detail) up. */
+        @Param({ "0", "2", "4" })
+        public int level;
+    }
+}